@@ -0,0 +1,111 @@
+package com.mongodb.fhir.webservice.analytics;
+
+import java.util.Date;
+
+/**
+ * A rule crossing its threshold.  Only counts and the region of the rule,
+ * no patient data.
+ */
+public class Alert {
+
+    private final String rule;
+
+    private final String conditionCode;
+
+    private final String condition;
+
+    private final String state;
+
+    private final String city;
+
+    private final long count;
+
+    private final int threshold;
+
+    private final int windowMinutes;
+
+    private final Date firedAt;
+
+    // alerts of any rule dropped by the rate limit since the previous one sent
+    private long suppressed;
+
+    /**
+     *
+     * @param rule
+     * @param conditionCode
+     * @param condition display name from the event that fired it
+     * @param state
+     * @param city
+     * @param count
+     * @param threshold
+     * @param windowMinutes
+     * @param firedAt
+     */
+    public Alert(String rule, String conditionCode, String condition, String state, String city,
+                 long count, int threshold, int windowMinutes, Date firedAt) {
+        this.rule = rule;
+        this.conditionCode = conditionCode;
+        this.condition = condition;
+        this.state = state;
+        this.city = city;
+        this.count = count;
+        this.threshold = threshold;
+        this.windowMinutes = windowMinutes;
+        this.firedAt = firedAt;
+    }
+
+    public String getRule() {
+        return rule;
+    }
+
+    public String getConditionCode() {
+        return conditionCode;
+    }
+
+    public String getCondition() {
+        return condition;
+    }
+
+    public String getState() {
+        return state;
+    }
+
+    public String getCity() {
+        return city;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public int getThreshold() {
+        return threshold;
+    }
+
+    public int getWindowMinutes() {
+        return windowMinutes;
+    }
+
+    public Date getFiredAt() {
+        return firedAt;
+    }
+
+    public long getSuppressed() {
+        return suppressed;
+    }
+
+    public void setSuppressed(long suppressed) {
+        this.suppressed = suppressed;
+    }
+
+    /**
+     *
+     * @return notification text
+     */
+    public String getMessage() {
+        String region = city != null ? city + ", " + (state != null ? state : "") : (state != null ? state : "all regions");
+        return String.format("%s: %d %s (%s) cases in %s in the last %d minutes, threshold %d%s", rule, count,
+                condition != null ? condition : "condition", conditionCode, region, windowMinutes, threshold,
+                suppressed > 0 ? " (" + suppressed + " other alerts suppressed)" : "");
+    }
+}
@@ -0,0 +1,328 @@
+package com.mongodb.fhir.webservice.analytics;
+
+import com.mongodb.fhir.webservice.model.ConditionEvent;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Threshold alerts on the ConditionEvents as they are produced, in place of
+ * a notification per insert.
+ *
+ * A rule (fhir.alerts.rules[n]) fires when at least threshold events with
+ * its condition code, in its state and city if set, are reported within its
+ * window.  Each rule counts its window in a ring of
+ * fhir.alerts.bucketsPerWindow buckets with a running sum, so an event costs
+ * a lookup of the rules of its code and an increment, whatever the rate.
+ *
+ * A rule fires once when it reaches its threshold and not again until it
+ * has dropped below it, nor within its cooldownMinutes.  Alerts of all
+ * rules are limited to fhir.alerts.maxPerMinute; the ones over it are
+ * dropped and counted in the next alert sent.  Alerts are handed to the
+ * AlertSink on a dispatcher thread, off the request path.
+ *
+ * Like the ConditionStatsAggregator the windows are per node and start
+ * empty after a restart.
+ */
+@Component
+public class AlertRulesEngine implements ConditionEventListener {
+
+    // Logger component
+    private static final Logger log = LoggerFactory.getLogger(AlertRulesEngine.class);
+
+    // alerts waiting for the sink, more are counted as failed
+    private static final int DISPATCH_QUEUE = 1000;
+
+    private final AlertRulesProperties properties;
+
+    private final AlertSink alertSink;
+
+    private final MeterRegistry meterRegistry;
+
+    // condition code -> rules of the code, not changed after start
+    private Map<String, List<RuleWindow>> rulesByCode = Collections.emptyMap();
+
+    private ThreadPoolExecutor dispatcher;
+
+    // global rate limit, a token bucket of maxPerMinute refilled over a minute
+    private double tokens;
+    private long tokensUpdated;
+    private long suppressed;
+
+    private Counter firedCounter;
+    private Counter suppressedCounter;
+    private Counter failedCounter;
+
+    /**
+     *
+     * @param properties
+     * @param alertSink
+     * @param meterRegistry
+     */
+    public AlertRulesEngine(AlertRulesProperties properties, AlertSink alertSink, MeterRegistry meterRegistry) {
+        this.properties = properties;
+        this.alertSink = alertSink;
+        this.meterRegistry = meterRegistry;
+    }
+
+    /**
+     * Check the rules and start the dispatcher
+     */
+    @PostConstruct
+    public void start() {
+        if(!properties.isEnabled() || properties.getRules().isEmpty()) {
+            return;
+        }
+
+        Map<String, List<RuleWindow>> rules = new HashMap<>();
+        for(AlertRulesProperties.Rule rule : properties.getRules()) {
+            if(rule.getName() == null || rule.getConditionCode() == null) {
+                throw new IllegalArgumentException("Alert rule without name or conditionCode.");
+            }
+            if(rule.getThreshold() < 1 || rule.getWindowMinutes() < 1) {
+                throw new IllegalArgumentException("Alert rule " + rule.getName() + " needs a threshold and windowMinutes of at least 1.");
+            }
+            rules.computeIfAbsent(rule.getConditionCode(), code -> new ArrayList<>())
+                    .add(new RuleWindow(rule, properties.getBucketsPerWindow()));
+        }
+        rulesByCode = rules;
+
+        tokens = properties.getMaxPerMinute();
+        firedCounter = meterRegistry.counter("fhir.alerts", "result", "sent");
+        suppressedCounter = meterRegistry.counter("fhir.alerts", "result", "suppressed");
+        failedCounter = meterRegistry.counter("fhir.alerts", "result", "failed");
+
+        dispatcher = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(DISPATCH_QUEUE), runnable -> {
+                    Thread thread = new Thread(runnable, "alert-dispatcher");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+
+        log.info("{} alert rules on {} condition codes, sent to {}.", properties.getRules().size(), rules.size(),
+                alertSink.getClass().getSimpleName());
+    }
+
+    @PreDestroy
+    public void stop() {
+        if(dispatcher != null) {
+            dispatcher.shutdown();
+        }
+    }
+
+    @Override
+    public void onConditionEvent(ConditionEvent conditionEvent) {
+        if(dispatcher == null) {
+            return;
+        }
+
+        for(Alert alert : this.evaluate(conditionEvent, System.currentTimeMillis())) {
+            this.dispatch(alert);
+        }
+    }
+
+    /**
+     * Count an event in the windows of its rules
+     *
+     * @param conditionEvent
+     * @param now
+     * @return alerts to send, usually none
+     */
+    List<Alert> evaluate(ConditionEvent conditionEvent, long now) {
+        if(conditionEvent.getConditionCode() == null) {
+            return Collections.emptyList();
+        }
+        List<RuleWindow> rules = rulesByCode.get(conditionEvent.getConditionCode());
+        if(rules == null) {
+            return Collections.emptyList();
+        }
+
+        List<Alert> alerts = null;
+        long reported = conditionEvent.getReportedDate() != null ? conditionEvent.getReportedDate().getTime() : now;
+        for(RuleWindow rule : rules) {
+            if(!rule.matches(conditionEvent)) {
+                continue;
+            }
+            Alert alert = rule.add(conditionEvent, Math.min(reported, now), now);
+            if(alert != null && this.acquire(now)) {
+                alert.setSuppressed(this.takeSuppressed());
+                if(alerts == null) {
+                    alerts = new ArrayList<>(1);
+                }
+                alerts.add(alert);
+            }
+        }
+        return alerts != null ? alerts : Collections.emptyList();
+    }
+
+    /**
+     * Take a token for an alert, or count it as suppressed
+     *
+     * @param now
+     * @return true if the alert can be sent
+     */
+    private synchronized boolean acquire(long now) {
+        int maxPerMinute = properties.getMaxPerMinute();
+        if(now > tokensUpdated) {
+            tokens = Math.min(maxPerMinute, tokens + (now - tokensUpdated) * maxPerMinute / 60000.0);
+            tokensUpdated = now;
+        }
+        if(tokens < 1) {
+            suppressed++;
+            if(suppressedCounter != null) {
+                suppressedCounter.increment();
+            }
+            return false;
+        }
+        tokens--;
+        return true;
+    }
+
+    /**
+     * Alerts dropped by the rate limit since the last call, to add to the next alert
+     *
+     * @return
+     */
+    private synchronized long takeSuppressed() {
+        long taken = suppressed;
+        suppressed = 0;
+        return taken;
+    }
+
+    /**
+     * Hand an alert to the sink on the dispatcher thread
+     *
+     * @param alert
+     */
+    private void dispatch(Alert alert) {
+        try {
+            dispatcher.execute(() -> {
+                try {
+                    alertSink.send(alert);
+                    firedCounter.increment();
+                } catch (Exception e) {
+                    failedCounter.increment();
+                    log.warn("Could not send alert {}: {}", alert.getRule(), e.toString());
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            failedCounter.increment();
+            log.warn("Alert dispatcher is full, dropped alert {}.", alert.getRule());
+        }
+    }
+
+    /**
+     * Sliding window count and alert state of a rule
+     */
+    private static class RuleWindow {
+
+        private final AlertRulesProperties.Rule rule;
+
+        private final long bucketMillis;
+
+        private final long cooldownMillis;
+
+        private final int[] counts;
+
+        private long sum;
+
+        // newest bucket number (time / bucketMillis) the window was moved to
+        private long currentBucket = Long.MIN_VALUE;
+
+        private boolean firing;
+
+        private long lastFired = Long.MIN_VALUE;
+
+        RuleWindow(AlertRulesProperties.Rule rule, int buckets) {
+            this.rule = rule;
+            this.bucketMillis = Math.max(1, TimeUnit.MINUTES.toMillis(rule.getWindowMinutes()) / buckets);
+            this.cooldownMillis = TimeUnit.MINUTES.toMillis(rule.getCooldownMinutes());
+            this.counts = new int[buckets];
+        }
+
+        boolean matches(ConditionEvent conditionEvent) {
+            return (this.isAny(rule.getState()) || rule.getState().equalsIgnoreCase(conditionEvent.getState()))
+                    && (this.isAny(rule.getCity()) || rule.getCity().equalsIgnoreCase(conditionEvent.getCity()));
+        }
+
+        private boolean isAny(String value) {
+            return value == null || value.isEmpty() || "*".equals(value);
+        }
+
+        /**
+         *
+         * @param conditionEvent
+         * @param reported not after now
+         * @param now
+         * @return alert if the rule fires with this event
+         */
+        synchronized Alert add(ConditionEvent conditionEvent, long reported, long now) {
+            long nowBucket = now / bucketMillis;
+            this.advance(nowBucket);
+
+            long bucket = reported / bucketMillis;
+            if(bucket <= nowBucket - counts.length) {
+                // older than the window
+                return null;
+            }
+
+            // re-armed once the window dropped below the threshold
+            if(sum < rule.getThreshold()) {
+                firing = false;
+            }
+
+            counts[(int)Math.floorMod(bucket, (long)counts.length)]++;
+            sum++;
+
+            if(firing || sum < rule.getThreshold()) {
+                return null;
+            }
+            firing = true;
+            if(lastFired != Long.MIN_VALUE && now - lastFired < cooldownMillis) {
+                return null;
+            }
+            lastFired = now;
+            return new Alert(rule.getName(), rule.getConditionCode(), conditionEvent.getCondition(),
+                    this.isAny(rule.getState()) ? null : rule.getState(), this.isAny(rule.getCity()) ? null : rule.getCity(),
+                    sum, rule.getThreshold(), rule.getWindowMinutes(), new Date(now));
+        }
+
+        /**
+         * Empty the buckets leaving the window, at most all of them
+         *
+         * @param nowBucket
+         */
+        private void advance(long nowBucket) {
+            if(nowBucket <= currentBucket) {
+                return;
+            }
+            if(currentBucket == Long.MIN_VALUE || nowBucket - currentBucket >= counts.length) {
+                Arrays.fill(counts, 0);
+                sum = 0;
+            } else {
+                for(long bucket = currentBucket + 1; bucket <= nowBucket; bucket++) {
+                    int idx = (int)Math.floorMod(bucket, (long)counts.length);
+                    sum -= counts[idx];
+                    counts[idx] = 0;
+                }
+            }
+            currentBucket = nowBucket;
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package com.mongodb.fhir.webservice.analytics;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Alert rules, fhir.alerts.rules[n].*, and the limits of the notifications.
+ * A list of rules does not fit @Value, so they are bound here.
+ */
+@Component
+@ConfigurationProperties(prefix = "fhir.alerts")
+public class AlertRulesProperties {
+
+    private boolean enabled = true;
+
+    // notifications sent per minute over all rules, the others are counted in the next one
+    private int maxPerMinute = 10;
+
+    // resolution of the sliding windows
+    private int bucketsPerWindow = 60;
+
+    private List<Rule> rules = new ArrayList<>();
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public int getMaxPerMinute() {
+        return maxPerMinute;
+    }
+
+    public void setMaxPerMinute(int maxPerMinute) {
+        this.maxPerMinute = maxPerMinute;
+    }
+
+    public int getBucketsPerWindow() {
+        return bucketsPerWindow;
+    }
+
+    public void setBucketsPerWindow(int bucketsPerWindow) {
+        this.bucketsPerWindow = bucketsPerWindow;
+    }
+
+    public List<Rule> getRules() {
+        return rules;
+    }
+
+    public void setRules(List<Rule> rules) {
+        this.rules = rules;
+    }
+
+    /**
+     * Alert when at least threshold conditions with the code are reported in
+     * the region within the window.  No state or city matches any.
+     */
+    public static class Rule {
+
+        private String name;
+
+        private String conditionCode;
+
+        private String state;
+
+        private String city;
+
+        private int threshold;
+
+        private int windowMinutes = 60;
+
+        // a rule that fired does not fire again within this time, even if it dropped below its threshold
+        private int cooldownMinutes = 60;
+
+        public String getName() {
+            return name;
+        }
+
+        public void setName(String name) {
+            this.name = name;
+        }
+
+        public String getConditionCode() {
+            return conditionCode;
+        }
+
+        public void setConditionCode(String conditionCode) {
+            this.conditionCode = conditionCode;
+        }
+
+        public String getState() {
+            return state;
+        }
+
+        public void setState(String state) {
+            this.state = state;
+        }
+
+        public String getCity() {
+            return city;
+        }
+
+        public void setCity(String city) {
+            this.city = city;
+        }
+
+        public int getThreshold() {
+            return threshold;
+        }
+
+        public void setThreshold(int threshold) {
+            this.threshold = threshold;
+        }
+
+        public int getWindowMinutes() {
+            return windowMinutes;
+        }
+
+        public void setWindowMinutes(int windowMinutes) {
+            this.windowMinutes = windowMinutes;
+        }
+
+        public int getCooldownMinutes() {
+            return cooldownMinutes;
+        }
+
+        public void setCooldownMinutes(int cooldownMinutes) {
+            this.cooldownMinutes = cooldownMinutes;
+        }
+    }
+}
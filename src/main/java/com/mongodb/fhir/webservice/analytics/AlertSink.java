@@ -0,0 +1,16 @@
+package com.mongodb.fhir.webservice.analytics;
+
+/**
+ * Destination of the alerts, selected by fhir.alerts.sink: LOGGING
+ * (default), FILE or MOCK.  Called on the alert dispatcher thread, one
+ * alert at a time.
+ */
+public interface AlertSink {
+
+    /**
+     *
+     * @param alert
+     * @throws Exception the alert is counted as failed
+     */
+    void send(Alert alert) throws Exception;
+}
@@ -0,0 +1,19 @@
+package com.mongodb.fhir.webservice.analytics;
+
+import com.mongodb.fhir.webservice.model.ConditionEvent;
+
+/**
+ * Consumer of ConditionEvents as they are produced, by the request paths
+ * when the events are written inline or by the ConditionEventProjector.
+ *
+ * Called on the producing thread, often a request thread, so it must be
+ * quick and must not throw.
+ */
+public interface ConditionEventListener {
+
+    /**
+     *
+     * @param conditionEvent
+     */
+    void onConditionEvent(ConditionEvent conditionEvent);
+}
@@ -0,0 +1,471 @@
+package com.mongodb.fhir.webservice.analytics;
+
+import com.mongodb.fhir.webservice.model.ConditionEvent;
+import com.mongodb.fhir.webservice.model.ConditionStats;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Counts of ConditionEvents over a sliding window, kept in memory as the
+ * events are produced, instead of counting the reporting collection.
+ *
+ * The window (fhir.analytics.windowMinutes) is a ring of slots of
+ * fhir.analytics.slotSeconds.  Condition code, state, city and gender are
+ * numbered as they are first seen and packed into one long key, so each
+ * slot is a primitive map of counts by key.  Running totals of the window
+ * are kept for every rollup of the key, i.e. with any of the dimensions
+ * left out (0): an event adds to its slot and to 15 totals, a slot leaving
+ * the window subtracts its keys from them.  A query over the whole window
+ * is then one lookup for the total, plus one per known value for each
+ * breakdown, whatever the number of events.  Queries over part of the
+ * window scan the keys of its slots.  Events are placed by reportedDate;
+ * events older than the window are not counted.
+ *
+ * Counts are per node: with inline ConditionEvents a node counts its own
+ * requests, with the ConditionEventProjector every projecting node counts
+ * all events.  They start from zero after a restart.
+ */
+@Component
+public class ConditionStatsAggregator implements ConditionEventListener {
+
+    private static final String UNKNOWN = "unknown";
+
+    // bits of each dimension in the packed key, 58 in total
+    private static final int CODE_BITS = 20;
+    private static final int STATE_BITS = 10;
+    private static final int CITY_BITS = 24;
+    private static final int GENDER_BITS = 4;
+
+    private static final int CITY_SHIFT = GENDER_BITS;
+    private static final int STATE_SHIFT = CITY_SHIFT + CITY_BITS;
+    private static final int CODE_SHIFT = STATE_SHIFT + STATE_BITS;
+
+    private static final long GENDER_MASK = (1L << GENDER_BITS) - 1;
+    private static final long CITY_MASK = ((1L << CITY_BITS) - 1) << CITY_SHIFT;
+    private static final long STATE_MASK = ((1L << STATE_BITS) - 1) << STATE_SHIFT;
+    private static final long CODE_MASK = ((1L << CODE_BITS) - 1) << CODE_SHIFT;
+
+    // every combination of the dimensions but none, the others are 0 in a rollup key
+    private static final long[] ROLLUP_MASKS = new long[15];
+    static {
+        long[] dimensions = {CODE_MASK, STATE_MASK, CITY_MASK, GENDER_MASK};
+        for(int combination = 1; combination < 16; combination++) {
+            for(int dimension = 0; dimension < dimensions.length; dimension++) {
+                if((combination & (1 << dimension)) != 0) {
+                    ROLLUP_MASKS[combination - 1] |= dimensions[dimension];
+                }
+            }
+        }
+    }
+
+    // Logger component
+    private static final Logger log = LoggerFactory.getLogger(ConditionStatsAggregator.class);
+
+    @Value("${fhir.analytics.enabled:true}")
+    private boolean enabled;
+
+    @Value("${fhir.analytics.windowMinutes:60}")
+    private int windowMinutes;
+
+    @Value("${fhir.analytics.slotSeconds:60}")
+    private int slotSeconds;
+
+    private long slotMillis;
+
+    private Dictionary codes;
+    private Dictionary states;
+    private Dictionary cities;
+    private Dictionary genders;
+
+    // slot number (time / slotMillis) held by each ring position, -1 if empty
+    private long[] slotNumbers;
+    private LongLongHashMap[] slots;
+    // rollup key -> count in the window; the rollup without any dimension is windowTotal
+    private LongLongHashMap totals;
+    private long windowTotal;
+
+    // newest slot number the window was moved to
+    private long currentSlot = Long.MIN_VALUE;
+
+    private long dropped;
+
+    /**
+     * Allocate the window
+     */
+    @PostConstruct
+    public void start() {
+        if(!enabled) {
+            return;
+        }
+
+        int slotCount = Math.max(1, (int)(TimeUnit.MINUTES.toSeconds(windowMinutes) / slotSeconds));
+        slotMillis = TimeUnit.SECONDS.toMillis(slotSeconds);
+
+        codes = new Dictionary("conditionCode", CODE_BITS);
+        states = new Dictionary("state", STATE_BITS);
+        cities = new Dictionary("city", CITY_BITS);
+        genders = new Dictionary("gender", GENDER_BITS);
+
+        slotNumbers = new long[slotCount];
+        slots = new LongLongHashMap[slotCount];
+        for(int idx = 0; idx < slotCount; idx++) {
+            slotNumbers[idx] = -1;
+            slots[idx] = new LongLongHashMap(64);
+        }
+        totals = new LongLongHashMap(1024);
+
+        log.info("Condition stats over {} minutes in {} slots of {} s.", windowMinutes, slotCount, slotSeconds);
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    @Override
+    public void onConditionEvent(ConditionEvent conditionEvent) {
+        if(enabled) {
+            this.record(conditionEvent, System.currentTimeMillis());
+        }
+    }
+
+    /**
+     * Count an event
+     *
+     * @param conditionEvent
+     * @param now
+     */
+    synchronized void record(ConditionEvent conditionEvent, long now) {
+        long nowSlot = Math.floorDiv(now, slotMillis);
+        this.advance(nowSlot);
+
+        long reported = conditionEvent.getReportedDate() != null ? conditionEvent.getReportedDate().getTime() : now;
+        // clocks of other nodes may be ahead
+        long slot = Math.min(Math.floorDiv(reported, slotMillis), nowSlot);
+        if(slot <= nowSlot - slotNumbers.length) {
+            dropped++;
+            return;
+        }
+
+        long key = this.key(codes.id(conditionEvent.getConditionCode()), states.id(conditionEvent.getState()),
+                cities.id(conditionEvent.getCity()), genders.id(conditionEvent.getGender()));
+
+        int position = (int)Math.floorMod(slot, (long)slotNumbers.length);
+        if(slotNumbers[position] != slot) {
+            // only reached for a slot of the window not used yet, expired ones were cleared by advance
+            slotNumbers[position] = slot;
+            slots[position].clear();
+        }
+        slots[position].addTo(key, 1);
+        this.addToTotals(key, 1);
+    }
+
+    /**
+     * Counts of the matching events of the last minutes
+     *
+     * @param conditionCode null for any
+     * @param state null for any
+     * @param city null for any
+     * @param gender null for any
+     * @param minutes 0 or more than the window for the whole window
+     * @return
+     */
+    public ConditionStats stats(String conditionCode, String state, String city, String gender, int minutes) {
+        return this.stats(conditionCode, state, city, gender, minutes, System.currentTimeMillis());
+    }
+
+    /**
+     *
+     * @param conditionCode
+     * @param state
+     * @param city
+     * @param gender
+     * @param minutes
+     * @param now
+     * @return
+     */
+    synchronized ConditionStats stats(String conditionCode, String state, String city, String gender,
+                                      int minutes, long now) {
+        ConditionStats stats = new ConditionStats();
+        stats.setTo(new Date(now));
+        if(!enabled) {
+            return stats;
+        }
+
+        long nowSlot = Math.floorDiv(now, slotMillis);
+        this.advance(nowSlot);
+
+        int slotCount = slotNumbers.length;
+        if(minutes > 0) {
+            slotCount = (int)Math.min(slotCount,
+                    (TimeUnit.MINUTES.toMillis(minutes) + slotMillis - 1) / slotMillis);
+        }
+        stats.setFrom(new Date((nowSlot - slotCount + 1) * slotMillis));
+
+        int code = codes.find(conditionCode);
+        int stateId = states.find(state);
+        int cityId = cities.find(city);
+        int genderId = genders.find(gender);
+        if(code == 0 || stateId == 0 || cityId == 0 || genderId == 0) {
+            // a value never seen
+            stats.setByConditionCode(new LinkedHashMap<>());
+            stats.setByState(new LinkedHashMap<>());
+            stats.setByCity(new LinkedHashMap<>());
+            stats.setByGender(new LinkedHashMap<>());
+            return stats;
+        }
+
+        if(slotCount == slotNumbers.length) {
+            long filter = this.key(Math.max(code, 0), Math.max(stateId, 0), Math.max(cityId, 0), Math.max(genderId, 0));
+            long total = this.windowCount(filter);
+            stats.setTotal(total);
+            stats.setByConditionCode(this.breakdown(filter, total, code, codes, CODE_SHIFT));
+            stats.setByState(this.breakdown(filter, total, stateId, states, STATE_SHIFT));
+            stats.setByCity(this.breakdown(filter, total, cityId, cities, CITY_SHIFT));
+            stats.setByGender(this.breakdown(filter, total, genderId, genders, 0));
+            return stats;
+        }
+
+        Matcher matcher = new Matcher(code, stateId, cityId, genderId);
+        for(int position = 0; position < slotNumbers.length; position++) {
+            if(slotNumbers[position] > nowSlot - slotCount) {
+                slots[position].forEach(matcher);
+            }
+        }
+
+        stats.setTotal(matcher.total);
+        stats.setByConditionCode(codes.counts(matcher.codeCounts));
+        stats.setByState(states.counts(matcher.stateCounts));
+        stats.setByCity(cities.counts(matcher.cityCounts));
+        stats.setByGender(genders.counts(matcher.genderCounts));
+        return stats;
+    }
+
+    /**
+     * Counts of the whole window by one dimension, from the rollup totals
+     *
+     * @param filter rollup key of the filter
+     * @param total count of the filter
+     * @param id id of the dimension in the filter, -1 for any
+     * @param dictionary
+     * @param shift
+     * @return by value, largest first
+     */
+    private Map<String, Long> breakdown(long filter, long total, int id, Dictionary dictionary, int shift) {
+        if(id > 0) {
+            Map<String, Long> byValue = new LinkedHashMap<>();
+            if(total > 0) {
+                byValue.put(dictionary.value(id), total);
+            }
+            return byValue;
+        }
+
+        long[] counts = new long[dictionary.size() + 1];
+        for(int value = 1; value < counts.length; value++) {
+            counts[value] = this.windowCount(filter | ((long)value << shift));
+        }
+        return dictionary.counts(counts);
+    }
+
+    /**
+     * Events not counted because they were older than the window
+     *
+     * @return
+     */
+    public synchronized long getDropped() {
+        return dropped;
+    }
+
+    /**
+     * Move the window to the current slot, removing the slots that leave it from the totals
+     *
+     * @param nowSlot
+     */
+    private void advance(long nowSlot) {
+        if(nowSlot <= currentSlot) {
+            return;
+        }
+        currentSlot = nowSlot;
+
+        for(int position = 0; position < slotNumbers.length; position++) {
+            if(slotNumbers[position] >= 0 && slotNumbers[position] <= nowSlot - slotNumbers.length) {
+                slots[position].forEach((key, count) -> this.addToTotals(key, -count));
+                slots[position].clear();
+                slotNumbers[position] = -1;
+            }
+        }
+    }
+
+    /**
+     *
+     * @param key
+     * @param delta
+     */
+    private void addToTotals(long key, long delta) {
+        windowTotal += delta;
+        for(long mask : ROLLUP_MASKS) {
+            totals.addTo(key & mask, delta);
+        }
+    }
+
+    /**
+     *
+     * @param rollupKey
+     * @return count in the window
+     */
+    private long windowCount(long rollupKey) {
+        return rollupKey == 0 ? windowTotal : totals.get(rollupKey);
+    }
+
+    private long key(int code, int state, int city, int gender) {
+        return ((long)code << CODE_SHIFT) | ((long)state << STATE_SHIFT) | ((long)city << CITY_SHIFT) | gender;
+    }
+
+    private static int field(long key, int shift, int bits) {
+        return (int)((key >>> shift) & ((1L << bits) - 1));
+    }
+
+    /**
+     * Sums the counts of the keys matching a filter, by dimension
+     */
+    private class Matcher implements LongLongHashMap.EntryConsumer {
+
+        // -1 for any
+        private final int code;
+        private final int state;
+        private final int city;
+        private final int gender;
+
+        private final long[] codeCounts = new long[codes.size() + 1];
+        private final long[] stateCounts = new long[states.size() + 1];
+        private final long[] cityCounts = new long[cities.size() + 1];
+        private final long[] genderCounts = new long[genders.size() + 1];
+
+        private long total;
+
+        Matcher(int code, int state, int city, int gender) {
+            this.code = code;
+            this.state = state;
+            this.city = city;
+            this.gender = gender;
+        }
+
+        @Override
+        public void accept(long key, long count) {
+            int keyCode = field(key, CODE_SHIFT, CODE_BITS);
+            int keyState = field(key, STATE_SHIFT, STATE_BITS);
+            int keyCity = field(key, CITY_SHIFT, CITY_BITS);
+            int keyGender = field(key, 0, GENDER_BITS);
+            if((code >= 0 && keyCode != code) || (state >= 0 && keyState != state)
+                    || (city >= 0 && keyCity != city) || (gender >= 0 && keyGender != gender)) {
+                return;
+            }
+
+            total += count;
+            codeCounts[keyCode] += count;
+            stateCounts[keyState] += count;
+            cityCounts[keyCity] += count;
+            genderCounts[keyGender] += count;
+        }
+    }
+
+    /**
+     * Numbers the values of one dimension from 1, unknown (null) is 1.
+     * Values past the capacity of the dimension are counted as unknown.
+     */
+    private static class Dictionary {
+
+        private final String name;
+
+        private final int capacity;
+
+        private final Map<String, Integer> ids = new HashMap<>();
+
+        // index is the id
+        private final List<String> values = new ArrayList<>();
+
+        private boolean full;
+
+        Dictionary(String name, int bits) {
+            this.name = name;
+            this.capacity = (1 << bits) - 1;
+            values.add(null);
+            this.id(UNKNOWN);
+        }
+
+        int size() {
+            return values.size() - 1;
+        }
+
+        String value(int id) {
+            return values.get(id);
+        }
+
+        /**
+         *
+         * @param value
+         * @return id, numbering the value if it is new
+         */
+        int id(String value) {
+            String key = value != null ? value : UNKNOWN;
+            Integer id = ids.get(key);
+            if(id != null) {
+                return id;
+            }
+            if(values.size() > capacity) {
+                if(!full) {
+                    full = true;
+                    log.warn("More than {} values of {}, new ones are counted as {}.", capacity, name, UNKNOWN);
+                }
+                return 1;
+            }
+            id = values.size();
+            ids.put(key, id);
+            values.add(key);
+            return id;
+        }
+
+        /**
+         *
+         * @param value
+         * @return id, -1 for any (null), 0 if never seen
+         */
+        int find(String value) {
+            if(value == null) {
+                return -1;
+            }
+            return ids.getOrDefault(value, 0);
+        }
+
+        /**
+         *
+         * @param counts by id
+         * @return by value, largest first
+         */
+        Map<String, Long> counts(long[] counts) {
+            List<Integer> found = new ArrayList<>();
+            for(int id = 1; id < counts.length; id++) {
+                if(counts[id] > 0) {
+                    found.add(id);
+                }
+            }
+            found.sort((a, b) -> Long.compare(counts[b], counts[a]));
+
+            Map<String, Long> byValue = new LinkedHashMap<>();
+            for(int id : found) {
+                byValue.put(values.get(id), counts[id]);
+            }
+            return byValue;
+        }
+    }
+}
@@ -0,0 +1,33 @@
+package com.mongodb.fhir.webservice.analytics;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Alerts appended to a local NDJSON file, fhir.alerts.file, e.g. for a
+ * forwarder to pick up
+ */
+@Component
+@ConditionalOnProperty(name = "fhir.alerts.sink", havingValue = "FILE")
+public class FileAlertSink implements AlertSink {
+
+    private static final ObjectMapper objectMapper = new ObjectMapper();
+
+    @Value("${fhir.alerts.file:alerts.ndjson}")
+    private String file;
+
+    @Override
+    public void send(Alert alert) throws IOException {
+        String line = objectMapper.writeValueAsString(alert) + "\n";
+        Files.write(Paths.get(file), line.getBytes(StandardCharsets.UTF_8),
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+    }
+}
@@ -0,0 +1,22 @@
+package com.mongodb.fhir.webservice.analytics;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+/**
+ * Alerts written to the application log at WARN
+ */
+@Component
+@ConditionalOnProperty(name = "fhir.alerts.sink", havingValue = "LOGGING", matchIfMissing = true)
+public class LoggingAlertSink implements AlertSink {
+
+    // Logger component
+    private static final Logger log = LoggerFactory.getLogger(LoggingAlertSink.class);
+
+    @Override
+    public void send(Alert alert) {
+        log.warn("ALERT {}", alert.getMessage());
+    }
+}
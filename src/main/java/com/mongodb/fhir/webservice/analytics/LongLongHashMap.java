@@ -0,0 +1,148 @@
+package com.mongodb.fhir.webservice.analytics;
+
+import java.util.Arrays;
+
+/**
+ * Open addressing hash map of long counts by long key, without boxing.
+ * Linear probing; removal shifts the following entries back, so there are
+ * no tombstones.  Key 0 is the empty slot and can not be stored.
+ * Not thread safe.
+ */
+class LongLongHashMap {
+
+    interface EntryConsumer {
+        void accept(long key, long value);
+    }
+
+    private static final float LOAD_FACTOR = 0.5f;
+
+    private long[] keys;
+
+    private long[] values;
+
+    private int mask;
+
+    private int size;
+
+    /**
+     *
+     * @param expectedSize
+     */
+    LongLongHashMap(int expectedSize) {
+        int capacity = Integer.highestOneBit(Math.max(16, (int)(expectedSize / LOAD_FACTOR)) - 1) << 1;
+        keys = new long[capacity];
+        values = new long[capacity];
+        mask = capacity - 1;
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     *
+     * @param key
+     * @return 0 if absent
+     */
+    long get(long key) {
+        for(int slot = this.slot(key); ; slot = (slot + 1) & mask) {
+            if(keys[slot] == key) {
+                return values[slot];
+            }
+            if(keys[slot] == 0) {
+                return 0;
+            }
+        }
+    }
+
+    /**
+     * Add to the value of a key; the entry is removed when it drops to 0
+     *
+     * @param key not 0
+     * @param delta
+     */
+    void addTo(long key, long delta) {
+        int slot = this.slot(key);
+        while (keys[slot] != 0) {
+            if(keys[slot] == key) {
+                values[slot] += delta;
+                if(values[slot] == 0) {
+                    this.removeAt(slot);
+                }
+                return;
+            }
+            slot = (slot + 1) & mask;
+        }
+
+        if(delta == 0) {
+            return;
+        }
+        keys[slot] = key;
+        values[slot] = delta;
+        if(++size > keys.length * LOAD_FACTOR) {
+            this.grow();
+        }
+    }
+
+    /**
+     *
+     * @param consumer
+     */
+    void forEach(EntryConsumer consumer) {
+        for(int slot = 0; slot < keys.length; slot++) {
+            if(keys[slot] != 0) {
+                consumer.accept(keys[slot], values[slot]);
+            }
+        }
+    }
+
+    void clear() {
+        if(size > 0) {
+            Arrays.fill(keys, 0);
+            size = 0;
+        }
+    }
+
+    /**
+     * Empty a slot, moving back the entries of the same probe run that can not be found past the gap
+     *
+     * @param slot
+     */
+    private void removeAt(int slot) {
+        size--;
+        int gap = slot;
+        for(int next = (gap + 1) & mask; keys[next] != 0; next = (next + 1) & mask) {
+            int home = this.slot(keys[next]);
+            // the entry can move to the gap if its home is not cyclically in (gap, next]
+            if(((next - home) & mask) >= ((next - gap) & mask)) {
+                keys[gap] = keys[next];
+                values[gap] = values[next];
+                gap = next;
+            }
+        }
+        keys[gap] = 0;
+    }
+
+    private void grow() {
+        long[] oldKeys = keys;
+        long[] oldValues = values;
+        keys = new long[oldKeys.length * 2];
+        values = new long[oldValues.length * 2];
+        mask = keys.length - 1;
+        size = 0;
+        for(int slot = 0; slot < oldKeys.length; slot++) {
+            if(oldKeys[slot] != 0) {
+                this.addTo(oldKeys[slot], oldValues[slot]);
+            }
+        }
+    }
+
+    private int slot(long key) {
+        // Murmur3 finalizer, packed keys have their entropy in the high bits
+        long hash = key;
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        return (int)hash & mask;
+    }
+}
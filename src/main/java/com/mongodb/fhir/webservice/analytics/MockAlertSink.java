@@ -0,0 +1,35 @@
+package com.mongodb.fhir.webservice.analytics;
+
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Alerts kept in memory, for tests and demos
+ */
+@Component
+@ConditionalOnProperty(name = "fhir.alerts.sink", havingValue = "MOCK")
+public class MockAlertSink implements AlertSink {
+
+    private final List<Alert> alerts = new CopyOnWriteArrayList<>();
+
+    @Override
+    public void send(Alert alert) {
+        alerts.add(alert);
+    }
+
+    /**
+     *
+     * @return alerts sent so far, oldest first
+     */
+    public List<Alert> getAlerts() {
+        return new ArrayList<>(alerts);
+    }
+
+    public void clear() {
+        alerts.clear();
+    }
+}
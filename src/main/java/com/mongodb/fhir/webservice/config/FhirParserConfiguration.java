@@ -0,0 +1,41 @@
+package com.mongodb.fhir.webservice.config;
+
+import ca.uhn.fhir.context.FhirContext;
+import com.mongodb.fhir.webservice.parser.FhirContextProvider;
+import com.mongodb.fhir.webservice.parser.FhirStreamingParser;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import javax.annotation.PostConstruct;
+
+/**
+ * FHIR parser configuration.
+ * Warms the shared FHIR context during startup, before the app reports ready.
+ */
+@Configuration
+public class FhirParserConfiguration {
+
+    // Use the streaming fast path for Patient/Condition resources
+    @Value("${fhir.parser.streaming.enabled:true}")
+    private boolean streamingEnabled;
+
+    /**
+     * Build and warm the shared context
+     */
+    @PostConstruct
+    public void warmFhirContext() {
+        FhirContextProvider.warm();
+        FhirStreamingParser.setEnabled(streamingEnabled);
+    }
+
+    /**
+     * Expose the shared context as a bean
+     *
+     * @return
+     */
+    @Bean
+    public FhirContext fhirContext() {
+        return FhirContextProvider.getContext();
+    }
+}
@@ -111,6 +111,24 @@ public class CSFLEHelpers {
 
     }
 
+    /**
+     * This method encrypts the patientId of the Condition buckets, deterministically
+     * like in the Patient Model class so buckets can be found by patientId.
+     *
+     * @param keyId
+     * @return
+     * @throws IllegalArgumentException
+     */
+    public static Document createConditionBucketJSONSchema(String keyId) throws IllegalArgumentException {
+        if (keyId.isEmpty()) {
+            throw new IllegalArgumentException("keyId must contain your base64 encryption key id.");
+        }
+        return new Document().append("bsonType", "object")
+                                .append("encryptMetadata", createEncryptMetadataSchema(keyId))
+                                .append("properties", new Document()
+                                .append("patientId", buildEncryptedField("string", true)));
+    }
+
     /**
      * Creates a 'normal' non-encrypted Mongo client.  This method is ONLY
      * used internally by this specific class in order to persist encyryption key
@@ -1,5 +1,11 @@
 package com.mongodb.fhir.webservice.db;
 
+import com.mongodb.MongoClientException;
+import com.mongodb.MongoServerException;
+import com.mongodb.client.ClientSession;
+import com.mongodb.client.MongoClient;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.data.mongodb.core.MongoOperations;
@@ -7,8 +13,14 @@ import org.springframework.data.mongodb.core.MongoTemplate;
 import org.springframework.data.mongodb.core.SimpleMongoClientDbFactory;
 import org.springframework.stereotype.Component;
 
+import javax.annotation.PreDestroy;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
 /**
  * Abstraction to interface with Mongo Client Configuration.
+ * Both templates are created once when the bean is constructed and shared by all threads.
  */
 @Component
 public class FhirMongoOperations {
@@ -16,18 +28,36 @@ public class FhirMongoOperations {
     // Logger component
     private static final Logger logger = LoggerFactory.getLogger(FhirMongoOperations.class);
 
-    private MongoClientConfiguration mongoClientConfiguration;
+    private static final int ILLEGAL_OPERATION = 20;
+
+    private final MongoOperations mongoOps;
+
+    private final MongoClient encMongoClient;
 
-    private MongoOperations mongoOps;
+    private final MongoOperations encMongoOps;
 
-    private MongoOperations encMongoOps;
+    private final MeterRegistry meterRegistry;
+
+    // cleared when the server turns out to have no transactions, e.g. a standalone mongod
+    private volatile boolean transactions = true;
 
     /**
      *
      * @param mongoClientConfiguration
+     * @param meterRegistry
      */
-    public FhirMongoOperations(MongoClientConfiguration mongoClientConfiguration) {
-        this.mongoClientConfiguration = mongoClientConfiguration;
+    public FhirMongoOperations(MongoClientConfiguration mongoClientConfiguration, MeterRegistry meterRegistry) {
+        this.meterRegistry = meterRegistry;
+
+        // normal client is a singleton bean and closed by the container
+        mongoOps = new MongoTemplate(new SimpleMongoClientDbFactory(mongoClientConfiguration.mongoClient(),
+                mongoClientConfiguration.getDatabaseName()));
+
+        encMongoClient = mongoClientConfiguration.encryptedMongoClient();
+        encMongoOps = new MongoTemplate(new SimpleMongoClientDbFactory(encMongoClient,
+                mongoClientConfiguration.getDatabaseName()));
+
+        logger.info("Created mongoOps and ENCRYPTED mongoOps.");
     }
 
     /**
@@ -36,19 +66,6 @@ public class FhirMongoOperations {
      * @return
      */
     public MongoOperations getMongoOperations() {
-
-        if(mongoOps != null) {
-
-            logger.info("Return existing mongoOps.");
-
-        } else {
-
-            logger.info("Create new mongoOps.");
-
-            mongoOps =
-                    new MongoTemplate(new SimpleMongoClientDbFactory(mongoClientConfiguration.mongoClient(),
-                            mongoClientConfiguration.getDatabaseName()));
-        }
         return mongoOps;
     }
 
@@ -58,19 +75,121 @@ public class FhirMongoOperations {
      * @return
      */
     public MongoOperations getEncMongoOperations() {
+        return encMongoOps;
+    }
 
-        if(encMongoOps != null) {
+    /**
+     * Run writes with the ENCRYPTED client in one transaction, retried on transient errors.
+     * Without transactions, on a standalone server, the writes run one after the other.
+     *
+     * @param writes called with the operations to write with, may be called again on a retry
+     * @param <T>
+     * @return result of the writes
+     */
+    public <T> T inEncryptedTransaction(Function<MongoOperations, T> writes) {
+        if(transactions) {
+            try (ClientSession session = encMongoClient.startSession()) {
+                MongoOperations sessionOps = encMongoOps.withSession(session);
+                return session.withTransaction(() -> writes.apply(sessionOps));
+            } catch (RuntimeException e) {
+                if(!isTransactionNotSupported(e)) {
+                    throw e;
+                }
+                // the first write of the transaction failed, nothing was written
+                transactions = false;
+                logger.warn("Transactions need a replica set, writes of several documents are not atomic.");
+            }
+        }
+        return writes.apply(encMongoOps);
+    }
 
-            logger.info("Return existing ENCRYPTED mongoOps.");
+    /**
+     * The error of a transaction on a server without transactions
+     *
+     * @param e
+     * @return
+     */
+    public static boolean isTransactionNotSupported(Throwable e) {
+        for(Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if(cause instanceof MongoServerException && ((MongoServerException)cause).getCode() == ILLEGAL_OPERATION
+                    && String.valueOf(cause.getMessage()).contains("Transaction numbers")) {
+                return true;
+            }
+            if(cause instanceof MongoClientException
+                    && String.valueOf(cause.getMessage()).startsWith("Transactions are not supported")) {
+                return true;
+            }
+        }
+        return false;
+    }
 
-        } else {
+    /**
+     * Run an operation with the normal client and record its timings
+     *
+     * @param operation operation tag
+     * @param callback
+     * @param <T>
+     * @return result of the callback
+     */
+    public <T> T timed(String operation, Supplier<T> callback) {
+        return this.timed(MongoClientConfiguration.CLIENT_PLAIN, operation, callback);
+    }
 
-            logger.info("Create new ENCRYPTED mongoOps.");
+    /**
+     * Run an operation with the ENCRYPTED client and record its timings
+     *
+     * @param operation operation tag
+     * @param callback
+     * @param <T>
+     * @return result of the callback
+     */
+    public <T> T timedEncrypted(String operation, Supplier<T> callback) {
+        return this.timed(MongoClientConfiguration.CLIENT_ENCRYPTED, operation, callback);
+    }
 
-            encMongoOps =
-                    new MongoTemplate(new SimpleMongoClientDbFactory(mongoClientConfiguration.encryptedMongoClient(),
-                            mongoClientConfiguration.getDatabaseName()));
+    /**
+     * Records the total time of the operation and the part spent outside of
+     * MongoDB commands.  For the encrypted client that part is mostly the
+     * auto-encryption overhead: marking with mongocryptd, encrypting and decrypting.
+     *
+     * @param client
+     * @param operation
+     * @param callback
+     * @param <T>
+     * @return
+     */
+    private <T> T timed(String client, String operation, Supplier<T> callback) {
+        long commandStart = MongoCommandMetricsListener.getThreadCommandNanos();
+        long start = System.nanoTime();
+        try {
+            return callback.get();
+        } finally {
+            long total = System.nanoTime() - start;
+            long command = MongoCommandMetricsListener.getThreadCommandNanos() - commandStart;
+
+            Timer.builder("fhir.mongo.operation")
+                    .description("MongoDB operation latency including client side processing")
+                    .tag("client", client)
+                    .tag("operation", operation)
+                    .publishPercentileHistogram()
+                    .register(meterRegistry)
+                    .record(total, TimeUnit.NANOSECONDS);
+            Timer.builder("fhir.mongo.operation.client")
+                    .description("Part of the operation spent outside MongoDB commands, e.g. auto-encryption")
+                    .tag("client", client)
+                    .tag("operation", operation)
+                    .publishPercentileHistogram()
+                    .register(meterRegistry)
+                    .record(Math.max(0, total - command), TimeUnit.NANOSECONDS);
         }
-        return encMongoOps;
+    }
+
+    /**
+     * Close the ENCRYPTED client and its mongocryptd session
+     */
+    @PreDestroy
+    public void close() {
+        logger.info("Close ENCRYPTED mongo client.");
+        encMongoClient.close();
     }
 }
@@ -0,0 +1,304 @@
+package com.mongodb.fhir.webservice.db;
+
+import com.mongodb.MongoCommandException;
+import com.mongodb.fhir.webservice.model.ConditionEvent;
+import com.mongodb.fhir.webservice.model.EventStream;
+import com.mongodb.fhir.webservice.model.Patient;
+import org.bson.Document;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.health.Health;
+import org.springframework.boot.actuate.health.HealthIndicator;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.dao.DataAccessException;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.MongoOperations;
+import org.springframework.data.mongodb.core.index.Index;
+import org.springframework.data.mongodb.core.index.IndexInfo;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Ensures the indexes of the FHIR queries once the application is ready,
+ * then checks that the query plans use them.
+ *
+ * Each expected index comes with a sample filter of the query it serves;
+ * the winning plan of that filter must be an index scan on the index, not
+ * a collection scan.  patientId is deterministically encrypted, so its
+ * unique index is built on the ciphertext and the plan looks the same for
+ * any value.  Other components register their own indexes.
+ *
+ * This is a health indicator: it is OUT_OF_SERVICE until the first check
+ * and DOWN while an index is missing or unused, so add it to the readiness
+ * group.  The check is repeated every fhir.indexes.recheckIntervalMs.
+ * With fhir.indexes.create=false the indexes are only checked, e.g. when
+ * they are built by a DBA.
+ */
+@Component
+public class IndexBootstrapper implements HealthIndicator {
+
+    // Logger component
+    private static final Logger log = LoggerFactory.getLogger(IndexBootstrapper.class);
+
+    private static final String PENDING = "pending";
+
+    @Value("${fhir.indexes.enabled:true}")
+    private boolean enabled;
+
+    @Value("${fhir.indexes.create:true}")
+    private boolean create;
+
+    @Value("${fhir.indexes.recheckIntervalMs:60000}")
+    private long recheckIntervalMs;
+
+    private final FhirMongoOperations fhirMongoOperations;
+
+    private final List<ExpectedIndex> expectedIndexes = new CopyOnWriteArrayList<>();
+
+    // "collection.index" -> problem, empty once the index is built and used
+    private final Map<String, String> problems = new ConcurrentHashMap<>();
+
+    private volatile boolean checked;
+
+    private ScheduledExecutorService scheduler;
+
+    /**
+     *
+     * @param fhirMongoOperations
+     */
+    public IndexBootstrapper(FhirMongoOperations fhirMongoOperations) {
+        this.fhirMongoOperations = fhirMongoOperations;
+    }
+
+    /**
+     * Indexes of the patient lookups and the reporting collections
+     */
+    @PostConstruct
+    public void registerDefaults() {
+        MongoOperations mongoOps = fhirMongoOperations.getMongoOperations();
+
+        // processPatientId, processCondition and the bundle batches look patients up by patientId
+        this.register(new ExpectedIndex(mongoOps.getCollectionName(Patient.class),
+                new Index().on("patientId", Sort.Direction.ASC).unique().named("patientId_1"),
+                new Document("patientId", "000-00-0000")));
+
+        // reports by condition over time
+        this.register(new ExpectedIndex(mongoOps.getCollectionName(ConditionEvent.class),
+                new Index().on("condition", Sort.Direction.ASC).on("reportedDate", Sort.Direction.ASC)
+                        .named("condition_1_reportedDate_1"),
+                new Document("condition", "Influenza").append("reportedDate", new Document("$gte", new Date(0)))));
+
+        // audit queries by resource type over time, equality before range
+        this.register(new ExpectedIndex(mongoOps.getCollectionName(EventStream.class),
+                new Index().on("resourceType", Sort.Direction.ASC).on("eventDate", Sort.Direction.ASC)
+                        .named("resourceType_1_eventDate_1"),
+                new Document("resourceType", EventStream.PATIENT_RESOURCE)
+                        .append("eventDate", new Document("$gte", new Date(0)))));
+    }
+
+    /**
+     * Add an index to ensure and check, before the application is ready or on the next check
+     *
+     * @param expectedIndex
+     */
+    public void register(ExpectedIndex expectedIndex) {
+        expectedIndexes.add(expectedIndex);
+        problems.put(expectedIndex.getKey(), PENDING);
+    }
+
+    /**
+     * Check the indexes in the background, the first time as soon as the application is ready
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void start() {
+        if(!enabled) {
+            return;
+        }
+
+        scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "index-bootstrapper");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(this::checkAll, 0, recheckIntervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void stop() {
+        if(scheduler != null) {
+            scheduler.shutdownNow();
+        }
+    }
+
+    /**
+     * Ensure and check all expected indexes
+     */
+    private void checkAll() {
+        for(ExpectedIndex expectedIndex : expectedIndexes) {
+            String problem;
+            try {
+                problem = this.check(expectedIndex);
+            } catch (RuntimeException e) {
+                problem = "check failed: " + e.toString();
+            }
+
+            String previous = problems.put(expectedIndex.getKey(), problem == null ? "" : problem);
+            if(problem != null && !problem.equals(previous)) {
+                log.warn("Index {}: {}", expectedIndex.getKey(), problem);
+            } else if(problem == null && !"".equals(previous)) {
+                log.info("Index {} is in place and used.", expectedIndex.getKey());
+            }
+        }
+        checked = true;
+    }
+
+    /**
+     *
+     * @param expectedIndex
+     * @return the problem, null if the index exists and the query uses it
+     */
+    private String check(ExpectedIndex expectedIndex) {
+        MongoOperations mongoOps = fhirMongoOperations.getMongoOperations();
+        String collection = expectedIndex.getCollection();
+        String indexName = expectedIndex.getName();
+
+        boolean exists = mongoOps.indexOps(collection).getIndexInfo().stream()
+                .map(IndexInfo::getName)
+                .anyMatch(indexName::equals);
+        if(!exists) {
+            if(!create) {
+                return "missing";
+            }
+            try {
+                log.info("Create index {}.", expectedIndex.getKey());
+                mongoOps.indexOps(collection).ensureIndex(expectedIndex.getIndex());
+            } catch (DuplicateKeyException e) {
+                return "duplicate keys, unique index not built";
+            } catch (DataAccessException e) {
+                if(e.getCause() instanceof MongoCommandException) {
+                    return "not built: " + ((MongoCommandException) e.getCause()).getErrorMessage();
+                }
+                throw e;
+            }
+        }
+
+        Document explain = mongoOps.executeCommand(new Document("explain",
+                new Document("find", collection).append("filter", expectedIndex.getSampleFilter()))
+                .append("verbosity", "queryPlanner"));
+        Document queryPlanner = explain.get("queryPlanner", Document.class);
+        if(queryPlanner == null || !usesIndex(queryPlanner.get("winningPlan", Document.class), indexName)) {
+            return "not used by the query plan " + (queryPlanner != null ? queryPlanner.get("winningPlan") : explain);
+        }
+        return null;
+    }
+
+    /**
+     * Whether a plan scans the index; on a sharded cluster every shard's plan must
+     *
+     * @param plan
+     * @param indexName
+     * @return
+     */
+    @SuppressWarnings("unchecked")
+    static boolean usesIndex(Document plan, String indexName) {
+        if(plan == null) {
+            return false;
+        }
+
+        List<Document> shards = (List<Document>) plan.get("shards");
+        if(shards != null) {
+            return !shards.isEmpty() && shards.stream()
+                    .allMatch(shard -> usesIndex(shard.get("winningPlan", Document.class), indexName));
+        }
+
+        if("IXSCAN".equals(plan.getString("stage")) && indexName.equals(plan.getString("indexName"))) {
+            return true;
+        }
+        if(usesIndex(plan.get("inputStage", Document.class), indexName)) {
+            return true;
+        }
+        List<Document> inputStages = (List<Document>) plan.get("inputStages");
+        return inputStages != null && inputStages.stream().anyMatch(stage -> usesIndex(stage, indexName));
+    }
+
+    @Override
+    public Health health() {
+        if(!enabled) {
+            return Health.up().withDetail("checks", "disabled").build();
+        }
+
+        Map<String, Object> details = new LinkedHashMap<>();
+        boolean down = false;
+        boolean pending = !checked;
+        for(ExpectedIndex expectedIndex : expectedIndexes) {
+            String problem = problems.getOrDefault(expectedIndex.getKey(), PENDING);
+            details.put(expectedIndex.getKey(), problem.isEmpty() ? "ok" : problem);
+            down |= !problem.isEmpty() && !PENDING.equals(problem);
+            pending |= PENDING.equals(problem);
+        }
+
+        Health.Builder health = down ? Health.down() : (pending ? Health.outOfService() : Health.up());
+        return health.withDetails(details).build();
+    }
+
+    /**
+     * An index and a sample filter of the query it serves
+     */
+    public static class ExpectedIndex {
+
+        private final String collection;
+
+        private final Index index;
+
+        private final Document sampleFilter;
+
+        /**
+         *
+         * @param collection
+         * @param index must be named
+         * @param sampleFilter
+         */
+        public ExpectedIndex(String collection, Index index, Document sampleFilter) {
+            this.collection = collection;
+            this.index = index;
+            this.sampleFilter = sampleFilter;
+            if(this.getName() == null) {
+                throw new IllegalArgumentException("Expected index on " + collection + " needs a name");
+            }
+        }
+
+        public String getCollection() {
+            return collection;
+        }
+
+        public Index getIndex() {
+            return index;
+        }
+
+        public Document getSampleFilter() {
+            return sampleFilter;
+        }
+
+        public String getName() {
+            return index.getIndexOptions().getString("name");
+        }
+
+        private String getKey() {
+            return collection + "." + this.getName();
+        }
+    }
+}
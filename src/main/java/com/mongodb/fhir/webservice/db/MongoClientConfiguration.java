@@ -5,6 +5,8 @@ import com.mongodb.ConnectionString;
 import com.mongodb.MongoClientSettings;
 import com.mongodb.client.MongoClient;
 import com.mongodb.client.MongoClients;
+import com.mongodb.fhir.webservice.model.ConditionBucket;
+import io.micrometer.core.instrument.MeterRegistry;
 import org.bson.BsonDocument;
 import org.bson.Document;
 import org.bson.codecs.configuration.CodecRegistry;
@@ -12,11 +14,13 @@ import org.bson.codecs.pojo.PojoCodecProvider;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.data.mongodb.config.AbstractMongoClientConfiguration;
 
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 import static org.bson.codecs.configuration.CodecRegistries.fromProviders;
 import static org.bson.codecs.configuration.CodecRegistries.fromRegistries;
@@ -57,19 +61,52 @@ public class MongoClientConfiguration extends AbstractMongoClientConfiguration {
     @Value("${mongodb.masterKeyPath}")
     private String masterKeyPath;
 
+    //
+    // Connection pool properties, applied to all clients when set
+    //
+    @Value("${mongodb.pool.maxSize:#{null}}")
+    private Integer poolMaxSize;
+
+    @Value("${mongodb.pool.minSize:#{null}}")
+    private Integer poolMinSize;
+
+    @Value("${mongodb.pool.maxIdleTimeMs:#{null}}")
+    private Long poolMaxIdleTimeMs;
+
+    @Value("${mongodb.pool.maxWaitTimeMs:#{null}}")
+    private Long poolMaxWaitTimeMs;
+
     // Logger component
     private static final Logger log = LoggerFactory.getLogger(MongoClientConfiguration.class);
 
+    // client tag of the metrics
+    public static final String CLIENT_PLAIN = "plain";
+    public static final String CLIENT_ENCRYPTED = "encrypted";
+    public static final String CLIENT_REACTIVE_PLAIN = "reactive";
+    public static final String CLIENT_REACTIVE_ENCRYPTED = "reactiveEncrypted";
+
+    private MeterRegistry meterRegistry;
+
+    /**
+     *
+     * @param meterRegistry
+     */
+    public MongoClientConfiguration(MeterRegistry meterRegistry) {
+        this.meterRegistry = meterRegistry;
+    }
+
     /**
      * Returns 'normal' client without encryption
      * If this is desired, change the appropriate method calls in FhirService
+     * Singleton bean, closed by the container on shutdown.
      *
      * @return
      */
+    @Bean(destroyMethod = "close")
     @Override
     public MongoClient mongoClient() {
 
-        return MongoClients.create(mongoUri);
+        return MongoClients.create(clientSettingsBuilder(CLIENT_PLAIN, false).build());
     }
 
     /**
@@ -82,7 +119,8 @@ public class MongoClientConfiguration extends AbstractMongoClientConfiguration {
     }
 
     /**
-     * Returns the encrypted client for use with Client-Side Field Level Encryption
+     * Returns a new encrypted client for use with Client-Side Field Level Encryption
+     * The caller owns the client and must close it.
      * @return
      */
     public MongoClient encryptedMongoClient() {
@@ -90,15 +128,75 @@ public class MongoClientConfiguration extends AbstractMongoClientConfiguration {
         CodecRegistry pojoCodecRegistry = fromRegistries(MongoClientSettings.getDefaultCodecRegistry(),
                 fromProviders(PojoCodecProvider.builder().automatic(true).build()));
 
-        MongoClientSettings clientSettings = MongoClientSettings.builder()
+        MongoClientSettings clientSettings = clientSettingsBuilder(CLIENT_ENCRYPTED, false)
                 .codecRegistry(pojoCodecRegistry)
-                .applyConnectionString(new ConnectionString(mongoUri))
                 .autoEncryptionSettings(getEncryptedMongoClientSettings())
                 .build();
 
         return MongoClients.create(clientSettings);
     }
 
+    /**
+     * Returns a new reactive streams client without encryption
+     * The caller owns the client and must close it.
+     *
+     * @return
+     */
+    public com.mongodb.reactivestreams.client.MongoClient reactiveMongoClient() {
+        log.info("Create reactive mongo client");
+        return com.mongodb.reactivestreams.client.MongoClients.create(
+                clientSettingsBuilder(CLIENT_REACTIVE_PLAIN, true).build());
+    }
+
+    /**
+     * Returns a new reactive streams client with auto-encryption, same settings as the encrypted client
+     * The caller owns the client and must close it.
+     *
+     * @return
+     */
+    public com.mongodb.reactivestreams.client.MongoClient encryptedReactiveMongoClient() {
+        log.info("Create encrypted reactive mongo client");
+        CodecRegistry pojoCodecRegistry = fromRegistries(MongoClientSettings.getDefaultCodecRegistry(),
+                fromProviders(PojoCodecProvider.builder().automatic(true).build()));
+
+        MongoClientSettings clientSettings = clientSettingsBuilder(CLIENT_REACTIVE_ENCRYPTED, true)
+                .codecRegistry(pojoCodecRegistry)
+                .autoEncryptionSettings(getEncryptedMongoClientSettings())
+                .build();
+
+        return com.mongodb.reactivestreams.client.MongoClients.create(clientSettings);
+    }
+
+    /**
+     * Settings shared by all clients: the connection string plus the pool properties
+     * that are set, which take precedence over the same options in the URI.
+     * Command and pool metrics are tagged with the client.
+     *
+     * @param client
+     * @param async true for the reactive streams clients
+     * @return
+     */
+    private MongoClientSettings.Builder clientSettingsBuilder(String client, boolean async) {
+        return MongoClientSettings.builder()
+                .applyConnectionString(new ConnectionString(mongoUri))
+                .addCommandListener(new MongoCommandMetricsListener(meterRegistry, client))
+                .applyToConnectionPoolSettings(pool -> {
+                    if(poolMaxSize != null) {
+                        pool.maxSize(poolMaxSize);
+                    }
+                    if(poolMinSize != null) {
+                        pool.minSize(poolMinSize);
+                    }
+                    if(poolMaxIdleTimeMs != null) {
+                        pool.maxConnectionIdleTime(poolMaxIdleTimeMs, TimeUnit.MILLISECONDS);
+                    }
+                    if(poolMaxWaitTimeMs != null) {
+                        pool.maxWaitTime(poolMaxWaitTimeMs, TimeUnit.MILLISECONDS);
+                    }
+                    pool.addConnectionPoolListener(new MongoPoolMetricsListener(meterRegistry, client, !async));
+                });
+    }
+
     /**
      * Helper method to build AutoEncryptionSettings
      *
@@ -143,6 +241,8 @@ public class MongoClientConfiguration extends AbstractMongoClientConfiguration {
 
         Map<String, BsonDocument> schemaMap = new HashMap<>();
         schemaMap.put(recordsNamespace, BsonDocument.parse(schema.toJson()));
+        schemaMap.put(database + "." + ConditionBucket.COLLECTION,
+                BsonDocument.parse(CSFLEHelpers.createConditionBucketJSONSchema(encryptionKey).toJson()));
 
         Map<String, Object> keyMap = new HashMap<>();
         keyMap.put("key", masterKeyBytes);
@@ -0,0 +1,108 @@
+package com.mongodb.fhir.webservice.db;
+
+import com.mongodb.event.CommandFailedEvent;
+import com.mongodb.event.CommandListener;
+import com.mongodb.event.CommandStartedEvent;
+import com.mongodb.event.CommandSucceededEvent;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.bson.BsonDocument;
+import org.bson.BsonValue;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Micrometer timer for every command sent by a MongoClient, tagged by client,
+ * command and collection.
+ *
+ * The elapsed time of a command is measured by the driver from sending the
+ * command to receiving the reply (network plus server).  The sync driver calls
+ * the listener on the calling thread, so the time is also added up per thread;
+ * FhirMongoOperations uses it to split an operation into command time and
+ * client side time (auto-encryption, decryption, mongocryptd, mapping).
+ */
+public class MongoCommandMetricsListener implements CommandListener {
+
+    private static final String UNKNOWN_COLLECTION = "none";
+
+    // command time of the current thread, in nanoseconds
+    private static final ThreadLocal<long[]> threadCommandNanos = ThreadLocal.withInitial(() -> new long[1]);
+
+    private final MeterRegistry meterRegistry;
+    private final String client;
+
+    // request id -> collection, between started and succeeded/failed
+    private final Map<Integer, String> collections = new ConcurrentHashMap<>();
+
+    /**
+     *
+     * @param meterRegistry
+     * @param client client tag, e.g. plain or encrypted
+     */
+    public MongoCommandMetricsListener(MeterRegistry meterRegistry, String client) {
+        this.meterRegistry = meterRegistry;
+        this.client = client;
+    }
+
+    /**
+     * Total command time of the current thread, in nanoseconds
+     *
+     * @return
+     */
+    public static long getThreadCommandNanos() {
+        return threadCommandNanos.get()[0];
+    }
+
+    @Override
+    public void commandStarted(CommandStartedEvent event) {
+        collections.put(event.getRequestId(), collectionName(event.getCommandName(), event.getCommand()));
+    }
+
+    @Override
+    public void commandSucceeded(CommandSucceededEvent event) {
+        this.record(event.getRequestId(), event.getCommandName(), "success", event.getElapsedTime(TimeUnit.NANOSECONDS));
+    }
+
+    @Override
+    public void commandFailed(CommandFailedEvent event) {
+        this.record(event.getRequestId(), event.getCommandName(), "failure", event.getElapsedTime(TimeUnit.NANOSECONDS));
+    }
+
+    /**
+     *
+     * @param requestId
+     * @param commandName
+     * @param status
+     * @param elapsedNanos
+     */
+    private void record(int requestId, String commandName, String status, long elapsedNanos) {
+        String collection = collections.remove(requestId);
+
+        Timer.builder("fhir.mongo.command")
+                .description("MongoDB command latency, network and server")
+                .tag("client", client)
+                .tag("command", commandName)
+                .tag("collection", collection != null ? collection : UNKNOWN_COLLECTION)
+                .tag("status", status)
+                .publishPercentileHistogram()
+                .register(meterRegistry)
+                .record(elapsedNanos, TimeUnit.NANOSECONDS);
+
+        threadCommandNanos.get()[0] += elapsedNanos;
+    }
+
+    /**
+     * The collection is the value of the command name key, e.g. {insert: "patient"},
+     * getMore has it in the collection field
+     *
+     * @param commandName
+     * @param command
+     * @return
+     */
+    private static String collectionName(String commandName, BsonDocument command) {
+        BsonValue value = "getMore".equals(commandName) ? command.get("collection") : command.get(commandName);
+        return value != null && value.isString() ? value.asString().getValue() : UNKNOWN_COLLECTION;
+    }
+}
@@ -0,0 +1,121 @@
+package com.mongodb.fhir.webservice.db;
+
+import com.mongodb.event.ConnectionCheckOutFailedEvent;
+import com.mongodb.event.ConnectionCheckOutStartedEvent;
+import com.mongodb.event.ConnectionCheckedInEvent;
+import com.mongodb.event.ConnectionCheckedOutEvent;
+import com.mongodb.event.ConnectionClosedEvent;
+import com.mongodb.event.ConnectionCreatedEvent;
+import com.mongodb.event.ConnectionPoolListener;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Micrometer gauges and timers for the connection pools of a MongoClient,
+ * tagged by client.  Counts are summed over all servers of the cluster.
+ *
+ * With the sync driver a checkout is started and completed on the calling
+ * thread, so the wait time is measured with a thread local start time.  The
+ * async driver can complete it on another thread, and the 4.0 events carry
+ * no id to match the two, so checkouts of async clients are not timed.
+ */
+public class MongoPoolMetricsListener implements ConnectionPoolListener {
+
+    private static final ThreadLocal<long[]> checkOutStart = ThreadLocal.withInitial(() -> new long[1]);
+
+    private final MeterRegistry meterRegistry;
+    private final String client;
+
+    private final boolean timeCheckOut;
+
+    private final AtomicInteger size = new AtomicInteger();
+    private final AtomicInteger checkedOut = new AtomicInteger();
+    private final AtomicInteger waiting = new AtomicInteger();
+
+    private final Timer checkOutTimer;
+
+    /**
+     *
+     * @param meterRegistry
+     * @param client client tag, e.g. plain or encrypted
+     * @param timeCheckOut false for async clients
+     */
+    public MongoPoolMetricsListener(MeterRegistry meterRegistry, String client, boolean timeCheckOut) {
+        this.meterRegistry = meterRegistry;
+        this.client = client;
+        this.timeCheckOut = timeCheckOut;
+
+        Gauge.builder("fhir.mongo.pool.size", size, AtomicInteger::get)
+                .description("Open connections")
+                .tag("client", client)
+                .register(meterRegistry);
+        Gauge.builder("fhir.mongo.pool.checkedout", checkedOut, AtomicInteger::get)
+                .description("Connections in use")
+                .tag("client", client)
+                .register(meterRegistry);
+        Gauge.builder("fhir.mongo.pool.waiting", waiting, AtomicInteger::get)
+                .description("Threads waiting for a connection")
+                .tag("client", client)
+                .register(meterRegistry);
+
+        checkOutTimer = timeCheckOut ? this.checkOutTimer("success") : null;
+    }
+
+    @Override
+    public void connectionCreated(ConnectionCreatedEvent event) {
+        size.incrementAndGet();
+    }
+
+    @Override
+    public void connectionClosed(ConnectionClosedEvent event) {
+        size.decrementAndGet();
+    }
+
+    @Override
+    public void connectionCheckOutStarted(ConnectionCheckOutStartedEvent event) {
+        waiting.incrementAndGet();
+        if(timeCheckOut) {
+            checkOutStart.get()[0] = System.nanoTime();
+        }
+    }
+
+    @Override
+    public void connectionCheckedOut(ConnectionCheckedOutEvent event) {
+        waiting.decrementAndGet();
+        checkedOut.incrementAndGet();
+        if(timeCheckOut) {
+            checkOutTimer.record(System.nanoTime() - checkOutStart.get()[0], TimeUnit.NANOSECONDS);
+        }
+    }
+
+    @Override
+    public void connectionCheckOutFailed(ConnectionCheckOutFailedEvent event) {
+        waiting.decrementAndGet();
+        if(timeCheckOut) {
+            this.checkOutTimer("failure").record(System.nanoTime() - checkOutStart.get()[0], TimeUnit.NANOSECONDS);
+        }
+    }
+
+    @Override
+    public void connectionCheckedIn(ConnectionCheckedInEvent event) {
+        checkedOut.decrementAndGet();
+    }
+
+    /**
+     *
+     * @param result success or failure
+     * @return
+     */
+    private Timer checkOutTimer(String result) {
+        return Timer.builder("fhir.mongo.pool.checkout")
+                .description("Time waiting for a pooled connection")
+                .tag("client", client)
+                .tag("result", result)
+                .publishPercentileHistogram()
+                .register(meterRegistry);
+    }
+}
@@ -0,0 +1,159 @@
+package com.mongodb.fhir.webservice.db;
+
+import com.mongodb.reactivestreams.client.MongoClient;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.data.mongodb.core.ReactiveMongoOperations;
+import org.springframework.data.mongodb.core.ReactiveMongoTemplate;
+import org.springframework.data.mongodb.core.SimpleReactiveMongoDatabaseFactory;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Mono;
+
+import javax.annotation.PreDestroy;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * Reactive counterpart of FhirMongoOperations, backed by the reactive streams driver.
+ * Only created when fhir.reactive.enabled is set.
+ */
+@Component
+@ConditionalOnProperty(name = "fhir.reactive.enabled", havingValue = "true")
+public class ReactiveFhirMongoOperations {
+
+    // Logger component
+    private static final Logger logger = LoggerFactory.getLogger(ReactiveFhirMongoOperations.class);
+
+    private final MongoClient mongoClient;
+
+    private final ReactiveMongoOperations mongoOps;
+
+    private final MongoClient encMongoClient;
+
+    private final ReactiveMongoOperations encMongoOps;
+
+    private final MeterRegistry meterRegistry;
+
+    // cleared when the server turns out to have no transactions, e.g. a standalone mongod
+    private volatile boolean transactions = true;
+
+    /**
+     *
+     * @param mongoClientConfiguration
+     * @param meterRegistry
+     */
+    public ReactiveFhirMongoOperations(MongoClientConfiguration mongoClientConfiguration,
+                                       MeterRegistry meterRegistry) {
+        this.meterRegistry = meterRegistry;
+
+        mongoClient = mongoClientConfiguration.reactiveMongoClient();
+        mongoOps = new ReactiveMongoTemplate(new SimpleReactiveMongoDatabaseFactory(mongoClient,
+                mongoClientConfiguration.getDatabaseName()));
+
+        encMongoClient = mongoClientConfiguration.encryptedReactiveMongoClient();
+        encMongoOps = new ReactiveMongoTemplate(new SimpleReactiveMongoDatabaseFactory(encMongoClient,
+                mongoClientConfiguration.getDatabaseName()));
+
+        logger.info("Created reactive mongoOps and ENCRYPTED reactive mongoOps.");
+    }
+
+    /**
+     * Get the normal client
+     *
+     * @return
+     */
+    public ReactiveMongoOperations getMongoOperations() {
+        return mongoOps;
+    }
+
+    /**
+     * Get the ENCRYPTED client
+     *
+     * @return
+     */
+    public ReactiveMongoOperations getEncMongoOperations() {
+        return encMongoOps;
+    }
+
+    /**
+     * Run writes with the ENCRYPTED client in one transaction.
+     * Without transactions, on a standalone server, the writes run one after the other.
+     *
+     * @param writes called with the operations to write with
+     * @param <T>
+     * @return result of the writes
+     */
+    public <T> Mono<T> inEncryptedTransaction(Function<ReactiveMongoOperations, Mono<T>> writes) {
+        if(!transactions) {
+            return writes.apply(encMongoOps);
+        }
+        return encMongoOps.inTransaction().execute(writes::apply).next()
+                .onErrorResume(FhirMongoOperations::isTransactionNotSupported, e -> {
+                    // the first write of the transaction failed, nothing was written
+                    transactions = false;
+                    logger.warn("Transactions need a replica set, writes of several documents are not atomic.");
+                    return writes.apply(encMongoOps);
+                });
+    }
+
+    /**
+     * Record the latency of an operation with the normal client
+     *
+     * @param operation operation tag
+     * @param mono
+     * @param <T>
+     * @return
+     */
+    public <T> Mono<T> timed(String operation, Mono<T> mono) {
+        return this.timed(MongoClientConfiguration.CLIENT_REACTIVE_PLAIN, operation, mono);
+    }
+
+    /**
+     * Record the latency of an operation with the ENCRYPTED client
+     *
+     * @param operation operation tag
+     * @param mono
+     * @param <T>
+     * @return
+     */
+    public <T> Mono<T> timedEncrypted(String operation, Mono<T> mono) {
+        return this.timed(MongoClientConfiguration.CLIENT_REACTIVE_ENCRYPTED, operation, mono);
+    }
+
+    /**
+     * Records the time from subscription to completion.  The operation hops
+     * between threads, so unlike the blocking client the time spent outside
+     * MongoDB commands is not split out.
+     *
+     * @param client
+     * @param operation
+     * @param mono
+     * @param <T>
+     * @return
+     */
+    private <T> Mono<T> timed(String client, String operation, Mono<T> mono) {
+        return Mono.defer(() -> {
+            long start = System.nanoTime();
+            return mono.doFinally(signal -> Timer.builder("fhir.mongo.operation")
+                    .description("MongoDB operation latency including client side processing")
+                    .tag("client", client)
+                    .tag("operation", operation)
+                    .publishPercentileHistogram()
+                    .register(meterRegistry)
+                    .record(System.nanoTime() - start, TimeUnit.NANOSECONDS));
+        });
+    }
+
+    /**
+     * Close both reactive clients
+     */
+    @PreDestroy
+    public void close() {
+        logger.info("Close reactive mongo clients.");
+        mongoClient.close();
+        encMongoClient.close();
+    }
+}
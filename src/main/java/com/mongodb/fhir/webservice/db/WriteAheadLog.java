@@ -0,0 +1,397 @@
+package com.mongodb.fhir.webservice.db;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Local, segmented, append-only log of opaque records.
+ *
+ * Records are appended to the active segment file with a FileChannel and
+ * framed as [length][crc32][payload].  A single consumer reads from the
+ * committed checkpoint and commits once the records are safely stored
+ * elsewhere; fully consumed segments are then deleted.  On open, a torn
+ * record at the tail of the last segment (crash during a write) is truncated.
+ */
+public class WriteAheadLog implements Closeable {
+
+    /**
+     * When appended records are forced to disk
+     */
+    public enum FsyncPolicy {
+        NONE,
+        INTERVAL,
+        EVERY_WRITE
+    }
+
+    private static final int HEADER_BYTES = 8;
+    private static final int MAX_RECORD_BYTES = 16 * 1024 * 1024;
+    private static final String SEGMENT_SUFFIX = ".wal";
+    private static final String CHECKPOINT_FILE = "checkpoint";
+
+    // Logger component
+    private static final Logger log = LoggerFactory.getLogger(WriteAheadLog.class);
+
+    private final Path directory;
+    private final long segmentSize;
+    private final FsyncPolicy fsyncPolicy;
+
+    // segment id -> size in bytes
+    private final TreeMap<Long, Long> segments = new TreeMap<>();
+
+    private FileChannel activeChannel;
+    private long activeSegment;
+    private volatile long activePosition;
+
+    // committed read position
+    private volatile long checkpointSegment;
+    private volatile long checkpointPosition;
+
+    private ScheduledExecutorService fsyncExecutor;
+
+    /**
+     *
+     * @param directory
+     * @param segmentSize max bytes per segment before rotating
+     * @param fsyncPolicy
+     * @param fsyncIntervalMs only used by the INTERVAL policy
+     * @throws IOException
+     */
+    public WriteAheadLog(Path directory, long segmentSize, FsyncPolicy fsyncPolicy, long fsyncIntervalMs)
+            throws IOException {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.fsyncPolicy = fsyncPolicy;
+
+        Files.createDirectories(directory);
+        this.open();
+
+        if(fsyncPolicy == FsyncPolicy.INTERVAL) {
+            fsyncExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "wal-fsync");
+                thread.setDaemon(true);
+                return thread;
+            });
+            fsyncExecutor.scheduleWithFixedDelay(this::force, fsyncIntervalMs, fsyncIntervalMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Append a record to the active segment
+     *
+     * @param record
+     * @throws IOException
+     */
+    public synchronized void append(byte[] record) throws IOException {
+        if(record.length == 0 || record.length > MAX_RECORD_BYTES) {
+            throw new IllegalArgumentException("Invalid record size: " + record.length);
+        }
+        if(activePosition > 0 && activePosition + HEADER_BYTES + record.length > segmentSize) {
+            this.rotate();
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(record);
+
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_BYTES + record.length);
+        buffer.putInt(record.length);
+        buffer.putInt((int)crc.getValue());
+        buffer.put(record);
+        buffer.flip();
+
+        long position = activePosition;
+        while (buffer.hasRemaining()) {
+            position += activeChannel.write(buffer, position);
+        }
+        if(fsyncPolicy == FsyncPolicy.EVERY_WRITE) {
+            activeChannel.force(false);
+        }
+
+        // publish only complete records to the reader
+        segments.put(activeSegment, position);
+        activePosition = position;
+    }
+
+    /**
+     * Read up to maxRecords from the committed checkpoint.
+     * Reading again without a commit returns the same records.
+     *
+     * @param maxRecords
+     * @return
+     * @throws IOException
+     */
+    public Batch read(int maxRecords) throws IOException {
+        List<byte[]> records = new ArrayList<>();
+        long segment = checkpointSegment;
+        long position = checkpointPosition;
+
+        while (records.size() < maxRecords) {
+            long end;
+            Long nextSegment;
+            synchronized (this) {
+                Long size = segments.get(segment);
+                end = size != null ? size : 0;
+                nextSegment = segments.higherKey(segment);
+            }
+
+            if(position < end) {
+                try (FileChannel channel = FileChannel.open(segmentPath(segment), StandardOpenOption.READ)) {
+                    while (position < end && records.size() < maxRecords) {
+                        byte[] record = readRecord(channel, position, end);
+                        if(record == null) {
+                            throw new IOException("Corrupt record in segment " + segment + " at " + position);
+                        }
+                        records.add(record);
+                        position += HEADER_BYTES + record.length;
+                    }
+                }
+            } else if(nextSegment != null) {
+                segment = nextSegment;
+                position = 0;
+            } else {
+                break;
+            }
+        }
+
+        return new Batch(records, segment, position);
+    }
+
+    /**
+     * Move the checkpoint past a batch returned by read and delete consumed segments
+     *
+     * @param batch
+     * @throws IOException
+     */
+    public void commit(Batch batch) throws IOException {
+        Path tmp = directory.resolve(CHECKPOINT_FILE + ".tmp");
+        byte[] checkpoint = (batch.segment + " " + batch.position).getBytes(StandardCharsets.UTF_8);
+        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            channel.write(ByteBuffer.wrap(checkpoint));
+            channel.force(false);
+        }
+        Files.move(tmp, directory.resolve(CHECKPOINT_FILE), StandardCopyOption.ATOMIC_MOVE,
+                StandardCopyOption.REPLACE_EXISTING);
+
+        checkpointSegment = batch.segment;
+        checkpointPosition = batch.position;
+
+        List<Long> consumed = new ArrayList<>();
+        synchronized (this) {
+            consumed.addAll(segments.headMap(batch.segment, false).keySet());
+            consumed.forEach(segments::remove);
+        }
+        for(Long segment : consumed) {
+            Files.deleteIfExists(segmentPath(segment));
+        }
+    }
+
+    /**
+     * Bytes appended but not yet committed
+     *
+     * @return
+     */
+    public synchronized long getPendingBytes() {
+        long pending = 0;
+        for(Map.Entry<Long, Long> entry : segments.tailMap(checkpointSegment, true).entrySet()) {
+            pending += entry.getValue();
+        }
+        return Math.max(0, pending - checkpointPosition);
+    }
+
+    /**
+     * Force the active segment to disk
+     */
+    public void force() {
+        FileChannel channel;
+        synchronized (this) {
+            channel = activeChannel;
+        }
+        try {
+            channel.force(false);
+        } catch (ClosedChannelException e) {
+            // rotated or closed in the meantime; rotation forces the old segment itself
+        } catch (IOException e) {
+            log.error("Could not fsync write-ahead log: {}", e.toString());
+        }
+    }
+
+    /**
+     *
+     * @throws IOException
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if(fsyncExecutor != null) {
+            fsyncExecutor.shutdownNow();
+        }
+        if(fsyncPolicy != FsyncPolicy.NONE) {
+            activeChannel.force(false);
+        }
+        activeChannel.close();
+    }
+
+    /**
+     * Load segments and checkpoint, truncate a torn tail and open the active segment
+     *
+     * @throws IOException
+     */
+    private void open() throws IOException {
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*" + SEGMENT_SUFFIX)) {
+            for(Path path : stream) {
+                String name = path.getFileName().toString();
+                segments.put(Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length())), Files.size(path));
+            }
+        }
+
+        Path checkpoint = directory.resolve(CHECKPOINT_FILE);
+        if(Files.exists(checkpoint)) {
+            String[] parts = new String(Files.readAllBytes(checkpoint), StandardCharsets.UTF_8).trim().split(" ");
+            checkpointSegment = Long.parseLong(parts[0]);
+            checkpointPosition = Long.parseLong(parts[1]);
+        } else if(!segments.isEmpty()) {
+            checkpointSegment = segments.firstKey();
+        }
+
+        activeSegment = segments.isEmpty() ? Math.max(1, checkpointSegment) : segments.lastKey();
+        activeChannel = FileChannel.open(segmentPath(activeSegment), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+        // find the end of the last complete record
+        long size = activeChannel.size();
+        long position = 0;
+        byte[] record;
+        while (position < size && (record = readRecord(activeChannel, position, size)) != null) {
+            position += HEADER_BYTES + record.length;
+        }
+        if(position < size) {
+            log.warn("Truncating torn write-ahead log record in segment {} at {} ({} bytes).",
+                    activeSegment, position, size - position);
+            activeChannel.truncate(position);
+            activeChannel.force(false);
+        }
+
+        activePosition = position;
+        segments.put(activeSegment, position);
+    }
+
+    /**
+     * Seal the active segment and start a new one
+     *
+     * @throws IOException
+     */
+    private void rotate() throws IOException {
+        if(fsyncPolicy != FsyncPolicy.NONE) {
+            activeChannel.force(false);
+        }
+        activeChannel.close();
+
+        activeSegment++;
+        activePosition = 0;
+        activeChannel = FileChannel.open(segmentPath(activeSegment), StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        segments.put(activeSegment, 0L);
+
+        log.debug("Rotated write-ahead log to segment {}.", activeSegment);
+    }
+
+    /**
+     * Read one record, or null if it is incomplete or corrupt
+     *
+     * @param channel
+     * @param position
+     * @param end
+     * @return
+     * @throws IOException
+     */
+    private static byte[] readRecord(FileChannel channel, long position, long end) throws IOException {
+        if(end - position < HEADER_BYTES) {
+            return null;
+        }
+
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+        readFully(channel, header, position);
+        int length = header.getInt(0);
+        int checksum = header.getInt(4);
+        if(length <= 0 || length > MAX_RECORD_BYTES || end - position - HEADER_BYTES < length) {
+            return null;
+        }
+
+        ByteBuffer payload = ByteBuffer.allocate(length);
+        readFully(channel, payload, position + HEADER_BYTES);
+
+        CRC32 crc = new CRC32();
+        crc.update(payload.array());
+        if((int)crc.getValue() != checksum) {
+            return null;
+        }
+        return payload.array();
+    }
+
+    /**
+     *
+     * @param channel
+     * @param buffer
+     * @param position
+     * @throws IOException
+     */
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position + buffer.position());
+            if(read < 0) {
+                throw new IOException("Unexpected end of write-ahead log segment.");
+            }
+        }
+    }
+
+    /**
+     *
+     * @param segment
+     * @return
+     */
+    private Path segmentPath(long segment) {
+        return directory.resolve(String.format("%016d%s", segment, SEGMENT_SUFFIX));
+    }
+
+    /**
+     * Records read from the log and the position right after them
+     */
+    public static class Batch {
+        private final List<byte[]> records;
+        private final long segment;
+        private final long position;
+
+        private Batch(List<byte[]> records, long segment, long position) {
+            this.records = records;
+            this.segment = segment;
+            this.position = position;
+        }
+
+        public List<byte[]> getRecords() {
+            return records;
+        }
+
+        public boolean isEmpty() {
+            return records.isEmpty();
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package com.mongodb.fhir.webservice.model;
+
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Conditions of one patient reported within one time period, used when
+ * conditions are stored in buckets.  One bucket per patient and period,
+ * keyed by patientId and the period start.
+ *
+ * patientId is encrypted like in the patient collection when using the
+ * encrypted Mongo client.
+ */
+@Document(collection = ConditionBucket.COLLECTION)
+public class ConditionBucket {
+
+    public static final String COLLECTION = "conditionBucket";
+
+    @Id
+    private String id;
+
+    private String patientId;
+
+    // period [start, end) of the reported dates
+    private Date start;
+    private Date end;
+
+    private int count;
+
+    // in the order they were reported
+    private List<Condition> conditions;
+
+    public String getId() {
+        return id;
+    }
+
+    public void setId(String id) {
+        this.id = id;
+    }
+
+    public String getPatientId() {
+        return patientId;
+    }
+
+    public void setPatientId(String patientId) {
+        this.patientId = patientId;
+    }
+
+    public Date getStart() {
+        return start;
+    }
+
+    public void setStart(Date start) {
+        this.start = start;
+    }
+
+    public Date getEnd() {
+        return end;
+    }
+
+    public void setEnd(Date end) {
+        this.end = end;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    public void setCount(int count) {
+        this.count = count;
+    }
+
+    public List<Condition> getConditions() {
+        return conditions;
+    }
+
+    public void setConditions(List<Condition> conditions) {
+        this.conditions = conditions;
+    }
+}
@@ -0,0 +1,32 @@
+package com.mongodb.fhir.webservice.model;
+
+import java.util.List;
+
+/**
+ * A page of the conditions of a patient, newest first.
+ * next is the 'before' value of the following page, null on the last page.
+ */
+public class ConditionPage {
+
+    private List<Condition> conditions;
+
+    private String next;
+
+    /**
+     *
+     * @param conditions
+     * @param next
+     */
+    public ConditionPage(List<Condition> conditions, String next) {
+        this.conditions = conditions;
+        this.next = next;
+    }
+
+    public List<Condition> getConditions() {
+        return conditions;
+    }
+
+    public String getNext() {
+        return next;
+    }
+}
@@ -0,0 +1,82 @@
+package com.mongodb.fhir.webservice.model;
+
+import java.util.Date;
+import java.util.Map;
+
+/**
+ * Counts of the ConditionEvents reported within a window, for a filter on
+ * condition code, state, city and gender.  The breakdowns are the counts of
+ * the matching events by each of these, largest first.
+ */
+public class ConditionStats {
+
+    private Date from;
+
+    private Date to;
+
+    private long total;
+
+    private Map<String, Long> byConditionCode;
+
+    private Map<String, Long> byState;
+
+    private Map<String, Long> byCity;
+
+    private Map<String, Long> byGender;
+
+    public Date getFrom() {
+        return from;
+    }
+
+    public void setFrom(Date from) {
+        this.from = from;
+    }
+
+    public Date getTo() {
+        return to;
+    }
+
+    public void setTo(Date to) {
+        this.to = to;
+    }
+
+    public long getTotal() {
+        return total;
+    }
+
+    public void setTotal(long total) {
+        this.total = total;
+    }
+
+    public Map<String, Long> getByConditionCode() {
+        return byConditionCode;
+    }
+
+    public void setByConditionCode(Map<String, Long> byConditionCode) {
+        this.byConditionCode = byConditionCode;
+    }
+
+    public Map<String, Long> getByState() {
+        return byState;
+    }
+
+    public void setByState(Map<String, Long> byState) {
+        this.byState = byState;
+    }
+
+    public Map<String, Long> getByCity() {
+        return byCity;
+    }
+
+    public void setByCity(Map<String, Long> byCity) {
+        this.byCity = byCity;
+    }
+
+    public Map<String, Long> getByGender() {
+        return byGender;
+    }
+
+    public void setByGender(Map<String, Long> byGender) {
+        this.byGender = byGender;
+    }
+}
@@ -0,0 +1,70 @@
+package com.mongodb.fhir.webservice.model;
+
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import java.util.Date;
+
+/**
+ * Idempotency key of a write request, expired by a TTL index on createdAt.
+ *
+ * The id is a keyed hash of the key, so no resource id (e.g. a patient id)
+ * is stored in the clear.  fingerprint is the same hash of the payload, to
+ * tell a retry from another request with the same key.  completedAt is null while the request that
+ * claimed the key is in progress.
+ */
+@Document(collection = IdempotencyKey.COLLECTION)
+public class IdempotencyKey {
+
+    public static final String COLLECTION = "idempotencyKey";
+
+    @Id
+    private String id;
+
+    private String fingerprint;
+
+    private Date createdAt;
+
+    private Date completedAt;
+
+    public IdempotencyKey() {
+    }
+
+    public IdempotencyKey(String id, String fingerprint, Date createdAt) {
+        this.id = id;
+        this.fingerprint = fingerprint;
+        this.createdAt = createdAt;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public void setId(String id) {
+        this.id = id;
+    }
+
+    public String getFingerprint() {
+        return fingerprint;
+    }
+
+    public void setFingerprint(String fingerprint) {
+        this.fingerprint = fingerprint;
+    }
+
+    public Date getCreatedAt() {
+        return createdAt;
+    }
+
+    public void setCreatedAt(Date createdAt) {
+        this.createdAt = createdAt;
+    }
+
+    public Date getCompletedAt() {
+        return completedAt;
+    }
+
+    public void setCompletedAt(Date completedAt) {
+        this.completedAt = completedAt;
+    }
+}
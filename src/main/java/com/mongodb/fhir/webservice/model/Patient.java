@@ -47,6 +47,9 @@ public class Patient {
     private java.util.Date parsedDate;
     private java.util.Date updateDate;
 
+    // Incremented by every update
+    private long version;
+
     /**
      *
      */
@@ -158,6 +161,14 @@ public class Patient {
         this.updateDate = updateDate;
     }
 
+    public long getVersion() {
+        return version;
+    }
+
+    public void setVersion(long version) {
+        this.version = version;
+    }
+
     @Override
     public String toString() {
         return "Patient{" +
@@ -174,6 +185,7 @@ public class Patient {
                 ", conditions=" + conditions +
                 ", parsedDate=" + parsedDate +
                 ", updateDate=" + updateDate +
+                ", version=" + version +
                 '}';
     }
 }
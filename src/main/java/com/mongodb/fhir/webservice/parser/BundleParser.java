@@ -0,0 +1,170 @@
+package com.mongodb.fhir.webservice.parser;
+
+import ca.uhn.fhir.parser.DataFormatException;
+import com.mongodb.fhir.webservice.model.Condition;
+import com.mongodb.fhir.webservice.model.Patient;
+import org.hl7.fhir.r5.model.Bundle;
+import org.hl7.fhir.r5.model.Resource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Parser for FHIR Bundle (batch/transaction) resources.
+ * Each entry is mapped on its own so a bad entry does not fail the whole bundle.
+ * Uses Hapi-Fhir libs.
+ */
+public class BundleParser {
+
+    // Logger component
+    private static final Logger log = LoggerFactory.getLogger(BundleParser.class);
+
+    /**
+     *
+     * @param bundleResource
+     * @return
+     * @throws InvalidBundleException if the bundle cannot be parsed or is not a batch or transaction
+     */
+    public static ParsedBundle parse(String bundleResource) throws InvalidBundleException {
+
+        Bundle bundle;
+        try {
+            bundle = FhirContextProvider.getJsonParser().parseResource(Bundle.class, bundleResource);
+        } catch (DataFormatException e) {
+            throw new InvalidBundleException("Invalid Bundle resource: " + e.getMessage());
+        }
+
+        Bundle.BundleType type = bundle.getType();
+        if(type != Bundle.BundleType.BATCH && type != Bundle.BundleType.TRANSACTION) {
+            throw new InvalidBundleException("Bundle type must be batch or transaction: "
+                    + (type != null ? type.toCode() : null));
+        }
+
+        List<Entry> entries = new ArrayList<>(bundle.getEntry().size());
+        for(Bundle.BundleEntryComponent bundleEntry : bundle.getEntry()) {
+            entries.add(parseEntry(entries.size(), bundleEntry.getResource()));
+        }
+
+        log.debug("Parsed {} bundle with {} entries.", type.toCode(), entries.size());
+
+        return new ParsedBundle(type == Bundle.BundleType.TRANSACTION, entries);
+    }
+
+    /**
+     *
+     * @param index
+     * @param resource
+     * @return
+     */
+    private static Entry parseEntry(int index, Resource resource) {
+        Entry entry = new Entry(index);
+
+        if(resource == null) {
+            entry.error = "Entry has no resource.";
+            return entry;
+        }
+        entry.resourceType = resource.fhirType();
+
+        try {
+            if(resource instanceof org.hl7.fhir.r5.model.Patient) {
+
+                // Hapi-Fhir may fold the entry fullUrl or version into the id, only keep the logical id
+                String patientId = resource.getIdElement().getIdPart();
+                if(patientId == null) {
+                    entry.error = "Patient id is required.";
+                } else {
+                    entry.patient = PatientParser.toPatient((org.hl7.fhir.r5.model.Patient)resource);
+                    entry.patient.setPatientId(patientId);
+                }
+
+            } else if(resource instanceof org.hl7.fhir.r5.model.Condition) {
+
+                Object[] conditionResults = ConditionParser.toConditionResults((org.hl7.fhir.r5.model.Condition)resource);
+                entry.condition = (Condition)conditionResults[0];
+                entry.subjectReference = (String)conditionResults[1];
+
+            } else {
+                entry.error = "Unsupported resource type: " + entry.resourceType;
+            }
+        } catch (RuntimeException e) {
+            log.debug("Invalid {} entry at index {}: {}", entry.resourceType, index, e.toString());
+            entry.error = "Invalid " + entry.resourceType + " resource.";
+        }
+
+        return entry;
+    }
+
+    /**
+     * Bundle type and its entries, in request order
+     */
+    public static class ParsedBundle {
+        private final boolean transaction;
+        private final List<Entry> entries;
+
+        private ParsedBundle(boolean transaction, List<Entry> entries) {
+            this.transaction = transaction;
+            this.entries = entries;
+        }
+
+        public boolean isTransaction() {
+            return transaction;
+        }
+
+        public List<Entry> getEntries() {
+            return entries;
+        }
+    }
+
+    /**
+     * A single bundle entry.
+     * Holds either a patient, a condition with its subject reference, or an error.
+     */
+    public static class Entry {
+        private final int index;
+        private String resourceType;
+        private Patient patient;
+        private Condition condition;
+        private String subjectReference;
+        private String error;
+
+        private Entry(int index) {
+            this.index = index;
+        }
+
+        public int getIndex() {
+            return index;
+        }
+
+        public String getResourceType() {
+            return resourceType;
+        }
+
+        public Patient getPatient() {
+            return patient;
+        }
+
+        public Condition getCondition() {
+            return condition;
+        }
+
+        public String getSubjectReference() {
+            return subjectReference;
+        }
+
+        public String getError() {
+            return error;
+        }
+    }
+
+    /**
+     * A bundle the client has to fix, answered with 400
+     */
+    public static class InvalidBundleException extends RuntimeException {
+
+        private InvalidBundleException(String reason) {
+            super(reason, null, false, false);
+        }
+    }
+}
@@ -1,6 +1,5 @@
 package com.mongodb.fhir.webservice.parser;
 
-import ca.uhn.fhir.context.FhirContext;
 import ca.uhn.fhir.parser.IParser;
 import com.mongodb.fhir.webservice.model.Condition;
 import org.slf4j.Logger;
@@ -24,18 +23,47 @@ public class ConditionParser {
         Object conditionResults[] = null;
 
         if(conditionResource != null && conditionResource.length() > 1) {
-            conditionResults = parseCondition(conditionResource);
+
+            // try the streaming fast path first, fall back to Hapi-Fhir
+            if(FhirStreamingParser.isEnabled()) {
+                conditionResults = FhirStreamingParser.parseCondition(conditionResource);
+            }
+
+            if(conditionResults != null) {
+                FhirStreamingParser.recordPath("Condition", FhirStreamingParser.PATH_STREAMING);
+            } else {
+                conditionResults = parseCondition(conditionResource);
+                FhirStreamingParser.recordPath("Condition", FhirStreamingParser.PATH_HAPI);
+            }
         }
 
         return conditionResults;
     }
 
     /**
+     * Parse with Hapi-Fhir
      *
      * @param conditionResource
      * @return
      */
-    private static Object[] parseCondition(String conditionResource) {
+    static Object[] parseCondition(String conditionResource) {
+
+        // Reuse this thread's parser from the shared FHIR context
+        IParser parser = FhirContextProvider.getJsonParser();
+
+        // Parse it
+        org.hl7.fhir.r5.model.Condition parsed = parser.parseResource(org.hl7.fhir.r5.model.Condition.class, conditionResource);
+
+        return toConditionResults(parsed);
+    }
+
+    /**
+     * Map a parsed Hapi-Fhir Condition to the condition model
+     *
+     * @param parsed
+     * @return
+     */
+    static Object[] toConditionResults(org.hl7.fhir.r5.model.Condition parsed) {
 
         // return an Object array.
         // First element is condition entity, second is the subject reference to associate to patient
@@ -43,15 +71,6 @@ public class ConditionParser {
 
         Condition condition = new Condition();
 
-        // Create a FHIR context
-        FhirContext ctx = FhirContext.forR5();
-
-        // Instantiate a new parser
-        IParser parser = ctx.newJsonParser();
-
-        // Parse it
-        org.hl7.fhir.r5.model.Condition parsed = parser.parseResource(org.hl7.fhir.r5.model.Condition.class, conditionResource);
-
         // set parsed values
         condition.setCondition(parsed.getCode().getCodingFirstRep().getDisplay());
         condition.setConditionCode(parsed.getCode().getCodingFirstRep().getCode());
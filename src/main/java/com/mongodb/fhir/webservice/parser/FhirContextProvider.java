@@ -0,0 +1,90 @@
+package com.mongodb.fhir.webservice.parser;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+import org.hl7.fhir.r5.model.Bundle;
+import org.hl7.fhir.r5.model.Condition;
+import org.hl7.fhir.r5.model.Patient;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Holder for the single, application-scoped FHIR R5 context.
+ *
+ * Building a FhirContext scans the whole R5 model, so it is done once
+ * and shared.  The context is thread-safe; Hapi-Fhir parsers are not,
+ * so each thread gets its own reusable parser instances.
+ */
+public class FhirContextProvider {
+
+    // Logger component
+    private static final Logger log = LoggerFactory.getLogger(FhirContextProvider.class);
+
+    // Shared FHIR context
+    private static final FhirContext ctx = FhirContext.forR5();
+
+    // Per-thread parsers (compact and pretty printed)
+    private static final ThreadLocal<IParser> jsonParser =
+            ThreadLocal.withInitial(() -> ctx.newJsonParser());
+
+    private static final ThreadLocal<IParser> prettyJsonParser =
+            ThreadLocal.withInitial(() -> ctx.newJsonParser().setPrettyPrint(true));
+
+    /**
+     *
+     */
+    private FhirContextProvider() {
+
+    }
+
+    /**
+     * Get the shared FHIR context
+     *
+     * @return
+     */
+    public static FhirContext getContext() {
+        return ctx;
+    }
+
+    /**
+     * Get the compact JSON parser for the calling thread.
+     * Do not change its settings; use a new parser from the context instead.
+     *
+     * @return
+     */
+    public static IParser getJsonParser() {
+        return jsonParser.get();
+    }
+
+    /**
+     * Get the pretty printing JSON parser for the calling thread.
+     *
+     * @return
+     */
+    public static IParser getPrettyJsonParser() {
+        return prettyJsonParser.get();
+    }
+
+    /**
+     * Load the resource definitions used by this server and run a parse/encode
+     * cycle so the first request does not pay for the lazy initialization.
+     */
+    public static void warm() {
+        long start = System.nanoTime();
+
+        ctx.getResourceDefinition(Patient.class);
+        ctx.getResourceDefinition(Condition.class);
+        ctx.getResourceDefinition(Bundle.class);
+
+        Bundle bundle = new Bundle();
+        bundle.setType(Bundle.BundleType.BATCH);
+        bundle.addEntry().setResource(new Patient().setActive(true));
+        bundle.addEntry().setResource(new Condition());
+
+        String encoded = getJsonParser().encodeResourceToString(bundle);
+        getJsonParser().parseResource(Bundle.class, encoded);
+        getPrettyJsonParser().encodeResourceToString(bundle);
+
+        log.info("FHIR context warmed in {} ms.", (System.nanoTime() - start) / 1_000_000);
+    }
+}
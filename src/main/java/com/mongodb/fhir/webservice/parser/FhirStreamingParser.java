@@ -0,0 +1,517 @@
+package com.mongodb.fhir.webservice.parser;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.mongodb.fhir.webservice.model.Condition;
+import com.mongodb.fhir.webservice.model.Patient;
+import io.micrometer.core.instrument.Metrics;
+import org.hl7.fhir.r5.model.DateTimeType;
+import org.hl7.fhir.r5.model.DateType;
+import org.hl7.fhir.r5.model.Enumerations;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+
+/**
+ * Fast-path parser for FHIR Patient and Condition resources.
+ *
+ * Streams the JSON with Jackson's token API and fills the model classes
+ * directly instead of materializing the full Hapi-Fhir object graph.
+ * Only the shapes produced by our clients are handled; anything else
+ * (primitive extensions, versioned ids, missing or unexpected values)
+ * returns null so the caller falls back to the Hapi-Fhir parser.
+ *
+ * Date and code values still go through the Hapi-Fhir primitive types
+ * so both paths give the same result.
+ */
+public class FhirStreamingParser {
+
+    // Logger component
+    private static final Logger log = LoggerFactory.getLogger(FhirStreamingParser.class);
+
+    // Parse path names, used for logging and metrics
+    public static final String PATH_STREAMING = "streaming";
+    public static final String PATH_HAPI = "hapi";
+
+    private static final JsonFactory jsonFactory = new JsonFactory();
+
+    private static volatile boolean enabled = true;
+
+    /**
+     *
+     */
+    private FhirStreamingParser() {
+
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    public static void setEnabled(boolean enabled) {
+        FhirStreamingParser.enabled = enabled;
+    }
+
+    /**
+     * Record which path was used to parse a resource
+     *
+     * @param resourceType
+     * @param path
+     */
+    static void recordPath(String resourceType, String path) {
+        log.debug("Parsed {} resource with {} parser.", resourceType, path);
+        Metrics.counter("fhir.parse.path", "resource", resourceType, "path", path).increment();
+    }
+
+    /**
+     * Parse a FHIR Patient resource.
+     *
+     * @param patientResource
+     * @return patient model, or null if the Hapi-Fhir parser must be used
+     */
+    public static Patient parsePatient(String patientResource) {
+        try (JsonParser parser = jsonFactory.createParser(patientResource)) {
+            return readPatient(parser);
+        } catch (FallbackException e) {
+            log.debug("Patient falls back to Hapi-Fhir parser: {}", e.getMessage());
+        } catch (IOException | RuntimeException e) {
+            log.debug("Patient falls back to Hapi-Fhir parser: {}", e.toString());
+        }
+        return null;
+    }
+
+    /**
+     * Parse a FHIR Condition resource.
+     * Same result layout as ConditionParser: condition model and subject reference.
+     *
+     * @param conditionResource
+     * @return condition results, or null if the Hapi-Fhir parser must be used
+     */
+    public static Object[] parseCondition(String conditionResource) {
+        try (JsonParser parser = jsonFactory.createParser(conditionResource)) {
+            return readCondition(parser);
+        } catch (FallbackException e) {
+            log.debug("Condition falls back to Hapi-Fhir parser: {}", e.getMessage());
+        } catch (IOException | RuntimeException e) {
+            log.debug("Condition falls back to Hapi-Fhir parser: {}", e.toString());
+        }
+        return null;
+    }
+
+    /**
+     *
+     * @param parser
+     * @return
+     * @throws IOException
+     */
+    private static Patient readPatient(JsonParser parser) throws IOException {
+        expect(parser.nextToken() == JsonToken.START_OBJECT, "not an object");
+
+        String resourceType = null;
+        String id = null;
+        String gender = null;
+        String birthDate = null;
+        String[] name = null;
+        String[] address = null;
+
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.getCurrentName();
+            JsonToken token = parser.nextToken();
+            checkFieldName(field);
+
+            switch (field) {
+                case "resourceType":
+                    expect(resourceType == null, "duplicate resourceType");
+                    resourceType = readString(parser, token);
+                    break;
+                case "id":
+                    expect(id == null, "duplicate id");
+                    id = readString(parser, token);
+                    break;
+                case "meta":
+                    readMeta(parser, token);
+                    break;
+                case "name":
+                    expect(name == null, "duplicate name");
+                    name = readFirstHumanName(parser, token);
+                    break;
+                case "address":
+                    expect(address == null, "duplicate address");
+                    address = readFirstAddress(parser, token);
+                    break;
+                case "gender":
+                    expect(gender == null, "duplicate gender");
+                    gender = readString(parser, token);
+                    break;
+                case "birthDate":
+                    expect(birthDate == null, "duplicate birthDate");
+                    birthDate = readString(parser, token);
+                    break;
+                default:
+                    parser.skipChildren();
+            }
+        }
+        expectEndOfDocument(parser);
+
+        expect("Patient".equals(resourceType), "resourceType is not Patient");
+        expect(id != null && id.indexOf('/') < 0, "unsupported id");
+        expect(name != null && name[1] != null, "missing given name");
+        expect(address != null && address[0] != null, "missing address line");
+        expect(gender != null, "missing gender");
+
+        Patient patient = new Patient();
+        patient.setPatientId(id);
+
+        // Name
+        patient.setLastName(name[0]);
+        patient.setFirstName(name[1]);
+
+        // Address
+        patient.setAddress(address[0]);
+        patient.setCity(address[1]);
+        patient.setState(address[2]);
+        patient.setPostalCode(address[3]);
+
+        // Gender/Birthday
+        patient.setGender(Enumerations.AdministrativeGender.fromCode(gender).toString());
+        patient.setBirthDate(birthDate != null ? new DateType(birthDate).getValue() : null);
+
+        patient.setParsedDate(new java.util.Date());
+        patient.setUpdateDate(new java.util.Date());
+
+        return patient;
+    }
+
+    /**
+     *
+     * @param parser
+     * @return
+     * @throws IOException
+     */
+    private static Object[] readCondition(JsonParser parser) throws IOException {
+        expect(parser.nextToken() == JsonToken.START_OBJECT, "not an object");
+
+        String resourceType = null;
+        String[] clinicalStatus = null;
+        String[] verificationStatus = null;
+        String[] severity = null;
+        String[] code = null;
+        String subject = null;
+        boolean subjectSeen = false;
+        String onsetDateTime = null;
+
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.getCurrentName();
+            JsonToken token = parser.nextToken();
+            checkFieldName(field);
+
+            switch (field) {
+                case "resourceType":
+                    expect(resourceType == null, "duplicate resourceType");
+                    resourceType = readString(parser, token);
+                    break;
+                case "meta":
+                    readMeta(parser, token);
+                    break;
+                case "clinicalStatus":
+                    expect(clinicalStatus == null, "duplicate clinicalStatus");
+                    clinicalStatus = readFirstCoding(parser, token);
+                    break;
+                case "verificationStatus":
+                    expect(verificationStatus == null, "duplicate verificationStatus");
+                    verificationStatus = readFirstCoding(parser, token);
+                    break;
+                case "severity":
+                    expect(severity == null, "duplicate severity");
+                    severity = readFirstCoding(parser, token);
+                    break;
+                case "code":
+                    expect(code == null, "duplicate code");
+                    code = readFirstCoding(parser, token);
+                    break;
+                case "subject":
+                    expect(!subjectSeen, "duplicate subject");
+                    subject = readReference(parser, token);
+                    subjectSeen = true;
+                    break;
+                case "onsetDateTime":
+                    expect(onsetDateTime == null, "duplicate onsetDateTime");
+                    onsetDateTime = readString(parser, token);
+                    break;
+                default:
+                    // other onset[x] types are not supported on the fast path
+                    expect(!field.startsWith("onset"), "unsupported " + field);
+                    parser.skipChildren();
+            }
+        }
+        expectEndOfDocument(parser);
+
+        expect("Condition".equals(resourceType), "resourceType is not Condition");
+        expect(onsetDateTime != null, "missing onsetDateTime");
+
+        Condition condition = new Condition();
+        condition.setCondition(code != null ? code[1] : null);
+        condition.setConditionCode(code != null ? code[0] : null);
+        condition.setClinicalStatus(clinicalStatus != null ? clinicalStatus[0] : null);
+        condition.setVerificationStatus(verificationStatus != null ? verificationStatus[0] : null);
+        condition.setSeverity(severity != null ? severity[1] : null);
+        condition.setOnsetDate(new DateTimeType(onsetDateTime).getValue());
+        condition.setDateParsed(new java.util.Date());
+
+        Object[] conditionResults = new Object[2];
+        conditionResults[0] = condition;
+        conditionResults[1] = subject;
+
+        return conditionResults;
+    }
+
+    /**
+     * Meta is ignored unless it carries a versionId, which Hapi-Fhir folds into the id
+     *
+     * @param parser
+     * @param token
+     * @throws IOException
+     */
+    private static void readMeta(JsonParser parser, JsonToken token) throws IOException {
+        expect(token == JsonToken.START_OBJECT, "unexpected meta");
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            expect(!"versionId".equals(parser.getCurrentName()), "versioned id");
+            parser.nextToken();
+            parser.skipChildren();
+        }
+    }
+
+    /**
+     * Family and first given name of the first HumanName
+     *
+     * @param parser
+     * @param token
+     * @return
+     * @throws IOException
+     */
+    private static String[] readFirstHumanName(JsonParser parser, JsonToken token) throws IOException {
+        String[] name = new String[2];
+
+        expect(token == JsonToken.START_ARRAY, "unexpected name");
+        expect(parser.nextToken() == JsonToken.START_OBJECT, "unexpected name");
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.getCurrentName();
+            JsonToken value = parser.nextToken();
+            checkFieldName(field);
+
+            if ("family".equals(field)) {
+                name[0] = readString(parser, value);
+            } else if ("given".equals(field)) {
+                name[1] = readFirstString(parser, value);
+            } else {
+                parser.skipChildren();
+            }
+        }
+        skipRemainingElements(parser);
+
+        return name;
+    }
+
+    /**
+     * First line, city, state and postal code of the first Address
+     *
+     * @param parser
+     * @param token
+     * @return
+     * @throws IOException
+     */
+    private static String[] readFirstAddress(JsonParser parser, JsonToken token) throws IOException {
+        String[] address = new String[4];
+
+        expect(token == JsonToken.START_ARRAY, "unexpected address");
+        expect(parser.nextToken() == JsonToken.START_OBJECT, "unexpected address");
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.getCurrentName();
+            JsonToken value = parser.nextToken();
+            checkFieldName(field);
+
+            switch (field) {
+                case "line":
+                    address[0] = readFirstString(parser, value);
+                    break;
+                case "city":
+                    address[1] = readString(parser, value);
+                    break;
+                case "state":
+                    address[2] = readString(parser, value);
+                    break;
+                case "postalCode":
+                    address[3] = readString(parser, value);
+                    break;
+                default:
+                    parser.skipChildren();
+            }
+        }
+        skipRemainingElements(parser);
+
+        return address;
+    }
+
+    /**
+     * Code and display of the first Coding of a CodeableConcept
+     *
+     * @param parser
+     * @param token
+     * @return
+     * @throws IOException
+     */
+    private static String[] readFirstCoding(JsonParser parser, JsonToken token) throws IOException {
+        String[] coding = new String[2];
+
+        expect(token == JsonToken.START_OBJECT, "unexpected CodeableConcept");
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.getCurrentName();
+            JsonToken value = parser.nextToken();
+            checkFieldName(field);
+
+            if (!"coding".equals(field)) {
+                parser.skipChildren();
+                continue;
+            }
+
+            expect(value == JsonToken.START_ARRAY, "unexpected coding");
+            JsonToken element = parser.nextToken();
+            if (element == JsonToken.END_ARRAY) {
+                continue;
+            }
+            expect(element == JsonToken.START_OBJECT, "unexpected coding");
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String codingField = parser.getCurrentName();
+                JsonToken codingValue = parser.nextToken();
+                checkFieldName(codingField);
+
+                if ("code".equals(codingField)) {
+                    coding[0] = readString(parser, codingValue);
+                } else if ("display".equals(codingField)) {
+                    coding[1] = readString(parser, codingValue);
+                } else {
+                    parser.skipChildren();
+                }
+            }
+            skipRemainingElements(parser);
+        }
+
+        return coding;
+    }
+
+    /**
+     * Reference string of a Reference
+     *
+     * @param parser
+     * @param token
+     * @return
+     * @throws IOException
+     */
+    private static String readReference(JsonParser parser, JsonToken token) throws IOException {
+        String reference = null;
+
+        expect(token == JsonToken.START_OBJECT, "unexpected Reference");
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.getCurrentName();
+            JsonToken value = parser.nextToken();
+            checkFieldName(field);
+
+            if ("reference".equals(field)) {
+                reference = readString(parser, value);
+            } else {
+                parser.skipChildren();
+            }
+        }
+
+        return reference;
+    }
+
+    /**
+     * First element of an array of strings
+     *
+     * @param parser
+     * @param token
+     * @return
+     * @throws IOException
+     */
+    private static String readFirstString(JsonParser parser, JsonToken token) throws IOException {
+        expect(token == JsonToken.START_ARRAY, "unexpected array");
+        String value = readString(parser, parser.nextToken());
+        skipRemainingElements(parser);
+        return value;
+    }
+
+    /**
+     * Hapi-Fhir treats empty and padded strings specially, leave those to it
+     *
+     * @param parser
+     * @param token
+     * @return
+     * @throws IOException
+     */
+    private static String readString(JsonParser parser, JsonToken token) throws IOException {
+        expect(token == JsonToken.VALUE_STRING, "unexpected value type");
+        String value = parser.getText();
+        expect(!value.isEmpty()
+                        && !Character.isWhitespace(value.charAt(0))
+                        && !Character.isWhitespace(value.charAt(value.length() - 1)),
+                "empty or padded string");
+        return value;
+    }
+
+    /**
+     * Skip to the end of the array the parser is currently in
+     *
+     * @param parser
+     * @throws IOException
+     */
+    private static void skipRemainingElements(JsonParser parser) throws IOException {
+        JsonToken token;
+        while ((token = parser.nextToken()) != JsonToken.END_ARRAY) {
+            expect(token != null, "unexpected end of input");
+            parser.skipChildren();
+        }
+    }
+
+    /**
+     * Primitive extensions and ids (_field) are not handled on the fast path
+     *
+     * @param field
+     */
+    private static void checkFieldName(String field) {
+        expect(!field.startsWith("_"), "primitive extension " + field);
+    }
+
+    /**
+     *
+     * @param parser
+     * @throws IOException
+     */
+    private static void expectEndOfDocument(JsonParser parser) throws IOException {
+        expect(parser.currentToken() == JsonToken.END_OBJECT, "malformed object");
+        expect(parser.nextToken() == null, "trailing content");
+    }
+
+    /**
+     *
+     * @param condition
+     * @param reason
+     */
+    private static void expect(boolean condition, String reason) {
+        if (!condition) {
+            throw new FallbackException(reason);
+        }
+    }
+
+    /**
+     * Signals that a resource has to go through the Hapi-Fhir parser
+     */
+    private static class FallbackException extends RuntimeException {
+
+        private FallbackException(String reason) {
+            super(reason, null, false, false);
+        }
+    }
+}
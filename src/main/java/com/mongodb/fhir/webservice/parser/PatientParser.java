@@ -1,6 +1,5 @@
 package com.mongodb.fhir.webservice.parser;
 
-import ca.uhn.fhir.context.FhirContext;
 import ca.uhn.fhir.parser.IParser;
 import com.mongodb.fhir.webservice.model.Patient;
 import org.hl7.fhir.r5.model.Address;
@@ -25,33 +24,56 @@ public class PatientParser {
         Patient patient = null;
 
         if(patientResource != null && patientResource.length() > 1) {
-            patient = parsePatient(patientResource);
+
+            // try the streaming fast path first, fall back to Hapi-Fhir
+            if(FhirStreamingParser.isEnabled()) {
+                patient = FhirStreamingParser.parsePatient(patientResource);
+            }
+
+            if(patient != null) {
+                FhirStreamingParser.recordPath("Patient", FhirStreamingParser.PATH_STREAMING);
+            } else {
+                patient = parsePatient(patientResource);
+                FhirStreamingParser.recordPath("Patient", FhirStreamingParser.PATH_HAPI);
+            }
         }
 
         return patient;
     }
 
     /**
+     * Parse with Hapi-Fhir
      *
      * @param patientResource
      * @return
      */
-    private static Patient parsePatient(String patientResource) {
-        Patient patient = new Patient();
+    static Patient parsePatient(String patientResource) {
 
-        // Create a FHIR context
-        FhirContext ctx = FhirContext.forR5();
-
-        // Instantiate a new parser
-        IParser parser = ctx.newJsonParser();
+        // Reuse this thread's parser from the shared FHIR context
+        IParser parser = FhirContextProvider.getJsonParser();
 
         // Parse it
         org.hl7.fhir.r5.model.Patient parsed = parser.parseResource(org.hl7.fhir.r5.model.Patient.class, patientResource);
 
+        Patient patient = toPatient(parsed);
+
         // Patient id - should be unique
         // removing the 'Patient/' prefix for demo purposes
         patient.setPatientId(parsed.getId().replace("Patient/", ""));
 
+        return patient;
+    }
+
+    /**
+     * Map a parsed Hapi-Fhir Patient to the patient model.
+     * The patient id is left to the caller.
+     *
+     * @param parsed
+     * @return
+     */
+    static Patient toPatient(org.hl7.fhir.r5.model.Patient parsed) {
+        Patient patient = new Patient();
+
         // Name
         patient.setLastName(parsed.getName().get(0).getFamily());
         patient.setFirstName(parsed.getName().get(0).getGiven().get(0).getValueAsString());
@@ -0,0 +1,146 @@
+package com.mongodb.fhir.webservice.service;
+
+import com.mongodb.fhir.webservice.db.FhirMongoOperations;
+import com.mongodb.fhir.webservice.model.Patient;
+import com.mongodb.fhir.webservice.utils.BulkDataGenerator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.data.mongodb.BulkOperationException;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.MongoOperations;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Generates a bulk dataset at startup when fhir.bulk.enabled is set.
+ *
+ * MONGODB mode inserts the patients, with their conditions, straight into
+ * the patient collection in encrypted insertMany batches; NDJSON mode writes
+ * FHIR NDJSON files, one Patient and one Condition file per partition.
+ */
+@Component
+@ConditionalOnProperty(name = "fhir.bulk.enabled", havingValue = "true")
+public class BulkDataGeneratorRunner implements ApplicationRunner {
+
+    // Logger component
+    private static final Logger log = LoggerFactory.getLogger(BulkDataGeneratorRunner.class);
+
+    private static final int DUPLICATE_KEY_ERROR = 11000;
+
+    /**
+     * Where the dataset is written
+     */
+    public enum Mode {
+        MONGODB,
+        NDJSON
+    }
+
+    @Value("${fhir.bulk.mode:MONGODB}")
+    private Mode mode;
+
+    @Value("${fhir.bulk.patients:1000000}")
+    private long patients;
+
+    @Value("${fhir.bulk.seed:42}")
+    private long seed;
+
+    // 0 for one per core
+    @Value("${fhir.bulk.partitions:0}")
+    private int partitions;
+
+    @Value("${fhir.bulk.batchSize:1000}")
+    private int batchSize;
+
+    @Value("${fhir.bulk.directory:bulk}")
+    private String directory;
+
+    private FhirMongoOperations fhirMongoOperations;
+
+    /**
+     *
+     * @param fhirMongoOperations
+     */
+    public BulkDataGeneratorRunner(FhirMongoOperations fhirMongoOperations) {
+        this.fhirMongoOperations = fhirMongoOperations;
+    }
+
+    /**
+     *
+     * @param args
+     * @throws IOException
+     */
+    @Override
+    public void run(ApplicationArguments args) throws IOException {
+        int workers = partitions > 0 ? partitions : Runtime.getRuntime().availableProcessors();
+        BulkDataGenerator generator = new BulkDataGenerator(seed, patients, workers);
+
+        log.info("Bulk data generation to {}", mode);
+        if(mode == Mode.NDJSON) {
+            generator.run(partition -> {
+                try {
+                    return new BulkDataGenerator.NdjsonWriter(Paths.get(directory), partition);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } else {
+            generator.run(partition -> new MongoWriter());
+        }
+    }
+
+    /**
+     * Buffers patients and inserts them with the encrypted client, batchSize per unordered bulk insert
+     */
+    private class MongoWriter implements BulkDataGenerator.RecordWriter {
+
+        private final MongoOperations mongoOps = fhirMongoOperations.getEncMongoOperations();
+
+        private final List<Patient> batch = new ArrayList<>(batchSize);
+
+        @Override
+        public void write(Patient patient) {
+            Date now = new Date();
+            patient.setParsedDate(now);
+            patient.setUpdateDate(now);
+
+            batch.add(patient);
+            if(batch.size() >= batchSize) {
+                this.flush();
+            }
+        }
+
+        private void flush() {
+            if(batch.isEmpty()) {
+                return;
+            }
+
+            try {
+                fhirMongoOperations.timedEncrypted("bulkPatient", () ->
+                        mongoOps.bulkOps(BulkOperations.BulkMode.UNORDERED, Patient.class).insert(batch).execute());
+            } catch (BulkOperationException e) {
+                // random ids can repeat in a large dataset, the rest of the batch is written
+                long duplicates = e.getErrors().stream().filter(error -> error.getCode() == DUPLICATE_KEY_ERROR).count();
+                if(duplicates < e.getErrors().size()) {
+                    throw e;
+                }
+                log.debug("Skipped {} duplicate patients", duplicates);
+            }
+            batch.clear();
+        }
+
+        @Override
+        public void close() {
+            this.flush();
+        }
+    }
+}
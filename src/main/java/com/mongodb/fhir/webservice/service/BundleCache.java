@@ -0,0 +1,97 @@
+package com.mongodb.fhir.webservice.service;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.time.Duration;
+import java.util.function.Supplier;
+
+/**
+ * Cache of serialized Bundle resources keyed by patientId, patient version and format.
+ *
+ * A new patient version never matches an old entry, so nothing has to be
+ * invalidated; old versions are evicted by size or TTL.  Bounded by the
+ * total number of characters held.  The bundles hold decrypted PHI, so
+ * the cache is off with fhir.cache.decryptedPhi=false.
+ */
+@Component
+public class BundleCache {
+
+    // Logger component
+    private static final Logger log = LoggerFactory.getLogger(BundleCache.class);
+
+    @Value("${fhir.cache.bundle.enabled:true}")
+    private boolean enabled;
+
+    @Value("${fhir.cache.decryptedPhi:true}")
+    private boolean decryptedPhi;
+
+    @Value("${fhir.cache.bundle.maxWeight:33554432}")
+    private long maxWeight;
+
+    @Value("${fhir.cache.bundle.ttlSeconds:300}")
+    private long ttlSeconds;
+
+    private MeterRegistry meterRegistry;
+
+    private Cache<String, String> cache;
+
+    /**
+     *
+     * @param meterRegistry
+     */
+    public BundleCache(MeterRegistry meterRegistry) {
+        this.meterRegistry = meterRegistry;
+    }
+
+    /**
+     * Build the cache
+     */
+    @PostConstruct
+    public void start() {
+        if(enabled && !decryptedPhi) {
+            log.info("Bundle cache disabled, fhir.cache.decryptedPhi is false.");
+            enabled = false;
+        }
+        if(!enabled) {
+            return;
+        }
+
+        cache = Caffeine.newBuilder()
+                .maximumWeight(maxWeight)
+                .weigher((String key, String bundle) -> bundle.length())
+                .expireAfterWrite(Duration.ofSeconds(ttlSeconds))
+                .recordStats()
+                .build();
+
+        CaffeineCacheMetrics.monitor(meterRegistry, cache, "bundle");
+
+        log.info("Bundle cache enabled. Max weight: {} chars, TTL: {} s", maxWeight, ttlSeconds);
+    }
+
+    /**
+     * Get a serialized bundle, serializing it on a miss
+     *
+     * @param patientId
+     * @param version
+     * @param pretty
+     * @param serializer
+     * @return
+     */
+    public String get(String patientId, String version, boolean pretty, Supplier<String> serializer) {
+        if(!enabled) {
+            return serializer.get();
+        }
+
+        // version is [0-9a-f-] only, so the key is unambiguous
+        String key = patientId + '|' + version + '|' + (pretty ? "pretty" : "compact");
+        return cache.get(key, k -> serializer.get());
+    }
+}
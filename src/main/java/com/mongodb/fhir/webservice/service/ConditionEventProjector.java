@@ -0,0 +1,515 @@
+package com.mongodb.fhir.webservice.service;
+
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.MongoServerException;
+import com.mongodb.bulk.BulkWriteError;
+import com.mongodb.client.ChangeStreamIterable;
+import com.mongodb.client.MongoChangeStreamCursor;
+import com.mongodb.client.model.Aggregates;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.InsertManyOptions;
+import com.mongodb.client.model.Projections;
+import com.mongodb.client.model.ReplaceOptions;
+import com.mongodb.client.model.changestream.ChangeStreamDocument;
+import com.mongodb.client.model.changestream.FullDocument;
+import com.mongodb.fhir.webservice.analytics.ConditionEventListener;
+import com.mongodb.fhir.webservice.db.FhirMongoOperations;
+import com.mongodb.fhir.webservice.model.Condition;
+import com.mongodb.fhir.webservice.model.ConditionEvent;
+import com.mongodb.fhir.webservice.model.Patient;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.bson.BsonDocument;
+import org.bson.BsonDocumentReader;
+import org.bson.BsonTimestamp;
+import org.bson.BsonValue;
+import org.bson.Document;
+import org.bson.codecs.DecoderContext;
+import org.bson.codecs.DocumentCodec;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.mongodb.core.MongoOperations;
+import org.springframework.data.mongodb.core.convert.MongoConverter;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Derives the ConditionEvent reporting documents from a change stream on
+ * the patient collection, instead of a second insert on the request thread.
+ *
+ * Every condition added to a patient shows up in the updated fields of the
+ * update event, either as conditions.N or, when the array was created or
+ * sliced, as the whole array with the new condition last.  The patient
+ * fields of the event come from the post-image (updateLookup), projected to
+ * the unencrypted city, state, gender and birthDate.
+ *
+ * Events are inserted in unordered batches, then the resume token of the
+ * batch is saved in the projectorState collection.  After a restart the
+ * stream resumes from the saved token.  Each event's _id is built from the
+ * patient _id, the cluster time of the change and the position of the
+ * condition in it, so a batch replayed after a crash before its token was
+ * saved is rejected as duplicates: no gaps and no duplicates.  For the same
+ * reason projectors on several nodes only waste work, they do not
+ * duplicate events; the projector can also run on its own nodes.
+ *
+ * The ConditionEventListeners get each event once per process, whether
+ * this node or another one wrote it.  Delivery is tracked by event id
+ * apart from the write result, so a batch that failed part way and is
+ * replayed delivers the events the first attempt inserted.
+ *
+ * Needs a replica set.  Set fhir.conditionEvents.inline=false on the nodes
+ * serving requests, otherwise the events are written twice.
+ */
+@Component
+public class ConditionEventProjector {
+
+    private static final String STATE_COLLECTION = "projectorState";
+    private static final String STATE_ID = "conditionEvent";
+
+    private static final String CONDITIONS = "conditions";
+
+    private static final int DUPLICATE_KEY_ERROR = 11000;
+    private static final int CHANGE_STREAM_NOT_SUPPORTED = 40573;
+    private static final int CHANGE_STREAM_HISTORY_LOST = 286;
+    private static final int CHANGE_STREAM_FATAL_ERROR = 280;
+
+    private static final long MAX_RETRY_DELAY_MS = 5000;
+
+    // an idle stream still saves its token, so a restart does not scan the oplog from far back
+    private static final long IDLE_CHECKPOINT_MS = 10000;
+
+    private static final DocumentCodec documentCodec = new DocumentCodec();
+
+    // batches of delivered event ids remembered, only the batches since the saved token are replayed
+    private static final int DELIVERED_BATCHES = 4;
+
+    // Logger component
+    private static final Logger log = LoggerFactory.getLogger(ConditionEventProjector.class);
+
+    @Value("${fhir.projector.enabled:false}")
+    private boolean enabled;
+
+    @Value("${fhir.projector.batchSize:500}")
+    private int batchSize;
+
+    // a batch is written at the latest this long after its first event
+    @Value("${fhir.projector.maxBatchDelayMs:200}")
+    private long maxBatchDelayMs;
+
+    @Value("${fhir.conditionEvents.inline:true}")
+    private boolean inlineConditionEvents;
+
+    private FhirMongoOperations fhirMongoOperations;
+
+    private MeterRegistry meterRegistry;
+
+    private List<ConditionEventListener> conditionEventListeners;
+
+    private Thread projectorThread;
+
+    private volatile boolean running;
+
+    private volatile MongoChangeStreamCursor<ChangeStreamDocument<Document>> cursor;
+
+    // wall clock time of the last projected change, for the lag gauge
+    private final AtomicLong lastChangeMillis = new AtomicLong();
+
+    private Counter projectedCounter;
+    private Counter duplicateCounter;
+
+    // ids of the events last delivered to the listeners, oldest first; projector thread only
+    private Set<String> delivered;
+
+    /**
+     *
+     * @param fhirMongoOperations
+     * @param meterRegistry
+     * @param conditionEventListeners
+     */
+    public ConditionEventProjector(FhirMongoOperations fhirMongoOperations, MeterRegistry meterRegistry,
+                                   List<ConditionEventListener> conditionEventListeners) {
+        this.fhirMongoOperations = fhirMongoOperations;
+        this.meterRegistry = meterRegistry;
+        this.conditionEventListeners = conditionEventListeners;
+    }
+
+    /**
+     * Start the projector thread
+     */
+    @PostConstruct
+    public void start() {
+        if(!enabled) {
+            return;
+        }
+
+        if(inlineConditionEvents) {
+            log.warn("ConditionEvent projector enabled with fhir.conditionEvents.inline=true, events are written twice.");
+        }
+
+        delivered = deliveredSet(batchSize * DELIVERED_BATCHES);
+        projectedCounter = meterRegistry.counter("fhir.projector.events", "result", "projected");
+        duplicateCounter = meterRegistry.counter("fhir.projector.events", "result", "duplicate");
+        Gauge.builder("fhir.projector.lag", lastChangeMillis,
+                last -> last.get() == 0 ? 0 : System.currentTimeMillis() - last.get())
+                .description("Time since the last projected change was made")
+                .baseUnit("milliseconds")
+                .register(meterRegistry);
+
+        running = true;
+        projectorThread = new Thread(this::project, "condition-event-projector");
+        projectorThread.setDaemon(true);
+        projectorThread.start();
+
+        log.info("ConditionEvent projector started, batches of {} within {} ms.", batchSize, maxBatchDelayMs);
+    }
+
+    /**
+     * Stop the projector; events not yet written are projected again after a restart
+     */
+    @PreDestroy
+    public void stop() {
+        running = false;
+        if(projectorThread != null) {
+            projectorThread.interrupt();
+            MongoChangeStreamCursor<ChangeStreamDocument<Document>> current = cursor;
+            if(current != null) {
+                current.close();
+            }
+        }
+    }
+
+    /**
+     * Projector loop: follow the change stream from the saved token, reopening it after errors
+     */
+    private void project() {
+        MongoOperations mongoOps = fhirMongoOperations.getMongoOperations();
+        String patientCollection = mongoOps.getCollectionName(Patient.class);
+        String eventCollection = mongoOps.getCollectionName(ConditionEvent.class);
+
+        long delay = 100;
+
+        while (running) {
+            BsonDocument resumeToken;
+            MongoChangeStreamCursor<ChangeStreamDocument<Document>> changeStream;
+            try {
+                resumeToken = this.loadResumeToken(mongoOps);
+                changeStream = this.openChangeStream(mongoOps, patientCollection, resumeToken);
+            } catch (RuntimeException e) {
+                if(this.errorCode(e) == CHANGE_STREAM_NOT_SUPPORTED) {
+                    log.error("Change streams need a replica set, ConditionEvent projector stopped.");
+                    return;
+                }
+                delay = this.recover(mongoOps, delay, e);
+                continue;
+            }
+
+            try {
+                cursor = changeStream;
+                delay = 100;
+                this.projectChanges(mongoOps, eventCollection, changeStream, resumeToken);
+            } catch (RuntimeException e) {
+                delay = this.recover(mongoOps, delay, e);
+            } finally {
+                changeStream.close();
+            }
+        }
+    }
+
+    /**
+     * Restart from now if the saved token is gone from the oplog, otherwise back off
+     *
+     * @param mongoOps
+     * @param delay
+     * @param e
+     * @return next delay
+     */
+    private long recover(MongoOperations mongoOps, long delay, RuntimeException e) {
+        int code = this.errorCode(e);
+        if(code == CHANGE_STREAM_HISTORY_LOST || code == CHANGE_STREAM_FATAL_ERROR) {
+            // events from the gap are missing
+            log.error("ConditionEvent projector can not resume, restarting from now; "
+                    + "conditions added since the last checkpoint are not projected: {}", e.toString());
+            try {
+                this.saveResumeToken(mongoOps, null);
+                return delay;
+            } catch (RuntimeException saveError) {
+                return this.backoff(delay, saveError);
+            }
+        }
+        return this.backoff(delay, e);
+    }
+
+    /**
+     *
+     * @param e
+     * @return server error code, 0 if not a server error
+     */
+    private int errorCode(RuntimeException e) {
+        return e instanceof MongoServerException ? ((MongoServerException)e).getCode() : 0;
+    }
+
+    /**
+     * Gather events into batches, write each batch then save its resume token
+     *
+     * @param mongoOps
+     * @param eventCollection
+     * @param changeStream
+     * @param savedToken
+     */
+    private void projectChanges(MongoOperations mongoOps, String eventCollection,
+                                MongoChangeStreamCursor<ChangeStreamDocument<Document>> changeStream,
+                                BsonDocument savedToken) {
+        MongoConverter converter = mongoOps.getConverter();
+        List<Document> batch = new ArrayList<>(batchSize);
+        List<ConditionEvent> batchEvents = new ArrayList<>(batchSize);
+        long batchStart = 0;
+        long lastCheckpoint = System.currentTimeMillis();
+        Date lastChange = null;
+
+        while (running) {
+            ChangeStreamDocument<Document> change = changeStream.tryNext();
+            if(change != null) {
+                if(batch.isEmpty()) {
+                    batchStart = System.currentTimeMillis();
+                }
+                for(ConditionEvent conditionEvent : toConditionEvents(change.getDocumentKey(), change.getClusterTime(),
+                        change.getFullDocument(),
+                        change.getUpdateDescription() != null ? change.getUpdateDescription().getUpdatedFields() : null,
+                        converter)) {
+                    Document document = new Document();
+                    converter.write(conditionEvent, document);
+                    batch.add(document);
+                    batchEvents.add(conditionEvent);
+                    lastChange = conditionEvent.getReportedDate();
+                }
+            }
+
+            long now = System.currentTimeMillis();
+            boolean flush = !batch.isEmpty() && (change == null || batch.size() >= batchSize
+                    || now - batchStart >= maxBatchDelayMs);
+            boolean checkpoint = batch.isEmpty() && change == null && now - lastCheckpoint >= IDLE_CHECKPOINT_MS;
+            if(!flush && !checkpoint) {
+                continue;
+            }
+
+            // the token after the last change read, every event before it is in the batch
+            BsonDocument resumeToken = changeStream.getResumeToken();
+            if(flush) {
+                this.insertBatch(mongoOps, eventCollection, batch, batchEvents);
+                batch = new ArrayList<>(batchSize);
+                batchEvents = new ArrayList<>(batchSize);
+                if(lastChange != null) {
+                    lastChangeMillis.set(lastChange.getTime());
+                }
+            }
+            if(resumeToken != null && !resumeToken.equals(savedToken)) {
+                this.saveResumeToken(mongoOps, resumeToken);
+                savedToken = resumeToken;
+            }
+            lastCheckpoint = now;
+        }
+    }
+
+    /**
+     * ConditionEvents of the conditions added by a patient update
+     *
+     * @param documentKey
+     * @param clusterTime
+     * @param patient post-image of the patient, projected
+     * @param updatedFields
+     * @param converter
+     * @return empty if no condition was added, or the patient is gone
+     */
+    static List<ConditionEvent> toConditionEvents(BsonDocument documentKey, BsonTimestamp clusterTime,
+                                                  Document patient, BsonDocument updatedFields,
+                                                  MongoConverter converter) {
+        if(patient == null || updatedFields == null || documentKey == null || clusterTime == null) {
+            return Collections.emptyList();
+        }
+
+        List<BsonDocument> added = new ArrayList<>();
+        for(Map.Entry<String, BsonValue> field : updatedFields.entrySet()) {
+            String name = field.getKey();
+            BsonValue value = field.getValue();
+            if(name.startsWith(CONDITIONS + ".") && name.indexOf('.', CONDITIONS.length() + 1) < 0
+                    && value.isDocument()) {
+                added.add(value.asDocument());
+            } else if(name.equals(CONDITIONS) && value.isArray() && !value.asArray().isEmpty()) {
+                // array created or sliced: the new condition is the last one
+                BsonValue last = value.asArray().get(value.asArray().size() - 1);
+                if(last.isDocument()) {
+                    added.add(last.asDocument());
+                }
+            }
+        }
+        if(added.isEmpty()) {
+            return Collections.emptyList();
+        }
+
+        BsonValue patientKey = documentKey.get("_id");
+        String patientKeyString = patientKey.isObjectId() ? patientKey.asObjectId().getValue().toHexString()
+                : patientKey.toString();
+
+        // updateDate is set by the same update, the cluster time only has seconds
+        Date reported = updatedFields.isDateTime("updateDate")
+                ? new Date(updatedFields.getDateTime("updateDate").getValue())
+                : new Date(TimeUnit.SECONDS.toMillis(clusterTime.getTime()));
+
+        List<ConditionEvent> conditionEvents = new ArrayList<>(added.size());
+        for(int idx = 0; idx < added.size(); idx++) {
+            Condition condition = converter.read(Condition.class,
+                    documentCodec.decode(new BsonDocumentReader(added.get(idx)), DecoderContext.builder().build()));
+
+            ConditionEvent conditionEvent = new ConditionEvent();
+            conditionEvent.setId(patientKeyString + ":" + clusterTime.getTime() + ":" + clusterTime.getInc() + ":" + idx);
+            conditionEvent.setBirthdate(patient.getDate("birthDate"));
+            conditionEvent.setCity(patient.getString("city"));
+            conditionEvent.setState(patient.getString("state"));
+            conditionEvent.setGender(patient.getString("gender"));
+            conditionEvent.setCondition(condition.getCondition());
+            conditionEvent.setConditionCode(condition.getConditionCode());
+            conditionEvent.setOnsetDate(condition.getOnsetDate());
+            conditionEvent.setReportedDate(reported);
+            conditionEvents.add(conditionEvent);
+        }
+        return conditionEvents;
+    }
+
+    /**
+     * Unordered insert; events already written, before a restart or by another node, are skipped.
+     * Once the whole batch is written the listeners get the events not delivered yet.
+     *
+     * @param mongoOps
+     * @param eventCollection
+     * @param batch
+     * @param batchEvents the events of the batch documents, in the same order
+     * @throws MongoBulkWriteException on errors other than duplicates; nothing is delivered
+     */
+    void insertBatch(MongoOperations mongoOps, String eventCollection, List<Document> batch,
+                     List<ConditionEvent> batchEvents) {
+        Set<Integer> duplicates = new HashSet<>();
+        try {
+            fhirMongoOperations.timed("projectConditionEvent", () -> mongoOps.getCollection(eventCollection)
+                    .insertMany(batch, new InsertManyOptions().ordered(false)));
+        } catch (MongoBulkWriteException e) {
+            for(BulkWriteError error : e.getWriteErrors()) {
+                if(error.getCode() != DUPLICATE_KEY_ERROR) {
+                    throw e;
+                }
+                duplicates.add(error.getIndex());
+            }
+        }
+        projectedCounter.increment(batch.size() - duplicates.size());
+        duplicateCounter.increment(duplicates.size());
+
+        for(ConditionEvent conditionEvent : batchEvents) {
+            if(delivered.add(conditionEvent.getId())) {
+                for(ConditionEventListener listener : conditionEventListeners) {
+                    listener.onConditionEvent(conditionEvent);
+                }
+            }
+        }
+    }
+
+    /**
+     * Insertion ordered set that drops its oldest ids beyond a size
+     *
+     * @param maxSize
+     * @return
+     */
+    static Set<String> deliveredSet(int maxSize) {
+        return Collections.newSetFromMap(new LinkedHashMap<String, Boolean>(maxSize * 2) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+                return size() > maxSize;
+            }
+        });
+    }
+
+    /**
+     *
+     * @param mongoOps
+     * @return null if there is no saved token
+     */
+    private BsonDocument loadResumeToken(MongoOperations mongoOps) {
+        Document state = mongoOps.getCollection(STATE_COLLECTION).find(Filters.eq("_id", STATE_ID)).first();
+        Document resumeToken = state != null ? state.get("resumeToken", Document.class) : null;
+        return resumeToken != null ? resumeToken.toBsonDocument(Document.class, mongoOps.getCollection(STATE_COLLECTION)
+                .getCodecRegistry()) : null;
+    }
+
+    /**
+     *
+     * @param mongoOps
+     * @param resumeToken null to start from now on the next open
+     */
+    private void saveResumeToken(MongoOperations mongoOps, BsonDocument resumeToken) {
+        Document state = new Document("_id", STATE_ID)
+                .append("resumeToken", resumeToken)
+                .append("updatedAt", new Date());
+        fhirMongoOperations.timed("projectorCheckpoint", () -> mongoOps.getCollection(STATE_COLLECTION)
+                .replaceOne(Filters.eq("_id", STATE_ID), state, new ReplaceOptions().upsert(true)));
+    }
+
+    /**
+     *
+     * @param mongoOps
+     * @param collectionName
+     * @param resumeToken
+     * @return
+     */
+    private MongoChangeStreamCursor<ChangeStreamDocument<Document>> openChangeStream(
+            MongoOperations mongoOps, String collectionName, BsonDocument resumeToken) {
+
+        // conditions are only added by updates; the post-image keeps only the unencrypted reporting fields
+        ChangeStreamIterable<Document> changeStream = mongoOps.getCollection(collectionName)
+                .watch(Arrays.asList(
+                        Aggregates.match(Filters.eq("operationType", "update")),
+                        Aggregates.project(Projections.include("operationType", "documentKey", "clusterTime",
+                                "updateDescription.updatedFields", "fullDocument.city", "fullDocument.state",
+                                "fullDocument.gender", "fullDocument.birthDate"))))
+                .fullDocument(FullDocument.UPDATE_LOOKUP)
+                .batchSize(batchSize)
+                .maxAwaitTime(maxBatchDelayMs, TimeUnit.MILLISECONDS);
+        if(resumeToken != null) {
+            log.info("ConditionEvent projector resumes from its saved token.");
+            changeStream = changeStream.resumeAfter(resumeToken);
+        }
+        return changeStream.cursor();
+    }
+
+    /**
+     * Sleep before reopening the change stream
+     *
+     * @param delay
+     * @param e
+     * @return next delay
+     */
+    private long backoff(long delay, RuntimeException e) {
+        if(!running) {
+            return delay;
+        }
+        log.warn("ConditionEvent projector failed, resuming from the saved token in {} ms: {}", delay, e.toString());
+        try {
+            TimeUnit.MILLISECONDS.sleep(delay);
+        } catch (InterruptedException ie) {
+            running = false;
+        }
+        return Math.min(delay * 2, MAX_RETRY_DELAY_MS);
+    }
+}
@@ -0,0 +1,193 @@
+package com.mongodb.fhir.webservice.service;
+
+import com.mongodb.fhir.webservice.db.IndexBootstrapper;
+import com.mongodb.fhir.webservice.model.Condition;
+import com.mongodb.fhir.webservice.model.ConditionBucket;
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.index.Index;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * How conditions are stored, fhir.conditions.storage:
+ *
+ * EMBEDDED: every condition is added to the conditions array of the patient
+ * ($addToSet), so the patient document and each $addToSet grow with the
+ * history.
+ *
+ * BUCKETED: the patient keeps the newest fhir.conditions.embeddedLimit
+ * conditions ($push with $slice).  Every condition is also pushed to the
+ * bucket of its patient and reporting period (fhir.conditions.bucketDays),
+ * created on first use.  A bucket holds at most fhir.conditions.maxBucketSize
+ * conditions, a full bucket is followed by another one for the same period,
+ * so no bucket nears the 16 MB document limit.  The buckets hold the full
+ * history and are paged through newest first, by start and _id.  Writes and
+ * patient reads cost the same whatever the history.  Unlike $addToSet, $push
+ * does not skip a condition equal to one already stored.
+ *
+ * Builds the queries and updates for the servlet, bundle and reactive paths.
+ */
+@Component
+public class ConditionStorage {
+
+    public enum Mode {
+        EMBEDDED, BUCKETED
+    }
+
+    // Logger component
+    private static final Logger log = LoggerFactory.getLogger(ConditionStorage.class);
+
+    @Value("${fhir.conditions.storage:EMBEDDED}")
+    private Mode mode;
+
+    @Value("${fhir.conditions.embeddedLimit:20}")
+    private int embeddedLimit;
+
+    @Value("${fhir.conditions.bucketDays:30}")
+    private int bucketDays;
+
+    @Value("${fhir.conditions.maxBucketSize:500}")
+    private int maxBucketSize;
+
+    private IndexBootstrapper indexBootstrapper;
+
+    /**
+     *
+     * @param indexBootstrapper
+     */
+    public ConditionStorage(IndexBootstrapper indexBootstrapper) {
+        this.indexBootstrapper = indexBootstrapper;
+    }
+
+    /**
+     * Register the bucket index
+     */
+    @PostConstruct
+    public void start() {
+        if(mode != Mode.BUCKETED) {
+            return;
+        }
+
+        // buckets of a patient and period, pages read the newest first; a period has more than
+        // one bucket when it is full, or when two nodes open it at once
+        indexBootstrapper.register(new IndexBootstrapper.ExpectedIndex(ConditionBucket.COLLECTION,
+                new Index().on("patientId", Sort.Direction.ASC).on("start", Sort.Direction.DESC)
+                        .on("_id", Sort.Direction.DESC).named("patientId_1_start_-1__id_-1"),
+                new Document("patientId", "000-00-0000").append("start", new Document("$lt", new Date()))));
+
+        log.info("Conditions stored in buckets of {} days and at most {} conditions, newest {} embedded in the patient.",
+                bucketDays, maxBucketSize, embeddedLimit);
+    }
+
+    /**
+     *
+     * @return
+     */
+    public boolean isBucketed() {
+        return mode == Mode.BUCKETED;
+    }
+
+    /**
+     * Update of the patient adding a condition
+     *
+     * @param condition
+     * @return
+     */
+    public Update patientUpdate(Condition condition) {
+        Update update = new Update();
+        if(mode == Mode.BUCKETED) {
+            update.push("conditions").slice(-embeddedLimit).each(condition);
+        } else {
+            update.addToSet("conditions", condition);
+        }
+        update.set("updateDate", new Date());
+        update.inc("version", 1);
+        return update;
+    }
+
+    /**
+     * Bucket of a patient for a reporting time that is not full, for an upsert
+     *
+     * @param patientId
+     * @param reported
+     * @return
+     */
+    public Query bucketQuery(String patientId, Date reported) {
+        return new Query(Criteria.where("patientId").is(patientId).and("start").is(this.periodStart(reported))
+                .and("count").lt(maxBucketSize));
+    }
+
+    /**
+     * Update adding a condition to its bucket, creating the bucket if needed
+     *
+     * @param condition
+     * @param reported
+     * @return
+     */
+    public Update bucketUpdate(Condition condition, Date reported) {
+        long periodMillis = TimeUnit.DAYS.toMillis(bucketDays);
+
+        Update update = new Update();
+        update.push("conditions", condition);
+        update.inc("count", 1);
+        update.setOnInsert("end", new Date(this.periodStart(reported).getTime() + periodMillis));
+        return update;
+    }
+
+    /**
+     * Buckets of a patient after a page cursor, newest first
+     *
+     * @param patientId
+     * @param before pageCursor of the last bucket of the previous page, or its start in epoch
+     *               milliseconds; null for the newest
+     * @return
+     * @throws IllegalArgumentException if before is not a cursor
+     */
+    public Query pageQuery(String patientId, String before) {
+        Criteria criteria = Criteria.where("patientId").is(patientId);
+        if(before != null) {
+            int separator = before.indexOf('-');
+            Date start = new Date(Long.parseLong(separator < 0 ? before : before.substring(0, separator)));
+            if(separator < 0) {
+                criteria = criteria.and("start").lt(start);
+            } else {
+                ObjectId id = new ObjectId(before.substring(separator + 1));
+                criteria = criteria.orOperator(Criteria.where("start").lt(start),
+                        Criteria.where("start").is(start).and("_id").lt(id));
+            }
+        }
+        return new Query(criteria).with(Sort.by(Sort.Direction.DESC, "start", "_id"));
+    }
+
+    /**
+     * Position of a bucket in the pages, "start-_id"
+     *
+     * @param bucket
+     * @return
+     */
+    public String pageCursor(ConditionBucket bucket) {
+        return bucket.getStart().getTime() + "-" + bucket.getId();
+    }
+
+    /**
+     * Periods are aligned on the epoch, so every node picks the same bucket
+     *
+     * @param reported
+     * @return
+     */
+    private Date periodStart(Date reported) {
+        long periodMillis = TimeUnit.DAYS.toMillis(bucketDays);
+        return new Date(reported.getTime() - Math.floorMod(reported.getTime(), periodMillis));
+    }
+}
@@ -0,0 +1,259 @@
+package com.mongodb.fhir.webservice.service;
+
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.bulk.BulkWriteError;
+import com.mongodb.client.model.InsertManyOptions;
+import com.mongodb.fhir.webservice.db.FhirMongoOperations;
+import com.mongodb.fhir.webservice.db.WriteAheadLog;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.bson.Document;
+import org.bson.json.JsonMode;
+import org.bson.json.JsonWriterSettings;
+import org.bson.types.ObjectId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.mongodb.core.MongoOperations;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reporting events (EventStream, ConditionEvent) written to a local
+ * write-ahead log first and drained to MongoDB in the background.
+ *
+ * Request threads only append to local disk, so ingest does not wait on
+ * MongoDB failovers or latency spikes.  The replayer writes the records in
+ * log order; every record carries its _id, so a replay after a crash or a
+ * failed batch does not create duplicates.
+ */
+@Component
+public class DurableEventLog {
+
+    private static final int DUPLICATE_KEY_ERROR = 11000;
+    private static final long MAX_RETRY_DELAY_MS = 5000;
+    private static final long IDLE_DELAY_MS = 100;
+
+    private static final JsonWriterSettings jsonWriterSettings =
+            JsonWriterSettings.builder().outputMode(JsonMode.EXTENDED).build();
+
+    // Logger component
+    private static final Logger log = LoggerFactory.getLogger(DurableEventLog.class);
+
+    @Value("${fhir.wal.enabled:false}")
+    private boolean enabled;
+
+    @Value("${fhir.wal.directory:wal}")
+    private String directory;
+
+    @Value("${fhir.wal.segmentSizeBytes:67108864}")
+    private long segmentSizeBytes;
+
+    @Value("${fhir.wal.fsyncPolicy:INTERVAL}")
+    private WriteAheadLog.FsyncPolicy fsyncPolicy;
+
+    @Value("${fhir.wal.fsyncIntervalMs:1000}")
+    private long fsyncIntervalMs;
+
+    @Value("${fhir.wal.replayBatchSize:500}")
+    private int replayBatchSize;
+
+    private FhirMongoOperations fhirMongoOperations;
+
+    private MeterRegistry meterRegistry;
+
+    private WriteAheadLog writeAheadLog;
+
+    private Thread replayerThread;
+
+    private volatile boolean running;
+
+    private Counter appendedCounter;
+    private Counter replayedCounter;
+
+    /**
+     *
+     * @param fhirMongoOperations
+     * @param meterRegistry
+     */
+    public DurableEventLog(FhirMongoOperations fhirMongoOperations, MeterRegistry meterRegistry) {
+        this.fhirMongoOperations = fhirMongoOperations;
+        this.meterRegistry = meterRegistry;
+    }
+
+    /**
+     * Open the log, recovering from a crash if needed, and start the replayer
+     *
+     * @throws IOException
+     */
+    @PostConstruct
+    public void start() throws IOException {
+        if(!enabled) {
+            return;
+        }
+
+        writeAheadLog = new WriteAheadLog(Paths.get(directory), segmentSizeBytes, fsyncPolicy, fsyncIntervalMs);
+
+        Gauge.builder("fhir.wal.pending", writeAheadLog, WriteAheadLog::getPendingBytes)
+                .description("Bytes in the write-ahead log not yet written to MongoDB")
+                .baseUnit("bytes")
+                .register(meterRegistry);
+        appendedCounter = meterRegistry.counter("fhir.wal.appended");
+        replayedCounter = meterRegistry.counter("fhir.wal.replayed");
+
+        running = true;
+        replayerThread = new Thread(this::replay, "wal-replayer");
+        replayerThread.setDaemon(true);
+        replayerThread.start();
+
+        log.info("Write-ahead log opened in {} with fsync policy {}.", directory, fsyncPolicy);
+    }
+
+    /**
+     * Stop the replayer and close the log; anything not replayed stays on disk
+     *
+     * @throws IOException
+     */
+    @PreDestroy
+    public void stop() throws IOException {
+        if(!enabled) {
+            return;
+        }
+
+        running = false;
+        replayerThread.interrupt();
+        try {
+            replayerThread.join(MAX_RETRY_DELAY_MS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        writeAheadLog.close();
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Append an entity to the log.
+     *
+     * @param entity mapped entity, e.g. EventStream or ConditionEvent
+     * @return false if the log is disabled or the append failed, the caller must write it itself
+     */
+    public boolean append(Object entity) {
+        if(!enabled) {
+            return false;
+        }
+
+        MongoOperations mongoOps = fhirMongoOperations.getMongoOperations();
+
+        Document document = new Document();
+        mongoOps.getConverter().write(entity, document);
+        if(!document.containsKey("_id")) {
+            document.put("_id", new ObjectId());
+        }
+
+        Document record = new Document("collection", mongoOps.getCollectionName(entity.getClass()))
+                .append("document", document);
+
+        try {
+            writeAheadLog.append(record.toJson(jsonWriterSettings).getBytes(StandardCharsets.UTF_8));
+            appendedCounter.increment();
+            return true;
+        } catch (IOException e) {
+            log.error("Could not append to write-ahead log: {}", e.toString());
+            return false;
+        }
+    }
+
+    /**
+     * Replayer loop: drain the log to MongoDB in order, commit after each batch
+     */
+    private void replay() {
+        long delay = IDLE_DELAY_MS;
+
+        while (running) {
+            try {
+                WriteAheadLog.Batch batch = writeAheadLog.read(replayBatchSize);
+                if(batch.isEmpty()) {
+                    TimeUnit.MILLISECONDS.sleep(IDLE_DELAY_MS);
+                    continue;
+                }
+
+                this.write(batch.getRecords());
+                writeAheadLog.commit(batch);
+                replayedCounter.increment(batch.getRecords().size());
+                delay = IDLE_DELAY_MS;
+
+            } catch (InterruptedException e) {
+                return;
+            } catch (IOException | RuntimeException e) {
+                log.warn("Could not replay write-ahead log, retrying in {} ms: {}", delay, e.toString());
+                try {
+                    TimeUnit.MILLISECONDS.sleep(delay);
+                } catch (InterruptedException ie) {
+                    return;
+                }
+                delay = Math.min(delay * 2, MAX_RETRY_DELAY_MS);
+            }
+        }
+    }
+
+    /**
+     * Insert consecutive records of the same collection together, keeping log order
+     *
+     * @param records
+     */
+    private void write(List<byte[]> records) {
+        MongoOperations mongoOps = fhirMongoOperations.getMongoOperations();
+
+        String collectionName = null;
+        List<Document> documents = new ArrayList<>();
+        for(byte[] bytes : records) {
+            Document record = Document.parse(new String(bytes, StandardCharsets.UTF_8));
+            String recordCollection = record.getString("collection");
+
+            if(collectionName != null && !collectionName.equals(recordCollection)) {
+                this.insertInOrder(mongoOps, collectionName, documents);
+                documents = new ArrayList<>();
+            }
+            collectionName = recordCollection;
+            documents.add(record.get("document", Document.class));
+        }
+        if(!documents.isEmpty()) {
+            this.insertInOrder(mongoOps, collectionName, documents);
+        }
+    }
+
+    /**
+     * Ordered insert; documents already written by an earlier replay are skipped
+     *
+     * @param mongoOps
+     * @param collectionName
+     * @param documents
+     */
+    private void insertInOrder(MongoOperations mongoOps, String collectionName, List<Document> documents) {
+        List<Document> remaining = documents;
+        while (!remaining.isEmpty()) {
+            try {
+                mongoOps.getCollection(collectionName).insertMany(remaining, new InsertManyOptions().ordered(true));
+                return;
+            } catch (MongoBulkWriteException e) {
+                BulkWriteError error = e.getWriteErrors().get(0);
+                if(error.getCode() != DUPLICATE_KEY_ERROR) {
+                    throw e;
+                }
+                remaining = remaining.subList(error.getIndex() + 1, remaining.size());
+            }
+        }
+    }
+}
@@ -0,0 +1,426 @@
+package com.mongodb.fhir.webservice.service;
+
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.bulk.BulkWriteError;
+import com.mongodb.client.model.InsertManyOptions;
+import com.mongodb.fhir.webservice.db.FhirMongoOperations;
+import com.mongodb.fhir.webservice.model.EventStream;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.mongodb.BulkOperationException;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.MongoOperations;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes EventStream audit records in the background.
+ *
+ * Events are put on a bounded in-memory queue and a single writer thread
+ * flushes them with one bulk insert once the batch is full or the flush
+ * interval has passed.  Ids are assigned up front so a retried batch does
+ * not create duplicates.  When the queue is full the overflow policy decides
+ * whether to block the caller, drop the oldest event or spill to local disk.
+ * Spilled events are replayed a batch at a time between the queued batches,
+ * so the spill file also drains under sustained load.
+ */
+@Component
+public class EventStreamWriter {
+
+    /**
+     * What to do when the queue is full
+     */
+    public enum OverflowPolicy {
+        BLOCK,
+        DROP_OLDEST,
+        SPILL
+    }
+
+    private static final int DUPLICATE_KEY_ERROR = 11000;
+    private static final long MAX_RETRY_DELAY_MS = 5000;
+
+    // Logger component
+    private static final Logger log = LoggerFactory.getLogger(EventStreamWriter.class);
+
+    @Value("${fhir.eventStream.queueCapacity:10000}")
+    private int queueCapacity;
+
+    @Value("${fhir.eventStream.batchSize:500}")
+    private int batchSize;
+
+    @Value("${fhir.eventStream.flushIntervalMs:1000}")
+    private long flushIntervalMs;
+
+    @Value("${fhir.eventStream.overflowPolicy:BLOCK}")
+    private OverflowPolicy overflowPolicy;
+
+    @Value("${fhir.eventStream.spillFile:eventStream-spill.ndjson}")
+    private String spillFile;
+
+    private FhirMongoOperations fhirMongoOperations;
+
+    private MeterRegistry meterRegistry;
+
+    private BlockingQueue<EventStream> queue;
+
+    private Thread writerThread;
+
+    private volatile boolean running;
+
+    // batch held by the writer thread when it was stopped
+    private volatile List<EventStream> pending;
+
+    // spill file being replayed and when to look for one next, writer thread only
+    private BufferedReader replayReader;
+    private long nextReplayCheck;
+
+    private Counter writtenCounter;
+    private Counter droppedCounter;
+    private Counter spilledCounter;
+    private Timer flushTimer;
+
+    /**
+     *
+     * @param fhirMongoOperations
+     * @param meterRegistry
+     */
+    public EventStreamWriter(FhirMongoOperations fhirMongoOperations, MeterRegistry meterRegistry) {
+        this.fhirMongoOperations = fhirMongoOperations;
+        this.meterRegistry = meterRegistry;
+    }
+
+    /**
+     * Create the queue and metrics and start the writer thread
+     */
+    @PostConstruct
+    public void start() {
+        queue = new ArrayBlockingQueue<>(queueCapacity);
+
+        Gauge.builder("fhir.eventstream.queue.depth", queue, BlockingQueue::size)
+                .description("EventStream records waiting to be written")
+                .register(meterRegistry);
+        Gauge.builder("fhir.eventstream.queue.lag", this, EventStreamWriter::getLagMillis)
+                .description("Age of the oldest queued EventStream record")
+                .baseUnit("milliseconds")
+                .register(meterRegistry);
+        writtenCounter = meterRegistry.counter("fhir.eventstream.written");
+        droppedCounter = meterRegistry.counter("fhir.eventstream.dropped");
+        spilledCounter = meterRegistry.counter("fhir.eventstream.spilled");
+        flushTimer = meterRegistry.timer("fhir.eventstream.flush");
+
+        running = true;
+        writerThread = new Thread(this::run, "event-stream-writer");
+        writerThread.setDaemon(true);
+        writerThread.start();
+
+        log.info("EventStream writer started. Queue capacity: {}, batch size: {}, overflow policy: {}",
+                queueCapacity, batchSize, overflowPolicy);
+    }
+
+    /**
+     * Stop the writer thread and flush what is left
+     */
+    @PreDestroy
+    public void stop() {
+        running = false;
+        writerThread.interrupt();
+        try {
+            writerThread.join(flushIntervalMs + MAX_RETRY_DELAY_MS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        List<EventStream> remaining = new ArrayList<>();
+        if(pending != null) {
+            remaining.addAll(pending);
+        }
+        queue.drainTo(remaining);
+        if(!remaining.isEmpty()) {
+            try {
+                this.insert(remaining);
+            } catch (RuntimeException e) {
+                log.error("Could not write {} EventStream records on shutdown.", remaining.size());
+                if(overflowPolicy == OverflowPolicy.SPILL) {
+                    remaining.forEach(this::spill);
+                }
+            }
+        }
+    }
+
+    /**
+     * Queue an event for writing
+     *
+     * @param eventStream
+     */
+    public void write(EventStream eventStream) {
+        if(eventStream.getId() == null) {
+            eventStream.setId(new ObjectId().toHexString());
+        }
+
+        if(queue.offer(eventStream)) {
+            return;
+        }
+
+        switch (overflowPolicy) {
+            case DROP_OLDEST:
+                do {
+                    if(queue.poll() != null) {
+                        droppedCounter.increment();
+                    }
+                } while (!queue.offer(eventStream));
+                break;
+            case SPILL:
+                this.spill(eventStream);
+                break;
+            default:
+                try {
+                    queue.put(eventStream);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    droppedCounter.increment();
+                }
+        }
+    }
+
+    /**
+     * Milliseconds since the oldest queued event was created
+     *
+     * @return
+     */
+    public double getLagMillis() {
+        EventStream oldest = queue.peek();
+        if(oldest == null || oldest.getEventDate() == null) {
+            return 0;
+        }
+        return System.currentTimeMillis() - oldest.getEventDate().getTime();
+    }
+
+    /**
+     * Writer loop: fill a batch until it is full or the flush interval passed
+     */
+    private void run() {
+        List<EventStream> batch = new ArrayList<>(batchSize);
+
+        while (running) {
+            try {
+                // a chunk of spilled events per batch, whatever the queue state
+                this.replaySpill();
+
+                EventStream first = queue.poll(flushIntervalMs, TimeUnit.MILLISECONDS);
+                if(first == null) {
+                    // idle: replay the rest until events are queued again
+                    while (running && queue.isEmpty() && this.replaySpill()) {
+                        // next chunk
+                    }
+                    continue;
+                }
+
+                batch.add(first);
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(flushIntervalMs);
+                while (batch.size() < batchSize) {
+                    queue.drainTo(batch, batchSize - batch.size());
+                    long waitNanos = deadline - System.nanoTime();
+                    if(batch.size() >= batchSize || waitNanos <= 0) {
+                        break;
+                    }
+                    EventStream next = queue.poll(waitNanos, TimeUnit.NANOSECONDS);
+                    if(next != null) {
+                        batch.add(next);
+                    }
+                }
+
+                this.insertWithRetry(batch);
+                batch.clear();
+
+            } catch (InterruptedException e) {
+                // shutdown, the remaining events are flushed by stop()
+                pending = batch;
+                this.closeReplay();
+                return;
+            }
+        }
+        this.closeReplay();
+    }
+
+    /**
+     * Insert a batch, retrying with backoff while MongoDB is unavailable
+     *
+     * @param batch
+     * @throws InterruptedException
+     */
+    private void insertWithRetry(List<EventStream> batch) throws InterruptedException {
+        long delay = 100;
+        while (true) {
+            try {
+                this.insert(batch);
+                return;
+            } catch (RuntimeException e) {
+                if(!running) {
+                    throw new InterruptedException("EventStream writer stopped.");
+                }
+                log.warn("Could not write {} EventStream records, retrying in {} ms: {}", batch.size(), delay, e.toString());
+                TimeUnit.MILLISECONDS.sleep(delay);
+                delay = Math.min(delay * 2, MAX_RETRY_DELAY_MS);
+            }
+        }
+    }
+
+    /**
+     * One unordered bulk insert; records already written by an earlier attempt are ignored
+     *
+     * @param batch
+     */
+    private void insert(List<EventStream> batch) {
+        long start = System.nanoTime();
+
+        // Demo purposes - get the un-encrypted client to show raw incoming event
+        MongoOperations mongoOps = fhirMongoOperations.getMongoOperations();
+        try {
+            mongoOps.bulkOps(BulkOperations.BulkMode.UNORDERED, EventStream.class).insert(batch).execute();
+        } catch (BulkOperationException e) {
+            for(BulkWriteError error : e.getErrors()) {
+                if(error.getCode() != DUPLICATE_KEY_ERROR) {
+                    throw e;
+                }
+            }
+        }
+
+        flushTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        writtenCounter.increment(batch.size());
+        log.debug("Wrote {} EventStream records.", batch.size());
+    }
+
+    /**
+     * Append an event to the local spill file
+     *
+     * @param eventStream
+     */
+    private synchronized void spill(EventStream eventStream) {
+        Document document = new Document();
+        fhirMongoOperations.getMongoOperations().getConverter().write(eventStream, document);
+
+        try (BufferedWriter writer = Files.newBufferedWriter(Paths.get(spillFile), StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+            writer.write(document.toJson());
+            writer.newLine();
+            spilledCounter.increment();
+        } catch (IOException e) {
+            log.error("Could not spill EventStream record: {}", e.toString());
+            droppedCounter.increment();
+        }
+    }
+
+    /**
+     * Write the next batchSize spilled events to MongoDB.
+     * The spill file is moved aside and read on across calls; after a failure
+     * it is read again from the start, the records already written are ignored.
+     *
+     * @return true if there are more spilled events to replay
+     */
+    boolean replaySpill() {
+        long now = System.currentTimeMillis();
+        if(replayReader == null && now < nextReplayCheck) {
+            return false;
+        }
+
+        Path replayFile = Paths.get(spillFile + ".replay");
+        try {
+            if(replayReader == null) {
+                synchronized (this) {
+                    Path path = Paths.get(spillFile);
+                    if(!Files.exists(replayFile) && Files.exists(path)) {
+                        Files.move(path, replayFile, StandardCopyOption.ATOMIC_MOVE);
+                    }
+                }
+                if(!Files.exists(replayFile)) {
+                    nextReplayCheck = now + flushIntervalMs;
+                    return false;
+                }
+                replayReader = Files.newBufferedReader(replayFile, StandardCharsets.UTF_8);
+            }
+
+            MongoOperations mongoOps = fhirMongoOperations.getMongoOperations();
+            String collectionName = mongoOps.getCollectionName(EventStream.class);
+
+            List<Document> documents = new ArrayList<>(batchSize);
+            String line = null;
+            while (documents.size() < batchSize && (line = replayReader.readLine()) != null) {
+                documents.add(Document.parse(line));
+            }
+            this.insertSpilled(mongoOps, collectionName, documents);
+
+            if(line != null) {
+                return true;
+            }
+
+            this.closeReplay();
+            Files.delete(replayFile);
+            log.info("Replayed spilled EventStream records.");
+            return false;
+
+        } catch (IOException | RuntimeException e) {
+            log.warn("Could not replay spilled EventStream records: {}", e.toString());
+            this.closeReplay();
+            nextReplayCheck = now + MAX_RETRY_DELAY_MS;
+            return false;
+        }
+    }
+
+    private void closeReplay() {
+        if(replayReader == null) {
+            return;
+        }
+        try {
+            replayReader.close();
+        } catch (IOException e) {
+            // read only
+        }
+        replayReader = null;
+    }
+
+    /**
+     *
+     * @param mongoOps
+     * @param collectionName
+     * @param documents
+     */
+    private void insertSpilled(MongoOperations mongoOps, String collectionName, List<Document> documents) {
+        if(documents.isEmpty()) {
+            return;
+        }
+        try {
+            mongoOps.getCollection(collectionName).insertMany(documents, new InsertManyOptions().ordered(false));
+        } catch (MongoBulkWriteException e) {
+            for(BulkWriteError error : e.getWriteErrors()) {
+                if(error.getCode() != DUPLICATE_KEY_ERROR) {
+                    throw e;
+                }
+            }
+        }
+        writtenCounter.increment(documents.size());
+        documents.clear();
+    }
+}
@@ -1,38 +1,121 @@
 package com.mongodb.fhir.webservice.service;
 
+import com.mongodb.bulk.BulkWriteError;
+import com.mongodb.fhir.webservice.analytics.ConditionEventListener;
 import com.mongodb.fhir.webservice.db.FhirMongoOperations;
 import com.mongodb.fhir.webservice.model.Condition;
+import com.mongodb.fhir.webservice.model.ConditionBucket;
 import com.mongodb.fhir.webservice.model.ConditionEvent;
+import com.mongodb.fhir.webservice.model.ConditionPage;
 import com.mongodb.fhir.webservice.model.EventStream;
 import com.mongodb.fhir.webservice.model.Patient;
+import com.mongodb.fhir.webservice.parser.BundleParser;
 import com.mongodb.fhir.webservice.parser.ConditionParser;
 import com.mongodb.fhir.webservice.parser.PatientParser;
 import com.mongodb.fhir.webservice.utils.FhirSerializer;
+import com.mongodb.fhir.webservice.utils.FhirStreamingSerializer;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.data.mongodb.BulkOperationException;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
 import org.springframework.data.mongodb.core.MongoOperations;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.data.mongodb.core.query.Criteria;
 import org.springframework.data.mongodb.core.query.Query;
 import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.data.util.CloseableIterator;
 import org.springframework.stereotype.Component;
 
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
 /**
  * Service class to process all FHIR Resources
  */
 @Component
 public class FhirService {
 
+    // Bundle entry status values
+    private static final String STATUS_OK = "200 OK";
+    private static final String STATUS_CREATED = "201 Created";
+    private static final String STATUS_BAD_REQUEST = "400 Bad Request";
+    private static final String STATUS_NOT_FOUND = "404 Not Found";
+    private static final String STATUS_CONFLICT = "409 Conflict";
+    private static final String STATUS_ERROR = "500 Internal Server Error";
+
+    // outcome of every entry of a transaction bundle
+    private static final String TRANSACTION_AS_BATCH =
+            "Transaction Bundle processed with batch semantics: each entry was applied on its own, not atomically.";
+
+    private static final int DUPLICATE_KEY_ERROR = 11000;
+
     private FhirMongoOperations fhirMongoOperations;
 
+    private EventStreamWriter eventStreamWriter;
+
+    private DurableEventLog durableEventLog;
+
+    private PatientCache patientCache;
+
+    private BundleCache bundleCache;
+
+    private ConditionStorage conditionStorage;
+
+    private List<ConditionEventListener> conditionEventListeners;
+
+    private MeterRegistry meterRegistry;
+
+    // Max number of patients or conditions sent to MongoDB in one bulk write
+    @Value("${fhir.bundle.batchSize:500}")
+    private int bundleBatchSize;
+
+    // Bundles with at least this many conditions are streamed instead of cached as a String
+    @Value("${fhir.bundle.streamingThreshold:100}")
+    private int bundleStreamingThreshold;
+
+    // false when the ConditionEventProjector derives the events from the patient change stream
+    @Value("${fhir.conditionEvents.inline:true}")
+    private boolean inlineConditionEvents;
+
     // Logger component
     private static final Logger log = LoggerFactory.getLogger(FhirService.class);
 
     /**
      *
      * @param fhirMongoOperations
+     * @param eventStreamWriter
+     * @param durableEventLog
+     * @param patientCache
+     * @param bundleCache
+     * @param conditionStorage
+     * @param conditionEventListeners
+     * @param meterRegistry
      */
-    public FhirService(FhirMongoOperations fhirMongoOperations) {
+    public FhirService(FhirMongoOperations fhirMongoOperations, EventStreamWriter eventStreamWriter,
+                       DurableEventLog durableEventLog, PatientCache patientCache, BundleCache bundleCache,
+                       ConditionStorage conditionStorage, List<ConditionEventListener> conditionEventListeners,
+                       MeterRegistry meterRegistry) {
         this.fhirMongoOperations = fhirMongoOperations;
+        this.eventStreamWriter = eventStreamWriter;
+        this.durableEventLog = durableEventLog;
+        this.patientCache = patientCache;
+        this.bundleCache = bundleCache;
+        this.conditionStorage = conditionStorage;
+        this.conditionEventListeners = conditionEventListeners;
+        this.meterRegistry = meterRegistry;
     }
 
     /**
@@ -40,14 +123,21 @@ public class FhirService {
      *
      * @param patientResource
      * @return Patient Model class
+     * @throws PatientExistsException if a patient with the same patient id exists
      */
     public Patient processPatient(String patientResource){
-        log.info("Process Fhir patient.");
+        log.debug("Process Fhir patient.");
         Patient patient = PatientParser.parse(patientResource);
 
         // uses encrypted client
         MongoOperations mongoOps = fhirMongoOperations.getEncMongoOperations();
-        mongoOps.insert(patient);
+        try {
+            fhirMongoOperations.timedEncrypted("patient", () -> mongoOps.insert(patient));
+        } catch (DuplicateKeyException e) {
+            throw new PatientExistsException(patient.getPatientId());
+        }
+        this.recordRoundTrips("patient", 1);
+        patientCache.put(patient);
 
         return patient;
     }
@@ -59,7 +149,21 @@ public class FhirService {
      * @return Patient model class
      */
     public Patient processCondition(String conditionResource){
-        log.info("Process Fhir condition.");
+        return this.processCondition(conditionResource, true);
+    }
+
+    /**
+     * Process FHIR Condition resource.
+     * The updated patient comes back from the update itself (returnNew), so no
+     * second read is needed.  When the caller only needs an acknowledgment, only
+     * the unencrypted fields used for the condition event are returned.
+     *
+     * @param conditionResource
+     * @param returnPatient false to skip returning the full patient
+     * @return Patient model class, only the condition event fields if returnPatient is false
+     */
+    public Patient processCondition(String conditionResource, boolean returnPatient){
+        log.debug("Process Fhir condition.");
 
         // Since we parse condition separately and do not store with the condition object,
         // we return a condition object and the subject id separately
@@ -70,25 +174,341 @@ public class FhirService {
         // build criteria query
         Query query = new Query();
         query.addCriteria(Criteria.where("patientId").is(subjectReference));
+        if(!returnPatient) {
+            query.fields().include("city").include("state").include("gender").include("birthDate");
+        }
 
         // add condition to the object array
-        Update update = new Update();
-        update.addToSet("conditions", condition);
-        update.set("updateDate", new java.util.Date());
+        Update update = conditionStorage.patientUpdate(condition);
 
-        // save it with encrypted client
+        // save it with encrypted client and return the updated patient
         MongoOperations mongoOps = fhirMongoOperations.getEncMongoOperations();
-        mongoOps.findAndModify(query, update, Patient.class);
+        Patient patient;
+        int roundTrips = 1;
+        if(conditionStorage.isBucketed()) {
+            // and to its bucket, once the patient is known to exist, in the same transaction
+            Date reported = new Date();
+            patient = fhirMongoOperations.timedEncrypted("condition", () ->
+                    fhirMongoOperations.inEncryptedTransaction(ops -> {
+                        Patient updated = ops.findAndModify(query, update,
+                                FindAndModifyOptions.options().returnNew(true), Patient.class);
+                        if(updated != null) {
+                            ops.upsert(conditionStorage.bucketQuery(subjectReference, reported),
+                                    conditionStorage.bucketUpdate(condition, reported), ConditionBucket.class);
+                        }
+                        return updated;
+                    }));
+            roundTrips += patient != null ? 2 : 1;
+        } else {
+            patient = fhirMongoOperations.timedEncrypted("condition", () -> mongoOps.findAndModify(query, update,
+                    FindAndModifyOptions.options().returnNew(true), Patient.class));
+        }
 
-        // Return the updated patient
-        Patient patient = mongoOps.findOne(query, Patient.class);
+        // a projected patient is not complete, so it can not replace the cached one
+        if(returnPatient && patient != null) {
+            patientCache.put(patient);
+        } else {
+            patientCache.invalidate(subjectReference);
+        }
 
         // Pass elements to our event stream for reporting
-        this.processConditionEvent(patient, condition);
+        int eventRoundTrips = this.processConditionEvent(patient, condition);
+        this.recordRoundTrips("condition", roundTrips + eventRoundTrips);
 
         return patient;
     }
 
+    /**
+     * Response to a retried FHIR Patient resource that was already inserted.
+     * Reads the patient, from the patient cache when it is there.
+     *
+     * @param patientResource
+     * @return Patient Model class
+     */
+    public Patient replayPatient(String patientResource) {
+        log.debug("Replay Fhir patient.");
+        Patient patient = PatientParser.parse(patientResource);
+        return this.processPatientId(patient.getPatientId());
+    }
+
+    /**
+     * Response to a retried FHIR Condition resource that was already added.
+     * Reads the subject patient, from the patient cache when it is there.
+     *
+     * @param conditionResource
+     * @return Patient model class
+     */
+    public Patient replayCondition(String conditionResource) {
+        log.debug("Replay Fhir condition.");
+        Object[] conditionResults = ConditionParser.parse(conditionResource);
+        return this.processPatientId((String)conditionResults[1]);
+    }
+
+    /**
+     * Process FHIR Bundle (batch or transaction) resource.
+     * Patients are written with unordered bulk inserts and conditions with one
+     * unordered bulk $addToSet update per batch, instead of a round trip per resource.
+     * Each entry succeeds or fails on its own; a transaction bundle is applied
+     * the same way, not atomically, and each of its entry outcomes says so.
+     *
+     * @param bundleResource
+     * @return batch-response Bundle resource
+     * @throws BundleParser.InvalidBundleException if the bundle cannot be parsed or is not a batch or transaction
+     */
+    public String processBundleResource(String bundleResource) {
+        log.debug("Process Fhir bundle.");
+
+        BundleParser.ParsedBundle parsedBundle = BundleParser.parse(bundleResource);
+        List<BundleParser.Entry> entries = parsedBundle.getEntries();
+
+        String[] statuses = new String[entries.size()];
+        String[] locations = new String[entries.size()];
+        String[] diagnostics = new String[entries.size()];
+
+        List<BundleParser.Entry> patientEntries = new ArrayList<>();
+        List<BundleParser.Entry> conditionEntries = new ArrayList<>();
+        for(BundleParser.Entry entry : entries) {
+            if(entry.getError() != null) {
+                statuses[entry.getIndex()] = STATUS_BAD_REQUEST;
+                diagnostics[entry.getIndex()] = entry.getError();
+            } else if(entry.getPatient() != null) {
+                patientEntries.add(entry);
+            } else {
+                conditionEntries.add(entry);
+            }
+        }
+
+        int roundTrips = 0;
+
+        // Patients first, so conditions in the same bundle can reference them
+        for(int from = 0; from < patientEntries.size(); from += bundleBatchSize) {
+            List<BundleParser.Entry> batch =
+                    patientEntries.subList(from, Math.min(from + bundleBatchSize, patientEntries.size()));
+            roundTrips += this.insertPatientBatch(batch, statuses, locations, diagnostics);
+        }
+
+        for(int from = 0; from < conditionEntries.size(); from += bundleBatchSize) {
+            List<BundleParser.Entry> batch =
+                    conditionEntries.subList(from, Math.min(from + bundleBatchSize, conditionEntries.size()));
+            roundTrips += this.updateConditionBatch(batch, statuses, diagnostics);
+        }
+        this.recordRoundTrips("bundleResource", roundTrips);
+
+        log.info("Processed bundle: {} patients, {} conditions, {} entries total.",
+                patientEntries.size(), conditionEntries.size(), entries.size());
+
+        return FhirSerializer.serializeBundleResponse(statuses, locations, diagnostics,
+                parsedBundle.isTransaction() ? TRANSACTION_AS_BATCH : null);
+    }
+
+    /**
+     * Insert a batch of patients with a single unordered bulk insert.
+     *
+     * @param batch
+     * @param statuses
+     * @param locations
+     * @param diagnostics
+     * @return number of round trips
+     */
+    private int insertPatientBatch(List<BundleParser.Entry> batch, String[] statuses,
+                                    String[] locations, String[] diagnostics) {
+        List<Patient> patients = new ArrayList<>(batch.size());
+        for(BundleParser.Entry entry : batch) {
+            patients.add(entry.getPatient());
+        }
+
+        // uses encrypted client
+        MongoOperations mongoOps = fhirMongoOperations.getEncMongoOperations();
+
+        Map<Integer, BulkWriteError> errors = new HashMap<>();
+        try {
+            fhirMongoOperations.timedEncrypted("bundlePatient", () ->
+                    mongoOps.bulkOps(BulkOperations.BulkMode.UNORDERED, Patient.class).insert(patients).execute());
+        } catch (BulkOperationException e) {
+            for(BulkWriteError error : e.getErrors()) {
+                errors.put(error.getIndex(), error);
+            }
+        }
+
+        for(int idx = 0; idx < batch.size(); idx++) {
+            int entryIndex = batch.get(idx).getIndex();
+            BulkWriteError error = errors.get(idx);
+
+            if(error == null) {
+                statuses[entryIndex] = STATUS_CREATED;
+                locations[entryIndex] = "Patient/" + patients.get(idx).getPatientId();
+            } else if(error.getCode() == DUPLICATE_KEY_ERROR) {
+                statuses[entryIndex] = STATUS_CONFLICT;
+                diagnostics[entryIndex] = "Patient already exists.";
+            } else {
+                statuses[entryIndex] = STATUS_ERROR;
+                diagnostics[entryIndex] = "Patient could not be written.";
+            }
+        }
+
+        return 1;
+    }
+
+    /**
+     * Add a batch of conditions to their patients with a single unordered bulk update.
+     * One read finds the subject patients; it also supplies the condition event fields.
+     *
+     * @param batch
+     * @param statuses
+     * @param diagnostics
+     * @return number of round trips
+     */
+    private int updateConditionBatch(List<BundleParser.Entry> batch, String[] statuses, String[] diagnostics) {
+
+        // uses encrypted client
+        MongoOperations mongoOps = fhirMongoOperations.getEncMongoOperations();
+
+        Set<String> subjectReferences = new HashSet<>();
+        for(BundleParser.Entry entry : batch) {
+            if(entry.getSubjectReference() != null) {
+                subjectReferences.add(entry.getSubjectReference());
+            }
+        }
+
+        int roundTrips = 0;
+
+        Map<String, Patient> patients = new HashMap<>();
+        if(!subjectReferences.isEmpty()) {
+            Query patientQuery = new Query(Criteria.where("patientId").in(subjectReferences));
+            patientQuery.fields().include("patientId").include("city").include("state")
+                    .include("gender").include("birthDate");
+
+            for(Patient patient : fhirMongoOperations.timedEncrypted("bundleConditionPatients", () ->
+                    mongoOps.find(patientQuery, Patient.class))) {
+                patients.put(patient.getPatientId(), patient);
+            }
+            roundTrips++;
+        }
+
+        List<BundleParser.Entry> updates = new ArrayList<>();
+        for(BundleParser.Entry entry : batch) {
+            if(patients.containsKey(entry.getSubjectReference())) {
+                updates.add(entry);
+            } else {
+                statuses[entry.getIndex()] = STATUS_NOT_FOUND;
+                diagnostics[entry.getIndex()] = "Subject patient not found.";
+            }
+        }
+
+        if(updates.isEmpty()) {
+            return roundTrips;
+        }
+
+        // the patient summaries and the buckets are written in one transaction, so they do not diverge
+        Date reported = new Date();
+        Set<Integer> failed;
+        try {
+            failed = conditionStorage.isBucketed()
+                    ? fhirMongoOperations.inEncryptedTransaction(ops -> this.writeConditionBatch(ops, updates, reported, true))
+                    : this.writeConditionBatch(mongoOps, updates, reported, false);
+        } catch (RuntimeException e) {
+            log.warn("Could not write a batch of {} conditions: {}", updates.size(), e.toString());
+            failed = new HashSet<>();
+            for(int idx = 0; idx < updates.size(); idx++) {
+                failed.add(idx);
+            }
+        } finally {
+            patientCache.invalidateAll(patients.keySet());
+        }
+        roundTrips += conditionStorage.isBucketed() ? 3 : 1;
+
+        List<ConditionEvent> conditionEvents = new ArrayList<>(updates.size());
+        for(int idx = 0; idx < updates.size(); idx++) {
+            BundleParser.Entry entry = updates.get(idx);
+
+            if(failed.contains(idx)) {
+                statuses[entry.getIndex()] = STATUS_ERROR;
+                diagnostics[entry.getIndex()] = "Condition could not be written.";
+            } else {
+                statuses[entry.getIndex()] = STATUS_OK;
+                if(inlineConditionEvents) {
+                    conditionEvents.add(this.buildConditionEvent(patients.get(entry.getSubjectReference()),
+                            entry.getCondition()));
+                }
+            }
+        }
+
+        // Pass elements to our event stream for reporting
+        List<ConditionEvent> unlogged = new ArrayList<>();
+        for(ConditionEvent conditionEvent : conditionEvents) {
+            if(!durableEventLog.append(conditionEvent)) {
+                unlogged.add(conditionEvent);
+            }
+        }
+        if(!unlogged.isEmpty()) {
+            MongoOperations mongoOperations = fhirMongoOperations.getMongoOperations();
+            fhirMongoOperations.timed("bundleConditionEvent", () -> mongoOperations.insert(unlogged, ConditionEvent.class));
+            roundTrips++;
+        }
+        conditionEvents.forEach(this::publishConditionEvent);
+
+        return roundTrips;
+    }
+
+    /**
+     * Write a batch of conditions to their patients and, when bucketed, to their buckets.
+     * A condition goes to its bucket only once its patient was updated.  In a
+     * transaction a write error aborts it, so it fails the whole batch.
+     *
+     * @param mongoOps
+     * @param updates
+     * @param reported
+     * @param transaction true if the writes are in a transaction
+     * @return indexes in updates of the conditions that were not written
+     */
+    private Set<Integer> writeConditionBatch(MongoOperations mongoOps, List<BundleParser.Entry> updates, Date reported,
+                                             boolean transaction) {
+        BulkOperations bulkOps = mongoOps.bulkOps(BulkOperations.BulkMode.UNORDERED, Patient.class);
+        for(BundleParser.Entry entry : updates) {
+            Query query = new Query(Criteria.where("patientId").is(entry.getSubjectReference()));
+            bulkOps.updateOne(query, conditionStorage.patientUpdate(entry.getCondition()));
+        }
+
+        Set<Integer> failed = new HashSet<>();
+        try {
+            fhirMongoOperations.timedEncrypted("bundleCondition", bulkOps::execute);
+        } catch (BulkOperationException e) {
+            if(transaction) {
+                throw e;
+            }
+            for(BulkWriteError error : e.getErrors()) {
+                failed.add(error.getIndex());
+            }
+        }
+
+        if(!conditionStorage.isBucketed() || failed.size() == updates.size()) {
+            return failed;
+        }
+
+        // bulk index -> index in updates
+        List<Integer> bucketed = new ArrayList<>();
+        BulkOperations bucketOps = mongoOps.bulkOps(BulkOperations.BulkMode.UNORDERED, ConditionBucket.class);
+        for(int idx = 0; idx < updates.size(); idx++) {
+            if(!failed.contains(idx)) {
+                BundleParser.Entry entry = updates.get(idx);
+                bucketOps.upsert(conditionStorage.bucketQuery(entry.getSubjectReference(), reported),
+                        conditionStorage.bucketUpdate(entry.getCondition(), reported));
+                bucketed.add(idx);
+            }
+        }
+        try {
+            fhirMongoOperations.timedEncrypted("bundleConditionBucket", bucketOps::execute);
+        } catch (BulkOperationException e) {
+            if(transaction) {
+                throw e;
+            }
+            for(BulkWriteError error : e.getErrors()) {
+                failed.add(bucketed.get(error.getIndex()));
+            }
+        }
+        return failed;
+    }
+
     /**
      * Filter for patient model by patient id.
      *
@@ -96,62 +516,161 @@ public class FhirService {
      * @return patient model
      */
     public Patient processPatientId(String patientId){
-        log.info("Process Patient Id for id: " + patientId);
+        log.debug("Process Patient Id.");
 
         Query query = new Query();
         query.addCriteria(Criteria.where("patientId").is(patientId));
 
-        // Since patient id uses Client side field level encryption, get the encrypted connection
-        // If we try to filter a CS-FLE field without the encrypted client, the find will return 'null'
-        MongoOperations mongoOps = fhirMongoOperations.getEncMongoOperations();
-        Patient patient = mongoOps.findOne(query,Patient.class);
+        // Decrypted patients are cached, a hit needs no round trip
+        boolean[] loaded = new boolean[1];
+        Patient patient = patientCache.get(patientId, key -> {
+            loaded[0] = true;
+
+            // Since patient id uses Client side field level encryption, get the encrypted connection
+            // If we try to filter a CS-FLE field without the encrypted client, the find will return 'null'
+            MongoOperations mongoOps = fhirMongoOperations.getEncMongoOperations();
+            return fhirMongoOperations.timedEncrypted("patientId", () -> mongoOps.findOne(query,Patient.class));
+        });
+        this.recordRoundTrips("patientId", loaded[0] ? 1 : 0);
 
         return patient;
     }
 
+    /**
+     * Page through the conditions of a patient, newest first.
+     * With bucketed storage a page holds whole buckets, so it can have more
+     * than limit conditions; patients written before bucketing have no buckets
+     * and get their embedded conditions.  Otherwise all conditions are on one page.
+     *
+     * @param patientId
+     * @param before next of the previous page, null for the first page
+     * @param limit minimum number of conditions on a page, unless it is the last
+     * @return null if the patient does not exist
+     * @throws IllegalArgumentException if before is not a next of a page
+     */
+    public ConditionPage processConditionPage(String patientId, String before, int limit) {
+        log.debug("Process Condition page.");
+
+        if(conditionStorage.isBucketed()) {
+            List<Condition> conditions = new ArrayList<>();
+            String next = null;
+
+            // patientId is encrypted in the buckets too
+            MongoOperations mongoOps = fhirMongoOperations.getEncMongoOperations();
+            Query query = conditionStorage.pageQuery(patientId, before).cursorBatchSize(4);
+            try (CloseableIterator<ConditionBucket> buckets = fhirMongoOperations.timedEncrypted("conditionPage",
+                    () -> mongoOps.stream(query, ConditionBucket.class))) {
+                while(conditions.size() < limit && buckets.hasNext()) {
+                    ConditionBucket bucket = buckets.next();
+                    List<Condition> bucketConditions = new ArrayList<>(bucket.getConditions());
+                    Collections.reverse(bucketConditions);
+                    conditions.addAll(bucketConditions);
+                    next = conditionStorage.pageCursor(bucket);
+                }
+                if(!buckets.hasNext()) {
+                    next = null;
+                }
+            }
+            this.recordRoundTrips("conditionPage", 1);
+
+            if(!conditions.isEmpty() || before != null) {
+                return new ConditionPage(conditions, next);
+            }
+        }
+
+        Patient patient = this.processPatientId(patientId);
+        if(patient == null) {
+            return null;
+        }
+        List<Condition> conditions = patient.getConditions() != null
+                ? new ArrayList<>(patient.getConditions()) : new ArrayList<>();
+        Collections.reverse(conditions);
+        return new ConditionPage(conditions, null);
+    }
+
     /**
      * Insert a conditionevent object as our event stream for reporting.
+     * Goes to the write-ahead log when it is enabled, and nowhere when the
+     * events are projected from the change stream.
      *
      * @param patient
      * @param condition
+     * @return number of MongoDB round trips
      */
-    private void processConditionEvent(Patient patient, Condition condition) {
+    private int processConditionEvent(Patient patient, Condition condition) {
+        if(!inlineConditionEvents) {
+            return 0;
+        }
+
         if(patient != null && condition != null) {
-            log.info("Process Condition Event.");
-            ConditionEvent conditionEvent = new ConditionEvent();
-            conditionEvent.setBirthdate(patient.getBirthDate());
-            conditionEvent.setCity(patient.getCity());
-            conditionEvent.setState(patient.getState());
-            conditionEvent.setGender(patient.getGender());
-            conditionEvent.setCondition(condition.getCondition());
-            conditionEvent.setConditionCode(condition.getConditionCode());
-            conditionEvent.setOnsetDate(condition.getOnsetDate());
-            conditionEvent.setReportedDate(new java.util.Date());
+            log.debug("Process Condition Event.");
+            ConditionEvent conditionEvent = this.buildConditionEvent(patient, condition);
+
+            if(durableEventLog.append(conditionEvent)) {
+                this.publishConditionEvent(conditionEvent);
+                return 0;
+            }
 
             // save it
             // get un-encrypted client, no fields to encrypt as we are sending to reporting site
             MongoOperations mongoOperations = fhirMongoOperations.getMongoOperations();
-            mongoOperations.insert(conditionEvent);
+            fhirMongoOperations.timed("conditionEvent", () -> mongoOperations.insert(conditionEvent));
+            this.publishConditionEvent(conditionEvent);
+            return 1;
 
         } else {
             log.error("Invalid patient and/or condition for ConditionEvent.");
+            return 0;
+        }
+    }
+
+    /**
+     * Pass a written ConditionEvent to the listeners, e.g. the condition stats
+     *
+     * @param conditionEvent
+     */
+    void publishConditionEvent(ConditionEvent conditionEvent) {
+        for(ConditionEventListener listener : conditionEventListeners) {
+            listener.onConditionEvent(conditionEvent);
         }
     }
 
+    /**
+     * Build the reporting event for a condition added to a patient
+     * Shared with the reactive path.
+     *
+     * @param patient
+     * @param condition
+     * @return
+     */
+    ConditionEvent buildConditionEvent(Patient patient, Condition condition) {
+        ConditionEvent conditionEvent = new ConditionEvent();
+        conditionEvent.setBirthdate(patient.getBirthDate());
+        conditionEvent.setCity(patient.getCity());
+        conditionEvent.setState(patient.getState());
+        conditionEvent.setGender(patient.getGender());
+        conditionEvent.setCondition(condition.getCondition());
+        conditionEvent.setConditionCode(condition.getConditionCode());
+        conditionEvent.setOnsetDate(condition.getOnsetDate());
+        conditionEvent.setReportedDate(new java.util.Date());
+
+        return conditionEvent;
+    }
+
     /**
      * Simple example of a separate event stream to log all interactions with
      * FHIR Server.
+     * The event goes to the write-ahead log when it is enabled, otherwise
+     * it is queued and written in batches in the background.
      *
      * @param eventStream
      */
     public void processEventStream(EventStream eventStream){
-        log.info("Process Event Stream.");
-
-        // Demo purposes - get the un-encrypted client to show raw incoming event
-        MongoOperations mongoOps = fhirMongoOperations.getMongoOperations();
-        mongoOps.insert(eventStream);
+        log.debug("Process Event Stream: {} {}", eventStream.getEventMethod(), eventStream.getResourceType());
 
-        log.info(eventStream.toString());
+        if(!durableEventLog.append(eventStream)) {
+            eventStreamWriter.write(eventStream);
+        }
     }
 
     /**
@@ -161,17 +680,95 @@ public class FhirService {
      * @return
      */
     public String processBundle(String patientId) {
-        log.info("Process Bundle for patientId: " + patientId);
+        log.debug("Process Bundle for patient.");
 
         String bundleResourceAsString = "";
 
         Patient patient = this.processPatientId(patientId);
         if(patient != null) {
-            bundleResourceAsString = FhirSerializer.serializeBundle(patient);
-
-            log.info("Bundle result: " + bundleResourceAsString);
+            bundleResourceAsString = this.processBundle(patient, true);
         }
 
         return bundleResourceAsString;
     }
+
+    /**
+     * Serialized Bundle Resource of a patient, cached per patient version and format.
+     *
+     * @param patient
+     * @param pretty pretty-printed or compact JSON
+     * @return
+     */
+    public String processBundle(Patient patient, boolean pretty) {
+        return bundleCache.get(patient.getPatientId(), this.getPatientVersion(patient), pretty,
+                () -> FhirSerializer.serializeBundle(patient, pretty));
+    }
+
+    /**
+     * Write the Bundle Resource of a patient to the response.
+     * Large bundles are streamed entry by entry, so memory does not grow with
+     * the number of conditions; smaller ones come from the bundle cache.
+     *
+     * @param patient
+     * @param pretty pretty-printed or compact JSON
+     * @param out
+     * @throws IOException
+     */
+    public void writeBundle(Patient patient, boolean pretty, OutputStream out) throws IOException {
+        int conditions = patient.getConditions() != null ? patient.getConditions().size() : 0;
+        if(conditions >= bundleStreamingThreshold) {
+            FhirStreamingSerializer.writeBundle(patient, pretty, out);
+        } else {
+            out.write(this.processBundle(patient, pretty).getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    /**
+     * Strong ETag of the serialized Bundle Resource of a patient.
+     * Pretty and compact JSON are different representations and get different tags.
+     *
+     * @param patient
+     * @param pretty
+     * @return
+     */
+    public String getBundleETag(Patient patient, boolean pretty) {
+        return "\"" + this.getPatientVersion(patient) + (pretty ? "" : "-compact") + "\"";
+    }
+
+    /**
+     * Version of a patient, changes with every write.
+     * Every update increments the version counter; updateDate tells apart a
+     * patient that was deleted and inserted again.
+     *
+     * @param patient
+     * @return
+     */
+    private String getPatientVersion(Patient patient) {
+        long updated = patient.getUpdateDate() != null ? patient.getUpdateDate().getTime() : 0;
+        return Long.toHexString(updated) + "-" + Long.toHexString(patient.getVersion());
+    }
+
+    /**
+     * Record the number of MongoDB round trips made for one request
+     *
+     * @param operation
+     * @param roundTrips
+     */
+    private void recordRoundTrips(String operation, int roundTrips) {
+        DistributionSummary.builder("fhir.mongo.roundtrips")
+                .description("MongoDB round trips per request")
+                .tag("operation", operation)
+                .register(meterRegistry)
+                .record(roundTrips);
+    }
+
+    /**
+     * A patient posted again with the patient id of a stored one, answered with 409
+     */
+    public static class PatientExistsException extends RuntimeException {
+
+        PatientExistsException(String patientId) {
+            super("Patient " + patientId + " already exists.", null, false, false);
+        }
+    }
 }
@@ -0,0 +1,455 @@
+package com.mongodb.fhir.webservice.service;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.mongodb.fhir.webservice.db.FhirMongoOperations;
+import com.mongodb.fhir.webservice.db.IndexBootstrapper;
+import com.mongodb.fhir.webservice.model.IdempotencyKey;
+import org.bson.Document;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.MongoOperations;
+import org.springframework.data.mongodb.core.index.Index;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+
+import javax.annotation.PostConstruct;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Dedupe store of write requests, so a retried POST is answered without
+ * writing again.
+ *
+ * The key of a request is its Idempotency-Key header or, without one, the
+ * id, meta.versionId and subject of the resource.  Requests with neither
+ * are not deduped.  A request first claims its key with an insert into the
+ * idempotencyKey collection (unencrypted client, keys are hashed with
+ * fhir.idempotency.hashKey), then writes and completes the key.  A retry
+ * finds the completed key and is answered from it, without reaching the
+ * encrypted write path; a retry while the first request is in progress gets
+ * IN_PROGRESS.  The key is stored with a hash of the payload, and a request
+ * that reuses a key with another payload gets MISMATCH instead of being
+ * taken for a retry.  A failed write releases the key, so it can be retried.  A
+ * key left claimed by a node that died is taken over after
+ * fhir.idempotency.pendingTimeoutMs.  Keys expire after
+ * fhir.idempotency.ttlHours through a TTL index.
+ */
+@Component
+public class IdempotencyStore {
+
+    public enum State {
+        // no key, or the store is disabled: process the request as usual
+        NONE,
+        // the key is this request's: process it, then complete or release the claim
+        CLAIMED,
+        // the request was processed before: answer without processing it
+        COMPLETED,
+        // the same request is being processed
+        IN_PROGRESS,
+        // the key was used before with another payload
+        MISMATCH
+    }
+
+    public static final String IDEMPOTENCY_KEY = "Idempotency-Key";
+
+    // set on responses answered from the store
+    public static final String IDEMPOTENT_REPLAYED = "Idempotent-Replayed";
+
+    // Logger component
+    private static final Logger log = LoggerFactory.getLogger(IdempotencyStore.class);
+
+    private static final JsonFactory jsonFactory = new JsonFactory();
+
+    private static final String HMAC_ALGORITHM = "HmacSHA256";
+
+    // bytes of the hash kept in the id
+    private static final int HASH_BYTES = 16;
+
+    @Value("${fhir.idempotency.enabled:true}")
+    private boolean enabled;
+
+    @Value("${fhir.idempotency.ttlHours:24}")
+    private long ttlHours;
+
+    @Value("${fhir.idempotency.pendingTimeoutMs:30000}")
+    private long pendingTimeoutMs;
+
+    // same on all nodes, the store stays off without it
+    @Value("${fhir.idempotency.hashKey:}")
+    private String hashKey;
+
+    private final FhirMongoOperations fhirMongoOperations;
+
+    private final IndexBootstrapper indexBootstrapper;
+
+    private ThreadLocal<Mac> macs;
+
+    /**
+     *
+     * @param fhirMongoOperations
+     * @param indexBootstrapper
+     */
+    public IdempotencyStore(FhirMongoOperations fhirMongoOperations, IndexBootstrapper indexBootstrapper) {
+        this.fhirMongoOperations = fhirMongoOperations;
+        this.indexBootstrapper = indexBootstrapper;
+    }
+
+    /**
+     * Register the TTL index
+     */
+    @PostConstruct
+    public void start() {
+        if(!enabled) {
+            return;
+        }
+
+        // an unkeyed hash of "Patient/<patientId>" is reversed by trying every patient id
+        if(hashKey == null || hashKey.isEmpty()) {
+            log.warn("fhir.idempotency.hashKey is not set, POST /patient and /condition are not deduped.");
+            enabled = false;
+            return;
+        }
+        SecretKeySpec secretKey = new SecretKeySpec(hashKey.getBytes(StandardCharsets.UTF_8), HMAC_ALGORITHM);
+        macs = ThreadLocal.withInitial(() -> {
+            try {
+                Mac mac = Mac.getInstance(HMAC_ALGORITHM);
+                mac.init(secretKey);
+                return mac;
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+
+        // expired keys are removed by the TTL monitor, about once a minute
+        indexBootstrapper.register(new IndexBootstrapper.ExpectedIndex(IdempotencyKey.COLLECTION,
+                new Index().on("createdAt", Sort.Direction.ASC)
+                        .expire(TimeUnit.HOURS.toSeconds(ttlHours)).named("createdAt_ttl"),
+                new Document("createdAt", new Document("$lt", new Date()))));
+    }
+
+    /**
+     * Claim the key of a write request
+     *
+     * @param resourceType
+     * @param idempotencyKey Idempotency-Key header, may be null
+     * @param payload
+     * @return
+     */
+    public Claim claim(String resourceType, String idempotencyKey, String payload) {
+        if(!enabled) {
+            return new Claim(State.NONE, null);
+        }
+
+        String key;
+        if(idempotencyKey != null && !idempotencyKey.isEmpty()) {
+            key = resourceType + " " + idempotencyKey;
+        } else {
+            String resourceKey = resourceKey(payload);
+            if(resourceKey == null) {
+                return new Claim(State.NONE, null);
+            }
+            key = resourceType + "/" + resourceKey;
+        }
+
+        String id = this.hash(key);
+        String fingerprint = this.hash(payload);
+        Date now = new Date();
+        MongoOperations mongoOps = fhirMongoOperations.getMongoOperations();
+        try {
+            fhirMongoOperations.timed("idempotencyClaim",
+                    () -> mongoOps.insert(new IdempotencyKey(id, fingerprint, now)));
+            return new Claim(State.CLAIMED, id);
+        } catch (DuplicateKeyException e) {
+            // seen before
+        }
+
+        IdempotencyKey existing = fhirMongoOperations.timed("idempotencyLookup",
+                () -> mongoOps.findById(id, IdempotencyKey.class));
+        if(existing == null) {
+            // expired in between, rare enough to have the client retry
+            return new Claim(State.IN_PROGRESS, id);
+        }
+        if(!fingerprint.equals(existing.getFingerprint())) {
+            return new Claim(State.MISMATCH, id);
+        }
+        if(existing.getCompletedAt() != null) {
+            return new Claim(State.COMPLETED, id);
+        }
+        if(now.getTime() - existing.getCreatedAt().getTime() < pendingTimeoutMs) {
+            return new Claim(State.IN_PROGRESS, id);
+        }
+
+        // abandoned claim, only one retry takes it over
+        Query query = new Query(Criteria.where("_id").is(id).and("completedAt").is(null)
+                .and("createdAt").is(existing.getCreatedAt()));
+        long taken = fhirMongoOperations.timed("idempotencyTakeOver",
+                () -> mongoOps.updateFirst(query, Update.update("createdAt", now), IdempotencyKey.class)
+                        .getModifiedCount());
+        if(taken == 1) {
+            log.info("Took over an idempotency key claimed {} ms ago.", now.getTime() - existing.getCreatedAt().getTime());
+            return new Claim(State.CLAIMED, id);
+        }
+        return new Claim(State.IN_PROGRESS, id);
+    }
+
+    /**
+     * Process a write request once per idempotency key.
+     * Only successful responses complete the key, so a failed request can be retried.
+     *
+     * @param resourceType
+     * @param idempotencyKey Idempotency-Key header, may be null
+     * @param payload
+     * @param process writes and returns the response
+     * @param replay response to a retry of a processed request, without writing
+     * @param <T>
+     * @return
+     */
+    public <T> ResponseEntity<T> execute(String resourceType, String idempotencyKey, String payload,
+                                         Supplier<ResponseEntity<T>> process, Supplier<ResponseEntity<T>> replay) {
+        Claim claim = this.claim(resourceType, idempotencyKey, payload);
+        switch (claim.getState()) {
+            case IN_PROGRESS:
+                return ResponseEntity.status(HttpStatus.CONFLICT).<T>build();
+            case MISMATCH:
+                return ResponseEntity.status(HttpStatus.UNPROCESSABLE_ENTITY).<T>build();
+            case COMPLETED:
+                log.debug("Replay {} request.", resourceType);
+                ResponseEntity<T> replayed = replay.get();
+                return ResponseEntity.status(replayed.getStatusCode()).headers(replayed.getHeaders())
+                        .header(IDEMPOTENT_REPLAYED, "true").body(replayed.getBody());
+            default:
+                break;
+        }
+
+        ResponseEntity<T> response;
+        try {
+            response = process.get();
+        } catch (RuntimeException e) {
+            this.release(claim);
+            throw e;
+        }
+
+        if(response.getStatusCode().is2xxSuccessful()) {
+            this.complete(claim);
+        } else {
+            this.release(claim);
+        }
+        return response;
+    }
+
+    /**
+     * Process a write request on the reactive path once per idempotency key.
+     * The store calls block, so they run on the bounded elastic scheduler.
+     *
+     * @param resourceType
+     * @param idempotencyKey Idempotency-Key header, may be null
+     * @param payload
+     * @param process writes and returns the response
+     * @param replay response to a retry of a processed request, without writing
+     * @param <T>
+     * @return
+     */
+    public <T> Mono<ResponseEntity<T>> executeReactive(String resourceType, String idempotencyKey, String payload,
+                                                       Supplier<Mono<ResponseEntity<T>>> process,
+                                                       Supplier<Mono<ResponseEntity<T>>> replay) {
+        return Mono.fromCallable(() -> this.claim(resourceType, idempotencyKey, payload))
+                .subscribeOn(Schedulers.boundedElastic())
+                .flatMap(claim -> {
+                    switch (claim.getState()) {
+                        case IN_PROGRESS:
+                            return Mono.just(ResponseEntity.status(HttpStatus.CONFLICT).<T>build());
+                        case MISMATCH:
+                            return Mono.just(ResponseEntity.status(HttpStatus.UNPROCESSABLE_ENTITY).<T>build());
+                        case COMPLETED:
+                            log.debug("Replay {} request.", resourceType);
+                            return replay.get().map(replayed -> ResponseEntity.status(replayed.getStatusCode())
+                                    .headers(replayed.getHeaders())
+                                    .header(IDEMPOTENT_REPLAYED, "true").body(replayed.getBody()));
+                        default:
+                            break;
+                    }
+
+                    return process.get()
+                            .flatMap(response -> this.finish(claim, response.getStatusCode().is2xxSuccessful())
+                                    .thenReturn(response))
+                            .switchIfEmpty(this.finish(claim, false).then(Mono.empty()))
+                            .onErrorResume(e -> this.finish(claim, false).then(Mono.error(e)));
+                });
+    }
+
+    /**
+     * Complete or release a claim off the driver and servlet threads
+     *
+     * @param claim
+     * @param completed
+     * @return
+     */
+    private Mono<Void> finish(Claim claim, boolean completed) {
+        return Mono.<Void>fromRunnable(() -> {
+            if(completed) {
+                this.complete(claim);
+            } else {
+                this.release(claim);
+            }
+        }).subscribeOn(Schedulers.boundedElastic());
+    }
+
+    /**
+     * The request of a claimed key was processed, retries are answered from the store
+     *
+     * @param claim
+     */
+    public void complete(Claim claim) {
+        if(claim.getState() != State.CLAIMED) {
+            return;
+        }
+
+        try {
+            MongoOperations mongoOps = fhirMongoOperations.getMongoOperations();
+            Query query = new Query(Criteria.where("_id").is(claim.getId()));
+            fhirMongoOperations.timed("idempotencyComplete",
+                    () -> mongoOps.updateFirst(query, Update.update("completedAt", new Date()), IdempotencyKey.class));
+        } catch (RuntimeException e) {
+            // the write is done, a retry after the claim times out writes again
+            log.warn("Could not complete an idempotency key: {}", e.toString());
+        }
+    }
+
+    /**
+     * The request of a claimed key was not processed, a retry processes it
+     *
+     * @param claim
+     */
+    public void release(Claim claim) {
+        if(claim.getState() != State.CLAIMED) {
+            return;
+        }
+
+        try {
+            MongoOperations mongoOps = fhirMongoOperations.getMongoOperations();
+            Query query = new Query(Criteria.where("_id").is(claim.getId()).and("completedAt").is(null));
+            fhirMongoOperations.timed("idempotencyRelease", () -> mongoOps.remove(query, IdempotencyKey.class));
+        } catch (RuntimeException e) {
+            // the claim is taken over once it times out
+            log.warn("Could not release an idempotency key: {}", e.toString());
+        }
+    }
+
+    /**
+     * Key of a resource from its id, meta.versionId and subject.reference,
+     * read without parsing the resource.  Condition ids are only unique per
+     * client, so the subject is part of the key.
+     *
+     * @param payload
+     * @return "id/_history/versionId subject reference", without the parts that are absent; null without an id or if not JSON
+     */
+    static String resourceKey(String payload) {
+        if(payload == null) {
+            return null;
+        }
+
+        String id = null;
+        String versionId = null;
+        String subject = null;
+        try (JsonParser parser = jsonFactory.createParser(payload)) {
+            if(parser.nextToken() != JsonToken.START_OBJECT) {
+                return null;
+            }
+            while(parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.getCurrentName();
+                JsonToken token = parser.nextToken();
+                if("id".equals(field) && token == JsonToken.VALUE_STRING) {
+                    id = parser.getText();
+                } else if("meta".equals(field) && token == JsonToken.START_OBJECT) {
+                    versionId = nestedText(parser, "versionId");
+                } else if("subject".equals(field) && token == JsonToken.START_OBJECT) {
+                    subject = nestedText(parser, "reference");
+                } else {
+                    parser.skipChildren();
+                }
+            }
+        } catch (IOException e) {
+            return null;
+        }
+
+        if(id == null || id.isEmpty()) {
+            return null;
+        }
+        String key = versionId != null ? id + "/_history/" + versionId : id;
+        return subject != null ? key + " subject " + subject : key;
+    }
+
+    /**
+     * Read a string field of the object at the parser, skipping the others
+     *
+     * @param parser at the start of the object
+     * @param name
+     * @return
+     * @throws IOException
+     */
+    private static String nestedText(JsonParser parser, String name) throws IOException {
+        String text = null;
+        while(parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.getCurrentName();
+            if(parser.nextToken() == JsonToken.VALUE_STRING && name.equals(field)) {
+                text = parser.getText();
+            } else {
+                parser.skipChildren();
+            }
+        }
+        return text;
+    }
+
+    /**
+     * Id of a key, HMAC-SHA256 with fhir.idempotency.hashKey, truncated
+     *
+     * @param key
+     * @return
+     */
+    private String hash(String key) {
+        byte[] hash = macs.get().doFinal(key.getBytes(StandardCharsets.UTF_8));
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(Arrays.copyOf(hash, HASH_BYTES));
+    }
+
+    /**
+     * Outcome of claiming the key of a request
+     */
+    public static class Claim {
+
+        private final State state;
+
+        private final String id;
+
+        Claim(State state, String id) {
+            this.state = state;
+            this.id = id;
+        }
+
+        public State getState() {
+            return state;
+        }
+
+        String getId() {
+            return id;
+        }
+    }
+}
@@ -1,71 +1,173 @@
 package com.mongodb.fhir.webservice.service;
 
 import com.google.gson.JsonObject;
+import com.mongodb.fhir.webservice.analytics.ConditionStatsAggregator;
+import com.mongodb.fhir.webservice.model.ConditionPage;
+import com.mongodb.fhir.webservice.model.ConditionStats;
 import com.mongodb.fhir.webservice.model.EventStream;
 import com.mongodb.fhir.webservice.model.Patient;
-import com.mongodb.fhir.webservice.utils.PatientFhirGenerator;
+import com.mongodb.fhir.webservice.parser.BundleParser;
+import com.mongodb.fhir.webservice.utils.FhirSerializer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.http.CacheControl;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.WebRequest;
 import org.springframework.web.context.request.async.DeferredResult;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
-import java.util.concurrent.ForkJoinPool;
+import java.net.URI;
 
 /**
  * Spring Rest Controller - i.e. FHIR Server
  *
  * The request mapping matches that within the Spring Security configuration class.
+ *
+ * Handlers run through the RequestExecutor, on request threads when
+ * fhir.async.enabled is set, otherwise on the servlet thread.
+ *
+ * POSTs of patients and conditions are deduped by the IdempotencyStore: a
+ * retry is answered with Idempotent-Replayed: true and no second write, or
+ * 409 Conflict while the first request is in progress, or 422 if the key
+ * was used for another payload.  A new request for a patient id that is
+ * already stored is answered with 409 Conflict and an OperationOutcome.
  */
 @RestController
 @RequestMapping(path = "/processFhir")
 public class MongoRestController {
 
+    // FHIR Prefer header value to skip the response body
+    private static final String PREFER_RETURN_MINIMAL = "return=minimal";
+
     private FhirService fhirService;
 
+    private RequestExecutor requestExecutor;
+
+    private PatientGeneratorJobs patientGeneratorJobs;
+
+    private PayloadLogger payloadLogger;
+
+    private IdempotencyStore idempotencyStore;
+
+    private ConditionStatsAggregator conditionStatsAggregator;
+
     // Logger component
     private static final Logger log = LoggerFactory.getLogger(MongoRestController.class);
 
     /**
      *
      * @param fhirService
+     * @param requestExecutor
+     * @param patientGeneratorJobs
+     * @param payloadLogger
+     * @param idempotencyStore
+     * @param conditionStatsAggregator
      */
-    public MongoRestController(FhirService fhirService) {
+    public MongoRestController(FhirService fhirService, RequestExecutor requestExecutor,
+                               PatientGeneratorJobs patientGeneratorJobs, PayloadLogger payloadLogger,
+                               IdempotencyStore idempotencyStore, ConditionStatsAggregator conditionStatsAggregator) {
         this.fhirService = fhirService;
+        this.requestExecutor = requestExecutor;
+        this.patientGeneratorJobs = patientGeneratorJobs;
+        this.payloadLogger = payloadLogger;
+        this.idempotencyStore = idempotencyStore;
+        this.conditionStatsAggregator = conditionStatsAggregator;
     }
 
     /**
      * Post FHIR Patient resource
+     * Deduped on the Idempotency-Key header, or the resource id, meta.versionId and subject.
      *
      * @param patient
+     * @param idempotencyKey
      * @return
      */
     @PostMapping(value = "/patient", consumes = "application/json", produces = "application/json")
-    public Patient postPatient(@RequestBody String patient) {
-        log.info("Received Patient Fhir Message.");
-        log.info(patient);
+    public DeferredResult<ResponseEntity<Patient>> postPatient(@RequestBody String patient,
+                                                 @RequestHeader(value = IdempotencyStore.IDEMPOTENCY_KEY, required = false) String idempotencyKey) {
+        return this.requestExecutor.submit("patient", () -> {
+            log.debug("Received Patient Fhir Message.");
+            this.payloadLogger.log(EventStream.PATIENT_RESOURCE, patient);
+
+            // log event stream
+            this.logEventStream(patient, EventStream.PATIENT_RESOURCE, EventStream.HTTP_POST);
 
-        // log event stream
-        this.logEventStream(patient, EventStream.PATIENT_RESOURCE, EventStream.HTTP_POST);
+            return this.idempotencyStore.execute(EventStream.PATIENT_RESOURCE, idempotencyKey, patient,
+                    () -> ResponseEntity.ok(this.fhirService.processPatient(patient)),
+                    () -> ResponseEntity.ok(this.fhirService.replayPatient(patient)));
+        });
+    }
 
-        return this.fhirService.processPatient(patient);
+    /**
+     * 409 with an OperationOutcome for a patient id that is already stored
+     *
+     * @param e
+     * @return
+     */
+    @ExceptionHandler(FhirService.PatientExistsException.class)
+    public ResponseEntity<String> patientExists(FhirService.PatientExistsException e) {
+        return ResponseEntity.status(HttpStatus.CONFLICT).contentType(MediaType.APPLICATION_JSON)
+                .body(FhirSerializer.serializeOperationOutcome(e.getMessage()));
     }
 
     /**
      * Post FHIR Condition resource
+     * With the header 'Prefer: return=minimal' only an acknowledgment is returned.
+     * Deduped on the Idempotency-Key header, or the resource id, meta.versionId and subject.
      *
      * @param condition
+     * @param prefer
+     * @param idempotencyKey
      * @return
      */
     @PostMapping(value = "/condition", consumes = "application/json", produces = "application/json")
-    public Patient postCondition(@RequestBody String condition) {
-        log.info("Received Condition Fhir Message.");
-        log.info(condition);
+    public DeferredResult<ResponseEntity<Patient>> postCondition(@RequestBody String condition,
+                                                 @RequestHeader(value = "Prefer", required = false) String prefer,
+                                                 @RequestHeader(value = IdempotencyStore.IDEMPOTENCY_KEY, required = false) String idempotencyKey) {
+        return this.requestExecutor.submit("condition", () -> {
+            log.debug("Received Condition Fhir Message.");
+            this.payloadLogger.log(EventStream.CONDITION_RESOURCE, condition);
 
-        // log event stream
-        this.logEventStream(condition, EventStream.CONDITION_RESOURCE, EventStream.HTTP_POST);
+            // log event stream
+            this.logEventStream(condition, EventStream.CONDITION_RESOURCE, EventStream.HTTP_POST);
 
-        return this.fhirService.processCondition(condition);
+            boolean minimal = PREFER_RETURN_MINIMAL.equalsIgnoreCase(prefer);
+            return this.idempotencyStore.execute(EventStream.CONDITION_RESOURCE, idempotencyKey, condition, () -> {
+                if(minimal) {
+                    Patient patient = this.fhirService.processCondition(condition, false);
+                    return patient != null ? ResponseEntity.ok().<Patient>build() : ResponseEntity.notFound().<Patient>build();
+                }
+                return ResponseEntity.ok(this.fhirService.processCondition(condition));
+            }, () -> minimal ? ResponseEntity.ok().<Patient>build()
+                    : ResponseEntity.ok(this.fhirService.replayCondition(condition)));
+        });
+    }
+
+    /**
+     * Post FHIR Bundle resource (batch or transaction) of Patient and Condition entries
+     * A transaction is applied with batch semantics, which the entry outcomes state.
+     *
+     * @param bundle
+     * @return batch-response Bundle, 400 with an OperationOutcome if the bundle is malformed or of another type
+     */
+    @PostMapping(value = "/bundle", consumes = "application/json", produces = "application/json")
+    public DeferredResult<ResponseEntity<String>> postBundle(@RequestBody String bundle) {
+        return this.requestExecutor.submit("bundle", () -> {
+            log.debug("Received Bundle Fhir Message.");
+            this.payloadLogger.log(EventStream.BUNDLE_RESOURCE, bundle);
+
+            // log event stream
+            this.logEventStream(bundle, EventStream.BUNDLE_RESOURCE, EventStream.HTTP_POST);
+
+            try {
+                return ResponseEntity.ok(this.fhirService.processBundleResource(bundle));
+            } catch (BundleParser.InvalidBundleException e) {
+                return ResponseEntity.badRequest().body(FhirSerializer.serializeOperationOutcome(e.getMessage()));
+            }
+        });
     }
 
     /**
@@ -75,29 +177,108 @@ public class MongoRestController {
      * @return
      */
     @GetMapping(value = "/getPatient/{patientId}", produces = "application/json")
-    public Patient getPatient(@PathVariable String patientId) {
-        log.info("Get Patient for Patient Id: " + patientId);
+    public DeferredResult<Patient> getPatient(@PathVariable String patientId) {
+        return this.requestExecutor.submit("getPatient", () -> {
+            log.debug("Get Patient.");
 
-        // log event stream
-        this.logEventStream(patientId, EventStream.PATIENT_ID_RESOURCE, EventStream.HTTP_GET);
+            // log event stream
+            this.logEventStream(patientId, EventStream.PATIENT_ID_RESOURCE, EventStream.HTTP_GET);
 
-        return this.fhirService.processPatientId(patientId);
+            return this.fhirService.processPatientId(patientId);
+        });
+    }
+
+    /**
+     * Get a page of the conditions of a patient, newest first
+     * With bucketed condition storage, older conditions are only found here.
+     *
+     * @param patientId
+     * @param before next of the previous page
+     * @param limit
+     * @return 404 if the patient does not exist, 400 if before is not a next of a page
+     */
+    @GetMapping(value = "/getConditions/{patientId}", produces = "application/json")
+    public DeferredResult<ResponseEntity<ConditionPage>> getConditions(@PathVariable String patientId,
+                                            @RequestParam(value = "before", required = false) String before,
+                                            @RequestParam(value = "limit", defaultValue = "100") int limit) {
+        return this.requestExecutor.submit("getConditions", () -> {
+            log.debug("Get Conditions.");
+
+            // log event stream
+            this.logEventStream(patientId, EventStream.CONDITION_RESOURCE, EventStream.HTTP_GET);
+
+            ConditionPage page;
+            try {
+                page = this.fhirService.processConditionPage(patientId, before, Math.max(1, limit));
+            } catch (IllegalArgumentException e) {
+                return ResponseEntity.badRequest().<ConditionPage>build();
+            }
+            return page != null ? ResponseEntity.ok(page) : ResponseEntity.notFound().<ConditionPage>build();
+        });
+    }
+
+    /**
+     * Counts of the reported conditions of the last minutes, from memory
+     * Filters are optional; the counts are broken down by condition code, state, city and gender.
+     *
+     * @param conditionCode
+     * @param state
+     * @param city
+     * @param gender
+     * @param minutes 0 for the whole window, fhir.analytics.windowMinutes
+     * @return 404 if the stats are disabled
+     */
+    @GetMapping(value = "/stats", produces = "application/json")
+    public ResponseEntity<ConditionStats> getStats(@RequestParam(value = "conditionCode", required = false) String conditionCode,
+                                            @RequestParam(value = "state", required = false) String state,
+                                            @RequestParam(value = "city", required = false) String city,
+                                            @RequestParam(value = "gender", required = false) String gender,
+                                            @RequestParam(value = "minutes", defaultValue = "0") int minutes) {
+        if(!this.conditionStatsAggregator.isEnabled()) {
+            return ResponseEntity.notFound().build();
+        }
+
+        return ResponseEntity.ok(this.conditionStatsAggregator.stats(conditionCode, state, city, gender, minutes));
     }
 
     /**
      * Get bundle by patient id and return as FHIR Bundle Resource
+     * The response carries a strong ETag; a conditional request with a matching
+     * If-None-Match gets 304 Not Modified without serializing the bundle.
+     * The bundle is written straight to the response stream.
      *
      * @param patientId
+     * @param pretty false for compact JSON
+     * @param webRequest
      * @return
      */
     @GetMapping(value = "/getBundle/{patientId}", produces = "application/json")
-    public String getBundle(@PathVariable String patientId) {
-        log.info("Get Bundle for Patient Id: " + patientId);
+    public DeferredResult<ResponseEntity<StreamingResponseBody>> getBundle(@PathVariable String patientId,
+                                            @RequestParam(value = "_pretty", defaultValue = "true") boolean pretty,
+                                            WebRequest webRequest) {
+        return this.requestExecutor.submit("getBundle", () -> {
+            log.debug("Get Bundle.");
+
+            // log event stream
+            this.logEventStream(patientId, EventStream.BUNDLE_RESOURCE, EventStream.HTTP_GET);
+
+            Patient patient = this.fhirService.processPatientId(patientId);
+            if(patient == null) {
+                return ResponseEntity.ok().contentType(MediaType.APPLICATION_JSON).<StreamingResponseBody>body(out -> { });
+            }
 
-        // log event stream
-        this.logEventStream(patientId, EventStream.BUNDLE_RESOURCE, EventStream.HTTP_GET);
+            String eTag = this.fhirService.getBundleETag(patient, pretty);
+            if(webRequest.checkNotModified(eTag)) {
+                // 304 already set on the response
+                return null;
+            }
 
-        return this.fhirService.processBundle(patientId);
+            return ResponseEntity.ok()
+                    .eTag(eTag)
+                    .cacheControl(CacheControl.noCache().cachePrivate())
+                    .contentType(MediaType.APPLICATION_JSON)
+                    .<StreamingResponseBody>body(out -> this.fhirService.writeBundle(patient, pretty, out));
+        });
     }
 
     /**
@@ -108,8 +289,6 @@ public class MongoRestController {
      * @param eventMethod
      */
     private void logEventStream(String fhirResourceString, String fhirResourceType, String eventMethod) {
-        log.info("Log Event Stream");
-
         EventStream eventStream = new EventStream();
         eventStream.setEventDate(new java.util.Date());
         eventStream.setRawEventString(fhirResourceString);
@@ -123,21 +302,48 @@ public class MongoRestController {
      * Helper method to generate random FHIR Patient data
      * Does NOT log itself to event stream
      *
-     * Depending on number of patients requested, may timeout
-     *
-     * Possibly use deferredResult for more asynchronous behavior
+     * Runs in the background; poll the returned job for progress.
      *
-     * @param
-     * @return
+     * @param numPatients
+     * @param workers concurrent workers, fhir.generator.workers if not set
+     * @param rps target requests per second, no limit if not set
+     * @return job status
      */
-    @PostMapping(value = "/generatePatientData/{numPatients}", produces = "text/plain")
-    public String postGenerateFhirPatientData(@PathVariable int numPatients) {
-        log.info("Request to generate patient data. Num of patients requested: " + numPatients);
+    @PostMapping(value = "/generatePatientData/{numPatients}", produces = "application/json")
+    public ResponseEntity<PatientGeneratorJobs.Job> postGenerateFhirPatientData(@PathVariable int numPatients,
+                                            @RequestParam(value = "workers", defaultValue = "0") int workers,
+                                            @RequestParam(value = "rps", defaultValue = "0") int rps) {
+        log.info("Request to generate patient data. Num of patients requested: {}", numPatients);
 
         // call utility method to generate patients
-        new PatientFhirGenerator(numPatients);
+        String jobId = this.patientGeneratorJobs.start(numPatients, workers, rps);
 
-        return "Successfully generated number of patients: " + numPatients;
+        return ResponseEntity.accepted()
+                .location(URI.create("/processFhir/generatePatientData/job/" + jobId))
+                .body(this.patientGeneratorJobs.get(jobId));
+    }
+
+    /**
+     * Progress of a patient data generator job
+     *
+     * @param jobId
+     * @return
+     */
+    @GetMapping(value = "/generatePatientData/job/{jobId}", produces = "application/json")
+    public ResponseEntity<PatientGeneratorJobs.Job> getGenerateFhirPatientDataJob(@PathVariable String jobId) {
+        PatientGeneratorJobs.Job job = this.patientGeneratorJobs.get(jobId);
+        return job != null ? ResponseEntity.ok(job) : ResponseEntity.notFound().build();
     }
-}
 
+    /**
+     * Cancel a patient data generator job, patients in progress are finished
+     *
+     * @param jobId
+     * @return
+     */
+    @DeleteMapping(value = "/generatePatientData/job/{jobId}")
+    public ResponseEntity<Void> deleteGenerateFhirPatientDataJob(@PathVariable String jobId) {
+        return this.patientGeneratorJobs.cancel(jobId) ? ResponseEntity.noContent().build()
+                : ResponseEntity.notFound().build();
+    }
+}
@@ -0,0 +1,453 @@
+package com.mongodb.fhir.webservice.service;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.CacheWriter;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.RemovalCause;
+import com.mongodb.MongoCommandException;
+import com.mongodb.client.ChangeStreamIterable;
+import com.mongodb.client.MongoChangeStreamCursor;
+import com.mongodb.client.model.Aggregates;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Projections;
+import com.mongodb.client.model.changestream.ChangeStreamDocument;
+import com.mongodb.fhir.webservice.db.FhirMongoOperations;
+import com.mongodb.fhir.webservice.model.Patient;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import org.bson.BsonDocument;
+import org.bson.BsonValue;
+import org.bson.Document;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.mongodb.core.MongoOperations;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * Read-through cache of decrypted patients keyed by patientId.
+ *
+ * Bounded by weight (one per patient plus one per condition) and a TTL,
+ * with Caffeine's W-TinyLFU eviction, which keeps the frequently read
+ * recently admitted patients.  Local writes update or invalidate entries;
+ * a change stream on the patient collection invalidates entries written
+ * by other nodes.
+ *
+ * Every write sets updateDate, which is the version of a patient.  A change
+ * whose updateDate is the one of the cached patient is the write that was
+ * cached, e.g. this node's own returnNew, and is skipped.  The version of
+ * the last change of each patient is kept for a while, so a patient older
+ * than a change already seen, e.g. this node's returnNew racing a newer
+ * write of another node, is not cached.
+ *
+ * A miss is loaded on the calling thread outside of the cache, so the
+ * encrypted findOne does not hold a lock of the cache; concurrent misses of
+ * a patient wait for the one load in flight.
+ *
+ * The decrypted patients (PHI) only live on the heap of this node.  The
+ * cache is not exposed through Spring's CacheManager, so it can not be
+ * swapped for a serializing or remote cache by configuration.  With
+ * fhir.cache.decryptedPhi=false no decrypted patient is cached at all.
+ */
+@Component
+public class PatientCache {
+
+    private static final long MAX_RETRY_DELAY_MS = 5000;
+    // version of a change without updateDate, matches no patient
+    private static final long UNKNOWN_VERSION = Long.MIN_VALUE;
+    private static final int CHANGE_STREAM_NOT_SUPPORTED = 40573;
+
+    // Logger component
+    private static final Logger log = LoggerFactory.getLogger(PatientCache.class);
+
+    @Value("${fhir.cache.patient.enabled:true}")
+    private boolean enabled;
+
+    // false: keep no decrypted PHI beyond the request that read it
+    @Value("${fhir.cache.decryptedPhi:true}")
+    private boolean decryptedPhi;
+
+    @Value("${fhir.cache.patient.maxWeight:100000}")
+    private long maxWeight;
+
+    @Value("${fhir.cache.patient.ttlSeconds:300}")
+    private long ttlSeconds;
+
+    @Value("${fhir.cache.patient.changeStream.enabled:true}")
+    private boolean changeStreamEnabled;
+
+    private FhirMongoOperations fhirMongoOperations;
+
+    private MeterRegistry meterRegistry;
+
+    private Cache<String, Patient> cache;
+
+    // patient _id -> version of its last change seen on the change stream
+    private Cache<String, Long> changedVersions;
+
+    // patient _id -> patientId of cached patients, change events only carry the _id
+    private final Map<String, String> cachedIds = new ConcurrentHashMap<>();
+
+    // patientId -> load in flight
+    private final Map<String, CompletableFuture<Patient>> loading = new ConcurrentHashMap<>();
+
+    private Thread watcherThread;
+
+    private volatile boolean running;
+
+    private volatile MongoChangeStreamCursor<ChangeStreamDocument<Document>> cursor;
+
+    private Counter localInvalidations;
+    private Counter remoteInvalidations;
+
+    /**
+     *
+     * @param fhirMongoOperations
+     * @param meterRegistry
+     */
+    public PatientCache(FhirMongoOperations fhirMongoOperations, MeterRegistry meterRegistry) {
+        this.fhirMongoOperations = fhirMongoOperations;
+        this.meterRegistry = meterRegistry;
+    }
+
+    /**
+     * Build the cache and start the change stream watcher
+     */
+    @PostConstruct
+    public void start() {
+        if(enabled && !decryptedPhi) {
+            log.info("Patient cache disabled, fhir.cache.decryptedPhi is false.");
+            enabled = false;
+        }
+        if(!enabled) {
+            return;
+        }
+
+        cache = Caffeine.newBuilder()
+                .maximumWeight(maxWeight)
+                .weigher((String patientId, Patient patient) ->
+                        1 + (patient.getConditions() != null ? patient.getConditions().size() : 0))
+                .expireAfterWrite(Duration.ofSeconds(ttlSeconds))
+                .writer(new IdIndexWriter())
+                .recordStats()
+                .build();
+
+        changedVersions = Caffeine.newBuilder()
+                .maximumSize(maxWeight)
+                .expireAfterWrite(Duration.ofSeconds(ttlSeconds))
+                .build();
+
+        CaffeineCacheMetrics.monitor(meterRegistry, cache, "patient");
+        localInvalidations = meterRegistry.counter("fhir.cache.patient.invalidations", "source", "local");
+        remoteInvalidations = meterRegistry.counter("fhir.cache.patient.invalidations", "source", "changeStream");
+
+        if(changeStreamEnabled) {
+            running = true;
+            watcherThread = new Thread(this::watch, "patient-cache-watcher");
+            watcherThread.setDaemon(true);
+            watcherThread.start();
+        }
+
+        log.info("Patient cache enabled. Max weight: {}, TTL: {} s, change stream: {}",
+                maxWeight, ttlSeconds, changeStreamEnabled);
+    }
+
+    /**
+     * Stop the change stream watcher
+     */
+    @PreDestroy
+    public void stop() {
+        running = false;
+        if(watcherThread != null) {
+            watcherThread.interrupt();
+            MongoChangeStreamCursor<ChangeStreamDocument<Document>> current = cursor;
+            if(current != null) {
+                current.close();
+            }
+        }
+    }
+
+    /**
+     * Get a patient, loading it on a miss.  A null result is not cached.
+     *
+     * @param patientId
+     * @param loader
+     * @return
+     */
+    public Patient get(String patientId, Function<String, Patient> loader) {
+        if(!enabled) {
+            return loader.apply(patientId);
+        }
+
+        Patient patient = cache.getIfPresent(patientId);
+        if(patient != null) {
+            return patient;
+        }
+
+        CompletableFuture<Patient> load = new CompletableFuture<>();
+        CompletableFuture<Patient> inFlight = loading.putIfAbsent(patientId, load);
+        if(inFlight != null) {
+            try {
+                return inFlight.join();
+            } catch (CompletionException e) {
+                throw e.getCause() instanceof RuntimeException ? (RuntimeException)e.getCause() : e;
+            }
+        }
+
+        try {
+            patient = loader.apply(patientId);
+            if(patient != null) {
+                this.put(patientId, patient);
+            }
+            load.complete(patient);
+            return patient;
+        } catch (RuntimeException e) {
+            load.completeExceptionally(e);
+            throw e;
+        } finally {
+            loading.remove(patientId, load);
+        }
+    }
+
+    /**
+     * Get a cached patient without loading it
+     *
+     * @param patientId
+     * @return null on a miss
+     */
+    public Patient getIfPresent(String patientId) {
+        if(!enabled) {
+            return null;
+        }
+
+        return cache.getIfPresent(patientId);
+    }
+
+    /**
+     * Cache a patient that was just written in full
+     *
+     * @param patient
+     */
+    public void put(Patient patient) {
+        if(enabled && patient != null && patient.getPatientId() != null) {
+            this.put(patient.getPatientId(), patient);
+        }
+    }
+
+    private void put(String patientId, Patient patient) {
+        // put before checking: a change recorded after the check finds the patient and invalidates it
+        cache.put(patientId, patient);
+        if(this.isStale(patient)) {
+            cache.invalidate(patientId);
+        }
+    }
+
+    /**
+     *
+     * @param patientId
+     */
+    public void invalidate(String patientId) {
+        if(enabled && patientId != null) {
+            cache.invalidate(patientId);
+            localInvalidations.increment();
+        }
+    }
+
+    /**
+     *
+     * @param patientIds
+     */
+    public void invalidateAll(Iterable<String> patientIds) {
+        if(enabled) {
+            cache.invalidateAll(patientIds);
+            localInvalidations.increment();
+        }
+    }
+
+    /**
+     * Watch the patient collection and invalidate changed patients, resuming after errors.
+     * The unencrypted client is enough, only the _id of the change is used.
+     */
+    private void watch() {
+        MongoOperations mongoOps = fhirMongoOperations.getMongoOperations();
+        String collectionName = mongoOps.getCollectionName(Patient.class);
+
+        BsonDocument resumeToken = null;
+        long delay = 100;
+
+        while (running) {
+            MongoChangeStreamCursor<ChangeStreamDocument<Document>> changeStream;
+            try {
+                changeStream = this.openChangeStream(mongoOps, collectionName, resumeToken);
+            } catch (RuntimeException e) {
+                if(e instanceof MongoCommandException
+                        && ((MongoCommandException)e).getErrorCode() == CHANGE_STREAM_NOT_SUPPORTED) {
+                    log.warn("Change streams need a replica set, patient cache relies on its TTL only.");
+                    return;
+                }
+                // the stream can not be resumed, changes may have been missed
+                resumeToken = null;
+                cache.invalidateAll();
+                delay = this.backoff(delay, e);
+                continue;
+            }
+
+            try {
+                cursor = changeStream;
+                delay = 100;
+
+                while (running) {
+                    ChangeStreamDocument<Document> change = changeStream.tryNext();
+                    if(change != null) {
+                        this.invalidateChanged(change);
+                    }
+                    if(changeStream.getResumeToken() != null) {
+                        resumeToken = changeStream.getResumeToken();
+                    }
+                }
+            } catch (RuntimeException e) {
+                delay = this.backoff(delay, e);
+            } finally {
+                changeStream.close();
+            }
+        }
+    }
+
+    /**
+     * Sleep before reopening the change stream
+     *
+     * @param delay
+     * @param e
+     * @return next delay
+     */
+    private long backoff(long delay, RuntimeException e) {
+        if(!running) {
+            return delay;
+        }
+        log.warn("Patient cache change stream failed, retrying in {} ms: {}", delay, e.toString());
+        try {
+            TimeUnit.MILLISECONDS.sleep(delay);
+        } catch (InterruptedException ie) {
+            running = false;
+        }
+        return Math.min(delay * 2, MAX_RETRY_DELAY_MS);
+    }
+
+    /**
+     *
+     * @param mongoOps
+     * @param collectionName
+     * @param resumeToken
+     * @return
+     */
+    private MongoChangeStreamCursor<ChangeStreamDocument<Document>> openChangeStream(
+            MongoOperations mongoOps, String collectionName, BsonDocument resumeToken) {
+
+        ChangeStreamIterable<Document> changeStream = mongoOps.getCollection(collectionName)
+                .watch(Arrays.asList(
+                        Aggregates.match(Filters.in("operationType", "update", "replace", "delete")),
+                        // updateDate is not encrypted
+                        Aggregates.project(Projections.include("operationType", "documentKey",
+                                "updateDescription.updatedFields.updateDate", "fullDocument.updateDate"))))
+                .maxAwaitTime(1, TimeUnit.SECONDS);
+        if(resumeToken != null) {
+            changeStream = changeStream.resumeAfter(resumeToken);
+        }
+        return changeStream.cursor();
+    }
+
+    /**
+     *
+     * @param change
+     */
+    private void invalidateChanged(ChangeStreamDocument<Document> change) {
+        BsonDocument documentKey = change.getDocumentKey();
+        BsonValue id = documentKey != null ? documentKey.get("_id") : null;
+        if(id == null) {
+            return;
+        }
+
+        long version = UNKNOWN_VERSION;
+        if(change.getUpdateDescription() != null && change.getUpdateDescription().getUpdatedFields() != null
+                && change.getUpdateDescription().getUpdatedFields().isDateTime("updateDate")) {
+            version = change.getUpdateDescription().getUpdatedFields().getDateTime("updateDate").getValue();
+        } else if(change.getFullDocument() != null && change.getFullDocument().getDate("updateDate") != null) {
+            version = change.getFullDocument().getDate("updateDate").getTime();
+        }
+
+        this.changed(id.isObjectId() ? id.asObjectId().getValue().toHexString() : id.toString(), version);
+    }
+
+    /**
+     * Record the version of a changed patient and invalidate it, unless the cached patient is that version
+     *
+     * @param id patient _id
+     * @param version updateDate of the change, UNKNOWN_VERSION if it has none
+     */
+    void changed(String id, long version) {
+        // recorded before checking: a put after the check finds the version and invalidates itself
+        changedVersions.put(id, version);
+
+        String patientId = cachedIds.get(id);
+        if(patientId == null) {
+            return;
+        }
+        Patient cached = cache.getIfPresent(patientId);
+        if(cached != null && version != UNKNOWN_VERSION && version == version(cached)) {
+            // the write this patient came from
+            return;
+        }
+        cache.invalidate(patientId);
+        remoteInvalidations.increment();
+    }
+
+    /**
+     * A change of the patient other than its own version was seen
+     *
+     * @param patient
+     * @return
+     */
+    private boolean isStale(Patient patient) {
+        if(patient.getId() == null) {
+            return false;
+        }
+        Long changed = changedVersions.getIfPresent(patient.getId());
+        return changed != null && (changed == UNKNOWN_VERSION || changed != version(patient));
+    }
+
+    private static long version(Patient patient) {
+        return patient.getUpdateDate() != null ? patient.getUpdateDate().getTime() : UNKNOWN_VERSION;
+    }
+
+    /**
+     * Keeps the _id index in step with the cache, called atomically with each put and removal
+     */
+    private class IdIndexWriter implements CacheWriter<String, Patient> {
+
+        @Override
+        public void write(String patientId, Patient patient) {
+            if(patient.getId() != null) {
+                cachedIds.put(patient.getId(), patientId);
+            }
+        }
+
+        @Override
+        public void delete(String patientId, Patient patient, RemovalCause cause) {
+            if(patient != null && patient.getId() != null) {
+                cachedIds.remove(patient.getId(), patientId);
+            }
+        }
+    }
+}
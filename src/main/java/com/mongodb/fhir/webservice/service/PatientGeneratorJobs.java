@@ -0,0 +1,208 @@
+package com.mongodb.fhir.webservice.service;
+
+import com.mongodb.fhir.webservice.utils.PatientFhirGenerator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.web.ServerProperties;
+import org.springframework.boot.web.context.WebServerInitializedEvent;
+import org.springframework.context.ApplicationListener;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Runs PatientFhirGenerator jobs in the background against this server.
+ * Jobs are kept by id so their progress can be polled; the oldest finished
+ * jobs are dropped beyond fhir.generator.maxJobs.
+ *
+ * Jobs post to fhir.generator.targetUrl if set, else to this server on the
+ * port it actually listens on (server.port may be 0), with its scheme and
+ * context path.
+ */
+@Component
+public class PatientGeneratorJobs implements ApplicationListener<WebServerInitializedEvent> {
+
+    // Logger component
+    private static final Logger log = LoggerFactory.getLogger(PatientGeneratorJobs.class);
+
+    @Value("${fhir.generator.targetUrl:}")
+    private String targetUrl;
+
+    @Value("${server.port:8090}")
+    private int serverPort;
+
+    @Value("${spring.security.user.name}")
+    private String username;
+
+    @Value("${spring.security.user.password}")
+    private String password;
+
+    @Value("${fhir.generator.workers:8}")
+    private int defaultWorkers;
+
+    @Value("${fhir.generator.maxJobs:20}")
+    private int maxJobs;
+
+    private final ServerProperties serverProperties;
+
+    private final Map<String, Job> jobs = new ConcurrentHashMap<>();
+
+    private final ExecutorService executor = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "patient-generator");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     *
+     * @param serverProperties
+     */
+    public PatientGeneratorJobs(ServerProperties serverProperties) {
+        this.serverProperties = serverProperties;
+    }
+
+    /**
+     * Keep the port the web server listens on, not the management server's
+     *
+     * @param event
+     */
+    @Override
+    public void onApplicationEvent(WebServerInitializedEvent event) {
+        if(event.getApplicationContext().getServerNamespace() == null) {
+            serverPort = event.getWebServer().getPort();
+        }
+    }
+
+    /**
+     * Base url the generator posts to
+     *
+     * @return
+     */
+    String targetUrl() {
+        if(targetUrl != null && !targetUrl.isEmpty()) {
+            return targetUrl;
+        }
+
+        boolean ssl = serverProperties.getSsl() != null && serverProperties.getSsl().isEnabled();
+        String contextPath = serverProperties.getServlet().getContextPath();
+        return (ssl ? "https" : "http") + "://localhost:" + serverPort + (contextPath != null ? contextPath : "");
+    }
+
+    /**
+     * Start a generator job
+     *
+     * @param numPatients
+     * @param workers 0 for fhir.generator.workers
+     * @param targetRps 0 for no limit
+     * @return job id
+     */
+    public String start(int numPatients, int workers, int targetRps) {
+        this.removeFinishedJobs();
+
+        PatientFhirGenerator generator = new PatientFhirGenerator(this.targetUrl(),
+                username + ":" + password, numPatients, workers > 0 ? workers : defaultWorkers, targetRps);
+
+        String jobId = UUID.randomUUID().toString();
+        Job job = new Job(jobId, generator);
+        jobs.put(jobId, job);
+
+        executor.execute(() -> {
+            try {
+                generator.run();
+            } catch (RuntimeException e) {
+                log.error("Patient generator job {} failed: {}", jobId, e.toString());
+            } finally {
+                job.done = true;
+            }
+        });
+
+        log.info("Started patient generator job {}", jobId);
+        return jobId;
+    }
+
+    /**
+     *
+     * @param jobId
+     * @return null if unknown
+     */
+    public Job get(String jobId) {
+        return jobs.get(jobId);
+    }
+
+    /**
+     *
+     * @param jobId
+     * @return false if unknown
+     */
+    public boolean cancel(String jobId) {
+        Job job = jobs.get(jobId);
+        if(job == null) {
+            return false;
+        }
+
+        job.generator.cancel();
+        return true;
+    }
+
+    /**
+     * Drop the oldest finished jobs over the limit
+     */
+    private void removeFinishedJobs() {
+        Iterator<Job> finished = jobs.values().stream()
+                .filter(job -> job.done)
+                .sorted((a, b) -> Long.compare(a.startedAt, b.startedAt))
+                .iterator();
+
+        int excess = jobs.size() - maxJobs + 1;
+        while(excess-- > 0 && finished.hasNext()) {
+            jobs.remove(finished.next().jobId);
+        }
+    }
+
+    /**
+     * Cancel running jobs
+     */
+    @PreDestroy
+    public void stop() {
+        jobs.values().forEach(job -> job.generator.cancel());
+        executor.shutdownNow();
+    }
+
+    /**
+     * Status of a generator job
+     */
+    public static class Job {
+
+        private final String jobId;
+
+        private final PatientFhirGenerator generator;
+
+        private final long startedAt = System.currentTimeMillis();
+
+        private volatile boolean done;
+
+        private Job(String jobId, PatientFhirGenerator generator) {
+            this.jobId = jobId;
+            this.generator = generator;
+        }
+
+        public String getJobId() {
+            return jobId;
+        }
+
+        public String getState() {
+            return done ? "DONE" : "RUNNING";
+        }
+
+        public PatientFhirGenerator.Progress getProgress() {
+            return generator.getProgress();
+        }
+    }
+}
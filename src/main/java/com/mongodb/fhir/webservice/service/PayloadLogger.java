@@ -0,0 +1,88 @@
+package com.mongodb.fhir.webservice.service;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Debug logging of request payloads, off unless fhir.logging.payloads.enabled
+ * is set and this logger is at DEBUG.  Only a sample of the payloads is
+ * logged (fhir.logging.payloads.sampleRate), and their values are redacted
+ * except for coded fields like resourceType, system and code, so no PHI ends
+ * up in the logs.  Display texts are redacted too, they can hold names.
+ */
+@Component
+public class PayloadLogger {
+
+    // Logger component
+    private static final Logger log = LoggerFactory.getLogger(PayloadLogger.class);
+
+    private static final JsonFactory jsonFactory = new JsonFactory();
+
+    private static final String REDACTED = "***";
+
+    // values of these fields are kept
+    private static final Set<String> UNREDACTED_FIELDS = Set.of(
+            "resourceType", "type", "system", "code", "version", "use",
+            "status", "clinicalStatus", "verificationStatus", "severity", "method", "url");
+
+    @Value("${fhir.logging.payloads.enabled:false}")
+    private boolean enabled;
+
+    @Value("${fhir.logging.payloads.sampleRate:0.01}")
+    private double sampleRate;
+
+    /**
+     * Log a sample of payloads, redacted
+     *
+     * @param resourceType
+     * @param payload
+     */
+    public void log(String resourceType, String payload) {
+        if(!enabled || !log.isDebugEnabled() || ThreadLocalRandom.current().nextDouble() >= sampleRate) {
+            return;
+        }
+
+        log.debug("{} payload ({} chars): {}", resourceType, payload.length(), redact(payload));
+    }
+
+    /**
+     * Copy of a JSON payload with all values replaced except those of UNREDACTED_FIELDS
+     *
+     * @param payload
+     * @return
+     */
+    public static String redact(String payload) {
+        StringWriter redacted = new StringWriter(payload.length());
+        try (JsonParser parser = jsonFactory.createParser(payload);
+             JsonGenerator generator = jsonFactory.createGenerator(redacted)) {
+
+            JsonToken token;
+            while((token = parser.nextToken()) != null) {
+                if(token.isScalarValue()) {
+                    String field = parser.getCurrentName();
+                    if(field != null && UNREDACTED_FIELDS.contains(field)) {
+                        generator.copyCurrentEvent(parser);
+                    } else {
+                        generator.writeString(REDACTED);
+                    }
+                } else {
+                    generator.copyCurrentEvent(parser);
+                }
+            }
+        } catch (IOException e) {
+            return "<not JSON>";
+        }
+        return redacted.toString();
+    }
+}
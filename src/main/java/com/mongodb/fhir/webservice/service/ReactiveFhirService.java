@@ -0,0 +1,291 @@
+package com.mongodb.fhir.webservice.service;
+
+import com.mongodb.fhir.webservice.db.ReactiveFhirMongoOperations;
+import com.mongodb.fhir.webservice.model.Condition;
+import com.mongodb.fhir.webservice.model.ConditionBucket;
+import com.mongodb.fhir.webservice.model.ConditionEvent;
+import com.mongodb.fhir.webservice.model.EventStream;
+import com.mongodb.fhir.webservice.model.Patient;
+import com.mongodb.fhir.webservice.parser.ConditionParser;
+import com.mongodb.fhir.webservice.parser.PatientParser;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
+import org.springframework.data.mongodb.core.ReactiveMongoOperations;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Date;
+
+/**
+ * Service class to process FHIR Resources with the reactive streams driver.
+ *
+ * Same operations as FhirService, but no thread waits on MongoDB or
+ * mongocryptd: every write and read returns a Mono completed by the driver.
+ * Parsing, the caches, the event stream and the bundle serialization are
+ * shared with FhirService.  Only created when fhir.reactive.enabled is set.
+ */
+@Component
+@ConditionalOnProperty(name = "fhir.reactive.enabled", havingValue = "true")
+public class ReactiveFhirService {
+
+    private ReactiveFhirMongoOperations reactiveMongoOperations;
+
+    private FhirService fhirService;
+
+    private DurableEventLog durableEventLog;
+
+    private PatientCache patientCache;
+
+    private ConditionStorage conditionStorage;
+
+    // false when the ConditionEventProjector derives the events from the patient change stream
+    @Value("${fhir.conditionEvents.inline:true}")
+    private boolean inlineConditionEvents;
+
+    // Logger component
+    private static final Logger log = LoggerFactory.getLogger(ReactiveFhirService.class);
+
+    /**
+     *
+     * @param reactiveMongoOperations
+     * @param fhirService
+     * @param durableEventLog
+     * @param patientCache
+     * @param conditionStorage
+     */
+    public ReactiveFhirService(ReactiveFhirMongoOperations reactiveMongoOperations, FhirService fhirService,
+                               DurableEventLog durableEventLog, PatientCache patientCache,
+                               ConditionStorage conditionStorage) {
+        this.reactiveMongoOperations = reactiveMongoOperations;
+        this.fhirService = fhirService;
+        this.durableEventLog = durableEventLog;
+        this.patientCache = patientCache;
+        this.conditionStorage = conditionStorage;
+    }
+
+    /**
+     * Process FHIR Patient resource.
+     *
+     * @param patientResource
+     * @return Patient Model class, FhirService.PatientExistsException if a patient with the same
+     * patient id exists
+     */
+    public Mono<Patient> processPatient(String patientResource) {
+        log.debug("Process Fhir patient (reactive).");
+
+        return Mono.fromCallable(() -> PatientParser.parse(patientResource))
+                .flatMap(patient -> {
+                    // uses encrypted client
+                    ReactiveMongoOperations mongoOps = reactiveMongoOperations.getEncMongoOperations();
+                    return reactiveMongoOperations.timedEncrypted("patient", mongoOps.insert(patient))
+                            .onErrorMap(DuplicateKeyException.class,
+                                    e -> new FhirService.PatientExistsException(patient.getPatientId()));
+                })
+                .doOnNext(patientCache::put);
+    }
+
+    /**
+     * Process FHIR Condition resource.
+     * The updated patient comes back from the update itself (returnNew).
+     *
+     * @param conditionResource
+     * @param returnPatient false to skip returning the full patient
+     * @return Patient model class, only the condition event fields if returnPatient is false;
+     * empty if the subject patient does not exist
+     */
+    public Mono<Patient> processCondition(String conditionResource, boolean returnPatient) {
+        log.debug("Process Fhir condition (reactive).");
+
+        return Mono.fromCallable(() -> ConditionParser.parse(conditionResource))
+                .flatMap(conditionResults -> {
+                    Condition condition = (Condition)conditionResults[0];
+                    String subjectReference = (String)conditionResults[1];
+
+                    // build criteria query
+                    Query query = new Query();
+                    query.addCriteria(Criteria.where("patientId").is(subjectReference));
+                    if(!returnPatient) {
+                        query.fields().include("city").include("state").include("gender").include("birthDate");
+                    }
+
+                    // add condition to the object array
+                    Update update = conditionStorage.patientUpdate(condition);
+
+                    // save it with encrypted client and return the updated patient, and add it to
+                    // its bucket in the same transaction once the patient is known to exist
+                    Mono<Patient> written = conditionStorage.isBucketed()
+                            ? reactiveMongoOperations.inEncryptedTransaction(ops -> ops.findAndModify(query, update,
+                                    FindAndModifyOptions.options().returnNew(true), Patient.class)
+                                    .flatMap(patient -> this.processConditionBucket(ops, subjectReference, condition)
+                                            .thenReturn(patient)))
+                            : reactiveMongoOperations.getEncMongoOperations().findAndModify(query, update,
+                                    FindAndModifyOptions.options().returnNew(true), Patient.class);
+                    return reactiveMongoOperations.timedEncrypted("condition", written)
+                            .doOnNext(patient -> {
+                                // a projected patient is not complete, so it can not replace the cached one
+                                if(returnPatient) {
+                                    patientCache.put(patient);
+                                } else {
+                                    patientCache.invalidate(subjectReference);
+                                }
+                            })
+                            .flatMap(patient -> this.processConditionEvent(patient, condition)
+                                    .thenReturn(patient));
+                });
+    }
+
+    /**
+     * Response to a retried FHIR Patient resource that was already inserted.
+     *
+     * @param patientResource
+     * @return Patient Model class
+     */
+    public Mono<Patient> replayPatient(String patientResource) {
+        log.debug("Replay Fhir patient (reactive).");
+
+        return Mono.fromCallable(() -> PatientParser.parse(patientResource))
+                .flatMap(patient -> this.processPatientId(patient.getPatientId()));
+    }
+
+    /**
+     * Response to a retried FHIR Condition resource that was already added.
+     *
+     * @param conditionResource
+     * @return Patient model class, empty if the subject patient does not exist
+     */
+    public Mono<Patient> replayCondition(String conditionResource) {
+        log.debug("Replay Fhir condition (reactive).");
+
+        return Mono.fromCallable(() -> ConditionParser.parse(conditionResource))
+                .flatMap(conditionResults -> this.processPatientId((String)conditionResults[1]));
+    }
+
+    /**
+     * Filter for patient model by patient id.
+     *
+     * @param patientId
+     * @return patient model, empty if not found
+     */
+    public Mono<Patient> processPatientId(String patientId) {
+        log.debug("Process Patient Id (reactive).");
+
+        // Decrypted patients are cached, a hit needs no round trip
+        Patient cached = patientCache.getIfPresent(patientId);
+        if(cached != null) {
+            return Mono.just(cached);
+        }
+
+        Query query = new Query();
+        query.addCriteria(Criteria.where("patientId").is(patientId));
+
+        // patient id uses Client side field level encryption, so filter with the encrypted client
+        ReactiveMongoOperations mongoOps = reactiveMongoOperations.getEncMongoOperations();
+        return reactiveMongoOperations.timedEncrypted("patientId", mongoOps.findOne(query, Patient.class))
+                .doOnNext(patientCache::put);
+    }
+
+    /**
+     * Add the condition to its bucket
+     *
+     * @param mongoOps operations of the transaction
+     * @param patientId
+     * @param condition
+     * @return completes when written
+     */
+    private Mono<Void> processConditionBucket(ReactiveMongoOperations mongoOps, String patientId, Condition condition) {
+        Date reported = new Date();
+        return mongoOps.upsert(conditionStorage.bucketQuery(patientId, reported),
+                conditionStorage.bucketUpdate(condition, reported), ConditionBucket.class).then();
+    }
+
+    /**
+     * Insert a conditionevent object as our event stream for reporting.
+     * Goes to the write-ahead log when it is enabled, and nowhere when the
+     * events are projected from the change stream.
+     *
+     * @param patient
+     * @param condition
+     * @return completes when the event is logged or written
+     */
+    private Mono<Void> processConditionEvent(Patient patient, Condition condition) {
+        if(!inlineConditionEvents) {
+            return Mono.empty();
+        }
+
+        if(patient == null || condition == null) {
+            log.error("Invalid patient and/or condition for ConditionEvent.");
+            return Mono.empty();
+        }
+
+        ConditionEvent conditionEvent = fhirService.buildConditionEvent(patient, condition);
+
+        if(durableEventLog.isEnabled()) {
+            // file write and possibly fsync, kept off the driver callback threads
+            return Mono.fromCallable(() -> durableEventLog.append(conditionEvent))
+                    .subscribeOn(Schedulers.boundedElastic())
+                    .flatMap(appended -> appended ? Mono.fromRunnable(() -> fhirService.publishConditionEvent(conditionEvent))
+                            : this.insertConditionEvent(conditionEvent));
+        }
+        return this.insertConditionEvent(conditionEvent);
+    }
+
+    /**
+     *
+     * @param conditionEvent
+     * @return completes when written
+     */
+    private Mono<Void> insertConditionEvent(ConditionEvent conditionEvent) {
+        // get un-encrypted client, no fields to encrypt as we are sending to reporting site
+        ReactiveMongoOperations mongoOps = reactiveMongoOperations.getMongoOperations();
+        return reactiveMongoOperations.timed("conditionEvent", mongoOps.insert(conditionEvent))
+                .doOnSuccess(fhirService::publishConditionEvent).then();
+    }
+
+    /**
+     * Log an interaction with the FHIR Server, queued like the servlet path.
+     * The queue can block under backpressure and the write-ahead log on fsync,
+     * so both are kept off the event loop.
+     *
+     * @param eventStream
+     * @return completes when the event is logged or queued
+     */
+    public Mono<Void> processEventStream(EventStream eventStream) {
+        return Mono.just(eventStream)
+                .publishOn(Schedulers.boundedElastic())
+                .doOnNext(fhirService::processEventStream)
+                .then();
+    }
+
+    /**
+     * Strong ETag of the serialized Bundle Resource of a patient
+     *
+     * @param patient
+     * @param pretty
+     * @return
+     */
+    public String getBundleETag(Patient patient, boolean pretty) {
+        return fhirService.getBundleETag(patient, pretty);
+    }
+
+    /**
+     * Write the Bundle Resource of a patient to the response
+     *
+     * @param patient
+     * @param pretty
+     * @param out
+     * @throws IOException
+     */
+    public void writeBundle(Patient patient, boolean pretty, OutputStream out) throws IOException {
+        fhirService.writeBundle(patient, pretty, out);
+    }
+}
@@ -0,0 +1,199 @@
+package com.mongodb.fhir.webservice.service;
+
+import com.mongodb.fhir.webservice.model.EventStream;
+import com.mongodb.fhir.webservice.model.Patient;
+import com.mongodb.fhir.webservice.utils.FhirSerializer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.http.CacheControl;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.WebRequest;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+import reactor.core.publisher.Mono;
+
+import java.util.Optional;
+
+/**
+ * Spring Rest Controller on the reactive MongoDB driver path
+ *
+ * Same resources as MongoRestController under /processFhirReactive.  The
+ * handlers return a Mono, so the servlet thread is released as soon as the
+ * driver call is started and the response is written when it completes.
+ * Only created when fhir.reactive.enabled is set.
+ *
+ * POSTs are deduped by the IdempotencyStore as on MongoRestController.
+ * A new request for a patient id that is already stored gets 409 Conflict.
+ */
+@RestController
+@RequestMapping(path = "/processFhirReactive")
+@ConditionalOnProperty(name = "fhir.reactive.enabled", havingValue = "true")
+public class ReactiveRestController {
+
+    // FHIR Prefer header value to skip the response body
+    private static final String PREFER_RETURN_MINIMAL = "return=minimal";
+
+    private ReactiveFhirService reactiveFhirService;
+
+    private PayloadLogger payloadLogger;
+
+    private IdempotencyStore idempotencyStore;
+
+    // Logger component
+    private static final Logger log = LoggerFactory.getLogger(ReactiveRestController.class);
+
+    /**
+     *
+     * @param reactiveFhirService
+     * @param payloadLogger
+     * @param idempotencyStore
+     */
+    public ReactiveRestController(ReactiveFhirService reactiveFhirService, PayloadLogger payloadLogger,
+                                  IdempotencyStore idempotencyStore) {
+        this.reactiveFhirService = reactiveFhirService;
+        this.payloadLogger = payloadLogger;
+        this.idempotencyStore = idempotencyStore;
+    }
+
+    /**
+     * Post FHIR Patient resource
+     * Deduped on the Idempotency-Key header, or the resource id, meta.versionId and subject.
+     *
+     * @param patient
+     * @param idempotencyKey
+     * @return
+     */
+    @PostMapping(value = "/patient", consumes = "application/json", produces = "application/json")
+    public Mono<ResponseEntity<Patient>> postPatient(@RequestBody String patient,
+                                                     @RequestHeader(value = IdempotencyStore.IDEMPOTENCY_KEY, required = false) String idempotencyKey) {
+        log.debug("Received Patient Fhir Message.");
+        this.payloadLogger.log(EventStream.PATIENT_RESOURCE, patient);
+
+        // log event stream
+        return this.logEventStream(patient, EventStream.PATIENT_RESOURCE, EventStream.HTTP_POST)
+                .then(this.idempotencyStore.executeReactive(EventStream.PATIENT_RESOURCE, idempotencyKey, patient,
+                        () -> this.reactiveFhirService.processPatient(patient).map(ResponseEntity::ok)
+                                .defaultIfEmpty(ResponseEntity.ok().build()),
+                        () -> this.reactiveFhirService.replayPatient(patient).map(ResponseEntity::ok)
+                                .defaultIfEmpty(ResponseEntity.ok().build())));
+    }
+
+    /**
+     * 409 with an OperationOutcome for a patient id that is already stored
+     *
+     * @param e
+     * @return
+     */
+    @ExceptionHandler(FhirService.PatientExistsException.class)
+    public ResponseEntity<String> patientExists(FhirService.PatientExistsException e) {
+        return ResponseEntity.status(HttpStatus.CONFLICT).contentType(MediaType.APPLICATION_JSON)
+                .body(FhirSerializer.serializeOperationOutcome(e.getMessage()));
+    }
+
+    /**
+     * Post FHIR Condition resource
+     * With the header 'Prefer: return=minimal' only an acknowledgment is returned.
+     * Deduped on the Idempotency-Key header, or the resource id, meta.versionId and subject.
+     *
+     * @param condition
+     * @param prefer
+     * @param idempotencyKey
+     * @return
+     */
+    @PostMapping(value = "/condition", consumes = "application/json", produces = "application/json")
+    public Mono<ResponseEntity<Patient>> postCondition(@RequestBody String condition,
+                                                       @RequestHeader(value = "Prefer", required = false) String prefer,
+                                                       @RequestHeader(value = IdempotencyStore.IDEMPOTENCY_KEY, required = false) String idempotencyKey) {
+        log.debug("Received Condition Fhir Message.");
+        this.payloadLogger.log(EventStream.CONDITION_RESOURCE, condition);
+
+        boolean minimal = PREFER_RETURN_MINIMAL.equalsIgnoreCase(prefer);
+
+        // log event stream
+        return this.logEventStream(condition, EventStream.CONDITION_RESOURCE, EventStream.HTTP_POST)
+                .then(this.idempotencyStore.executeReactive(EventStream.CONDITION_RESOURCE, idempotencyKey, condition,
+                        () -> this.reactiveFhirService.processCondition(condition, !minimal)
+                                .map(patient -> minimal ? ResponseEntity.ok().<Patient>build() : ResponseEntity.ok(patient))
+                                .defaultIfEmpty(minimal ? ResponseEntity.notFound().build() : ResponseEntity.ok().build()),
+                        () -> minimal ? Mono.just(ResponseEntity.ok().<Patient>build())
+                                : this.reactiveFhirService.replayCondition(condition).map(ResponseEntity::ok)
+                                        .defaultIfEmpty(ResponseEntity.ok().build())));
+    }
+
+    /**
+     * Get patient by patient id
+     *
+     * @param patientId
+     * @return
+     */
+    @GetMapping(value = "/getPatient/{patientId}", produces = "application/json")
+    public Mono<Patient> getPatient(@PathVariable String patientId) {
+        log.debug("Get Patient.");
+
+        // log event stream
+        return this.logEventStream(patientId, EventStream.PATIENT_ID_RESOURCE, EventStream.HTTP_GET)
+                .then(Mono.defer(() -> this.reactiveFhirService.processPatientId(patientId)));
+    }
+
+    /**
+     * Get bundle by patient id and return as FHIR Bundle Resource
+     * Conditional requests and streaming as in MongoRestController.
+     *
+     * @param patientId
+     * @param pretty false for compact JSON
+     * @param webRequest
+     * @return
+     */
+    @GetMapping(value = "/getBundle/{patientId}", produces = "application/json")
+    public Mono<ResponseEntity<StreamingResponseBody>> getBundle(@PathVariable String patientId,
+                                            @RequestParam(value = "_pretty", defaultValue = "true") boolean pretty,
+                                            WebRequest webRequest) {
+        log.debug("Get Bundle.");
+
+        // log event stream
+        return this.logEventStream(patientId, EventStream.BUNDLE_RESOURCE, EventStream.HTTP_GET)
+                .then(Mono.defer(() -> this.reactiveFhirService.processPatientId(patientId)))
+                .map(Optional::of)
+                .defaultIfEmpty(Optional.empty())
+                .flatMap(found -> {
+                    if(!found.isPresent()) {
+                        return Mono.just(ResponseEntity.ok().contentType(MediaType.APPLICATION_JSON)
+                                .<StreamingResponseBody>body(out -> { }));
+                    }
+
+                    Patient patient = found.get();
+                    String eTag = this.reactiveFhirService.getBundleETag(patient, pretty);
+                    if(webRequest.checkNotModified(eTag)) {
+                        // 304 already set on the response
+                        return Mono.empty();
+                    }
+
+                    return Mono.just(ResponseEntity.ok()
+                            .eTag(eTag)
+                            .cacheControl(CacheControl.noCache().cachePrivate())
+                            .contentType(MediaType.APPLICATION_JSON)
+                            .<StreamingResponseBody>body(out -> this.reactiveFhirService.writeBundle(patient, pretty, out)));
+                });
+    }
+
+    /**
+     * Log all events with unencrypted client
+     *
+     * @param fhirResourceString
+     * @param fhirResourceType
+     * @param eventMethod
+     * @return completes when the event is logged or queued
+     */
+    private Mono<Void> logEventStream(String fhirResourceString, String fhirResourceType, String eventMethod) {
+        EventStream eventStream = new EventStream();
+        eventStream.setEventDate(new java.util.Date());
+        eventStream.setRawEventString(fhirResourceString);
+        eventStream.setEventMethod(eventMethod);
+        eventStream.setResourceType(fhirResourceType);
+
+        return this.reactiveFhirService.processEventStream(eventStream);
+    }
+}
@@ -0,0 +1,211 @@
+package com.mongodb.fhir.webservice.service;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.env.Environment;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Component;
+import org.springframework.web.context.request.async.DeferredResult;
+import org.springframework.web.server.ResponseStatusException;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs controller handlers on a dedicated bounded executor and returns a
+ * DeferredResult, so the servlet thread is released while the request
+ * waits on HAPI parsing, mongocryptd and MongoDB.
+ *
+ * Each endpoint has its own limit of requests in flight (queued plus
+ * running); over the limit, or when the executor queue is full, the
+ * request is rejected with 503 right away instead of piling up.  A
+ * request that does not complete within the timeout also gets 503.
+ *
+ * With fhir.async.enabled=false the handlers run on the servlet thread
+ * as before, without limits or timeout.
+ */
+@Component
+public class RequestExecutor {
+
+    // Logger component
+    private static final Logger log = LoggerFactory.getLogger(RequestExecutor.class);
+
+    @Value("${fhir.async.enabled:false}")
+    private boolean enabled;
+
+    @Value("${fhir.async.threads:100}")
+    private int threads;
+
+    @Value("${fhir.async.queueCapacity:2000}")
+    private int queueCapacity;
+
+    @Value("${fhir.async.timeoutMs:30000}")
+    private long timeoutMs;
+
+    // default limit, fhir.async.maxConcurrent.<endpoint> overrides it per endpoint
+    @Value("${fhir.async.maxConcurrent:500}")
+    private int maxConcurrent;
+
+    private Environment environment;
+
+    private MeterRegistry meterRegistry;
+
+    private ThreadPoolExecutor executor;
+
+    private final Map<String, Semaphore> limits = new ConcurrentHashMap<>();
+
+    /**
+     *
+     * @param environment
+     * @param meterRegistry
+     */
+    public RequestExecutor(Environment environment, MeterRegistry meterRegistry) {
+        this.environment = environment;
+        this.meterRegistry = meterRegistry;
+    }
+
+    /**
+     * Create the executor and its metrics
+     */
+    @PostConstruct
+    public void start() {
+        if(!enabled) {
+            return;
+        }
+
+        AtomicInteger threadNumber = new AtomicInteger();
+        executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(queueCapacity), runnable -> {
+                    Thread thread = new Thread(runnable, "fhir-request-" + threadNumber.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        executor.allowCoreThreadTimeOut(true);
+
+        Gauge.builder("fhir.request.queued", executor, e -> e.getQueue().size())
+                .description("Requests waiting for a request thread")
+                .register(meterRegistry);
+        Gauge.builder("fhir.request.active", executor, ThreadPoolExecutor::getActiveCount)
+                .description("Requests running on a request thread")
+                .register(meterRegistry);
+
+        log.info("Async request execution enabled. Threads: {}, queue capacity: {}, timeout: {} ms",
+                threads, queueCapacity, timeoutMs);
+    }
+
+    /**
+     *
+     */
+    @PreDestroy
+    public void stop() {
+        if(executor != null) {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Run a handler for an endpoint
+     *
+     * @param endpoint endpoint name, used for its limit and metric tags
+     * @param handler
+     * @param <T>
+     * @return result of the handler, or 503 if rejected or timed out
+     */
+    public <T> DeferredResult<T> submit(String endpoint, Callable<T> handler) {
+        if(!enabled) {
+            DeferredResult<T> deferredResult = new DeferredResult<>();
+            try {
+                deferredResult.setResult(handler.call());
+            } catch (Exception e) {
+                deferredResult.setErrorResult(e);
+            }
+            return deferredResult;
+        }
+
+        DeferredResult<T> deferredResult = new DeferredResult<>(timeoutMs);
+        deferredResult.onTimeout(() -> {
+            meterRegistry.counter("fhir.request.timeout", "endpoint", endpoint).increment();
+            deferredResult.setErrorResult(
+                    new ResponseStatusException(HttpStatus.SERVICE_UNAVAILABLE, "Request timed out."));
+        });
+
+        Semaphore limit = limits.computeIfAbsent(endpoint, this::createLimit);
+        if(!limit.tryAcquire()) {
+            return this.reject(deferredResult, endpoint, "limit");
+        }
+
+        long queuedAt = System.nanoTime();
+        try {
+            executor.execute(() -> {
+                try {
+                    Timer.builder("fhir.request.wait")
+                            .description("Time a request waited for a request thread")
+                            .tag("endpoint", endpoint)
+                            .register(meterRegistry)
+                            .record(System.nanoTime() - queuedAt, TimeUnit.NANOSECONDS);
+
+                    // the client already got its timeout response
+                    if(deferredResult.isSetOrExpired()) {
+                        return;
+                    }
+                    deferredResult.setResult(handler.call());
+                } catch (Exception e) {
+                    deferredResult.setErrorResult(e);
+                } finally {
+                    limit.release();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            limit.release();
+            return this.reject(deferredResult, endpoint, "queue");
+        }
+
+        return deferredResult;
+    }
+
+    /**
+     *
+     * @param deferredResult
+     * @param endpoint
+     * @param reason
+     * @param <T>
+     * @return
+     */
+    private <T> DeferredResult<T> reject(DeferredResult<T> deferredResult, String endpoint, String reason) {
+        meterRegistry.counter("fhir.request.rejected", "endpoint", endpoint, "reason", reason).increment();
+        deferredResult.setErrorResult(
+                new ResponseStatusException(HttpStatus.SERVICE_UNAVAILABLE, "Too many concurrent requests."));
+        return deferredResult;
+    }
+
+    /**
+     * Limit of requests in flight for an endpoint, with its gauge
+     *
+     * @param endpoint
+     * @return
+     */
+    private Semaphore createLimit(String endpoint) {
+        int permits = environment.getProperty("fhir.async.maxConcurrent." + endpoint, Integer.class, maxConcurrent);
+        Semaphore limit = new Semaphore(permits);
+
+        Gauge.builder("fhir.request.inflight", limit, semaphore -> permits - semaphore.availablePermits())
+                .description("Requests queued or running")
+                .tag("endpoint", endpoint)
+                .register(meterRegistry);
+
+        return limit;
+    }
+}
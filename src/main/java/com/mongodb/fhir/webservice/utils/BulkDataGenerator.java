@@ -0,0 +1,259 @@
+package com.mongodb.fhir.webservice.utils;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.mongodb.fhir.webservice.model.Condition;
+import com.mongodb.fhir.webservice.model.Patient;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntFunction;
+
+/**
+ * Offline generator of synthetic patients and conditions for capacity tests.
+ *
+ * The dataset is split into partitions generated in parallel, one worker
+ * and one writer per partition.  Each partition has its own generator seeded
+ * from the dataset seed and the partition number, so a seed always gives the
+ * same dataset whatever the thread timing.  Records do not go through HTTP,
+ * Hapi-Fhir or FhirService: they are handed to a writer, e.g. MongoDB
+ * insertMany batches or NDJSON files.
+ */
+public class BulkDataGenerator {
+
+    // Logger component
+    private static final Logger log = LoggerFactory.getLogger(BulkDataGenerator.class);
+
+    private static final long REPORT_INTERVAL_SECONDS = 5;
+
+    private final long seed;
+
+    private final long numPatients;
+
+    private final int partitions;
+
+    private final AtomicLong patients = new AtomicLong();
+
+    private final AtomicLong conditions = new AtomicLong();
+
+    private volatile boolean cancelled;
+
+    /**
+     *
+     * @param seed
+     * @param numPatients target dataset size
+     * @param partitions number of workers and writers
+     */
+    public BulkDataGenerator(long seed, long numPatients, int partitions) {
+        this.seed = seed;
+        this.numPatients = numPatients;
+        this.partitions = Math.max(1, partitions);
+    }
+
+    /**
+     * Writer of the generated records of one partition, used by one thread
+     */
+    public interface RecordWriter extends Closeable {
+
+        /**
+         * Write a patient and its conditions
+         *
+         * @param patient
+         * @throws IOException
+         */
+        void write(Patient patient) throws IOException;
+    }
+
+    /**
+     * Generate the dataset, returns when all partitions are written
+     *
+     * @param writers creates the writer of a partition
+     * @throws IOException if a writer failed
+     */
+    public void run(IntFunction<RecordWriter> writers) throws IOException {
+        log.info("Generate {} patients in {} partitions with seed {}", numPatients, partitions, seed);
+
+        long start = System.nanoTime();
+        ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "bulk-generator-report");
+            thread.setDaemon(true);
+            return thread;
+        });
+        reporter.scheduleAtFixedRate(() -> log.info(this.getProgress(start)),
+                REPORT_INTERVAL_SECONDS, REPORT_INTERVAL_SECONDS, TimeUnit.SECONDS);
+
+        ExecutorService executor = Executors.newFixedThreadPool(partitions);
+        try {
+            List<Future<?>> running = new ArrayList<>(partitions);
+            for(int p = 0; p < partitions; p++) {
+                int partition = p;
+                running.add(executor.submit(() -> {
+                    this.generatePartition(partition, writers);
+                    return null;
+                }));
+            }
+
+            for(Future<?> partition : running) {
+                partition.get();
+            }
+        } catch (InterruptedException e) {
+            cancelled = true;
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            cancelled = true;
+            if(e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            if(e.getCause() instanceof UncheckedIOException) {
+                throw ((UncheckedIOException) e.getCause()).getCause();
+            }
+            throw new IllegalStateException(e.getCause());
+        } finally {
+            executor.shutdownNow();
+            reporter.shutdownNow();
+            log.info("Done. {}", this.getProgress(start));
+        }
+    }
+
+    /**
+     * Stop all partitions after their current record
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    /**
+     *
+     * @param partition
+     * @param writers
+     * @throws IOException
+     */
+    private void generatePartition(int partition, IntFunction<RecordWriter> writers) throws IOException {
+        // the first partitions take the remainder
+        long count = numPatients / partitions + (partition < numPatients % partitions ? 1 : 0);
+        RandomDataGenerator generator = new RandomDataGenerator(seed * 31 + partition);
+
+        try (RecordWriter writer = writers.apply(partition)) {
+            for(long idx = 0; idx < count && !cancelled; idx++) {
+                Patient patient = generator.nextPatient();
+                writer.write(patient);
+
+                patients.incrementAndGet();
+                conditions.addAndGet(patient.getConditions().size());
+            }
+        }
+    }
+
+    /**
+     *
+     * @return
+     */
+    public long getPatients() {
+        return patients.get();
+    }
+
+    /**
+     *
+     * @return
+     */
+    public long getConditions() {
+        return conditions.get();
+    }
+
+    /**
+     * Records written so far and the rate since the start
+     *
+     * @param start
+     * @return
+     */
+    private String getProgress(long start) {
+        double seconds = Math.max(1e-9, (System.nanoTime() - start) / 1e9);
+        long patientCount = patients.get();
+        long conditionCount = conditions.get();
+        return String.format("patients: %d of %d, conditions: %d, elapsed: %.1f s, records/s: %.0f (patients/s: %.0f)",
+                patientCount, numPatients, conditionCount, seconds,
+                (patientCount + conditionCount) / seconds, patientCount / seconds);
+    }
+
+    /**
+     * FHIR NDJSON writer of a partition: Patient-<partition>.ndjson and Condition-<partition>.ndjson
+     */
+    public static class NdjsonWriter implements RecordWriter {
+
+        private static final int BUFFER_SIZE = 1 << 16;
+
+        private final JsonGenerator patientGenerator;
+
+        private final JsonGenerator conditionGenerator;
+
+        /**
+         *
+         * @param directory
+         * @param partition
+         * @throws IOException
+         */
+        public NdjsonWriter(Path directory, int partition) throws IOException {
+            Files.createDirectories(directory);
+            patientGenerator = FhirStreamingSerializer.createNdjsonGenerator(new BufferedOutputStream(
+                    Files.newOutputStream(directory.resolve("Patient-" + partition + ".ndjson")), BUFFER_SIZE));
+            conditionGenerator = FhirStreamingSerializer.createNdjsonGenerator(new BufferedOutputStream(
+                    Files.newOutputStream(directory.resolve("Condition-" + partition + ".ndjson")), BUFFER_SIZE));
+        }
+
+        @Override
+        public void write(Patient patient) throws IOException {
+            FhirStreamingSerializer.writePatientResource(patientGenerator, patient);
+            patientGenerator.writeRaw('\n');
+
+            for(Condition condition : patient.getConditions()) {
+                FhirStreamingSerializer.writeConditionResource(conditionGenerator, condition, patient.getPatientId());
+                conditionGenerator.writeRaw('\n');
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                patientGenerator.close();
+            } finally {
+                conditionGenerator.close();
+            }
+        }
+    }
+
+    /**
+     * Generate NDJSON files
+     *
+     * @param args [numPatients] [partitions] [seed] [directory]
+     * @throws IOException
+     */
+    public static void main(String[] args) throws IOException {
+        long numPatients = args.length > 0 ? Long.parseLong(args[0]) : 1_000_000;
+        int partitions = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+        long seed = args.length > 2 ? Long.parseLong(args[2]) : 42;
+        Path directory = Paths.get(args.length > 3 ? args[3] : "bulk");
+
+        new BulkDataGenerator(seed, numPatients, partitions).run(partition -> {
+            try {
+                return new NdjsonWriter(directory, partition);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+    }
+}
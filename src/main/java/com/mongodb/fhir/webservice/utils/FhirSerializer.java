@@ -1,7 +1,7 @@
 package com.mongodb.fhir.webservice.utils;
 
-import ca.uhn.fhir.context.FhirContext;
 import ca.uhn.fhir.parser.IParser;
+import com.mongodb.fhir.webservice.parser.FhirContextProvider;
 import org.hl7.fhir.r5.model.*;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -17,9 +17,6 @@ public class FhirSerializer {
     // Logger component
     private static final Logger log = LoggerFactory.getLogger(FhirSerializer.class);
 
-    // Create a FHIR context
-    private static FhirContext ctx = FhirContext.forR5();
-
     /**
      *
      */
@@ -61,8 +58,8 @@ public class FhirSerializer {
         addressList.add(address);
         patient.setAddress(addressList);
 
-        // Instantiate a new JSON parser
-        IParser parser = ctx.newJsonParser();
+        // Reuse this thread's JSON parser
+        IParser parser = FhirContextProvider.getJsonParser();
 
         // Serialize it
         String serialized = parser.encodeResourceToString(patient);
@@ -153,8 +150,8 @@ public class FhirSerializer {
         reference.setReference(subjectId);
         condition.setSubject(reference);
 
-        // Instantiate a new JSON parser
-        IParser parser = ctx.newJsonParser();
+        // Reuse this thread's JSON parser
+        IParser parser = FhirContextProvider.getJsonParser();
 
         // Serialize it
         String serialized = parser.encodeResourceToString(condition);
@@ -214,10 +211,20 @@ public class FhirSerializer {
     /**
      *
      * @param myPatient
-     * @return
+     * @return pretty-printed Bundle
      */
     public static String serializeBundle(com.mongodb.fhir.webservice.model.Patient myPatient) {
-        log.info("Serializing Bundle.");
+        return FhirSerializer.serializeBundle(myPatient, true);
+    }
+
+    /**
+     *
+     * @param myPatient
+     * @param pretty pretty-printed or compact JSON
+     * @return
+     */
+    public static String serializeBundle(com.mongodb.fhir.webservice.model.Patient myPatient, boolean pretty) {
+        log.debug("Serializing Bundle.");
 
         String bundleAsString = "";
 
@@ -237,7 +244,7 @@ public class FhirSerializer {
                     .setMethod(Bundle.HTTPVerb.POST);
 
         } else {
-            log.info("Patient not serialized.  Null value.");
+            log.debug("Patient not serialized.  Null value.");
         }
 
         // Loop and serialize each condition as part of Bundle Resource
@@ -257,16 +264,73 @@ public class FhirSerializer {
             }
 
         } else {
-            log.info("No conditions to serialize as part of Bundle for patientId: " + myPatient.getPatientId());
+            log.debug("No conditions to serialize as part of Bundle.");
         }
 
         // Convert bundle to string in order to return to client
-        FhirContext ctx = FhirContext.forR5();
-        bundleAsString = ctx.newJsonParser().setPrettyPrint(true).encodeResourceToString(bundle);
+        IParser parser = pretty ? FhirContextProvider.getPrettyJsonParser() : FhirContextProvider.getJsonParser();
+        bundleAsString = parser.encodeResourceToString(bundle);
 
         return bundleAsString;
     }
 
+    /**
+     * Serialize the per-entry outcome of a batch bundle.
+     * The arrays are indexed by request entry; location and diagnostics may hold nulls.
+     *
+     * @param statuses
+     * @param locations
+     * @param diagnostics
+     * @param warning added to the outcome of every entry, may be null
+     * @return batch-response Bundle
+     */
+    public static String serializeBundleResponse(String[] statuses, String[] locations, String[] diagnostics,
+                                                 String warning) {
+        Bundle bundle = new Bundle();
+        bundle.setType(Bundle.BundleType.BATCHRESPONSE);
+
+        for(int idx = 0; idx < statuses.length; idx++) {
+            Bundle.BundleEntryResponseComponent response = bundle.addEntry().getResponse();
+            response.setStatus(statuses[idx]);
+
+            if(locations[idx] != null) {
+                response.setLocation(locations[idx]);
+            }
+
+            if(diagnostics[idx] != null || warning != null) {
+                OperationOutcome outcome = diagnostics[idx] != null ? operationOutcome(diagnostics[idx]) : new OperationOutcome();
+                if(warning != null) {
+                    outcome.addIssue()
+                            .setSeverity(OperationOutcome.IssueSeverity.WARNING)
+                            .setCode(OperationOutcome.IssueType.NOTSUPPORTED)
+                            .setDiagnostics(warning);
+                }
+                response.setOutcome(outcome);
+            }
+        }
+
+        return FhirContextProvider.getPrettyJsonParser().encodeResourceToString(bundle);
+    }
+
+    /**
+     * Serialize an OperationOutcome with a single error issue
+     *
+     * @param diagnostics
+     * @return
+     */
+    public static String serializeOperationOutcome(String diagnostics) {
+        return FhirContextProvider.getPrettyJsonParser().encodeResourceToString(operationOutcome(diagnostics));
+    }
+
+    private static OperationOutcome operationOutcome(String diagnostics) {
+        OperationOutcome outcome = new OperationOutcome();
+        outcome.addIssue()
+                .setSeverity(OperationOutcome.IssueSeverity.ERROR)
+                .setCode(OperationOutcome.IssueType.PROCESSING)
+                .setDiagnostics(diagnostics);
+        return outcome;
+    }
+
     /**
      * Method to test class
      *
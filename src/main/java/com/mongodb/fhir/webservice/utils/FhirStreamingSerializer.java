@@ -0,0 +1,323 @@
+package com.mongodb.fhir.webservice.utils;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.SerializableString;
+import com.fasterxml.jackson.core.io.CharacterEscapes;
+import com.fasterxml.jackson.core.io.SerializedString;
+import com.fasterxml.jackson.core.util.DefaultIndenter;
+import com.fasterxml.jackson.core.util.DefaultPrettyPrinter;
+import com.mongodb.fhir.webservice.model.Condition;
+import com.mongodb.fhir.webservice.model.Patient;
+import org.hl7.fhir.r5.model.Enumerations;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Streaming serializer of the patient Bundle resource.
+ *
+ * Writes the same JSON as FhirSerializer.serializeBundle, entry by entry,
+ * straight to an OutputStream with Jackson's JsonGenerator.  No Hapi-Fhir
+ * object graph or String of the whole bundle is built, so memory use does
+ * not grow with the number of conditions.
+ *
+ * Empty values are left out like Hapi-Fhir does, and dates are formatted
+ * like the Hapi-Fhir DateType (day) and DateTimeType (second precision) in
+ * the default time zone, so both serializers give the same output.
+ */
+public class FhirStreamingSerializer {
+
+    private static final JsonFactory jsonFactory = new JsonFactory();
+
+    private static final DateTimeFormatter dateFormatter = DateTimeFormatter.ofPattern("yyyy-MM-dd");
+    private static final DateTimeFormatter dateTimeFormatter = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ssxxx");
+
+    /**
+     *
+     */
+    private FhirStreamingSerializer() {
+
+    }
+
+    /**
+     * Write the patient and its conditions as a transaction Bundle
+     *
+     * @param myPatient
+     * @param pretty pretty-printed or compact JSON
+     * @param out not closed
+     * @throws IOException
+     */
+    public static void writeBundle(Patient myPatient, boolean pretty, OutputStream out) throws IOException {
+        try (JsonGenerator generator = jsonFactory.createGenerator(out, JsonEncoding.UTF8)) {
+            generator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+            generator.setCharacterEscapes(FhirCharacterEscapes.INSTANCE);
+            if(pretty) {
+                generator.setPrettyPrinter(new FhirPrettyPrinter());
+            }
+
+            generator.writeStartObject();
+            generator.writeStringField("resourceType", "Bundle");
+            generator.writeStringField("type", "transaction");
+            generator.writeArrayFieldStart("entry");
+
+            generator.writeStartObject();
+            writeString(generator, "fullUrl", myPatient.getPatientId());
+            generator.writeFieldName("resource");
+            writePatient(generator, myPatient);
+            writeRequest(generator, "Patient");
+            generator.writeEndObject();
+
+            List<Condition> conditions = myPatient.getConditions();
+            if(conditions != null) {
+                for(Condition myCondition : conditions) {
+                    generator.writeStartObject();
+                    generator.writeFieldName("resource");
+                    writeCondition(generator, myCondition, myPatient.getPatientId());
+                    writeRequest(generator, "Condition");
+                    generator.writeEndObject();
+                }
+            }
+
+            generator.writeEndArray();
+            generator.writeEndObject();
+        }
+    }
+
+    /**
+     * Generator for FHIR NDJSON: compact resources, the caller ends each one with a newline.
+     * Closing the generator closes the stream.
+     *
+     * @param out
+     * @return
+     * @throws IOException
+     */
+    public static JsonGenerator createNdjsonGenerator(OutputStream out) throws IOException {
+        JsonGenerator generator = jsonFactory.createGenerator(out, JsonEncoding.UTF8);
+        generator.setCharacterEscapes(FhirCharacterEscapes.INSTANCE);
+        generator.setRootValueSeparator(null);
+        return generator;
+    }
+
+    /**
+     * Write a Patient resource as a root value
+     *
+     * @param generator
+     * @param myPatient
+     * @throws IOException
+     */
+    public static void writePatientResource(JsonGenerator generator, Patient myPatient) throws IOException {
+        writePatient(generator, myPatient);
+    }
+
+    /**
+     * Write a Condition resource as a root value
+     *
+     * @param generator
+     * @param myCondition
+     * @param subjectId
+     * @throws IOException
+     */
+    public static void writeConditionResource(JsonGenerator generator, Condition myCondition, String subjectId)
+            throws IOException {
+        writeCondition(generator, myCondition, subjectId);
+    }
+
+    /**
+     *
+     * @param generator
+     * @param myPatient
+     * @throws IOException
+     */
+    private static void writePatient(JsonGenerator generator, Patient myPatient) throws IOException {
+        generator.writeStartObject();
+        generator.writeStringField("resourceType", "Patient");
+        writeString(generator, "id", myPatient.getPatientId());
+
+        if(!isEmpty(myPatient.getLastName()) || !isEmpty(myPatient.getFirstName())) {
+            generator.writeArrayFieldStart("name");
+            generator.writeStartObject();
+            writeString(generator, "family", myPatient.getLastName());
+            if(!isEmpty(myPatient.getFirstName())) {
+                generator.writeArrayFieldStart("given");
+                generator.writeString(myPatient.getFirstName());
+                generator.writeEndArray();
+            }
+            generator.writeEndObject();
+            generator.writeEndArray();
+        }
+
+        boolean male = Enumerations.AdministrativeGender.MALE.toString().equalsIgnoreCase(myPatient.getGender());
+        generator.writeStringField("gender", male ? Enumerations.AdministrativeGender.MALE.toCode()
+                : Enumerations.AdministrativeGender.FEMALE.toCode());
+
+        if(myPatient.getBirthDate() != null) {
+            generator.writeStringField("birthDate", format(dateFormatter, myPatient.getBirthDate()));
+        }
+
+        if(!isEmpty(myPatient.getAddress()) || !isEmpty(myPatient.getCity())
+                || !isEmpty(myPatient.getState()) || !isEmpty(myPatient.getPostalCode())) {
+            generator.writeArrayFieldStart("address");
+            generator.writeStartObject();
+            if(!isEmpty(myPatient.getAddress())) {
+                generator.writeArrayFieldStart("line");
+                generator.writeString(myPatient.getAddress());
+                generator.writeEndArray();
+            }
+            writeString(generator, "city", myPatient.getCity());
+            writeString(generator, "state", myPatient.getState());
+            writeString(generator, "postalCode", myPatient.getPostalCode());
+            generator.writeEndObject();
+            generator.writeEndArray();
+        }
+
+        generator.writeEndObject();
+    }
+
+    /**
+     *
+     * @param generator
+     * @param myCondition
+     * @param subjectId
+     * @throws IOException
+     */
+    private static void writeCondition(JsonGenerator generator, Condition myCondition, String subjectId)
+            throws IOException {
+        generator.writeStartObject();
+        generator.writeStringField("resourceType", "Condition");
+
+        writeCodeableConcept(generator, "clinicalStatus", myCondition.getClinicalStatus(), null);
+        writeCodeableConcept(generator, "verificationStatus", myCondition.getVerificationStatus(), null);
+        writeCodeableConcept(generator, "severity", null, myCondition.getSeverity());
+        writeCodeableConcept(generator, "code", myCondition.getConditionCode(), myCondition.getCondition());
+
+        if(!isEmpty(subjectId)) {
+            generator.writeObjectFieldStart("subject");
+            generator.writeStringField("reference", subjectId);
+            generator.writeEndObject();
+        }
+
+        if(myCondition.getOnsetDate() != null) {
+            generator.writeStringField("onsetDateTime", format(dateTimeFormatter, myCondition.getOnsetDate()));
+        }
+
+        generator.writeEndObject();
+    }
+
+    /**
+     * CodeableConcept with a single coding, left out if code and display are empty
+     *
+     * @param generator
+     * @param fieldName
+     * @param code
+     * @param display
+     * @throws IOException
+     */
+    private static void writeCodeableConcept(JsonGenerator generator, String fieldName, String code, String display)
+            throws IOException {
+        if(isEmpty(code) && isEmpty(display)) {
+            return;
+        }
+
+        generator.writeObjectFieldStart(fieldName);
+        generator.writeArrayFieldStart("coding");
+        generator.writeStartObject();
+        writeString(generator, "code", code);
+        writeString(generator, "display", display);
+        generator.writeEndObject();
+        generator.writeEndArray();
+        generator.writeEndObject();
+    }
+
+    /**
+     *
+     * @param generator
+     * @param url
+     * @throws IOException
+     */
+    private static void writeRequest(JsonGenerator generator, String url) throws IOException {
+        generator.writeObjectFieldStart("request");
+        generator.writeStringField("method", "POST");
+        generator.writeStringField("url", url);
+        generator.writeEndObject();
+    }
+
+    /**
+     *
+     * @param generator
+     * @param fieldName
+     * @param value
+     * @throws IOException
+     */
+    private static void writeString(JsonGenerator generator, String fieldName, String value) throws IOException {
+        if(!isEmpty(value)) {
+            generator.writeStringField(fieldName, value);
+        }
+    }
+
+    /**
+     *
+     * @param formatter
+     * @param date
+     * @return
+     */
+    private static String format(DateTimeFormatter formatter, Date date) {
+        return formatter.format(date.toInstant().atZone(ZoneId.systemDefault()));
+    }
+
+    /**
+     * Hapi-Fhir leaves out blank primitives
+     *
+     * @param value
+     * @return
+     */
+    private static boolean isEmpty(String value) {
+        return value == null || value.trim().isEmpty();
+    }
+
+    /**
+     * Hapi-Fhir also escapes the line and paragraph separators
+     */
+    private static class FhirCharacterEscapes extends CharacterEscapes {
+
+        private static final FhirCharacterEscapes INSTANCE = new FhirCharacterEscapes();
+
+        private static final SerializedString LINE_SEPARATOR = new SerializedString("\\u2028");
+        private static final SerializedString PARAGRAPH_SEPARATOR = new SerializedString("\\u2029");
+
+        private final int[] asciiEscapes = CharacterEscapes.standardAsciiEscapesForJSON();
+
+        @Override
+        public int[] getEscapeCodesForAscii() {
+            return asciiEscapes;
+        }
+
+        @Override
+        public SerializableString getEscapeSequence(int ch) {
+            if(ch == '\u2028') {
+                return LINE_SEPARATOR;
+            } else if(ch == '\u2029') {
+                return PARAGRAPH_SEPARATOR;
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Same layout as the Hapi-Fhir pretty printer: two space indent and "key": value
+     */
+    private static class FhirPrettyPrinter extends DefaultPrettyPrinter {
+
+        private FhirPrettyPrinter() {
+            DefaultIndenter indenter = new DefaultIndenter("  ", "\n");
+            indentObjectsWith(indenter);
+            indentArraysWith(indenter);
+            _objectFieldValueSeparatorWithSpaces = ": ";
+        }
+    }
+}
@@ -3,111 +3,308 @@ package com.mongodb.fhir.webservice.utils;
 import com.mongodb.fhir.webservice.model.Patient;
 import com.mongodb.fhir.webservice.model.Condition;
 
+import org.HdrHistogram.ConcurrentHistogram;
+import org.HdrHistogram.Histogram;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.springframework.http.*;
-import org.springframework.web.client.RestTemplate;
 
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
 import java.util.Base64;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * Class used to generate random FHIR Patient Resources with random number and types
  * of conditions.  The serialized FHIR strings are then POSTed to our FHIR Server.
+ *
+ * Patients are posted by a number of workers, each posting a patient and then
+ * its conditions, optionally paced to a target number of requests per second
+ * over all workers.  All generators share one keep-alive HTTP client, so
+ * connections are reused.  Progress and request latencies can be read while
+ * the generator runs.
  */
 public class PatientFhirGenerator {
 
+    // shared by all generators, keeps connections alive between requests
+    private static final HttpClient httpClient = HttpClient.newBuilder()
+            .version(HttpClient.Version.HTTP_1_1)
+            .connectTimeout(Duration.ofSeconds(10))
+            .build();
+
+    private static final Duration REQUEST_TIMEOUT = Duration.ofSeconds(60);
+
+    // latencies up to an hour, 3 significant digits
+    private static final long MAX_LATENCY_MICROS = TimeUnit.HOURS.toMicros(1);
+
     // number of patients to generate
     // defaults to 100
     private int numPatients = 100;
 
-    private static HttpHeaders headers;
-    private static RestTemplate restTemplate;
+    private final int workers;
+
+    private final int targetRps;
+
+    private final String baseUrl;
+
+    private final String authorization;
+
+    private final AtomicInteger nextPatient = new AtomicInteger();
+
+    private final AtomicInteger completedPatients = new AtomicInteger();
+
+    private final AtomicLong requests = new AtomicLong();
+
+    private final AtomicLong errors = new AtomicLong();
+
+    // next send time of the rate limiter
+    private final AtomicLong nextSendNanos = new AtomicLong();
+
+    private final Histogram latencyMicros = new ConcurrentHistogram(MAX_LATENCY_MICROS, 3);
+
+    private volatile long startNanos;
+
+    private volatile long endNanos;
+
+    private volatile boolean cancelled;
 
     // Logger component
     private static final Logger log = LoggerFactory.getLogger(PatientFhirGenerator.class);
 
     /**
      *
+     * @param baseUrl e.g. http://localhost:8090
+     * @param credentials user:password for basic auth
+     * @param numPatients
+     * @param workers number of concurrent workers
+     * @param targetRps requests per second over all workers, 0 for no limit
      */
-    public PatientFhirGenerator(int numPatients) {
+    public PatientFhirGenerator(String baseUrl, String credentials, int numPatients, int workers, int targetRps) {
 
         if(numPatients > 0) {
-            log.info("Setting new number of patients to generate.");
             this.numPatients = numPatients;
         }
+        this.workers = Math.max(1, workers);
+        this.targetRps = Math.max(0, targetRps);
+        this.baseUrl = baseUrl;
+        this.authorization = "Basic " +
+                Base64.getEncoder().encodeToString(credentials.getBytes(StandardCharsets.UTF_8));
 
-        log.info("Number of Patients to generate: " + this.numPatients);
+        log.info("Number of Patients to generate: {}, workers: {}, target rps: {}",
+                this.numPatients, this.workers, this.targetRps > 0 ? this.targetRps : "unlimited");
+    }
 
-        // create auth credentials
-        // these values are hard-coded for our FHIR server.  If you modify the values in the FHIR server
-        // application.properties file, you must change them here if you use this class to generate data.
-        String authStr = "fhirUser:fhirUserPassword";
-        String base64Creds = Base64.getEncoder().encodeToString(authStr.getBytes());
+    /**
+     * Generate random FHIR Patient/Condition resources, returns when all are posted or cancelled.
+     */
+    public void run() {
+        startNanos = System.nanoTime();
+        nextSendNanos.set(startNanos);
 
-        // create headers
-        headers = new HttpHeaders();
-        headers.add("Authorization", "Basic " + base64Creds);
-        headers.setContentType(MediaType.APPLICATION_JSON);
+        ExecutorService executor = Executors.newFixedThreadPool(workers);
+        try {
+            for(int w = 0; w < workers; w++) {
+                executor.execute(this::generatePatients);
+            }
+            executor.shutdown();
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            cancelled = true;
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        } finally {
+            endNanos = System.nanoTime();
+        }
 
-        restTemplate = new RestTemplate();
+        log.info("Generated {} of {} patients. {}", completedPatients.get(), numPatients, this.getProgress());
+    }
 
-        this.generatePatients();
+    /**
+     * Stop after the patients in progress
+     */
+    public void cancel() {
+        cancelled = true;
     }
 
     /**
-     * Generate random FHIR Patient/Condition resources.
+     * Worker loop, claims patients until all are generated
      */
     private void generatePatients() {
 
-        for(int idx = 0; idx < numPatients; idx++) {
+        while(!cancelled && nextPatient.getAndIncrement() < numPatients) {
 
             // get random patient object with random number/types of conditions
             Patient patient = RandomDataGenerator.getPatient();
             String serializedPatient = FhirSerializer.serializePatient(patient);
 
-            // post to FHIR server
-            this.postPatientToWebService(serializedPatient);
+            // post to FHIR server, the conditions need the patient
+            if(!this.post("/processFhir/patient", serializedPatient)) {
+                continue;
+            }
 
             // serialize the conditions
-            if(patient.getConditions().size() > 0) {
-                for(Condition condition : patient.getConditions() ) {
-                    String serializedCondition = FhirSerializer.serializeCondition(condition, patient.getPatientId());
-                    this.postConditionToWebService(serializedCondition);
-                }
+            for(Condition condition : patient.getConditions()) {
+                String serializedCondition = FhirSerializer.serializeCondition(condition, patient.getPatientId());
+                this.post("/processFhir/condition", serializedCondition);
             }
+
+            completedPatients.incrementAndGet();
         }
     }
 
     /**
-     * Post serialized FHIR Patient resource to FHIR server
+     * Post serialized FHIR resource to FHIR server
      *
-     * @param fhirPatient
+     * @param path
+     * @param fhirResource
+     * @return true if the server accepted it
      */
-    private void postPatientToWebService(String fhirPatient) {
-        HttpEntity<String> request = new HttpEntity<String>(fhirPatient, headers);
-        ResponseEntity<String> response
-                = new RestTemplate().exchange("http://localhost:8090/processFhir/patient", HttpMethod.POST, request, String.class);
-        if(response != null) {
-            log.info(response.getBody());
-        } else {
-            log.info("Null response.");
+    private boolean post(String path, String fhirResource) {
+        this.acquire();
+
+        HttpRequest request = HttpRequest.newBuilder(URI.create(baseUrl + path))
+                .timeout(REQUEST_TIMEOUT)
+                .header("Authorization", authorization)
+                .header("Content-Type", "application/json")
+                .header("Prefer", "return=minimal")
+                .POST(HttpRequest.BodyPublishers.ofString(fhirResource))
+                .build();
+
+        long start = System.nanoTime();
+        boolean ok = false;
+        try {
+            HttpResponse<Void> response = httpClient.send(request, HttpResponse.BodyHandlers.discarding());
+            ok = response.statusCode() < 300;
+            if(!ok) {
+                log.debug("POST {} returned {}", path, response.statusCode());
+            }
+        } catch (InterruptedException e) {
+            cancelled = true;
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            log.debug("POST {} failed: {}", path, e.toString());
+        }
+
+        latencyMicros.recordValue(Math.min(MAX_LATENCY_MICROS,
+                TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start)));
+        requests.incrementAndGet();
+        if(!ok) {
+            errors.incrementAndGet();
         }
 
+        return ok;
+    }
+
+    /**
+     * Wait for the next send slot when a target rate is set
+     */
+    private void acquire() {
+        if(targetRps == 0) {
+            return;
+        }
+
+        long interval = TimeUnit.SECONDS.toNanos(1) / targetRps;
+        long slot = nextSendNanos.getAndAdd(interval);
+        long wait;
+        while(!cancelled && (wait = slot - System.nanoTime()) > 0) {
+            LockSupport.parkNanos(wait);
+        }
     }
 
     /**
-     * Post serialized FHIR Condition resource to FHIR server
      *
-     * @param fhirCondition
+     * @return
      */
-    private void postConditionToWebService(String fhirCondition) {
-        HttpEntity<String> request = new HttpEntity<String>(fhirCondition, headers);
-        ResponseEntity<String> response
-                = new RestTemplate().exchange("http://localhost:8090/processFhir/condition", HttpMethod.POST, request, String.class);
-        if(response != null) {
-            log.info(response.getBody());
-        } else {
-            log.info("Null response.");
+    public Progress getProgress() {
+        return new Progress(this);
+    }
+
+    /**
+     * Snapshot of the progress and request latencies of a generator
+     */
+    public static class Progress {
+
+        private final int requestedPatients;
+        private final int completedPatients;
+        private final long requests;
+        private final long errors;
+        private final double elapsedSeconds;
+        private final double requestsPerSecond;
+        private final double p50Millis;
+        private final double p99Millis;
+        private final double p999Millis;
+        private final double maxMillis;
+
+        private Progress(PatientFhirGenerator generator) {
+            long start = generator.startNanos;
+            long end = generator.endNanos != 0 ? generator.endNanos : System.nanoTime();
+            Histogram latencies = generator.latencyMicros.copy();
+
+            this.requestedPatients = generator.numPatients;
+            this.completedPatients = generator.completedPatients.get();
+            this.requests = generator.requests.get();
+            this.errors = generator.errors.get();
+            this.elapsedSeconds = start != 0 ? (end - start) / 1e9 : 0;
+            this.requestsPerSecond = elapsedSeconds > 0 ? requests / elapsedSeconds : 0;
+            this.p50Millis = latencies.getValueAtPercentile(50) / 1000.0;
+            this.p99Millis = latencies.getValueAtPercentile(99) / 1000.0;
+            this.p999Millis = latencies.getValueAtPercentile(99.9) / 1000.0;
+            this.maxMillis = latencies.getMaxValue() / 1000.0;
+        }
+
+        public int getRequestedPatients() {
+            return requestedPatients;
+        }
+
+        public int getCompletedPatients() {
+            return completedPatients;
+        }
+
+        public long getRequests() {
+            return requests;
+        }
+
+        public long getErrors() {
+            return errors;
+        }
+
+        public double getElapsedSeconds() {
+            return elapsedSeconds;
+        }
+
+        public double getRequestsPerSecond() {
+            return requestsPerSecond;
+        }
+
+        public double getP50Millis() {
+            return p50Millis;
+        }
+
+        public double getP99Millis() {
+            return p99Millis;
+        }
+
+        public double getP999Millis() {
+            return p999Millis;
+        }
+
+        public double getMaxMillis() {
+            return maxMillis;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("requests: %d, errors: %d, elapsed: %.1f s, req/s: %.1f, " +
+                            "p50: %.2f ms, p99: %.2f ms, p999: %.2f ms, max: %.2f ms",
+                    requests, errors, elapsedSeconds, requestsPerSecond, p50Millis, p99Millis, p999Millis, maxMillis);
         }
     }
 
@@ -115,11 +312,18 @@ public class PatientFhirGenerator {
      * Main method to drive patient generation
      * Or, this class can be invoked from a REST endpoint
      *
-     * @param args
+     * @param args [numPatients] [workers] [targetRps] [baseUrl] [user:password]
      */
     public static void main(String[] args) {
+        int numPatients = args.length > 0 ? Integer.parseInt(args[0]) : 100;
+        int workers = args.length > 1 ? Integer.parseInt(args[1]) : 8;
+        int targetRps = args.length > 2 ? Integer.parseInt(args[2]) : 0;
+        String baseUrl = args.length > 3 ? args[3] : "http://localhost:8090";
+
+        // these values are hard-coded for our FHIR server.  If you modify the values in the FHIR server
+        // application.properties file, pass them as the last argument.
+        String credentials = args.length > 4 ? args[4] : "fhirUser:fhirUserPassword";
 
-        // generate 100 patients
-        new PatientFhirGenerator(100);
+        new PatientFhirGenerator(baseUrl, credentials, numPatients, workers, targetRps).run();
     }
 }
@@ -5,17 +5,40 @@ import com.mongodb.fhir.webservice.model.Condition;
 import com.mongodb.fhir.webservice.model.Patient;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Date;
 import java.util.List;
+import java.util.Random;
+import java.util.SplittableRandom;
 import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
 
 /**
  * Random data generator for app
+ *
+ * Names, streets, cities and states are drawn from pools built once with
+ * Faker when the class is loaded, so generating a patient is a few array
+ * lookups instead of Faker's YAML-driven expressions.  Ids, house numbers,
+ * postal codes and dates are generated from digits.
+ *
+ * An instance is not thread safe: give each thread its own, seeded or split
+ * from another.  An instance created with a seed always generates the same
+ * sequence of patients, apart from dates, which are relative to the current
+ * time.  The static methods use a generator per thread.
  */
 public class RandomDataGenerator {
 
-    // Faker data
-    private static Faker faker = new Faker();
+    // Size of each value pool
+    private static final int POOL_SIZE = 1024;
+
+    // Pools are the same on every run
+    private static final long POOL_SEED = 0x5EEDL;
+
+    private static final String[] FIRST_NAMES;
+    private static final String[] LAST_NAMES;
+    private static final String[] STREET_NAMES;
+    private static final String[] CITIES;
+    private static final String[] STATES;
+    private static final String[] SEXES = {"Male", "Female"};
 
     // Condition Types
     // These are actual HL7 condition codes and text
@@ -28,31 +51,113 @@ public class RandomDataGenerator {
             new ConditionType("34173009","Injury of radial artery")
     );
 
-    private static ThreadLocalRandom randomGenerator = ThreadLocalRandom.current();
+    // Birthdays between 18 and 65 years ago, like Faker's
+    private static final long MIN_AGE_MILLIS = TimeUnit.DAYS.toMillis(18 * 365);
+    private static final long MAX_AGE_MILLIS = TimeUnit.DAYS.toMillis(65 * 365);
+
+    // onset date within 30 days
+    private static final long ONSET_MILLIS = TimeUnit.DAYS.toMillis(30);
+
+    static {
+        Faker faker = new Faker(new Random(POOL_SEED));
+
+        FIRST_NAMES = new String[POOL_SIZE];
+        LAST_NAMES = new String[POOL_SIZE];
+        STREET_NAMES = new String[POOL_SIZE];
+        CITIES = new String[POOL_SIZE];
+        STATES = new String[POOL_SIZE];
+        for(int idx = 0; idx < POOL_SIZE; idx++) {
+            FIRST_NAMES[idx] = faker.name().firstName();
+            LAST_NAMES[idx] = faker.name().lastName();
+            STREET_NAMES[idx] = faker.address().streetName();
+            CITIES[idx] = faker.address().city();
+            STATES[idx] = faker.address().state();
+        }
+    }
+
+    // Generator per thread for the static methods
+    private static final ThreadLocal<RandomDataGenerator> threadGenerator =
+            ThreadLocal.withInitial(() -> new RandomDataGenerator(ThreadLocalRandom.current().nextLong()));
+
+    private final SplittableRandom random;
+
+    /**
+     * Generator with its own reproducible sequence, for use by a single thread
+     *
+     * @param seed
+     */
+    public RandomDataGenerator(long seed) {
+        this(new SplittableRandom(seed));
+    }
+
+    /**
+     *
+     * @param random
+     */
+    private RandomDataGenerator(SplittableRandom random) {
+        this.random = random;
+    }
+
+    /**
+     * New independent generator, e.g. for another thread; reproducible if this one is
+     *
+     * @return
+     */
+    public RandomDataGenerator split() {
+        return new RandomDataGenerator(random.split());
+    }
 
     /**
-     * Using Java faker lib to generate random patient data
+     * Using pooled values to generate random patient data
      *
      * @return
      */
     public static Patient getPatient() {
+        return threadGenerator.get().nextPatient();
+    }
+
+    /**
+     * Get a single random condition
+     *
+     * @return
+     */
+    public static Condition getCondition() {
+        return threadGenerator.get().nextCondition();
+    }
+
+    /**
+     * Grab a random condition type from static list
+     *
+     * @return
+     */
+    public static ConditionType getRandomConditionType() {
+        return threadGenerator.get().nextConditionType();
+    }
+
+    /**
+     * Next patient of this generator
+     *
+     * @return
+     */
+    public Patient nextPatient() {
+        long now = System.currentTimeMillis();
 
         Patient patient = new Patient();
-        patient.setPatientId(faker.idNumber().ssnValid());
-        patient.setFirstName(faker.name().firstName());
-        patient.setLastName(faker.name().lastName());
-        patient.setAddress(faker.address().streetAddress());
-        patient.setCity(faker.address().city());
-        patient.setState(faker.address().state());
-        patient.setPostalCode(faker.address().zipCode());
-        patient.setGender(faker.demographic().sex());
-        patient.setBirthDate(faker.date().birthday());
+        patient.setPatientId(this.nextSsn());
+        patient.setFirstName(this.pick(FIRST_NAMES));
+        patient.setLastName(this.pick(LAST_NAMES));
+        patient.setAddress(this.nextStreetAddress());
+        patient.setCity(this.pick(CITIES));
+        patient.setState(this.pick(STATES));
+        patient.setPostalCode(this.nextPostalCode());
+        patient.setGender(this.pick(SEXES));
+        patient.setBirthDate(new Date(now - random.nextLong(MIN_AGE_MILLIS, MAX_AGE_MILLIS)));
 
         // how many conditions should this patient have
-        List<Condition> conditions = new ArrayList<Condition>();
-        int numConditions = (int)(Math.random() * 5); // 5 max conditions
+        int numConditions = random.nextInt(5); // 5 max conditions
+        List<Condition> conditions = new ArrayList<Condition>(numConditions);
         for(int idx = 0; idx < numConditions; idx++) {
-            conditions.add(RandomDataGenerator.getCondition());
+            conditions.add(this.nextCondition(now));
         }
         patient.setConditions(conditions);
 
@@ -60,13 +165,22 @@ public class RandomDataGenerator {
     }
 
     /**
-     * Get a single random condition
+     * Next condition of this generator
      *
      * @return
      */
-    public static Condition getCondition() {
+    public Condition nextCondition() {
+        return this.nextCondition(System.currentTimeMillis());
+    }
+
+    /**
+     *
+     * @param now
+     * @return
+     */
+    private Condition nextCondition(long now) {
 
-        ConditionType conditionType = getRandomConditionType();
+        ConditionType conditionType = this.nextConditionType();
 
         Condition condition = new Condition();
         condition.setCondition(conditionType.getCondition());
@@ -74,21 +188,86 @@ public class RandomDataGenerator {
         condition.setVerificationStatus("confirmed");
         condition.setSeverity("severe");
         condition.setClinicalStatus("active");
-        // onset date within 30 days
-        condition.setOnsetDate(faker.date().past(30, TimeUnit.DAYS));
+        condition.setOnsetDate(new Date(now - 1 - random.nextLong(ONSET_MILLIS)));
 
         return condition;
     }
 
     /**
-     * Grab a random condition type from static list
      *
      * @return
      */
-    public static ConditionType getRandomConditionType() {
-        int randomType = randomGenerator.nextInt(RandomDataGenerator.conditionTypes.size());
+    private ConditionType nextConditionType() {
+        return conditionTypes.get(random.nextInt(conditionTypes.size()));
+    }
+
+    /**
+     *
+     * @param pool
+     * @return
+     */
+    private String pick(String[] pool) {
+        return pool[random.nextInt(pool.length)];
+    }
+
+    /**
+     * Valid SSN: area 001-899 except 666, group 01-99, serial 0001-9999
+     *
+     * @return
+     */
+    private String nextSsn() {
+        int area = random.nextInt(1, 899);
+        if(area >= 666) {
+            area++;
+        }
+        int group = random.nextInt(1, 100);
+        int serial = random.nextInt(1, 10000);
+
+        char[] ssn = new char[11];
+        putDigits(ssn, 0, area, 3);
+        ssn[3] = '-';
+        putDigits(ssn, 4, group, 2);
+        ssn[6] = '-';
+        putDigits(ssn, 7, serial, 4);
+        return new String(ssn);
+    }
+
+    /**
+     *
+     * @return
+     */
+    private String nextStreetAddress() {
+        String street = this.pick(STREET_NAMES);
+        return new StringBuilder(street.length() + 6)
+                .append(random.nextInt(1, 100000))
+                .append(' ')
+                .append(street)
+                .toString();
+    }
 
-        return RandomDataGenerator.conditionTypes.get(randomType);
+    /**
+     *
+     * @return
+     */
+    private String nextPostalCode() {
+        char[] zip = new char[5];
+        putDigits(zip, 0, random.nextInt(100000), 5);
+        return new String(zip);
+    }
+
+    /**
+     * Write a number as fixed width, zero padded digits
+     *
+     * @param chars
+     * @param offset
+     * @param value
+     * @param width
+     */
+    private static void putDigits(char[] chars, int offset, int value, int width) {
+        for(int idx = offset + width - 1; idx >= offset; idx--) {
+            chars[idx] = (char) ('0' + value % 10);
+            value /= 10;
+        }
     }
 
     /**
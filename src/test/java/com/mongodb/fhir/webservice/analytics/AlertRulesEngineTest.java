@@ -0,0 +1,138 @@
+package com.mongodb.fhir.webservice.analytics;
+
+import com.mongodb.fhir.webservice.model.ConditionEvent;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Rules fire once per crossing of their threshold, within the rate limit.
+ */
+class AlertRulesEngineTest {
+
+    private static final long MINUTE = TimeUnit.MINUTES.toMillis(1);
+
+    private static final long START = 1_600_000_000L * 60_000L;
+
+    private static final String INFLUENZA = "6142004";
+
+    private AlertRulesProperties properties;
+
+    private AlertRulesEngine engine;
+
+    @BeforeEach
+    void setUp() {
+        properties = new AlertRulesProperties();
+        properties.setMaxPerMinute(2);
+        properties.setRules(Arrays.asList(
+                rule("influenza-ma", INFLUENZA, "MA", 5, 10, 0),
+                rule("influenza-boston", INFLUENZA, "MA", 3, 10, 0)));
+        properties.getRules().get(1).setCity("Boston");
+        engine = new AlertRulesEngine(properties, new MockAlertSink(), new SimpleMeterRegistry());
+        engine.start();
+    }
+
+    @AfterEach
+    void tearDown() {
+        engine.stop();
+    }
+
+    private static AlertRulesProperties.Rule rule(String name, String code, String state, int threshold,
+                                                  int windowMinutes, int cooldownMinutes) {
+        AlertRulesProperties.Rule rule = new AlertRulesProperties.Rule();
+        rule.setName(name);
+        rule.setConditionCode(code);
+        rule.setState(state);
+        rule.setThreshold(threshold);
+        rule.setWindowMinutes(windowMinutes);
+        rule.setCooldownMinutes(cooldownMinutes);
+        return rule;
+    }
+
+    private List<Alert> report(String code, String state, String city, long now) {
+        ConditionEvent conditionEvent = new ConditionEvent();
+        conditionEvent.setConditionCode(code);
+        conditionEvent.setCondition("Influenza");
+        conditionEvent.setState(state);
+        conditionEvent.setCity(city);
+        conditionEvent.setReportedDate(new Date(now));
+        return engine.evaluate(conditionEvent, now);
+    }
+
+    @Test
+    void firesOncePerThresholdCrossing() {
+        for(int idx = 0; idx < 4; idx++) {
+            assertTrue(this.report(INFLUENZA, "MA", "Salem", START + idx).isEmpty());
+            // other codes and regions do not count
+            assertTrue(this.report("38341003", "MA", "Salem", START + idx).isEmpty());
+            assertTrue(this.report(INFLUENZA, "NY", "Albany", START + idx).isEmpty());
+        }
+
+        List<Alert> alerts = this.report(INFLUENZA, "MA", "Salem", START + 4);
+        assertEquals(1, alerts.size());
+        assertEquals("influenza-ma", alerts.get(0).getRule());
+        assertEquals(5, alerts.get(0).getCount());
+        assertEquals("MA", alerts.get(0).getState());
+
+        // an outbreak above the threshold does not alert per case
+        for(int idx = 5; idx < 100; idx++) {
+            assertTrue(this.report(INFLUENZA, "MA", "Salem", START + idx).isEmpty());
+        }
+
+        // the window empties, the next crossing alerts again
+        long later = START + 11 * MINUTE;
+        for(int idx = 0; idx < 4; idx++) {
+            assertTrue(this.report(INFLUENZA, "MA", "Salem", later).isEmpty());
+        }
+        assertEquals(1, this.report(INFLUENZA, "MA", "Salem", later).size());
+    }
+
+    @Test
+    void eventsLeaveTheWindow() {
+        for(int idx = 0; idx < 4; idx++) {
+            this.report(INFLUENZA, "MA", "Salem", START + idx * 3 * MINUTE);
+        }
+        // the first event is out of the 10 minute window, 4 in it
+        assertTrue(this.report(INFLUENZA, "MA", "Salem", START + 12 * MINUTE).isEmpty());
+        assertEquals(1, this.report(INFLUENZA, "MA", "Salem", START + 12 * MINUTE).size());
+    }
+
+    @Test
+    void cooldownAndRateLimit() {
+        properties.getRules().get(0).setCooldownMinutes(60);
+        properties.setRules(Arrays.asList(properties.getRules().get(0), properties.getRules().get(1),
+                rule("influenza-ny", INFLUENZA, "NY", 1, 10, 0),
+                rule("influenza-any", INFLUENZA, null, 1, 10, 0)));
+        engine.stop();
+        engine = new AlertRulesEngine(properties, new MockAlertSink(), new SimpleMeterRegistry());
+        engine.start();
+
+        // both sent, then the rate limit of 2 per minute drops the Boston alert
+        assertEquals(2, this.report(INFLUENZA, "NY", "Albany", START).size());
+        this.report(INFLUENZA, "MA", "Boston", START);
+        this.report(INFLUENZA, "MA", "Boston", START);
+        assertTrue(this.report(INFLUENZA, "MA", "Boston", START).isEmpty());
+
+        // a minute later there are tokens again, and the dropped alert is counted
+        this.report(INFLUENZA, "MA", "Boston", START + MINUTE);
+        List<Alert> alerts = this.report(INFLUENZA, "MA", "Boston", START + MINUTE);
+        assertEquals(1, alerts.size());
+        assertEquals("influenza-ma", alerts.get(0).getRule());
+        assertEquals(1, alerts.get(0).getSuppressed());
+
+        // below the threshold and back within the cooldown: no alert
+        long later = START + 12 * MINUTE;
+        for(int idx = 0; idx < 5; idx++) {
+            assertTrue(this.report(INFLUENZA, "MA", "Salem", later).stream()
+                    .noneMatch(alert -> alert.getRule().equals("influenza-ma")));
+        }
+    }
+}
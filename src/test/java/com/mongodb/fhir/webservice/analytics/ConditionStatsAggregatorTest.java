@@ -0,0 +1,117 @@
+package com.mongodb.fhir.webservice.analytics;
+
+import com.mongodb.fhir.webservice.model.ConditionEvent;
+import com.mongodb.fhir.webservice.model.ConditionStats;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Windowed counts follow the events in and out of the window.
+ */
+class ConditionStatsAggregatorTest {
+
+    private static final long MINUTE = TimeUnit.MINUTES.toMillis(1);
+
+    // on a slot boundary
+    private static final long START = 1_600_000_000L * 60_000L;
+
+    private ConditionStatsAggregator aggregator;
+
+    @BeforeEach
+    void setUp() {
+        aggregator = new ConditionStatsAggregator();
+        ReflectionTestUtils.setField(aggregator, "enabled", true);
+        ReflectionTestUtils.setField(aggregator, "windowMinutes", 10);
+        ReflectionTestUtils.setField(aggregator, "slotSeconds", 60);
+        aggregator.start();
+    }
+
+    private void record(String code, String state, String city, String gender, long reported) {
+        this.record(code, state, city, gender, reported, reported);
+    }
+
+    private void record(String code, String state, String city, String gender, long reported, long now) {
+        ConditionEvent conditionEvent = new ConditionEvent();
+        conditionEvent.setConditionCode(code);
+        conditionEvent.setState(state);
+        conditionEvent.setCity(city);
+        conditionEvent.setGender(gender);
+        conditionEvent.setReportedDate(new Date(reported));
+        aggregator.record(conditionEvent, now);
+    }
+
+    @Test
+    void countsByFilterAndDimension() {
+        this.record("6142004", "MA", "Boston", "FEMALE", START);
+        this.record("6142004", "MA", "Salem", "MALE", START + 1);
+        this.record("6142004", "NY", "Albany", "MALE", START + MINUTE);
+        this.record("38341003", "MA", "Boston", null, START + MINUTE);
+
+        ConditionStats all = aggregator.stats(null, null, null, null, 0, START + MINUTE);
+        assertEquals(4, all.getTotal());
+        assertEquals(3L, all.getByConditionCode().get("6142004"));
+        assertEquals("6142004", all.getByConditionCode().keySet().iterator().next());
+        assertEquals(1L, all.getByGender().get("unknown"));
+
+        ConditionStats influenzaMa = aggregator.stats("6142004", "MA", null, null, 0, START + MINUTE);
+        assertEquals(2, influenzaMa.getTotal());
+        assertEquals(1L, influenzaMa.getByCity().get("Salem"));
+        assertNull(influenzaMa.getByState().get("NY"));
+
+        assertEquals(0, aggregator.stats("6142004", "TX", null, null, 0, START + MINUTE).getTotal());
+
+        ConditionStats lastMinute = aggregator.stats(null, "MA", null, null, 1, START + MINUTE);
+        assertEquals(1, lastMinute.getTotal());
+    }
+
+    @Test
+    void eventsLeaveTheWindow() {
+        this.record("6142004", "MA", "Boston", "FEMALE", START);
+        this.record("6142004", "MA", "Boston", "FEMALE", START + 5 * MINUTE);
+
+        assertEquals(2, aggregator.stats("6142004", null, null, null, 0, START + 9 * MINUTE).getTotal());
+        assertEquals(1, aggregator.stats("6142004", null, null, null, 0, START + 10 * MINUTE).getTotal());
+        assertEquals(0, aggregator.stats("6142004", null, null, null, 0, START + 20 * MINUTE).getTotal());
+
+        // too old to count
+        ConditionEvent late = new ConditionEvent();
+        late.setConditionCode("6142004");
+        late.setReportedDate(new Date(START));
+        aggregator.record(late, START + 20 * MINUTE);
+        assertEquals(0, aggregator.stats(null, null, null, null, 0, START + 20 * MINUTE).getTotal());
+        assertEquals(1, aggregator.getDropped());
+    }
+
+    @Test
+    void runningTotalsMatchACountOfTheEvents() {
+        Random random = new Random(42);
+        List<Long> counted = new ArrayList<>();
+        long now = START;
+        for(int idx = 0; idx < 20000; idx++) {
+            now += random.nextInt(500);
+            long reported = now - random.nextInt(120_000);
+            this.record("c" + random.nextInt(50), "s" + random.nextInt(20), "city" + random.nextInt(500),
+                    random.nextBoolean() ? "MALE" : "FEMALE", reported, now);
+            if(reported / MINUTE > now / MINUTE - 10) {
+                counted.add(reported);
+            }
+        }
+        long nowSlot = now / MINUTE;
+
+        // the whole window comes from the running totals, 9 minutes from the slots
+        ConditionStats whole = aggregator.stats(null, null, null, null, 0, now);
+        assertEquals(counted.stream().filter(reported -> reported / MINUTE > nowSlot - 10).count(), whole.getTotal());
+        assertEquals(whole.getTotal(), whole.getByCity().values().stream().mapToLong(Long::longValue).sum());
+        assertEquals(counted.stream().filter(reported -> reported / MINUTE > nowSlot - 9).count(),
+                aggregator.stats(null, null, null, null, 9, now).getTotal());
+    }
+}
@@ -0,0 +1,137 @@
+package com.mongodb.fhir.webservice.benchmark;
+
+import com.mongodb.fhir.webservice.model.ConditionEvent;
+import com.mongodb.fhir.webservice.model.Patient;
+import com.mongodb.fhir.webservice.utils.RandomDataGenerator;
+import org.bson.BsonBinaryWriter;
+import org.bson.Document;
+import org.bson.codecs.DocumentCodec;
+import org.bson.codecs.EncoderContext;
+import org.bson.io.BasicOutputBuffer;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.springframework.data.mongodb.core.convert.MappingMongoConverter;
+import org.springframework.data.mongodb.core.convert.NoOpDbRefResolver;
+import org.springframework.data.mongodb.core.mapping.MongoMappingContext;
+
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of persisting the model POJOs, without a server: Spring Data
+ * mapping of a Patient (with its conditions) and a ConditionEvent to a
+ * Document, encoding that Document to BSON as the driver does on insert,
+ * and mapping a Document back to the POJO as on find.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class BsonMappingBenchmark {
+
+    private final DocumentCodec codec = new DocumentCodec();
+
+    private final BasicOutputBuffer buffer = new BasicOutputBuffer();
+
+    private MappingMongoConverter converter;
+
+    private Patient patient;
+
+    private ConditionEvent conditionEvent;
+
+    private Document patientDocument;
+
+    private Document conditionEventDocument;
+
+    @Setup
+    public void setup() {
+        MongoMappingContext mappingContext = new MongoMappingContext();
+        mappingContext.afterPropertiesSet();
+        converter = new MappingMongoConverter(NoOpDbRefResolver.INSTANCE, mappingContext);
+        converter.afterPropertiesSet();
+
+        RandomDataGenerator generator = new RandomDataGenerator(42);
+        do {
+            patient = generator.nextPatient();
+        } while(patient.getConditions().isEmpty());
+
+        // as FhirService builds it
+        conditionEvent = new ConditionEvent();
+        conditionEvent.setBirthdate(patient.getBirthDate());
+        conditionEvent.setCity(patient.getCity());
+        conditionEvent.setState(patient.getState());
+        conditionEvent.setGender(patient.getGender());
+        conditionEvent.setCondition(patient.getConditions().get(0).getCondition());
+        conditionEvent.setConditionCode(patient.getConditions().get(0).getConditionCode());
+        conditionEvent.setOnsetDate(patient.getConditions().get(0).getOnsetDate());
+        conditionEvent.setReportedDate(new Date());
+
+        patientDocument = this.writePatient();
+        conditionEventDocument = this.writeConditionEvent();
+    }
+
+    @Benchmark
+    public Document writePatient() {
+        Document document = new Document();
+        converter.write(patient, document);
+        return document;
+    }
+
+    @Benchmark
+    public int encodePatient() {
+        return this.encode(this.writePatient());
+    }
+
+    @Benchmark
+    public Patient readPatient() {
+        return converter.read(Patient.class, patientDocument);
+    }
+
+    @Benchmark
+    public Document writeConditionEvent() {
+        Document document = new Document();
+        converter.write(conditionEvent, document);
+        return document;
+    }
+
+    @Benchmark
+    public int encodeConditionEvent() {
+        return this.encode(this.writeConditionEvent());
+    }
+
+    @Benchmark
+    public ConditionEvent readConditionEvent() {
+        return converter.read(ConditionEvent.class, conditionEventDocument);
+    }
+
+    /**
+     * Encode to BSON, returns the size
+     *
+     * @param document
+     * @return
+     */
+    private int encode(Document document) {
+        buffer.truncateToPosition(0);
+        codec.encode(new BsonBinaryWriter(buffer), document, EncoderContext.builder().isEncodingCollectibleDocument(true).build());
+        return buffer.getPosition();
+    }
+
+    /**
+     * Run the benchmark
+     *
+     * @param args
+     * @throws Exception
+     */
+    public static void main(String[] args) throws Exception {
+        Options options = new OptionsBuilder()
+                .include(BsonMappingBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build();
+        new Runner(options).run();
+    }
+}
@@ -0,0 +1,82 @@
+package com.mongodb.fhir.webservice.benchmark;
+
+import com.mongodb.fhir.webservice.model.Condition;
+import com.mongodb.fhir.webservice.model.Patient;
+import com.mongodb.fhir.webservice.parser.FhirContextProvider;
+import com.mongodb.fhir.webservice.utils.FhirSerializer;
+import com.mongodb.fhir.webservice.utils.FhirStreamingSerializer;
+import com.mongodb.fhir.webservice.utils.RandomDataGenerator;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Latency and allocation of the /getBundle serializers: the Hapi-Fhir
+ * Bundle encoded to a String versus the streaming serializer, both written
+ * to the response stream.
+ *
+ * Run with the GC profiler (-prof gc, done by main) and compare
+ * gc.alloc.rate.norm, the bytes allocated per bundle.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class BundleSerializerBenchmark {
+
+    @Param({"1", "100", "10000"})
+    private int conditions;
+
+    private Patient patient;
+
+    private OutputStream out;
+
+    @Setup
+    public void setup() {
+        FhirContextProvider.warm();
+
+        patient = RandomDataGenerator.getPatient();
+        List<Condition> conditionList = new ArrayList<>(conditions);
+        for(int i = 0; i < conditions; i++) {
+            conditionList.add(RandomDataGenerator.getCondition());
+        }
+        patient.setConditions(conditionList);
+
+        out = OutputStream.nullOutputStream();
+    }
+
+    @Benchmark
+    public void hapiString() throws IOException {
+        out.write(FhirSerializer.serializeBundle(patient, false).getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Benchmark
+    public void streaming() throws IOException {
+        FhirStreamingSerializer.writeBundle(patient, false, out);
+    }
+
+    /**
+     * Run the benchmark
+     *
+     * @param args
+     * @throws Exception
+     */
+    public static void main(String[] args) throws Exception {
+        Options options = new OptionsBuilder()
+                .include(BundleSerializerBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build();
+        new Runner(options).run();
+    }
+}
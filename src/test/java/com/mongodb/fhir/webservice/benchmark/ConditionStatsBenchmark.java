@@ -0,0 +1,106 @@
+package com.mongodb.fhir.webservice.benchmark;
+
+import com.mongodb.fhir.webservice.analytics.ConditionStatsAggregator;
+import com.mongodb.fhir.webservice.model.ConditionEvent;
+import com.mongodb.fhir.webservice.model.ConditionStats;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.Date;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * In-memory condition stats: recording one ConditionEvent, and the
+ * /stats queries for an exact key, one condition code in one state, and
+ * everything, over a one hour window filled with events of 50 codes,
+ * 50 states and 2000 cities.  The Realm trigger counted the reporting
+ * collection on every insert instead.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ConditionStatsBenchmark {
+
+    private static final int EVENTS = 64;
+
+    @Param({"100000"})
+    private int windowEvents;
+
+    private ConditionStatsAggregator aggregator;
+
+    private ConditionEvent[] events;
+
+    private int next;
+
+    @Setup
+    public void setup() {
+        aggregator = new ConditionStatsAggregator();
+        ReflectionTestUtils.setField(aggregator, "enabled", true);
+        ReflectionTestUtils.setField(aggregator, "windowMinutes", 60);
+        ReflectionTestUtils.setField(aggregator, "slotSeconds", 60);
+        aggregator.start();
+
+        Random random = new Random(42);
+        long now = System.currentTimeMillis();
+        for(int idx = 0; idx < windowEvents; idx++) {
+            aggregator.onConditionEvent(this.event(random, now - random.nextInt(3_500_000)));
+        }
+
+        events = new ConditionEvent[EVENTS];
+        for(int idx = 0; idx < EVENTS; idx++) {
+            events[idx] = this.event(random, now);
+        }
+    }
+
+    private ConditionEvent event(Random random, long reported) {
+        ConditionEvent conditionEvent = new ConditionEvent();
+        conditionEvent.setConditionCode("code" + random.nextInt(50));
+        conditionEvent.setState("state" + random.nextInt(50));
+        conditionEvent.setCity("city" + random.nextInt(2000));
+        conditionEvent.setGender(random.nextBoolean() ? "male" : "female");
+        conditionEvent.setReportedDate(new Date(reported));
+        return conditionEvent;
+    }
+
+    @Benchmark
+    public void record() {
+        aggregator.onConditionEvent(events[next++ & (EVENTS - 1)]);
+    }
+
+    @Benchmark
+    public ConditionStats statsExactKey() {
+        return aggregator.stats("code7", "state3", "city42", "female", 0);
+    }
+
+    @Benchmark
+    public ConditionStats statsCodeInState() {
+        return aggregator.stats("code7", "state3", null, null, 0);
+    }
+
+    @Benchmark
+    public ConditionStats statsAll() {
+        return aggregator.stats(null, null, null, null, 0);
+    }
+
+    /**
+     * Run the benchmark
+     *
+     * @param args
+     * @throws Exception
+     */
+    public static void main(String[] args) throws Exception {
+        Options options = new OptionsBuilder()
+                .include(ConditionStatsBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build();
+        new Runner(options).run();
+    }
+}
@@ -0,0 +1,94 @@
+package com.mongodb.fhir.webservice.benchmark;
+
+import com.mongodb.fhir.webservice.model.Condition;
+import com.mongodb.fhir.webservice.model.Patient;
+import com.mongodb.fhir.webservice.parser.FhirContextProvider;
+import com.mongodb.fhir.webservice.parser.PatientParser;
+import com.mongodb.fhir.webservice.utils.FhirSerializer;
+import com.mongodb.fhir.webservice.utils.RandomDataGenerator;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Latency and allocation of the Hapi-Fhir serializers used by the
+ * generator and /getBundle: a Patient, a Condition and the Bundle of a
+ * patient with its conditions.
+ *
+ * The patient is parsed from fhirResourceSamples/patient.json (sample) or
+ * comes from RandomDataGenerator (generated); both get the same generated
+ * conditions.  Run from the project root.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class FhirSerializerBenchmark {
+
+    private static final int CONDITIONS = 4;
+
+    @Param({"sample", "generated"})
+    private String payload;
+
+    private Patient patient;
+
+    private Condition condition;
+
+    @Setup
+    public void setup() throws Exception {
+        FhirContextProvider.warm();
+
+        RandomDataGenerator generator = new RandomDataGenerator(42);
+        if("sample".equals(payload)) {
+            patient = PatientParser.parse(new String(Files.readAllBytes(Paths.get("fhirResourceSamples/patient.json"))));
+        } else {
+            patient = generator.nextPatient();
+        }
+
+        List<Condition> conditions = new ArrayList<>(CONDITIONS);
+        for(int i = 0; i < CONDITIONS; i++) {
+            conditions.add(generator.nextCondition());
+        }
+        patient.setConditions(conditions);
+        condition = conditions.get(0);
+    }
+
+    @Benchmark
+    public String serializePatient() {
+        return FhirSerializer.serializePatient(patient);
+    }
+
+    @Benchmark
+    public String serializeCondition() {
+        return FhirSerializer.serializeCondition(condition, patient.getPatientId());
+    }
+
+    @Benchmark
+    public String serializeBundle() {
+        return FhirSerializer.serializeBundle(patient, false);
+    }
+
+    /**
+     * Run the benchmark
+     *
+     * @param args
+     * @throws Exception
+     */
+    public static void main(String[] args) throws Exception {
+        Options options = new OptionsBuilder()
+                .include(FhirSerializerBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build();
+        new Runner(options).run();
+    }
+}
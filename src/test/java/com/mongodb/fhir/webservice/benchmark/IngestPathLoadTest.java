@@ -0,0 +1,232 @@
+package com.mongodb.fhir.webservice.benchmark;
+
+import com.mongodb.fhir.webservice.model.Condition;
+import com.mongodb.fhir.webservice.model.Patient;
+import com.mongodb.fhir.webservice.utils.FhirSerializer;
+import com.mongodb.fhir.webservice.utils.RandomDataGenerator;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Load test comparing the servlet path (/processFhir) with the reactive
+ * driver path (/processFhirReactive) of a running FHIR server.
+ *
+ * Each ingest stream posts a patient, then its conditions, then reads the
+ * bundle back, over and over.  All streams share one HttpClient running on
+ * a handful of threads, so the client does not limit the concurrency.
+ * Payloads are generated before the run.  Start the server with
+ * fhir.reactive.enabled=true.
+ *
+ * Arguments: [baseUrl] [streams] [seconds] [user:password]
+ */
+public class IngestPathLoadTest {
+
+    private static final String[] PATHS = {"/processFhir", "/processFhirReactive"};
+
+    private static final int PAYLOADS = 1000;
+
+    private final HttpClient httpClient;
+
+    private final String baseUrl;
+
+    private final String authorization;
+
+    private final List<Patient> patients = new ArrayList<>(PAYLOADS);
+
+    private final List<String> patientPayloads = new ArrayList<>(PAYLOADS);
+
+    private final List<List<String>> conditionPayloads = new ArrayList<>(PAYLOADS);
+
+    // rounds over all runs, so every round writes a new patientId
+    private final AtomicInteger next = new AtomicInteger();
+
+    /**
+     *
+     * @param baseUrl
+     * @param credentials
+     * @param clientThreads
+     */
+    public IngestPathLoadTest(String baseUrl, String credentials, ExecutorService clientThreads) {
+        this.baseUrl = baseUrl;
+        this.authorization = "Basic " + Base64.getEncoder().encodeToString(credentials.getBytes(StandardCharsets.UTF_8));
+        this.httpClient = HttpClient.newBuilder()
+                .executor(clientThreads)
+                .connectTimeout(Duration.ofSeconds(10))
+                .build();
+
+        for(int i = 0; i < PAYLOADS; i++) {
+            Patient patient = RandomDataGenerator.getPatient();
+            patients.add(patient);
+            patientPayloads.add(FhirSerializer.serializePatient(patient));
+
+            List<String> conditions = new ArrayList<>();
+            for(Condition condition : patient.getConditions()) {
+                conditions.add(FhirSerializer.serializeCondition(condition, patient.getPatientId()));
+            }
+            conditionPayloads.add(conditions);
+        }
+    }
+
+    /**
+     * Run the streams against one path
+     *
+     * @param path
+     * @param streams
+     * @param seconds
+     * @return
+     */
+    public Result run(String path, int streams, int seconds) {
+        Result result = new Result(path);
+        long deadline = System.nanoTime() + Duration.ofSeconds(seconds).toNanos();
+
+        long start = System.nanoTime();
+        List<CompletableFuture<Void>> running = new ArrayList<>(streams);
+        for(int s = 0; s < streams; s++) {
+            running.add(this.stream(path, deadline, result));
+        }
+        CompletableFuture.allOf(running.toArray(new CompletableFuture[0])).join();
+        result.elapsedNanos = System.nanoTime() - start;
+
+        return result;
+    }
+
+    /**
+     * One ingest stream: patient, conditions, bundle, repeated until the deadline
+     *
+     * @param path
+     * @param deadline
+     * @param result
+     * @return
+     */
+    private CompletableFuture<Void> stream(String path, long deadline, Result result) {
+        if(System.nanoTime() >= deadline) {
+            return CompletableFuture.completedFuture(null);
+        }
+
+        int round = next.getAndIncrement();
+        int idx = Math.floorMod(round, PAYLOADS);
+        // new patientId per round, the payloads are reused
+        String patientId = patients.get(idx).getPatientId();
+        String roundId = patientId + "-" + round;
+
+        CompletableFuture<Void> requests = this.send(this.post(path + "/patient",
+                patientPayloads.get(idx).replace(patientId, roundId)), result);
+        for(String condition : conditionPayloads.get(idx)) {
+            requests = requests.thenCompose(v -> this.send(this.post(path + "/condition",
+                    condition.replace(patientId, roundId)), result));
+        }
+        requests = requests.thenCompose(v -> this.send(this.get(path + "/getBundle/" + roundId + "?_pretty=false"), result));
+
+        return requests.thenCompose(v -> this.stream(path, deadline, result));
+    }
+
+    /**
+     *
+     * @param request
+     * @param result
+     * @return
+     */
+    private CompletableFuture<Void> send(HttpRequest request, Result result) {
+        long start = System.nanoTime();
+        return httpClient.sendAsync(request, HttpResponse.BodyHandlers.discarding())
+                .handle((response, error) -> {
+                    result.latencies.add(System.nanoTime() - start);
+                    if(error != null || response.statusCode() >= 300) {
+                        result.errors.incrementAndGet();
+                    }
+                    return null;
+                });
+    }
+
+    private HttpRequest post(String path, String body) {
+        return HttpRequest.newBuilder(URI.create(baseUrl + path))
+                .header("Authorization", authorization)
+                .header("Content-Type", "application/json")
+                .header("Prefer", "return=minimal")
+                .POST(HttpRequest.BodyPublishers.ofString(body))
+                .build();
+    }
+
+    private HttpRequest get(String path) {
+        return HttpRequest.newBuilder(URI.create(baseUrl + path))
+                .header("Authorization", authorization)
+                .GET()
+                .build();
+    }
+
+    /**
+     * Requests, errors and latencies of one run
+     */
+    public static class Result {
+
+        private final String path;
+
+        private final ConcurrentLinkedQueue<Long> latencies = new ConcurrentLinkedQueue<>();
+
+        private final AtomicInteger errors = new AtomicInteger();
+
+        private long elapsedNanos;
+
+        private Result(String path) {
+            this.path = path;
+        }
+
+        @Override
+        public String toString() {
+            long[] sorted = latencies.stream().mapToLong(Long::longValue).toArray();
+            Arrays.sort(sorted);
+            double seconds = elapsedNanos / 1e9;
+
+            return String.format("%-22s requests: %8d  errors: %6d  req/s: %9.1f  p50: %7.2f ms  p99: %7.2f ms  max: %7.2f ms",
+                    path, sorted.length, errors.get(), sorted.length / seconds,
+                    percentile(sorted, 0.50), percentile(sorted, 0.99), percentile(sorted, 1.0));
+        }
+
+        private static double percentile(long[] sorted, double p) {
+            if(sorted.length == 0) {
+                return 0;
+            }
+            int idx = (int) Math.min(sorted.length - 1, Math.ceil(p * sorted.length) - 1);
+            return sorted[Math.max(0, idx)] / 1e6;
+        }
+    }
+
+    /**
+     * Run the load test
+     *
+     * @param args [baseUrl] [streams] [seconds] [user:password]
+     */
+    public static void main(String[] args) {
+        String baseUrl = args.length > 0 ? args[0] : "http://localhost:8090";
+        int streams = args.length > 1 ? Integer.parseInt(args[1]) : 256;
+        int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 30;
+        String credentials = args.length > 3 ? args[3] : "fhirUser:fhirUserPassword";
+
+        ExecutorService clientThreads = Executors.newFixedThreadPool(4);
+        try {
+            IngestPathLoadTest loadTest = new IngestPathLoadTest(baseUrl, credentials, clientThreads);
+
+            for(String path : PATHS) {
+                // short warm-up, then the measured run
+                loadTest.run(path, streams, Math.max(1, seconds / 5));
+                System.out.println(loadTest.run(path, streams, seconds));
+            }
+        } finally {
+            clientThreads.shutdown();
+        }
+    }
+}
@@ -0,0 +1,555 @@
+package com.mongodb.fhir.webservice.benchmark;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.mongodb.fhir.webservice.WebserviceApplication;
+import com.mongodb.fhir.webservice.model.Patient;
+import com.mongodb.fhir.webservice.utils.FhirSerializer;
+import com.mongodb.fhir.webservice.utils.RandomDataGenerator;
+import org.HdrHistogram.ConcurrentHistogram;
+import org.HdrHistogram.Histogram;
+import org.springframework.boot.SpringApplication;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.stream.Stream;
+
+/**
+ * End-to-end ingest throughput test of the whole application.
+ *
+ * Starts WebserviceApplication on a random port against a local mongod,
+ * either a mongod binary started in a temporary directory (harness.mongod)
+ * or an existing server (harness.uri), or drives an already running FHIR
+ * server (harness.url).  CSFLE uses the local KMS provider and
+ * master-key.txt, so no network access is needed; the encrypted client
+ * still needs mongocryptd (--mongodb.cryptdpath=...).
+ *
+ * Workers send a weighted mix of /patient, /condition, /getPatient and
+ * /getBundle requests to /processFhir, closed loop or paced to harness.rps.
+ * Paced latencies are measured from the intended send time, so a stalled
+ * server is not hidden by the workers waiting on it.  Throughput and
+ * HdrHistogram latencies per request type are written as JSON, including
+ * the encoded histograms, to harness.report.
+ *
+ * Every argument is passed to the application, e.g. --mongodb.pool.maxSize=200,
+ * and recorded in the report, so runs with different MongoClientConfiguration
+ * settings can be compared.
+ *
+ * System properties (defaults):
+ *   harness.mongod        path of a mongod binary to start
+ *   harness.uri           mongodb://localhost:27017 when harness.mongod is not set
+ *   harness.url           base url of a running server, the app is not started
+ *   harness.mix           patient:20,condition:50,getPatient:15,getBundle:15
+ *   harness.workers       64
+ *   harness.rps           0, no pacing
+ *   harness.seconds       60
+ *   harness.warmupSeconds 10
+ *   harness.seedPatients  1000
+ *   harness.label         label of the run in the report
+ *   harness.report        target/ingest-harness-<timestamp>.json
+ */
+public class IngestThroughputHarness {
+
+    private static final String BASE_PATH = "/processFhir";
+
+    private static final String USER = "fhirUser";
+
+    private static final String PASSWORD = "fhirUserPassword";
+
+    private static final long MAX_LATENCY_MICROS = TimeUnit.MINUTES.toMicros(5);
+
+    // patientIds the condition and read requests pick from
+    private static final int KNOWN_PATIENTS = 1 << 16;
+
+    private static final Duration REQUEST_TIMEOUT = Duration.ofSeconds(60);
+
+    /**
+     * Request types of the mix
+     */
+    enum Operation {
+        patient, condition, getPatient, getBundle
+    }
+
+    private final HttpClient httpClient = HttpClient.newBuilder()
+            .version(HttpClient.Version.HTTP_1_1)
+            .connectTimeout(Duration.ofSeconds(10))
+            .build();
+
+    private final String baseUrl;
+
+    private final String authorization;
+
+    private final Operation[] operations = Operation.values();
+
+    // cumulative weights of the operations
+    private final int[] mix = new int[operations.length];
+
+    private final AtomicReferenceArray<String> knownPatients = new AtomicReferenceArray<>(KNOWN_PATIENTS);
+
+    private final AtomicLong patientCount = new AtomicLong();
+
+    private final AtomicLong nextSendNanos = new AtomicLong();
+
+    // per operation, replaced by the measured run after the warm-up
+    private volatile Histogram[] latencies;
+
+    private volatile AtomicLongArray errors;
+
+    private volatile boolean running;
+
+    /**
+     *
+     * @param baseUrl
+     * @param mix e.g. patient:20,condition:50,getPatient:15,getBundle:15
+     */
+    public IngestThroughputHarness(String baseUrl, String mix) {
+        this.baseUrl = baseUrl;
+        this.authorization = "Basic " + Base64.getEncoder()
+                .encodeToString((USER + ":" + PASSWORD).getBytes(StandardCharsets.UTF_8));
+
+        int[] weights = new int[operations.length];
+        for(String entry : mix.split(",")) {
+            String[] weight = entry.trim().split(":");
+            weights[Operation.valueOf(weight[0].trim()).ordinal()] = Integer.parseInt(weight[1].trim());
+        }
+        int total = 0;
+        for(int idx = 0; idx < weights.length; idx++) {
+            total += weights[idx];
+            this.mix[idx] = total;
+        }
+        if(total <= 0) {
+            throw new IllegalArgumentException("Empty request mix: " + mix);
+        }
+    }
+
+    /**
+     * Post patients for the condition and read requests to use
+     *
+     * @param count
+     */
+    public void seed(int count) {
+        RandomDataGenerator generator = new RandomDataGenerator(7);
+        this.reset();
+        for(int idx = 0; idx < count; idx++) {
+            this.postPatient(generator, System.nanoTime());
+        }
+        if(errors.get(Operation.patient.ordinal()) == count && count > 0) {
+            throw new IllegalStateException("Could not post any patient to " + baseUrl);
+        }
+    }
+
+    /**
+     * Run the mix for a while
+     *
+     * @param workers
+     * @param targetRps 0 for closed loop
+     * @param seconds
+     * @return elapsed seconds
+     * @throws InterruptedException
+     */
+    public double run(int workers, int targetRps, int seconds) throws InterruptedException {
+        this.reset();
+        running = true;
+
+        long start = System.nanoTime();
+        nextSendNanos.set(start);
+        ExecutorService executor = Executors.newFixedThreadPool(workers);
+        for(int w = 0; w < workers; w++) {
+            long seed = start * 31 + w;
+            executor.execute(() -> this.work(new RandomDataGenerator(seed), new SplittableRandom(seed), targetRps));
+        }
+
+        TimeUnit.SECONDS.sleep(seconds);
+        running = false;
+        executor.shutdown();
+        executor.awaitTermination(REQUEST_TIMEOUT.getSeconds() + 10, TimeUnit.SECONDS);
+        executor.shutdownNow();
+
+        return (System.nanoTime() - start) / 1e9;
+    }
+
+    /**
+     *
+     */
+    private void reset() {
+        Histogram[] histograms = new Histogram[operations.length];
+        for(int idx = 0; idx < histograms.length; idx++) {
+            histograms[idx] = new ConcurrentHistogram(MAX_LATENCY_MICROS, 3);
+        }
+        latencies = histograms;
+        errors = new AtomicLongArray(operations.length);
+    }
+
+    /**
+     * Worker loop
+     *
+     * @param generator
+     * @param random
+     * @param targetRps
+     */
+    private void work(RandomDataGenerator generator, SplittableRandom random, int targetRps) {
+        while(running) {
+            long intended = this.acquire(targetRps);
+            if(!running) {
+                break;
+            }
+
+            int pick = random.nextInt(mix[mix.length - 1]);
+            int idx = 0;
+            while(pick >= mix[idx]) {
+                idx++;
+            }
+
+            switch(operations[idx]) {
+                case patient:
+                    this.postPatient(generator, intended);
+                    break;
+                case condition:
+                    String patientId = this.knownPatient(random);
+                    this.send(Operation.condition, this.post("/condition",
+                            FhirSerializer.serializeCondition(generator.nextCondition(), patientId)), intended);
+                    break;
+                case getPatient:
+                    this.send(Operation.getPatient, this.get("/getPatient/" + this.knownPatient(random)), intended);
+                    break;
+                case getBundle:
+                    this.send(Operation.getBundle,
+                            this.get("/getBundle/" + this.knownPatient(random) + "?_pretty=false"), intended);
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Post a new patient and remember its id
+     *
+     * @param generator
+     * @param intended
+     */
+    private void postPatient(RandomDataGenerator generator, long intended) {
+        Patient patient = generator.nextPatient();
+        if(this.send(Operation.patient, this.post("/patient", FhirSerializer.serializePatient(patient)), intended)) {
+            long idx = patientCount.getAndIncrement();
+            knownPatients.set((int) (idx % KNOWN_PATIENTS), patient.getPatientId());
+        }
+    }
+
+    /**
+     *
+     * @param random
+     * @return
+     */
+    private String knownPatient(SplittableRandom random) {
+        long count = Math.min(patientCount.get(), KNOWN_PATIENTS);
+        if(count == 0) {
+            return "000-00-0000";
+        }
+        String patientId = knownPatients.get(random.nextInt((int) count));
+        return patientId != null ? patientId : "000-00-0000";
+    }
+
+    /**
+     * Wait for the next send slot when a target rate is set
+     *
+     * @param targetRps
+     * @return intended send time
+     */
+    private long acquire(int targetRps) {
+        if(targetRps <= 0) {
+            return System.nanoTime();
+        }
+
+        long slot = nextSendNanos.getAndAdd(TimeUnit.SECONDS.toNanos(1) / targetRps);
+        long wait;
+        while(running && (wait = slot - System.nanoTime()) > 0) {
+            LockSupport.parkNanos(wait);
+        }
+        return slot;
+    }
+
+    /**
+     *
+     * @param operation
+     * @param request
+     * @param intended
+     * @return true if the server accepted it
+     */
+    private boolean send(Operation operation, HttpRequest request, long intended) {
+        boolean ok = false;
+        try {
+            HttpResponse<Void> response = httpClient.send(request, HttpResponse.BodyHandlers.discarding());
+            ok = response.statusCode() < 300;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            // counted as an error
+        }
+
+        latencies[operation.ordinal()].recordValue(Math.min(MAX_LATENCY_MICROS,
+                TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - intended)));
+        if(!ok) {
+            errors.incrementAndGet(operation.ordinal());
+        }
+        return ok;
+    }
+
+    private HttpRequest post(String path, String body) {
+        return HttpRequest.newBuilder(URI.create(baseUrl + BASE_PATH + path))
+                .timeout(REQUEST_TIMEOUT)
+                .header("Authorization", authorization)
+                .header("Content-Type", "application/json")
+                .header("Prefer", "return=minimal")
+                .POST(HttpRequest.BodyPublishers.ofString(body))
+                .build();
+    }
+
+    private HttpRequest get(String path) {
+        return HttpRequest.newBuilder(URI.create(baseUrl + BASE_PATH + path))
+                .timeout(REQUEST_TIMEOUT)
+                .header("Authorization", authorization)
+                .GET()
+                .build();
+    }
+
+    /**
+     * Throughput and latencies of the last run, per operation and in total
+     *
+     * @param elapsedSeconds
+     * @return
+     */
+    public Map<String, Object> results(double elapsedSeconds) {
+        Map<String, Object> results = new LinkedHashMap<>();
+        Histogram total = new Histogram(MAX_LATENCY_MICROS, 3);
+        long totalErrors = 0;
+        for(Operation operation : operations) {
+            Histogram histogram = latencies[operation.ordinal()].copy();
+            long operationErrors = errors.get(operation.ordinal());
+            if(histogram.getTotalCount() > 0) {
+                results.put(operation.name(), this.summary(histogram, operationErrors, elapsedSeconds));
+            }
+            total.add(histogram);
+            totalErrors += operationErrors;
+        }
+        results.put("total", this.summary(total, totalErrors, elapsedSeconds));
+        return results;
+    }
+
+    /**
+     *
+     * @param histogram latencies in microseconds
+     * @param errors
+     * @param elapsedSeconds
+     * @return
+     */
+    private Map<String, Object> summary(Histogram histogram, long errors, double elapsedSeconds) {
+        Map<String, Object> summary = new LinkedHashMap<>();
+        summary.put("requests", histogram.getTotalCount());
+        summary.put("errors", errors);
+        summary.put("requestsPerSecond", histogram.getTotalCount() / elapsedSeconds);
+        summary.put("meanMillis", histogram.getMean() / 1000.0);
+        summary.put("p50Millis", histogram.getValueAtPercentile(50) / 1000.0);
+        summary.put("p90Millis", histogram.getValueAtPercentile(90) / 1000.0);
+        summary.put("p99Millis", histogram.getValueAtPercentile(99) / 1000.0);
+        summary.put("p999Millis", histogram.getValueAtPercentile(99.9) / 1000.0);
+        summary.put("maxMillis", histogram.getMaxValue() / 1000.0);
+
+        // compressed HdrHistogram in microseconds, for merging and plotting runs
+        ByteBuffer buffer = ByteBuffer.allocate(histogram.getNeededByteBufferCapacity());
+        int length = histogram.encodeIntoCompressedByteBuffer(buffer);
+        summary.put("histogram", Base64.getEncoder().encodeToString(Arrays.copyOf(buffer.array(), length)));
+        return summary;
+    }
+
+    /**
+     * Start a mongod in a temporary directory on a free port
+     *
+     * @param binary
+     * @return the process, its data directory is deleted when it exits
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    private static Process startMongod(String binary, int port) throws IOException, InterruptedException {
+        Path dbPath = Files.createTempDirectory("ingest-harness-mongod");
+        Files.createDirectories(Paths.get("target"));
+        Process mongod = new ProcessBuilder(binary, "--dbpath", dbPath.toString(), "--port", String.valueOf(port),
+                "--bind_ip", "127.0.0.1")
+                .redirectErrorStream(true)
+                .redirectOutput(new File("target/ingest-harness-mongod.log"))
+                .start();
+        mongod.onExit().thenRun(() -> deleteRecursively(dbPath));
+
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+        while(System.nanoTime() < deadline) {
+            if(!mongod.isAlive()) {
+                throw new IllegalStateException("mongod exited with " + mongod.exitValue()
+                        + ", see target/ingest-harness-mongod.log");
+            }
+            try (Socket socket = new Socket()) {
+                socket.connect(new InetSocketAddress("127.0.0.1", port), 200);
+                return mongod;
+            } catch (IOException e) {
+                TimeUnit.MILLISECONDS.sleep(200);
+            }
+        }
+        mongod.destroy();
+        throw new IllegalStateException("mongod did not start on port " + port);
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    private static void deleteRecursively(Path path) {
+        try (Stream<Path> paths = Files.walk(path)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+        } catch (IOException e) {
+            // temporary directory, leave it
+        }
+    }
+
+    /**
+     * Properties the application needs to run without application.properties;
+     * the arguments override them
+     *
+     * @param mongoUri
+     * @return
+     */
+    private static List<String> applicationArgs(String mongoUri, String[] args) {
+        List<String> applicationArgs = new ArrayList<>();
+        applicationArgs.add("--server.port=0");
+        applicationArgs.add("--spring.data.mongodb.uri=" + mongoUri);
+        applicationArgs.add("--spring.data.mongodb.database=fhirPatients");
+        applicationArgs.add("--spring.data.mongodb.collection=patient");
+        applicationArgs.add("--spring.security.user.name=" + USER);
+        applicationArgs.add("--spring.security.user.password=" + PASSWORD);
+        applicationArgs.add("--spring.security.user.roles=fhirRole");
+        applicationArgs.add("--mongodb.key.database=fhirEncryption");
+        applicationArgs.add("--mongodb.key.collection=__keyVault");
+        applicationArgs.add("--mongodb.key.name=fhir-data-encryption-key");
+        applicationArgs.add("--mongodb.key.kmsProvider=local");
+        applicationArgs.add("--mongodb.cryptdpath=mongocryptd");
+        applicationArgs.add("--mongodb.masterKeyPath=src/main/resources/master-key.txt");
+        applicationArgs.add("--fhir.idempotency.hashKey=" + UUID.randomUUID());
+        applicationArgs.add("--logging.level.root=WARN");
+        applicationArgs.addAll(List.of(args));
+        return applicationArgs;
+    }
+
+    /**
+     * Run the harness, see the class comment for the options
+     *
+     * @param args passed to the application
+     * @throws Exception
+     */
+    public static void main(String[] args) throws Exception {
+        String mix = System.getProperty("harness.mix", "patient:20,condition:50,getPatient:15,getBundle:15");
+        int workers = Integer.getInteger("harness.workers", 64);
+        int targetRps = Integer.getInteger("harness.rps", 0);
+        int seconds = Integer.getInteger("harness.seconds", 60);
+        int warmupSeconds = Integer.getInteger("harness.warmupSeconds", 10);
+        int seedPatients = Integer.getInteger("harness.seedPatients", 1000);
+        String report = System.getProperty("harness.report",
+                "target/ingest-harness-" + Instant.now().toString().replace(':', '-') + ".json");
+
+        Process mongod = null;
+        ConfigurableApplicationContext context = null;
+        try {
+            String baseUrl = System.getProperty("harness.url");
+            if(baseUrl == null) {
+                String mongoUri = System.getProperty("harness.uri", "mongodb://localhost:27017");
+                if(System.getProperty("harness.mongod") != null) {
+                    int port = freePort();
+                    mongod = startMongod(System.getProperty("harness.mongod"), port);
+                    mongoUri = "mongodb://127.0.0.1:" + port;
+                }
+
+                context = SpringApplication.run(WebserviceApplication.class,
+                        applicationArgs(mongoUri, args).toArray(new String[0]));
+                baseUrl = "http://localhost:" + context.getEnvironment().getProperty("local.server.port");
+            }
+
+            IngestThroughputHarness harness = new IngestThroughputHarness(baseUrl, mix);
+            System.out.printf("Seeding %d patients on %s%n", seedPatients, baseUrl);
+            harness.seed(seedPatients);
+            if(warmupSeconds > 0) {
+                System.out.printf("Warm-up %d s%n", warmupSeconds);
+                harness.run(workers, targetRps, warmupSeconds);
+            }
+            System.out.printf("Run %d s with %d workers, mix %s%n", seconds, workers, mix);
+            double elapsed = harness.run(workers, targetRps, seconds);
+
+            Map<String, Object> configuration = new LinkedHashMap<>();
+            configuration.put("label", System.getProperty("harness.label", ""));
+            configuration.put("baseUrl", baseUrl);
+            configuration.put("mix", mix);
+            configuration.put("workers", workers);
+            configuration.put("targetRps", targetRps);
+            configuration.put("seconds", seconds);
+            configuration.put("warmupSeconds", warmupSeconds);
+            configuration.put("seedPatients", seedPatients);
+            configuration.put("applicationArgs", List.of(args));
+
+            Map<String, Object> results = harness.results(elapsed);
+            Map<String, Object> output = new LinkedHashMap<>();
+            output.put("timestamp", Instant.now().toString());
+            output.put("configuration", configuration);
+            output.put("elapsedSeconds", elapsed);
+            output.put("results", results);
+
+            Path reportPath = Paths.get(report);
+            if(reportPath.getParent() != null) {
+                Files.createDirectories(reportPath.getParent());
+            }
+            new ObjectMapper().enable(SerializationFeature.INDENT_OUTPUT).writeValue(reportPath.toFile(), output);
+
+            results.forEach((operation, summary) -> {
+                Map<?, ?> values = (Map<?, ?>) summary;
+                System.out.printf("%-11s requests: %8d  errors: %6d  req/s: %9.1f  p50: %8.2f ms  p99: %8.2f ms  p999: %8.2f ms  max: %8.2f ms%n",
+                        operation, values.get("requests"), values.get("errors"), values.get("requestsPerSecond"),
+                        values.get("p50Millis"), values.get("p99Millis"), values.get("p999Millis"), values.get("maxMillis"));
+            });
+            System.out.println("Report written to " + reportPath);
+        } finally {
+            if(context != null) {
+                context.close();
+            }
+            if(mongod != null) {
+                mongod.destroy();
+                mongod.waitFor(30, TimeUnit.SECONDS);
+            }
+        }
+    }
+}
@@ -0,0 +1,167 @@
+package com.mongodb.fhir.webservice.benchmark;
+
+import ch.qos.logback.classic.AsyncAppender;
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.encoder.PatternLayoutEncoder;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.core.Appender;
+import ch.qos.logback.core.OutputStreamAppender;
+import com.mongodb.fhir.webservice.service.PayloadLogger;
+import com.mongodb.fhir.webservice.utils.FhirSerializer;
+import com.mongodb.fhir.webservice.utils.RandomDataGenerator;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.OutputStream;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Logging cost of a POST /patient request, formatted with the Spring Boot
+ * console pattern and written to a null stream so only the logging itself
+ * is measured.
+ *
+ * syncPayloadInfo is the old behavior: INFO lines and the whole payload
+ * through a synchronous appender.  asyncPayloadInfo is the same through an
+ * AsyncAppender.  asyncDebugOff is the request path now, with the request
+ * lines at DEBUG and payload logging off; asyncSampledPayload has payload
+ * logging on at a 1% sample, redacted.  redact is the cost of one sample.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class LoggingBenchmark {
+
+    private static final String PATTERN =
+            "%d{yyyy-MM-dd HH:mm:ss.SSS} %5p %t --- [%15.15t] %-40.40logger{39} : %m%n";
+
+    private static final double SAMPLE_RATE = 0.01;
+
+    private LoggerContext loggerContext;
+
+    private Logger syncLog;
+
+    private Logger asyncLog;
+
+    private Logger asyncDebugLog;
+
+    private String payload;
+
+    @Setup
+    public void setup() {
+        payload = FhirSerializer.serializePatient(new RandomDataGenerator(42).nextPatient());
+
+        loggerContext = new LoggerContext();
+
+        Appender<ILoggingEvent> sync = this.nullAppender("SYNC");
+        Appender<ILoggingEvent> async = this.asyncAppender(this.nullAppender("NULL"));
+
+        syncLog = this.logger("sync", Level.INFO, sync);
+        asyncLog = this.logger("async", Level.INFO, async);
+        asyncDebugLog = this.logger("asyncDebug", Level.DEBUG, async);
+    }
+
+    @TearDown
+    public void tearDown() {
+        loggerContext.stop();
+    }
+
+    private Appender<ILoggingEvent> nullAppender(String name) {
+        PatternLayoutEncoder encoder = new PatternLayoutEncoder();
+        encoder.setContext(loggerContext);
+        encoder.setPattern(PATTERN);
+        encoder.start();
+
+        OutputStreamAppender<ILoggingEvent> appender = new OutputStreamAppender<>();
+        appender.setContext(loggerContext);
+        appender.setName(name);
+        appender.setEncoder(encoder);
+        appender.setOutputStream(OutputStream.nullOutputStream());
+        appender.start();
+        return appender;
+    }
+
+    private Appender<ILoggingEvent> asyncAppender(Appender<ILoggingEvent> delegate) {
+        // as in logback-spring.xml
+        AsyncAppender appender = new AsyncAppender();
+        appender.setContext(loggerContext);
+        appender.setName("ASYNC_" + delegate.getName());
+        appender.setQueueSize(8192);
+        appender.setNeverBlock(true);
+        appender.addAppender(delegate);
+        appender.start();
+        return appender;
+    }
+
+    private Logger logger(String name, Level level, Appender<ILoggingEvent> appender) {
+        Logger logger = loggerContext.getLogger(name);
+        logger.setLevel(level);
+        logger.setAdditive(false);
+        logger.addAppender(appender);
+        return logger;
+    }
+
+    /**
+     * Request lines of the old controller and service
+     *
+     * @param log
+     */
+    private void payloadInfo(Logger log) {
+        log.info("Received Patient Fhir Message.");
+        log.info(payload);
+        log.info("Log Event Stream");
+        log.info("Process Fhir patient.");
+    }
+
+    @Benchmark
+    public void syncPayloadInfo() {
+        this.payloadInfo(syncLog);
+    }
+
+    @Benchmark
+    public void asyncPayloadInfo() {
+        this.payloadInfo(asyncLog);
+    }
+
+    @Benchmark
+    public void asyncDebugOff() {
+        asyncLog.debug("Received Patient Fhir Message.");
+        asyncLog.debug("Process Fhir patient.");
+    }
+
+    @Benchmark
+    public void asyncSampledPayload() {
+        asyncLog.debug("Received Patient Fhir Message.");
+        if(asyncDebugLog.isDebugEnabled() && ThreadLocalRandom.current().nextDouble() < SAMPLE_RATE) {
+            asyncDebugLog.debug("{} payload ({} chars): {}", "Patient", payload.length(), PayloadLogger.redact(payload));
+        }
+        asyncLog.debug("Process Fhir patient.");
+    }
+
+    @Benchmark
+    public String redact() {
+        return PayloadLogger.redact(payload);
+    }
+
+    /**
+     * Run the benchmark
+     *
+     * @param args
+     * @throws Exception
+     */
+    public static void main(String[] args) throws Exception {
+        Options options = new OptionsBuilder()
+                .include(LoggingBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build();
+        new Runner(options).run();
+    }
+}
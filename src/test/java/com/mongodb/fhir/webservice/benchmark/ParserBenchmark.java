@@ -0,0 +1,94 @@
+package com.mongodb.fhir.webservice.benchmark;
+
+import ca.uhn.fhir.context.FhirContext;
+import com.mongodb.fhir.webservice.model.Patient;
+import com.mongodb.fhir.webservice.parser.ConditionParser;
+import com.mongodb.fhir.webservice.parser.FhirContextProvider;
+import com.mongodb.fhir.webservice.parser.PatientParser;
+import com.mongodb.fhir.webservice.utils.FhirSerializer;
+import com.mongodb.fhir.webservice.utils.RandomDataGenerator;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-request parse latency of the FHIR Patient and Condition parsers.
+ *
+ * The perRequestContext benchmarks reproduce the old behavior of building
+ * a new FhirContext for every request; the others use the shared context.
+ *
+ * Payloads are the fhirResourceSamples files (sample) or a patient and
+ * condition from RandomDataGenerator serialized by FhirSerializer (generated).
+ * Run from the project root so the sample resources can be found.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class ParserBenchmark {
+
+    @Param({"sample", "generated"})
+    private String payload;
+
+    private String patientResource;
+    private String conditionResource;
+
+    @Setup
+    public void setup() throws Exception {
+        FhirContextProvider.warm();
+
+        if("sample".equals(payload)) {
+            patientResource = new String(Files.readAllBytes(Paths.get("fhirResourceSamples/patient.json")));
+            conditionResource = new String(Files.readAllBytes(Paths.get("fhirResourceSamples/condition-influenza.json")));
+        } else {
+            RandomDataGenerator generator = new RandomDataGenerator(42);
+            Patient patient = generator.nextPatient();
+            patientResource = FhirSerializer.serializePatient(patient);
+            conditionResource = FhirSerializer.serializeCondition(generator.nextCondition(), patient.getPatientId());
+        }
+    }
+
+    @Benchmark
+    public org.hl7.fhir.r5.model.Patient patientPerRequestContext() {
+        FhirContext ctx = FhirContext.forR5();
+        return ctx.newJsonParser().parseResource(org.hl7.fhir.r5.model.Patient.class, patientResource);
+    }
+
+    @Benchmark
+    public Patient patientSharedContext() {
+        return PatientParser.parse(patientResource);
+    }
+
+    @Benchmark
+    public org.hl7.fhir.r5.model.Condition conditionPerRequestContext() {
+        FhirContext ctx = FhirContext.forR5();
+        return ctx.newJsonParser().parseResource(org.hl7.fhir.r5.model.Condition.class, conditionResource);
+    }
+
+    @Benchmark
+    public Object[] conditionSharedContext() {
+        return ConditionParser.parse(conditionResource);
+    }
+
+    /**
+     * Run the benchmark
+     *
+     * @param args
+     * @throws Exception
+     */
+    public static void main(String[] args) throws Exception {
+        Options options = new OptionsBuilder()
+                .include(ParserBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build();
+        new Runner(options).run();
+    }
+}
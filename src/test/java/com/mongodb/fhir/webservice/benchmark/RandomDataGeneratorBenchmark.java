@@ -0,0 +1,90 @@
+package com.mongodb.fhir.webservice.benchmark;
+
+import com.github.javafaker.Faker;
+import com.mongodb.fhir.webservice.model.Condition;
+import com.mongodb.fhir.webservice.model.Patient;
+import com.mongodb.fhir.webservice.utils.RandomDataGenerator;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Patients generated per second by one thread, i.e. per core: the pooled
+ * RandomDataGenerator versus building the same patient with Faker calls,
+ * as the generator used to.  Run with more threads (-t) to check that
+ * generators on different threads do not contend.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class RandomDataGeneratorBenchmark {
+
+    private RandomDataGenerator generator;
+
+    private Faker faker;
+
+    private Random random;
+
+    @Setup
+    public void setup() {
+        generator = new RandomDataGenerator(42);
+        random = new Random(42);
+        faker = new Faker(random);
+    }
+
+    @Benchmark
+    public Patient pooled() {
+        return generator.nextPatient();
+    }
+
+    @Benchmark
+    public Patient faker() {
+        Patient patient = new Patient();
+        patient.setPatientId(faker.idNumber().ssnValid());
+        patient.setFirstName(faker.name().firstName());
+        patient.setLastName(faker.name().lastName());
+        patient.setAddress(faker.address().streetAddress());
+        patient.setCity(faker.address().city());
+        patient.setState(faker.address().state());
+        patient.setPostalCode(faker.address().zipCode());
+        patient.setGender(faker.demographic().sex());
+        patient.setBirthDate(faker.date().birthday());
+
+        int numConditions = random.nextInt(5);
+        List<Condition> conditions = new ArrayList<>(numConditions);
+        for(int idx = 0; idx < numConditions; idx++) {
+            Condition condition = new Condition();
+            condition.setCondition("Influenza");
+            condition.setConditionCode("6142004");
+            condition.setOnsetDate(faker.date().past(30, TimeUnit.DAYS));
+            conditions.add(condition);
+        }
+        patient.setConditions(conditions);
+
+        return patient;
+    }
+
+    /**
+     * Run the benchmark
+     *
+     * @param args
+     * @throws Exception
+     */
+    public static void main(String[] args) throws Exception {
+        Options options = new OptionsBuilder()
+                .include(RandomDataGeneratorBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build();
+        new Runner(options).run();
+    }
+}
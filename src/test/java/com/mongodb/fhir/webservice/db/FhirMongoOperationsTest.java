@@ -0,0 +1,89 @@
+package com.mongodb.fhir.webservice.db;
+
+import com.mongodb.MongoClientException;
+import com.mongodb.MongoCommandException;
+import com.mongodb.ServerAddress;
+import com.mongodb.client.ClientSession;
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.TransactionBody;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.bson.BsonDocument;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.data.mongodb.UncategorizedMongoDbException;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+/**
+ * Writes run in a transaction, or one after the other once the server
+ * turns out to have no transactions.
+ */
+class FhirMongoOperationsTest {
+
+    private ClientSession session;
+
+    private MongoClient encMongoClient;
+
+    private FhirMongoOperations fhirMongoOperations;
+
+    @BeforeEach
+    void setUp() {
+        session = mock(ClientSession.class);
+        encMongoClient = mock(MongoClient.class);
+        when(encMongoClient.startSession()).thenReturn(session);
+
+        MongoClientConfiguration configuration = mock(MongoClientConfiguration.class);
+        when(configuration.mongoClient()).thenReturn(mock(MongoClient.class));
+        when(configuration.encryptedMongoClient()).thenReturn(encMongoClient);
+        when(configuration.getDatabaseName()).thenReturn("fhirPatients");
+        fhirMongoOperations = new FhirMongoOperations(configuration, new SimpleMeterRegistry());
+    }
+
+    private static BsonDocument response(int code, String message) {
+        return BsonDocument.parse("{ok: 0, code: " + code + ", errmsg: '" + message + "'}");
+    }
+
+    @Test
+    void writesRunInATransaction() {
+        when(session.withTransaction(any())).thenAnswer(invocation -> invocation.<TransactionBody<?>>getArgument(0).execute());
+
+        assertEquals("written", fhirMongoOperations.inEncryptedTransaction(ops -> "written"));
+        verify(session).withTransaction(any());
+        verify(session).close();
+    }
+
+    @Test
+    void standaloneWritesWithoutTransactions() {
+        when(session.withTransaction(any())).thenThrow(new UncategorizedMongoDbException("standalone",
+                new MongoCommandException(response(20, "Transaction numbers are only allowed on a replica set member or mongos"),
+                        new ServerAddress())));
+        AtomicInteger writes = new AtomicInteger();
+
+        assertEquals(1, (int)fhirMongoOperations.inEncryptedTransaction(ops -> writes.incrementAndGet()));
+        assertEquals(2, (int)fhirMongoOperations.inEncryptedTransaction(ops -> writes.incrementAndGet()));
+        verify(encMongoClient, times(1)).startSession();
+    }
+
+    @Test
+    void otherErrorsAreThrown() {
+        when(session.withTransaction(any())).thenThrow(new DataIntegrityViolationException("E11000"));
+
+        assertThrows(DataIntegrityViolationException.class, () -> fhirMongoOperations.inEncryptedTransaction(ops -> 1));
+        assertThrows(DataIntegrityViolationException.class, () -> fhirMongoOperations.inEncryptedTransaction(ops -> 1));
+        verify(encMongoClient, times(2)).startSession();
+    }
+
+    @Test
+    void transactionNotSupportedErrors() {
+        assertTrue(FhirMongoOperations.isTransactionNotSupported(new MongoClientException(
+                "Transactions are not supported by the MongoDB cluster to which this client is connected.")));
+        assertFalse(FhirMongoOperations.isTransactionNotSupported(new MongoClientException("Timed out")));
+        assertFalse(FhirMongoOperations.isTransactionNotSupported(new MongoCommandException(
+                response(20, "Illegal operation"), new ServerAddress())));
+    }
+}
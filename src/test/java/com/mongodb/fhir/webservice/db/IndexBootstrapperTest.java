@@ -0,0 +1,39 @@
+package com.mongodb.fhir.webservice.db;
+
+import org.bson.Document;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Query plan shapes from explain, as returned by a replica set and by mongos.
+ */
+class IndexBootstrapperTest {
+
+    private static final String FETCH_IXSCAN = "{stage: 'FETCH', inputStage: {stage: 'IXSCAN', indexName: 'patientId_1'}}";
+
+    private static final String COLLSCAN = "{stage: 'COLLSCAN', direction: 'forward'}";
+
+    @Test
+    void indexScanUnderFetchUsesIndex() {
+        assertTrue(IndexBootstrapper.usesIndex(Document.parse(FETCH_IXSCAN), "patientId_1"));
+    }
+
+    @Test
+    void collectionScanOrOtherIndexDoesNot() {
+        assertFalse(IndexBootstrapper.usesIndex(Document.parse(COLLSCAN), "patientId_1"));
+        assertFalse(IndexBootstrapper.usesIndex(Document.parse(FETCH_IXSCAN), "condition_1_reportedDate_1"));
+        assertFalse(IndexBootstrapper.usesIndex(null, "patientId_1"));
+    }
+
+    @Test
+    void everyShardMustUseIndex() {
+        Document allShards = Document.parse("{stage: 'SINGLE_SHARD', shards: [{shardName: 'a', winningPlan: "
+                + FETCH_IXSCAN + "}, {shardName: 'b', winningPlan: " + FETCH_IXSCAN + "}]}");
+        Document oneShardScans = Document.parse("{stage: 'SHARD_MERGE', shards: [{shardName: 'a', winningPlan: "
+                + FETCH_IXSCAN + "}, {shardName: 'b', winningPlan: " + COLLSCAN + "}]}");
+
+        assertTrue(IndexBootstrapper.usesIndex(allShards, "patientId_1"));
+        assertFalse(IndexBootstrapper.usesIndex(oneShardScans, "patientId_1"));
+    }
+}
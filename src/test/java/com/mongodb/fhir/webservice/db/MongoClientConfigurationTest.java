@@ -0,0 +1,53 @@
+package com.mongodb.fhir.webservice.db;
+
+import com.mongodb.MongoClientSettings;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Pool properties override the connection string only when they are set.
+ */
+class MongoClientConfigurationTest {
+
+    private MongoClientConfiguration configuration;
+
+    @BeforeEach
+    void setUp() {
+        configuration = new MongoClientConfiguration(new SimpleMeterRegistry());
+        ReflectionTestUtils.setField(configuration, "mongoUri",
+                "mongodb://localhost:27017/?maxPoolSize=7&minPoolSize=2&waitQueueTimeoutMS=500");
+    }
+
+    private MongoClientSettings settings() {
+        MongoClientSettings.Builder builder = ReflectionTestUtils.invokeMethod(configuration, "clientSettingsBuilder",
+                MongoClientConfiguration.CLIENT_PLAIN, false);
+        return builder.build();
+    }
+
+    @Test
+    void uriOptionsAreKept() {
+        MongoClientSettings settings = this.settings();
+
+        assertEquals(7, settings.getConnectionPoolSettings().getMaxSize());
+        assertEquals(2, settings.getConnectionPoolSettings().getMinSize());
+        assertEquals(500, settings.getConnectionPoolSettings().getMaxWaitTime(TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    void setPropertiesOverrideTheUri() {
+        ReflectionTestUtils.setField(configuration, "poolMaxSize", 200);
+        ReflectionTestUtils.setField(configuration, "poolMaxIdleTimeMs", 60000L);
+        MongoClientSettings settings = this.settings();
+
+        assertEquals(200, settings.getConnectionPoolSettings().getMaxSize());
+        assertEquals(2, settings.getConnectionPoolSettings().getMinSize());
+        assertEquals(60000, settings.getConnectionPoolSettings().getMaxConnectionIdleTime(TimeUnit.MILLISECONDS));
+        assertEquals(500, settings.getConnectionPoolSettings().getMaxWaitTime(TimeUnit.MILLISECONDS));
+    }
+}
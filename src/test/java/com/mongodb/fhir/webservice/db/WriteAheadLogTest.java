@@ -0,0 +1,123 @@
+package com.mongodb.fhir.webservice.db;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Crash recovery of the write-ahead log: nothing appended is lost, nothing
+ * committed is read twice and a torn tail record is dropped.
+ */
+class WriteAheadLogTest {
+
+    private static final long SEGMENT_SIZE = 1024;
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void uncommittedRecordsAreReadAgain() throws Exception {
+        try (WriteAheadLog wal = open()) {
+            wal.append(bytes("one"));
+            wal.append(bytes("two"));
+
+            assertEquals(List.of("one", "two"), strings(wal.read(10)));
+            assertEquals(List.of("one", "two"), strings(wal.read(10)));
+        }
+    }
+
+    @Test
+    void checkpointSurvivesReopen() throws Exception {
+        try (WriteAheadLog wal = open()) {
+            wal.append(bytes("one"));
+            wal.append(bytes("two"));
+            wal.append(bytes("three"));
+            wal.commit(wal.read(2));
+        }
+
+        // simulate a restart, only the uncommitted record is replayed
+        try (WriteAheadLog wal = open()) {
+            assertEquals(List.of("three"), strings(wal.read(10)));
+            wal.append(bytes("four"));
+            assertEquals(List.of("three", "four"), strings(wal.read(10)));
+        }
+    }
+
+    @Test
+    void tornTailIsTruncated() throws Exception {
+        try (WriteAheadLog wal = open()) {
+            wal.append(bytes("one"));
+            wal.append(bytes("two"));
+        }
+
+        // crash in the middle of a write: header and part of the payload made it to disk
+        Path segment = segments().get(0);
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            ByteBuffer torn = ByteBuffer.allocate(11);
+            torn.putInt(100).putInt(12345).put(bytes("abc"));
+            torn.flip();
+            channel.write(torn);
+        }
+
+        try (WriteAheadLog wal = open()) {
+            assertEquals(List.of("one", "two"), strings(wal.read(10)));
+            wal.append(bytes("three"));
+            assertEquals(List.of("one", "two", "three"), strings(wal.read(10)));
+        }
+    }
+
+    @Test
+    void rotatesAndDeletesConsumedSegments() throws Exception {
+        String record = "x".repeat(300);
+
+        try (WriteAheadLog wal = open()) {
+            for(int i = 0; i < 10; i++) {
+                wal.append(bytes(record + i));
+            }
+            assertTrue(segments().size() > 1);
+            assertTrue(wal.getPendingBytes() > SEGMENT_SIZE);
+
+            // read across segment boundaries in small batches
+            for(int i = 0; i < 10; i += 3) {
+                WriteAheadLog.Batch batch = wal.read(3);
+                assertEquals(record + i, strings(batch).get(0));
+                wal.commit(batch);
+            }
+
+            assertTrue(wal.read(10).isEmpty());
+            assertEquals(0, wal.getPendingBytes());
+            assertEquals(1, segments().size());
+        }
+    }
+
+    private WriteAheadLog open() throws Exception {
+        return new WriteAheadLog(directory, SEGMENT_SIZE, WriteAheadLog.FsyncPolicy.EVERY_WRITE, 0);
+    }
+
+    private List<Path> segments() throws Exception {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.filter(path -> path.toString().endsWith(".wal")).sorted().collect(Collectors.toList());
+        }
+    }
+
+    private static byte[] bytes(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static List<String> strings(WriteAheadLog.Batch batch) {
+        return batch.getRecords().stream()
+                .map(record -> new String(record, StandardCharsets.UTF_8))
+                .collect(Collectors.toList());
+    }
+}
@@ -0,0 +1,56 @@
+package com.mongodb.fhir.webservice.parser;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Bundles the client has to fix are InvalidBundleExceptions, bad entries
+ * only fail themselves.
+ */
+class BundleParserTest {
+
+    private static String bundle(String type, String... resources) {
+        StringBuilder bundle = new StringBuilder("{\"resourceType\":\"Bundle\",\"type\":\"").append(type).append("\",\"entry\":[");
+        for(int idx = 0; idx < resources.length; idx++) {
+            bundle.append(idx > 0 ? "," : "").append("{\"resource\":").append(resources[idx]).append('}');
+        }
+        return bundle.append("]}").toString();
+    }
+
+    @Test
+    void batchEntriesAreParsedOnTheirOwn() throws Exception {
+        String patient = new String(Files.readAllBytes(Paths.get("fhirResourceSamples/patient.json")));
+        String bundle = bundle("batch", patient, "{\"resourceType\":\"Observation\",\"status\":\"final\"}");
+
+        BundleParser.ParsedBundle parsed = BundleParser.parse(bundle);
+
+        assertFalse(parsed.isTransaction());
+        assertEquals(2, parsed.getEntries().size());
+        assertEquals("123456789-1", parsed.getEntries().get(0).getPatient().getPatientId());
+        assertEquals("Unsupported resource type: Observation", parsed.getEntries().get(1).getError());
+    }
+
+    @Test
+    void transactionIsAccepted() {
+        BundleParser.ParsedBundle parsed = BundleParser.parse(bundle("transaction"));
+
+        assertTrue(parsed.isTransaction());
+        assertTrue(parsed.getEntries().isEmpty());
+    }
+
+    @Test
+    void malformedBundleIsInvalid() {
+        assertThrows(BundleParser.InvalidBundleException.class, () -> BundleParser.parse("{\"resourceType\":\"Bundle\","));
+        assertThrows(BundleParser.InvalidBundleException.class, () -> BundleParser.parse("{\"resourceType\":\"Patient\"}"));
+    }
+
+    @Test
+    void otherBundleTypesAreInvalid() {
+        assertThrows(BundleParser.InvalidBundleException.class, () -> BundleParser.parse(bundle("collection")));
+        assertThrows(BundleParser.InvalidBundleException.class, () -> BundleParser.parse("{\"resourceType\":\"Bundle\"}"));
+    }
+}
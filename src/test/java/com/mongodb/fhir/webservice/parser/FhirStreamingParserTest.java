@@ -0,0 +1,155 @@
+package com.mongodb.fhir.webservice.parser;
+
+import com.mongodb.fhir.webservice.model.Condition;
+import com.mongodb.fhir.webservice.model.Patient;
+import com.mongodb.fhir.webservice.utils.FhirSerializer;
+import com.mongodb.fhir.webservice.utils.RandomDataGenerator;
+import org.junit.jupiter.api.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Differential test of the streaming fast path against the Hapi-Fhir parser.
+ * Whenever the fast path accepts a resource it must produce the same model.
+ */
+class FhirStreamingParserTest {
+
+    private static final int GENERATED_PATIENTS = 200;
+
+    @Test
+    void samplePatientTakesFastPath() throws Exception {
+        String resource = readSample("patient.json");
+
+        Patient fast = FhirStreamingParser.parsePatient(resource);
+        assertNotNull(fast);
+        assertSamePatient(PatientParser.parsePatient(resource), fast);
+    }
+
+    @Test
+    void sampleConditionTakesFastPath() throws Exception {
+        String resource = readSample("condition-influenza.json");
+
+        Object[] fast = FhirStreamingParser.parseCondition(resource);
+        assertNotNull(fast);
+        assertSameCondition(ConditionParser.parseCondition(resource), fast);
+    }
+
+    @Test
+    void generatedResourcesMatchHapi() {
+        for (int idx = 0; idx < GENERATED_PATIENTS; idx++) {
+            Patient patient = RandomDataGenerator.getPatient();
+
+            String patientResource = FhirSerializer.serializePatient(patient);
+            Patient fast = FhirStreamingParser.parsePatient(patientResource);
+            assertNotNull(fast, patientResource);
+            assertSamePatient(PatientParser.parsePatient(patientResource), fast);
+
+            for (Condition condition : patient.getConditions()) {
+                String conditionResource = FhirSerializer.serializeCondition(condition, patient.getPatientId());
+                Object[] fastCondition = FhirStreamingParser.parseCondition(conditionResource);
+                assertNotNull(fastCondition, conditionResource);
+                assertSameCondition(ConditionParser.parseCondition(conditionResource), fastCondition);
+            }
+        }
+    }
+
+    @Test
+    void variantsEitherMatchOrFallBack() throws Exception {
+        String patient = readSample("patient.json");
+        String condition = readSample("condition-influenza.json");
+
+        List<String> patients = new ArrayList<>();
+        patients.add(patient.replace("\"id\": \"123456789-1\",",
+                "\"id\": \"123456789-1\", \"meta\": {\"versionId\": \"2\"},"));
+        patients.add(patient.replace("\"id\": \"123456789-1\",",
+                "\"id\": \"123456789-1\", \"meta\": {\"lastUpdated\": \"2020-05-24T10:00:00Z\"},"));
+        patients.add(patient.replace("\"Mincey\"", "\" Mincey \""));
+        patients.add(patient.replace("\"Mincey\"", "\"\""));
+        patients.add(patient.replace("\"gender\": \"male\"", "\"gender\": \"MALE\""));
+        patients.add(patient.replace("\"gender\": \"male\"", "\"gender\": \"other\""));
+        patients.add(patient.replace("\"gender\": \"male\",", ""));
+        patients.add(patient.replace("\"birthDate\": \"1960-05-01\"", "\"birthDate\": \"1960\""));
+        patients.add(patient.replace("\"birthDate\": \"1960-05-01\"", "\"birthDate\": \"1960-05-01\", \"_birthDate\": {\"id\": \"x\"}"));
+        patients.add(patient.replace("\"birthDate\": \"1960-05-01\",", ""));
+        patients.add(patient.replace("\"line\": [", "\"line\": [ ], \"unused\": ["));
+        patients.add(patient.replace("\"active\": true,",
+                "\"active\": true, \"extension\": [{\"url\": \"http://example.org\", \"valueString\": \"x\"}],"));
+        patients.add(patient.replace("\"name\": [", "\"name\": [ {\"family\": \"Other\", \"given\": [\"A\"]},"));
+        patients.add(patient.replace("\"resourceType\": \"Patient\"", "\"resourceType\": \"Person\""));
+        patients.add(patient + " {}");
+
+        for (String resource : patients) {
+            Patient fast = FhirStreamingParser.parsePatient(resource);
+            if (fast != null) {
+                assertSamePatient(PatientParser.parsePatient(resource), fast);
+            }
+        }
+
+        List<String> conditions = new ArrayList<>();
+        conditions.add(condition.replace("\"onsetDateTime\": \"2020-05-24\"", "\"onsetDateTime\": \"2020-05-24T08:30:00-05:00\""));
+        conditions.add(condition.replace("\"onsetDateTime\": \"2020-05-24\"", "\"onsetString\": \"last week\""));
+        conditions.add(condition.replace("\"onsetDateTime\": \"2020-05-24\"", "\"onsetDateTime\": \"not a date\""));
+        conditions.add(condition.replace("\"display\": \"Severe\"", "\"display\": \"Severe\", \"_display\": {\"id\": \"x\"}"));
+        conditions.add(condition.replace("\"subject\": {\n    \"reference\": \"123456789-1\"\n  },", ""));
+        conditions.add(condition.replace("\"coding\": [\n      {\n        \"system\": \"http://snomed.info/sct\",\n        \"code\": \"6142004\"",
+                "\"coding\": [\n      {\n        \"system\": \"http://snomed.info/sct\",\n        \"code\": \"1\"}, {\"code\": \"6142004\""));
+        conditions.add(condition.replace("\"severity\": {", "\"severity\": {\"coding\": []}, \"unused\": {"));
+
+        for (String resource : conditions) {
+            Object[] fast = FhirStreamingParser.parseCondition(resource);
+            if (fast != null) {
+                assertSameCondition(ConditionParser.parseCondition(resource), fast);
+            }
+        }
+    }
+
+    @Test
+    void unsupportedShapesFallBack() throws Exception {
+        String patient = readSample("patient.json");
+        String condition = readSample("condition-influenza.json");
+
+        assertNull(FhirStreamingParser.parsePatient(patient.replace("\"id\": \"123456789-1\",",
+                "\"id\": \"123456789-1\", \"meta\": {\"versionId\": \"2\"},")));
+        assertNull(FhirStreamingParser.parsePatient(patient.replace("\"gender\": \"male\"", "\"gender\": \"MALE\"")));
+        assertNull(FhirStreamingParser.parsePatient(patient.replace("\"resourceType\": \"Patient\"", "\"resourceType\": \"Person\"")));
+        assertNull(FhirStreamingParser.parsePatient("{\"resourceType\": \"Patient\""));
+        assertNull(FhirStreamingParser.parseCondition(condition.replace("\"onsetDateTime\": \"2020-05-24\"", "\"onsetString\": \"last week\"")));
+        assertNull(FhirStreamingParser.parseCondition(condition.replace("\"display\": \"Severe\"",
+                "\"display\": \"Severe\", \"_display\": {\"id\": \"x\"}")));
+    }
+
+    private static String readSample(String name) throws Exception {
+        return new String(Files.readAllBytes(Paths.get("fhirResourceSamples", name)));
+    }
+
+    private static void assertSamePatient(Patient expected, Patient actual) {
+        assertEquals(expected.getPatientId(), actual.getPatientId());
+        assertEquals(expected.getFirstName(), actual.getFirstName());
+        assertEquals(expected.getLastName(), actual.getLastName());
+        assertEquals(expected.getAddress(), actual.getAddress());
+        assertEquals(expected.getCity(), actual.getCity());
+        assertEquals(expected.getState(), actual.getState());
+        assertEquals(expected.getPostalCode(), actual.getPostalCode());
+        assertEquals(expected.getGender(), actual.getGender());
+        assertEquals(expected.getBirthDate(), actual.getBirthDate());
+        assertEquals(expected.getConditions(), actual.getConditions());
+    }
+
+    private static void assertSameCondition(Object[] expected, Object[] actual) {
+        Condition expectedCondition = (Condition) expected[0];
+        Condition actualCondition = (Condition) actual[0];
+
+        assertEquals(expectedCondition.getCondition(), actualCondition.getCondition());
+        assertEquals(expectedCondition.getConditionCode(), actualCondition.getConditionCode());
+        assertEquals(expectedCondition.getClinicalStatus(), actualCondition.getClinicalStatus());
+        assertEquals(expectedCondition.getVerificationStatus(), actualCondition.getVerificationStatus());
+        assertEquals(expectedCondition.getSeverity(), actualCondition.getSeverity());
+        assertEquals(expectedCondition.getOnsetDate(), actualCondition.getOnsetDate());
+        assertEquals(expected[1], actual[1]);
+    }
+}
@@ -0,0 +1,180 @@
+package com.mongodb.fhir.webservice.service;
+
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.ServerAddress;
+import com.mongodb.bulk.BulkWriteError;
+import com.mongodb.bulk.BulkWriteResult;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.InsertManyOptions;
+import com.mongodb.fhir.webservice.db.FhirMongoOperations;
+import com.mongodb.fhir.webservice.model.ConditionEvent;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.bson.BsonArray;
+import org.bson.BsonDateTime;
+import org.bson.BsonDocument;
+import org.bson.BsonObjectId;
+import org.bson.BsonString;
+import org.bson.BsonTimestamp;
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.mongodb.core.MongoOperations;
+import org.springframework.data.mongodb.core.convert.MappingMongoConverter;
+import org.springframework.data.mongodb.core.convert.NoOpDbRefResolver;
+import org.springframework.data.mongodb.core.mapping.MongoMappingContext;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Supplier;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+/**
+ * ConditionEvents derived from patient update events, with ids that are the same when an event is replayed,
+ * and delivered to the listeners once.
+ */
+class ConditionEventProjectorTest {
+
+    private final MappingMongoConverter converter =
+            new MappingMongoConverter(NoOpDbRefResolver.INSTANCE, new MongoMappingContext());
+
+    private final ObjectId patientKey = new ObjectId();
+
+    private final BsonTimestamp clusterTime = new BsonTimestamp(1600000000, 3);
+
+    private final Document patient = new Document("city", "Boston").append("state", "MA")
+            .append("gender", "FEMALE").append("birthDate", new Date(0));
+
+    private BsonDocument condition(String code) {
+        return new BsonDocument("condition", new BsonString("Influenza"))
+                .append("conditionCode", new BsonString(code))
+                .append("dateParsed", new BsonDateTime(1));
+    }
+
+    private List<ConditionEvent> project(BsonDocument updatedFields) {
+        return ConditionEventProjector.toConditionEvents(new BsonDocument("_id", new BsonObjectId(patientKey)),
+                clusterTime, patient, updatedFields, converter);
+    }
+
+    @Test
+    void appendedConditionIsProjected() {
+        BsonDocument updatedFields = new BsonDocument("conditions.4", this.condition("6142004"))
+                .append("updateDate", new BsonDateTime(1600000000123L));
+
+        List<ConditionEvent> events = this.project(updatedFields);
+
+        assertEquals(1, events.size());
+        ConditionEvent event = events.get(0);
+        assertEquals(patientKey.toHexString() + ":1600000000:3:0", event.getId());
+        assertEquals("6142004", event.getConditionCode());
+        assertEquals("Influenza", event.getCondition());
+        assertEquals("Boston", event.getCity());
+        assertEquals("MA", event.getState());
+        assertEquals(new Date(1600000000123L), event.getReportedDate());
+
+        assertEquals(event.getId(), this.project(updatedFields).get(0).getId());
+    }
+
+    @Test
+    void slicedArrayProjectsItsLastCondition() {
+        BsonDocument updatedFields = new BsonDocument("conditions",
+                new BsonArray(List.of(this.condition("old"), this.condition("new"))));
+
+        List<ConditionEvent> events = this.project(updatedFields);
+
+        assertEquals(1, events.size());
+        assertEquals("new", events.get(0).getConditionCode());
+        assertEquals(new Date(1600000000000L), events.get(0).getReportedDate());
+    }
+
+    @Test
+    void otherUpdatesAreNotProjected() {
+        assertTrue(this.project(new BsonDocument("updateDate", new BsonDateTime(1))).isEmpty());
+        assertTrue(this.project(new BsonDocument("conditions.4.severity", new BsonString("mild"))).isEmpty());
+        assertTrue(ConditionEventProjector.toConditionEvents(new BsonDocument("_id", new BsonObjectId(patientKey)),
+                clusterTime, null, new BsonDocument("conditions.0", this.condition("x")), converter).isEmpty());
+    }
+
+    @Test
+    void replayedBatchDeliversWhatTheFailedAttemptInserted() {
+        List<ConditionEvent> delivered = new ArrayList<>();
+        ConditionEventProjector projector = this.projector(delivered);
+
+        List<ConditionEvent> events = new ArrayList<>();
+        List<Document> batch = new ArrayList<>();
+        for(int idx = 0; idx < 3; idx++) {
+            ConditionEvent event = new ConditionEvent();
+            event.setId("event" + idx);
+            events.add(event);
+            batch.add(new Document("_id", event.getId()));
+        }
+
+        // event0 inserted, event1 written by another node, event2 failed
+        MongoOperations mongoOps = this.mongoOps(
+                bulkWriteException(new BulkWriteError(11000, "E11000", new BsonDocument(), 1),
+                        new BulkWriteError(121, "validation", new BsonDocument(), 2)),
+                bulkWriteException(new BulkWriteError(11000, "E11000", new BsonDocument(), 0),
+                        new BulkWriteError(11000, "E11000", new BsonDocument(), 1)),
+                bulkWriteException(new BulkWriteError(11000, "E11000", new BsonDocument(), 0),
+                        new BulkWriteError(11000, "E11000", new BsonDocument(), 1),
+                        new BulkWriteError(11000, "E11000", new BsonDocument(), 2)));
+
+        assertThrows(MongoBulkWriteException.class, () -> projector.insertBatch(mongoOps, "conditionEvent", batch, events));
+        assertTrue(delivered.isEmpty());
+
+        // replayed from the saved token
+        projector.insertBatch(mongoOps, "conditionEvent", batch, events);
+        assertEquals(events, delivered);
+
+        // replayed again when the token could not be saved
+        projector.insertBatch(mongoOps, "conditionEvent", batch, events);
+        assertEquals(3, delivered.size());
+    }
+
+    @Test
+    void deliveredSetKeepsTheNewestIds() {
+        Set<String> delivered = ConditionEventProjector.deliveredSet(2);
+        delivered.add("a");
+        delivered.add("b");
+        delivered.add("c");
+
+        assertFalse(delivered.contains("a"));
+        assertTrue(delivered.contains("b"));
+        assertTrue(delivered.contains("c"));
+    }
+
+    private ConditionEventProjector projector(List<ConditionEvent> delivered) {
+        FhirMongoOperations fhirMongoOperations = mock(FhirMongoOperations.class);
+        when(fhirMongoOperations.timed(anyString(), any())).thenAnswer(invocation -> invocation.<Supplier<?>>getArgument(1).get());
+
+        SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+        ConditionEventProjector projector = new ConditionEventProjector(fhirMongoOperations, meterRegistry,
+                Collections.singletonList(delivered::add));
+        ReflectionTestUtils.setField(projector, "projectedCounter", meterRegistry.counter("projected"));
+        ReflectionTestUtils.setField(projector, "duplicateCounter", meterRegistry.counter("duplicate"));
+        ReflectionTestUtils.setField(projector, "delivered", ConditionEventProjector.deliveredSet(100));
+        return projector;
+    }
+
+    @SuppressWarnings("unchecked")
+    private MongoOperations mongoOps(MongoBulkWriteException... failures) {
+        MongoCollection<Document> collection = mock(MongoCollection.class);
+        when(collection.insertMany(anyList(), any(InsertManyOptions.class)))
+                .thenThrow((Throwable[])failures);
+        MongoOperations mongoOps = mock(MongoOperations.class);
+        when(mongoOps.getCollection(anyString())).thenReturn(collection);
+        return mongoOps;
+    }
+
+    private static MongoBulkWriteException bulkWriteException(BulkWriteError... errors) {
+        return new MongoBulkWriteException(BulkWriteResult.unacknowledged(), Arrays.asList(errors), null,
+                new ServerAddress());
+    }
+}
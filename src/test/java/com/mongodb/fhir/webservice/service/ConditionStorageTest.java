@@ -0,0 +1,69 @@
+package com.mongodb.fhir.webservice.service;
+
+import com.mongodb.fhir.webservice.model.Condition;
+import com.mongodb.fhir.webservice.model.ConditionBucket;
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.Date;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Full buckets are not written to, pages continue after the last bucket of the previous page,
+ * and every patient update bumps its version.
+ */
+class ConditionStorageTest {
+
+    private ConditionStorage conditionStorage;
+
+    @BeforeEach
+    void setUp() {
+        conditionStorage = new ConditionStorage(null);
+        ReflectionTestUtils.setField(conditionStorage, "mode", ConditionStorage.Mode.BUCKETED);
+        ReflectionTestUtils.setField(conditionStorage, "bucketDays", 30);
+        ReflectionTestUtils.setField(conditionStorage, "maxBucketSize", 500);
+    }
+
+    @Test
+    void upsertSkipsFullBuckets() {
+        Document query = conditionStorage.bucketQuery("123456789-1", new Date()).getQueryObject();
+
+        assertEquals(new Document("$lt", 500), query.get("count"));
+    }
+
+    @Test
+    void patientUpdateIncrementsVersion() {
+        Document update = conditionStorage.patientUpdate(new Condition()).getUpdateObject();
+
+        assertEquals(new Document("version", 1), update.get("$inc"));
+        assertNotNull(((Document)update.get("$set")).get("updateDate"));
+    }
+
+    @Test
+    void pageContinuesWithinThePeriod() {
+        ConditionBucket bucket = new ConditionBucket();
+        bucket.setId(new ObjectId().toHexString());
+        bucket.setStart(new Date(1_600_000_000_000L));
+
+        Document query = conditionStorage.pageQuery("123456789-1", conditionStorage.pageCursor(bucket)).getQueryObject();
+
+        List<?> or = (List<?>)query.get("$or");
+        assertEquals(new Document("start", new Document("$lt", bucket.getStart())), or.get(0));
+        assertEquals(new Document("start", bucket.getStart())
+                .append("_id", new Document("$lt", new ObjectId(bucket.getId()))), or.get(1));
+    }
+
+    @Test
+    void startOnlyCursorAndBadCursor() {
+        Document query = conditionStorage.pageQuery("123456789-1", "1600000000000").getQueryObject();
+
+        assertEquals(new Document("$lt", new Date(1_600_000_000_000L)), query.get("start"));
+        assertThrows(IllegalArgumentException.class, () -> conditionStorage.pageQuery("123456789-1", "x-y"));
+        assertThrows(IllegalArgumentException.class, () -> conditionStorage.pageQuery("123456789-1", "1600000000000-zz"));
+    }
+}
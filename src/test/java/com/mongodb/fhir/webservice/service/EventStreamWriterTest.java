@@ -0,0 +1,107 @@
+package com.mongodb.fhir.webservice.service;
+
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.InsertManyOptions;
+import com.mongodb.fhir.webservice.db.FhirMongoOperations;
+import com.mongodb.fhir.webservice.model.EventStream;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.bson.Document;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.data.mongodb.core.MongoOperations;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+/**
+ * Spilled events are replayed a batch per call, across calls, and again
+ * from the start after a failure.
+ */
+class EventStreamWriterTest {
+
+    private static final int BATCH_SIZE = 2;
+
+    @TempDir
+    Path directory;
+
+    private Path spillFile;
+
+    private List<Integer> inserts;
+
+    private MongoCollection<Document> collection;
+
+    private EventStreamWriter writer;
+
+    @BeforeEach
+    @SuppressWarnings("unchecked")
+    void setUp() throws Exception {
+        spillFile = directory.resolve("spill.ndjson");
+        List<String> lines = new ArrayList<>();
+        for(int idx = 0; idx < 5; idx++) {
+            lines.add(new Document("_id", "e" + idx).toJson());
+        }
+        Files.write(spillFile, lines);
+
+        inserts = new ArrayList<>();
+        collection = mock(MongoCollection.class);
+        when(collection.insertMany(anyList(), any(InsertManyOptions.class))).thenAnswer(invocation -> {
+            inserts.add(invocation.<List<?>>getArgument(0).size());
+            return null;
+        });
+        MongoOperations mongoOps = mock(MongoOperations.class);
+        when(mongoOps.getCollectionName(EventStream.class)).thenReturn("eventStream");
+        when(mongoOps.getCollection("eventStream")).thenReturn(collection);
+        FhirMongoOperations fhirMongoOperations = mock(FhirMongoOperations.class);
+        when(fhirMongoOperations.getMongoOperations()).thenReturn(mongoOps);
+
+        SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+        writer = new EventStreamWriter(fhirMongoOperations, meterRegistry);
+        ReflectionTestUtils.setField(writer, "batchSize", BATCH_SIZE);
+        ReflectionTestUtils.setField(writer, "flushIntervalMs", 1000L);
+        ReflectionTestUtils.setField(writer, "spillFile", spillFile.toString());
+        ReflectionTestUtils.setField(writer, "writtenCounter", meterRegistry.counter("written"));
+    }
+
+    @Test
+    void replaysABatchPerCall() {
+        assertTrue(writer.replaySpill());
+        assertEquals(List.of(2), inserts);
+        assertFalse(Files.exists(spillFile));
+
+        assertTrue(writer.replaySpill());
+        assertFalse(writer.replaySpill());
+        assertEquals(List.of(2, 2, 1), inserts);
+        assertFalse(Files.exists(directory.resolve("spill.ndjson.replay")));
+
+        assertFalse(writer.replaySpill());
+        assertEquals(3, inserts.size());
+    }
+
+    @Test
+    void failedReplayStartsOver() {
+        assertTrue(writer.replaySpill());
+        doThrow(new IllegalStateException("down")).when(collection).insertMany(anyList(), any(InsertManyOptions.class));
+        assertFalse(writer.replaySpill());
+        assertTrue(Files.exists(directory.resolve("spill.ndjson.replay")));
+
+        // retried after the backoff, from the first record
+        doAnswer(invocation -> {
+            inserts.add(invocation.<List<?>>getArgument(0).size());
+            return null;
+        }).when(collection).insertMany(anyList(), any(InsertManyOptions.class));
+        ReflectionTestUtils.setField(writer, "nextReplayCheck", 0L);
+        while (writer.replaySpill()) {
+            // next chunk
+        }
+        assertEquals(List.of(2, 2, 2, 1), inserts);
+        assertFalse(Files.exists(directory.resolve("spill.ndjson.replay")));
+    }
+}
@@ -0,0 +1,268 @@
+package com.mongodb.fhir.webservice.service;
+
+import com.mongodb.client.result.DeleteResult;
+import com.mongodb.client.result.UpdateResult;
+import com.mongodb.fhir.webservice.db.FhirMongoOperations;
+import com.mongodb.fhir.webservice.db.IndexBootstrapper;
+import com.mongodb.fhir.webservice.model.EventStream;
+import com.mongodb.fhir.webservice.model.IdempotencyKey;
+import org.bson.Document;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.data.mongodb.core.MongoOperations;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.test.util.ReflectionTestUtils;
+import reactor.core.publisher.Mono;
+
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+/**
+ * Resource keys come from the top level id, meta.versionId and
+ * subject.reference only.  Claims go through the key states against an
+ * in-memory idempotencyKey collection.
+ */
+class IdempotencyStoreTest {
+
+    private static final String PATIENT = "{\"resourceType\":\"Patient\",\"id\":\"p1\"}";
+
+    // in-memory idempotencyKey collection by _id
+    private Map<String, IdempotencyKey> keys;
+
+    private IdempotencyStore store;
+
+    @BeforeEach
+    void setUp() {
+        keys = new HashMap<>();
+        MongoOperations mongoOps = mock(MongoOperations.class);
+        when(mongoOps.insert(any(IdempotencyKey.class))).thenAnswer(invocation -> {
+            IdempotencyKey key = invocation.getArgument(0);
+            if(keys.putIfAbsent(key.getId(), copy(key)) != null) {
+                throw new DuplicateKeyException("E11000");
+            }
+            return key;
+        });
+        when(mongoOps.findById(anyString(), eq(IdempotencyKey.class)))
+                .thenAnswer(invocation -> copy(keys.get(invocation.<String>getArgument(0))));
+        when(mongoOps.updateFirst(any(Query.class), any(Update.class), eq(IdempotencyKey.class))).thenAnswer(invocation -> {
+            IdempotencyKey key = this.find(invocation.getArgument(0));
+            if(key == null) {
+                return UpdateResult.acknowledged(0, 0L, null);
+            }
+            Document set = (Document)invocation.<Update>getArgument(1).getUpdateObject().get("$set");
+            if(set.containsKey("createdAt")) {
+                key.setCreatedAt(set.getDate("createdAt"));
+            }
+            if(set.containsKey("completedAt")) {
+                key.setCompletedAt(set.getDate("completedAt"));
+            }
+            return UpdateResult.acknowledged(1, 1L, null);
+        });
+        when(mongoOps.remove(any(Query.class), eq(IdempotencyKey.class))).thenAnswer(invocation -> {
+            IdempotencyKey key = this.find(invocation.getArgument(0));
+            if(key != null) {
+                keys.remove(key.getId());
+            }
+            return DeleteResult.acknowledged(key != null ? 1 : 0);
+        });
+
+        FhirMongoOperations fhirMongoOperations = mock(FhirMongoOperations.class);
+        when(fhirMongoOperations.getMongoOperations()).thenReturn(mongoOps);
+        when(fhirMongoOperations.timed(anyString(), any())).thenAnswer(invocation -> invocation.<Supplier<?>>getArgument(1).get());
+
+        store = new IdempotencyStore(fhirMongoOperations, mock(IndexBootstrapper.class));
+        ReflectionTestUtils.setField(store, "enabled", true);
+        ReflectionTestUtils.setField(store, "ttlHours", 24L);
+        ReflectionTestUtils.setField(store, "pendingTimeoutMs", 30000L);
+        ReflectionTestUtils.setField(store, "hashKey", "test");
+        store.start();
+    }
+
+    private static IdempotencyKey copy(IdempotencyKey key) {
+        if(key == null) {
+            return null;
+        }
+        IdempotencyKey copy = new IdempotencyKey(key.getId(), key.getFingerprint(), key.getCreatedAt());
+        copy.setCompletedAt(key.getCompletedAt());
+        return copy;
+    }
+
+    /**
+     * Stored key matching the _id, completedAt and createdAt conditions of a query
+     */
+    private IdempotencyKey find(Query query) {
+        Document conditions = query.getQueryObject();
+        IdempotencyKey key = keys.get(conditions.getString("_id"));
+        if(key == null) {
+            return null;
+        }
+        if(conditions.containsKey("completedAt") && key.getCompletedAt() != conditions.get("completedAt")) {
+            return null;
+        }
+        if(conditions.containsKey("createdAt") && !key.getCreatedAt().equals(conditions.get("createdAt"))) {
+            return null;
+        }
+        return key;
+    }
+
+    private ResponseEntity<String> post(String idempotencyKey, String payload, HttpStatus status, AtomicInteger writes) {
+        return store.execute(EventStream.PATIENT_RESOURCE, idempotencyKey, payload, () -> {
+            writes.incrementAndGet();
+            return ResponseEntity.status(status).body("written");
+        }, () -> ResponseEntity.ok("replayed"));
+    }
+
+    @Test
+    void retryOfCompletedRequestIsReplayed() {
+        AtomicInteger writes = new AtomicInteger();
+
+        ResponseEntity<String> first = this.post("k1", PATIENT, HttpStatus.OK, writes);
+        ResponseEntity<String> retry = this.post("k1", PATIENT, HttpStatus.OK, writes);
+
+        assertEquals(1, writes.get());
+        assertEquals("written", first.getBody());
+        assertNull(first.getHeaders().getFirst(IdempotencyStore.IDEMPOTENT_REPLAYED));
+        assertEquals("replayed", retry.getBody());
+        assertEquals("true", retry.getHeaders().getFirst(IdempotencyStore.IDEMPOTENT_REPLAYED));
+    }
+
+    @Test
+    void retryWhileInProgressConflicts() {
+        IdempotencyStore.Claim claim = store.claim(EventStream.PATIENT_RESOURCE, "k1", PATIENT);
+        assertEquals(IdempotencyStore.State.CLAIMED, claim.getState());
+
+        assertEquals(IdempotencyStore.State.IN_PROGRESS, store.claim(EventStream.PATIENT_RESOURCE, "k1", PATIENT).getState());
+        assertEquals(HttpStatus.CONFLICT, this.post("k1", PATIENT, HttpStatus.OK, new AtomicInteger()).getStatusCode());
+
+        store.complete(claim);
+        assertEquals(IdempotencyStore.State.COMPLETED, store.claim(EventStream.PATIENT_RESOURCE, "k1", PATIENT).getState());
+    }
+
+    @Test
+    void failedRequestReleasesItsKey() {
+        AtomicInteger writes = new AtomicInteger();
+
+        assertEquals(HttpStatus.NOT_FOUND, this.post("k1", PATIENT, HttpStatus.NOT_FOUND, writes).getStatusCode());
+        assertTrue(keys.isEmpty());
+        assertThrows(IllegalStateException.class, () -> store.execute(EventStream.PATIENT_RESOURCE, "k1", PATIENT,
+                () -> { throw new IllegalStateException("write failed"); }, () -> ResponseEntity.ok("replayed")));
+        assertTrue(keys.isEmpty());
+
+        assertEquals("written", this.post("k1", PATIENT, HttpStatus.OK, writes).getBody());
+        assertEquals(2, writes.get());
+    }
+
+    @Test
+    void abandonedClaimIsTakenOverOnce() {
+        store.claim(EventStream.PATIENT_RESOURCE, "k1", PATIENT);
+        IdempotencyKey stored = keys.values().iterator().next();
+        stored.setCreatedAt(new Date(System.currentTimeMillis() - 60000));
+
+        assertEquals(IdempotencyStore.State.CLAIMED, store.claim(EventStream.PATIENT_RESOURCE, "k1", PATIENT).getState());
+        assertEquals(IdempotencyStore.State.IN_PROGRESS, store.claim(EventStream.PATIENT_RESOURCE, "k1", PATIENT).getState());
+    }
+
+    @Test
+    void reusedKeyWithOtherPayloadIsRejected() {
+        AtomicInteger writes = new AtomicInteger();
+        String otherPatient = "{\"resourceType\":\"Patient\",\"id\":\"p2\"}";
+
+        IdempotencyStore.Claim claim = store.claim(EventStream.PATIENT_RESOURCE, "k1", PATIENT);
+        assertEquals(IdempotencyStore.State.MISMATCH, store.claim(EventStream.PATIENT_RESOURCE, "k1", otherPatient).getState());
+        store.complete(claim);
+
+        ResponseEntity<String> response = this.post("k1", otherPatient, HttpStatus.OK, writes);
+        assertEquals(HttpStatus.UNPROCESSABLE_ENTITY, response.getStatusCode());
+        assertEquals(0, writes.get());
+    }
+
+    @Test
+    void sameConditionIdForAnotherSubjectIsWritten() throws Exception {
+        String condition = new String(Files.readAllBytes(Paths.get("fhirResourceSamples/condition-influenza.json")));
+        String otherSubject = condition.replace("123456789-1", "987654321-1");
+        AtomicInteger writes = new AtomicInteger();
+
+        this.post(null, condition, HttpStatus.OK, writes);
+        this.post(null, otherSubject, HttpStatus.OK, writes);
+        assertEquals(2, writes.get());
+
+        assertEquals("replayed", this.post(null, otherSubject, HttpStatus.OK, writes).getBody());
+        assertEquals(2, writes.get());
+    }
+
+    @Test
+    void reactivePathReleasesAndReplays() {
+        AtomicInteger writes = new AtomicInteger();
+        Supplier<Mono<ResponseEntity<String>>> replay = () -> Mono.just(ResponseEntity.ok("replayed"));
+
+        assertThrows(IllegalStateException.class, () -> store.executeReactive(EventStream.PATIENT_RESOURCE, "k1", PATIENT,
+                () -> Mono.<ResponseEntity<String>>error(new IllegalStateException("write failed")), replay).block());
+        assertTrue(keys.isEmpty());
+
+        Supplier<Mono<ResponseEntity<String>>> process = () -> Mono.fromCallable(() -> {
+            writes.incrementAndGet();
+            return ResponseEntity.ok("written");
+        });
+        assertEquals("written", store.executeReactive(EventStream.PATIENT_RESOURCE, "k1", PATIENT, process, replay)
+                .block().getBody());
+        ResponseEntity<String> retry = store.executeReactive(EventStream.PATIENT_RESOURCE, "k1", PATIENT, process, replay).block();
+        assertEquals("replayed", retry.getBody());
+        assertEquals("true", retry.getHeaders().getFirst(IdempotencyStore.IDEMPOTENT_REPLAYED));
+        assertEquals(1, writes.get());
+    }
+
+    @Test
+    void noHashKeyTurnsTheStoreOff() {
+        ReflectionTestUtils.setField(store, "hashKey", "");
+        store.start();
+
+        assertEquals(IdempotencyStore.State.NONE, store.claim(EventStream.PATIENT_RESOURCE, "k1", PATIENT).getState());
+        AtomicInteger writes = new AtomicInteger();
+        this.post("k1", PATIENT, HttpStatus.OK, writes);
+        this.post("k1", PATIENT, HttpStatus.OK, writes);
+        assertEquals(2, writes.get());
+        assertTrue(keys.isEmpty());
+    }
+
+    @Test
+    void samplePatientKeyIsItsId() throws Exception {
+        String payload = new String(Files.readAllBytes(Paths.get("fhirResourceSamples/patient.json")));
+
+        assertEquals("123456789-1", IdempotencyStore.resourceKey(payload));
+    }
+
+    @Test
+    void versionIdIsPartOfTheKey() {
+        String payload = "{\"resourceType\":\"Condition\",\"meta\":{\"lastUpdated\":\"2020-01-01\",\"versionId\":\"2\"},"
+                + "\"subject\":{\"id\":\"nested\"},\"id\":\"c1\"}";
+
+        assertEquals("c1/_history/2", IdempotencyStore.resourceKey(payload));
+    }
+
+    @Test
+    void conditionKeyHasItsSubject() throws Exception {
+        String payload = new String(Files.readAllBytes(Paths.get("fhirResourceSamples/condition-influenza.json")));
+
+        assertEquals("example subject 123456789-1", IdempotencyStore.resourceKey(payload));
+    }
+
+    @Test
+    void noIdNoKey() {
+        assertNull(IdempotencyStore.resourceKey("{\"resourceType\":\"Condition\",\"subject\":{\"id\":\"nested\"}}"));
+        assertNull(IdempotencyStore.resourceKey("[{\"id\":\"c1\"}]"));
+        assertNull(IdempotencyStore.resourceKey("{\"id\":"));
+    }
+}
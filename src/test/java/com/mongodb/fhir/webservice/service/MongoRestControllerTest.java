@@ -0,0 +1,41 @@
+package com.mongodb.fhir.webservice.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.MediaType;
+import org.springframework.mock.env.MockEnvironment;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
+import org.springframework.test.web.servlet.setup.MockMvcBuilders;
+
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.*;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.asyncDispatch;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.*;
+
+/**
+ * A patient id that is already stored is answered with 409 and an OperationOutcome.
+ */
+class MongoRestControllerTest {
+
+    @Test
+    void duplicatePatientIsConflict() throws Exception {
+        FhirService fhirService = mock(FhirService.class);
+        when(fhirService.processPatient(anyString()))
+                .thenThrow(new FhirService.PatientExistsException("123456789-1"));
+        MongoRestController controller = new MongoRestController(fhirService,
+                new RequestExecutor(new MockEnvironment(), new SimpleMeterRegistry()),
+                null, new PayloadLogger(), new IdempotencyStore(null, null), null);
+        MockMvc mockMvc = MockMvcBuilders.standaloneSetup(controller).build();
+
+        MvcResult result = mockMvc.perform(post("/processFhir/patient")
+                .contentType(MediaType.APPLICATION_JSON).content("{}"))
+                .andExpect(request().asyncStarted()).andReturn();
+
+        mockMvc.perform(asyncDispatch(result))
+                .andExpect(status().isConflict())
+                .andExpect(jsonPath("$.resourceType").value("OperationOutcome"))
+                .andExpect(jsonPath("$.issue[0].diagnostics").value("Patient 123456789-1 already exists."));
+    }
+}
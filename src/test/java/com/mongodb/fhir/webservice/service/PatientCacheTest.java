@@ -0,0 +1,147 @@
+package com.mongodb.fhir.webservice.service;
+
+import com.mongodb.fhir.webservice.model.Patient;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.Date;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Changes invalidate cached patients of other versions only, in either order.
+ * Misses are loaded once, outside of the cache, and nothing is cached
+ * without fhir.cache.decryptedPhi.
+ */
+class PatientCacheTest {
+
+    private static final String ID = "5f50c31e1c4ae0a9d6f2b8a1";
+
+    private static final String PATIENT_ID = "123456789-1";
+
+    private PatientCache patientCache;
+
+    @BeforeEach
+    void setUp() {
+        patientCache = new PatientCache(null, new SimpleMeterRegistry());
+        ReflectionTestUtils.setField(patientCache, "enabled", true);
+        ReflectionTestUtils.setField(patientCache, "decryptedPhi", true);
+        ReflectionTestUtils.setField(patientCache, "maxWeight", 1000L);
+        ReflectionTestUtils.setField(patientCache, "ttlSeconds", 300L);
+        ReflectionTestUtils.setField(patientCache, "changeStreamEnabled", false);
+        patientCache.start();
+    }
+
+    private static Patient patient(long updateDate) {
+        Patient patient = new Patient();
+        patient.setId(ID);
+        patient.setPatientId(PATIENT_ID);
+        patient.setUpdateDate(new Date(updateDate));
+        return patient;
+    }
+
+    @Test
+    void ownWriteIsKept() {
+        patientCache.put(patient(1000));
+        patientCache.changed(ID, 1000);
+
+        assertNotNull(patientCache.getIfPresent(PATIENT_ID));
+    }
+
+    @Test
+    void otherWriteInvalidates() {
+        patientCache.put(patient(1000));
+        patientCache.changed(ID, 2000);
+
+        assertNull(patientCache.getIfPresent(PATIENT_ID));
+    }
+
+    @Test
+    void olderWriteAfterNewerChangeIsNotCached() {
+        patientCache.changed(ID, 2000);
+        patientCache.put(patient(1000));
+        assertNull(patientCache.getIfPresent(PATIENT_ID));
+
+        Patient loaded = patientCache.get(PATIENT_ID, patientId -> patient(1000));
+        assertEquals(1000, loaded.getUpdateDate().getTime());
+        assertNull(patientCache.getIfPresent(PATIENT_ID));
+
+        patientCache.put(patient(2000));
+        assertNotNull(patientCache.getIfPresent(PATIENT_ID));
+    }
+
+    @Test
+    void loadRunsOutsideTheCache() {
+        // a load inside the cache's compute would fail with a recursive update
+        Patient loaded = patientCache.get(PATIENT_ID, patientId -> {
+            patientCache.put(patient(1000));
+            patientCache.invalidate(patientId);
+            return patient(1000);
+        });
+
+        assertNotNull(loaded);
+        assertNotNull(patientCache.getIfPresent(PATIENT_ID));
+    }
+
+    @Test
+    void concurrentMissesLoadOnce() throws Exception {
+        CountDownLatch loadStarted = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger loads = new AtomicInteger();
+        Function<String, Patient> loader = patientId -> {
+            loads.incrementAndGet();
+            loadStarted.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return patient(1000);
+        };
+
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Future<Patient> first = executor.submit(() -> patientCache.get(PATIENT_ID, loader));
+            assertTrue(loadStarted.await(5, TimeUnit.SECONDS));
+            Future<Patient> second = executor.submit(() -> patientCache.get(PATIENT_ID, loader));
+            release.countDown();
+
+            assertNotNull(first.get(5, TimeUnit.SECONDS));
+            assertNotNull(second.get(5, TimeUnit.SECONDS));
+            assertEquals(1, loads.get());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    void noDecryptedPhiNoCache() {
+        patientCache = new PatientCache(null, new SimpleMeterRegistry());
+        ReflectionTestUtils.setField(patientCache, "enabled", true);
+        ReflectionTestUtils.setField(patientCache, "decryptedPhi", false);
+        patientCache.start();
+        AtomicInteger loads = new AtomicInteger();
+
+        patientCache.put(patient(1000));
+        assertNull(patientCache.getIfPresent(PATIENT_ID));
+        patientCache.get(PATIENT_ID, patientId -> {
+            loads.incrementAndGet();
+            return patient(1000);
+        });
+        patientCache.get(PATIENT_ID, patientId -> {
+            loads.incrementAndGet();
+            return patient(1000);
+        });
+        assertEquals(2, loads.get());
+        assertNull(patientCache.getIfPresent(PATIENT_ID));
+    }
+}
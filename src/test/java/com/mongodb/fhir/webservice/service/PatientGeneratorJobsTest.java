@@ -0,0 +1,65 @@
+package com.mongodb.fhir.webservice.service;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.autoconfigure.web.ServerProperties;
+import org.springframework.boot.web.context.WebServerApplicationContext;
+import org.springframework.boot.web.context.WebServerInitializedEvent;
+import org.springframework.boot.web.server.Ssl;
+import org.springframework.boot.web.server.WebServer;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+/**
+ * Jobs target the port the server listens on, with its scheme and context
+ * path, unless fhir.generator.targetUrl is set.
+ */
+class PatientGeneratorJobsTest {
+
+    private ServerProperties serverProperties;
+
+    private PatientGeneratorJobs jobs;
+
+    @BeforeEach
+    void setUp() {
+        serverProperties = new ServerProperties();
+        jobs = new PatientGeneratorJobs(serverProperties);
+        ReflectionTestUtils.setField(jobs, "targetUrl", "");
+        ReflectionTestUtils.setField(jobs, "serverPort", 0);
+    }
+
+    private static WebServerInitializedEvent started(String serverNamespace, int port) {
+        WebServer webServer = mock(WebServer.class);
+        when(webServer.getPort()).thenReturn(port);
+        WebServerApplicationContext context = mock(WebServerApplicationContext.class);
+        when(context.getServerNamespace()).thenReturn(serverNamespace);
+
+        WebServerInitializedEvent event = mock(WebServerInitializedEvent.class);
+        when(event.getWebServer()).thenReturn(webServer);
+        when(event.getApplicationContext()).thenReturn(context);
+        return event;
+    }
+
+    @Test
+    void actualPortSchemeAndContextPath() {
+        jobs.onApplicationEvent(started(null, 51234));
+        jobs.onApplicationEvent(started("management", 8081));
+        assertEquals("http://localhost:51234", jobs.targetUrl());
+
+        Ssl ssl = new Ssl();
+        ssl.setKeyStore("classpath:keystore.p12");
+        serverProperties.setSsl(ssl);
+        serverProperties.getServlet().setContextPath("/fhir");
+        assertEquals("https://localhost:51234/fhir", jobs.targetUrl());
+    }
+
+    @Test
+    void targetUrlWins() {
+        ReflectionTestUtils.setField(jobs, "targetUrl", "https://fhir.example.com");
+        jobs.onApplicationEvent(started(null, 51234));
+
+        assertEquals("https://fhir.example.com", jobs.targetUrl());
+    }
+}
@@ -0,0 +1,32 @@
+package com.mongodb.fhir.webservice.service;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Redacted payloads keep their structure and coded values but no PHI.
+ */
+class PayloadLoggerTest {
+
+    @Test
+    void samplePatientIsRedacted() throws Exception {
+        String payload = new String(Files.readAllBytes(Paths.get("fhirResourceSamples/patient.json")));
+
+        String redacted = PayloadLogger.redact(payload);
+
+        assertTrue(redacted.contains("\"resourceType\":\"Patient\""), redacted);
+        assertFalse(redacted.contains("123456789-1"), redacted);
+        assertFalse(redacted.contains("Mincey"), redacted);
+        assertFalse(redacted.contains("5555 6473"), redacted);
+        assertFalse(redacted.contains("1960-05-01"), redacted);
+    }
+
+    @Test
+    void invalidPayloadIsNotLogged() {
+        assertEquals("<not JSON>", PayloadLogger.redact("{\"name\": \"Peter\" "));
+    }
+}
@@ -0,0 +1,73 @@
+package com.mongodb.fhir.webservice.utils;
+
+import com.mongodb.fhir.webservice.model.Condition;
+import com.mongodb.fhir.webservice.model.Patient;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * The streaming Bundle serializer must write exactly what the Hapi-Fhir serializer writes.
+ */
+class FhirStreamingSerializerTest {
+
+    private static final int GENERATED_PATIENTS = 50;
+
+    @Test
+    void generatedPatientsMatchHapi() throws Exception {
+        for(int i = 0; i < GENERATED_PATIENTS; i++) {
+            Patient patient = RandomDataGenerator.getPatient();
+            List<Condition> conditions = new ArrayList<>();
+            for(int c = 0; c < i % 5; c++) {
+                conditions.add(RandomDataGenerator.getCondition());
+            }
+            patient.setConditions(conditions);
+
+            assertSameBundle(patient);
+        }
+    }
+
+    @Test
+    void patientWithoutConditionsMatchesHapi() throws Exception {
+        Patient patient = RandomDataGenerator.getPatient();
+        patient.setConditions(null);
+
+        assertSameBundle(patient);
+    }
+
+    @Test
+    void emptyAndEscapedValuesMatchHapi() throws Exception {
+        Patient patient = RandomDataGenerator.getPatient();
+        patient.setFirstName("\"Jo\" <b>&amp;</b> \u00e9\u2028\u2029\t");
+        patient.setLastName(" ");
+        patient.setAddress(null);
+        patient.setBirthDate(null);
+
+        Condition condition = new Condition();
+        condition.setCondition("Influenza \\ / \u65e5\u672c");
+        condition.setSeverity("");
+        condition.setOnsetDate(new Date());
+        List<Condition> conditions = new ArrayList<>();
+        conditions.add(condition);
+        conditions.add(new Condition());
+        patient.setConditions(conditions);
+
+        assertSameBundle(patient);
+    }
+
+    private static void assertSameBundle(Patient patient) throws Exception {
+        for(boolean pretty : new boolean[] {false, true}) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            FhirStreamingSerializer.writeBundle(patient, pretty, out);
+
+            assertEquals(FhirSerializer.serializeBundle(patient, pretty), out.toString(StandardCharsets.UTF_8.name()),
+                    pretty ? "pretty" : "compact");
+        }
+    }
+}